@@ -0,0 +1,68 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import fr.cenotelie.commons.lsp.engine.Document;
+import fr.cenotelie.commons.lsp.engine.DocumentAnalysis;
+import fr.cenotelie.commons.lsp.engine.SymbolRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the full analysis of Hime grammars
+ * Each invocation uses a new analyzer and a new symbol registry, so that no cached result is reused.
+ *
+ * @author Laurent Wouters
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public class AnalysisBenchmark {
+    /**
+     * The size of the fixture
+     */
+    @Param({BenchmarkFixtures.SMALL, BenchmarkFixtures.MEDIUM, BenchmarkFixtures.HUGE})
+    public String size;
+    /**
+     * The document for the fixture
+     */
+    private Document document;
+
+    /**
+     * Loads the fixture
+     */
+    @Setup
+    public void setup() {
+        document = new Document("file:///benchmarks/" + size + ".gram", HimeWorkspace.LANGUAGE, 0, BenchmarkFixtures.get(size));
+    }
+
+    /**
+     * Benchmarks the full analysis of the fixture
+     *
+     * @return The analysis
+     */
+    @Benchmark
+    public DocumentAnalysis analyze() {
+        HimeDocumentAnalyzer analyzer = new HimeDocumentAnalyzer(new HimeImportGraph(), new HimeMetrics());
+        return analyzer.analyze(new SymbolRegistry(), document);
+    }
+}
@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import fr.cenotelie.commons.utils.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Provides the grammars used as inputs for the benchmarks
+ *
+ * @author Laurent Wouters
+ */
+public class BenchmarkFixtures {
+    /**
+     * The small fixture: the grammar of the Hime language itself
+     */
+    public static final String SMALL = "small";
+    /**
+     * The medium fixture: a generated grammar with a thousand rules
+     */
+    public static final String MEDIUM = "medium";
+    /**
+     * The huge fixture: a generated grammar with fifty thousand rules
+     */
+    public static final String HUGE = "huge";
+
+    /**
+     * Gets the content of a fixture
+     *
+     * @param size The size of the fixture
+     * @return The content of the grammar
+     */
+    public static String get(String size) {
+        switch (size) {
+            case SMALL:
+                return getHimeGrammar();
+            case MEDIUM:
+                return generate("Medium", 1000);
+            case HUGE:
+                return generate("Huge", 50000);
+            default:
+                throw new IllegalArgumentException("Unknown fixture " + size);
+        }
+    }
+
+    /**
+     * Gets the grammar of the Hime language, as shipped with the server
+     *
+     * @return The content of the grammar
+     */
+    public static String getHimeGrammar() {
+        InputStream stream = HimeWorkspace.class.getResourceAsStream("HimeGrammar.gram");
+        if (stream == null)
+            throw new IllegalStateException("Missing resource HimeGrammar.gram");
+        try (Reader reader = new InputStreamReader(stream, StandardCharsets.UTF_8)) {
+            return IOUtils.read(reader);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Generates a grammar where each rule refers to the terminals and to the next rules
+     *
+     * @param name  The name of the grammar
+     * @param rules The number of rules
+     * @return The content of the grammar
+     */
+    public static String generate(String name, int rules) {
+        StringBuilder builder = new StringBuilder(rules * 64);
+        builder.append("grammar ").append(name).append("\n{\n");
+        builder.append("    options\n    {\n        Axiom = \"rule0\";\n        Separator = \"SEPARATOR\";\n    }\n");
+        builder.append("    terminals\n    {\n");
+        builder.append("        fragment WHITE_SPACE -> U+0020 | U+0009 | U+000D | U+000A ;\n");
+        builder.append("        SEPARATOR -> WHITE_SPACE+ ;\n");
+        builder.append("        NAME -> [_a-zA-Z] [_a-zA-Z0-9]* ;\n");
+        builder.append("        INTEGER -> [1-9] [0-9]* | '0' ;\n");
+        builder.append("    }\n    rules\n    {\n");
+        for (int i = 0; i != rules; i++) {
+            builder.append("        rule").append(i).append(" -> NAME");
+            if (i + 1 < rules)
+                builder.append(" rule").append(i + 1);
+            if (i + 2 < rules)
+                builder.append(" | INTEGER rule").append(i + 2);
+            builder.append(" | '").append(i).append("' ;\n");
+        }
+        builder.append("    }\n}\n");
+        return builder.toString();
+    }
+}
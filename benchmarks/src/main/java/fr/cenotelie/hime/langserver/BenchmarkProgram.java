@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Main program for running the benchmarks
+ * This accepts the usual JMH options, except that the results are written as JSON to `benchmarks.json` by default.
+ *
+ * @author Laurent Wouters
+ */
+public class BenchmarkProgram {
+    /**
+     * The default file for the results
+     */
+    private static final String DEFAULT_RESULT = "benchmarks.json";
+
+    /**
+     * Main entry point
+     *
+     * @param args The command line arguments
+     */
+    public static void main(String[] args) {
+        CommandLineOptions options;
+        try {
+            options = new CommandLineOptions(args);
+        } catch (CommandLineOptionException ex) {
+            System.err.println(ex.getMessage());
+            System.exit(1);
+            return;
+        }
+        ChainedOptionsBuilder builder = new OptionsBuilder().parent(options);
+        if (!options.getResultFormat().hasValue())
+            builder.resultFormat(ResultFormatType.JSON);
+        if (!options.getResult().hasValue())
+            builder.result(DEFAULT_RESULT);
+        try {
+            new Runner(builder.build()).run();
+        } catch (RunnerException ex) {
+            ex.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import fr.cenotelie.hime.redist.ParseResult;
+import fr.cenotelie.hime.redist.Token;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the lexer and the LR parser of Hime grammars
+ *
+ * @author Laurent Wouters
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public class ParsingBenchmark {
+    /**
+     * The size of the fixture
+     */
+    @Param({BenchmarkFixtures.SMALL, BenchmarkFixtures.MEDIUM, BenchmarkFixtures.HUGE})
+    public String size;
+    /**
+     * The content of the fixture
+     */
+    private String content;
+
+    /**
+     * Loads the fixture
+     */
+    @Setup
+    public void setup() {
+        content = BenchmarkFixtures.get(size);
+    }
+
+    /**
+     * Benchmarks the lexing of the fixture
+     *
+     * @return The number of tokens
+     */
+    @Benchmark
+    public int lex() {
+        HimeGrammarLexer lexer = new HimeGrammarLexer(content);
+        int count = 0;
+        for (Token token : lexer.getOutput())
+            count++;
+        return count;
+    }
+
+    /**
+     * Benchmarks the parsing of the fixture
+     *
+     * @return The parse result
+     */
+    @Benchmark
+    public ParseResult parse() {
+        HimeGrammarLexer lexer = new HimeGrammarLexer(content);
+        HimeGrammarParser parser = new HimeGrammarParser(lexer);
+        parser.setModeRecoverErrors(false);
+        return parser.parse();
+    }
+}
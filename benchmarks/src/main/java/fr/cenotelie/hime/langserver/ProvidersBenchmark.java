@@ -0,0 +1,196 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import fr.cenotelie.commons.lsp.engine.Document;
+import fr.cenotelie.commons.lsp.engine.DocumentLensProvider;
+import fr.cenotelie.commons.lsp.engine.Symbol;
+import fr.cenotelie.commons.lsp.structures.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the hover, code lens, rename and completion services on analyzed Hime grammars
+ * The requests are made in turn at the definitions of all the symbols in the fixture,
+ * and at the end of the references for the completions.
+ *
+ * @author Laurent Wouters
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public class ProvidersBenchmark {
+    /**
+     * The size of the fixture
+     */
+    @Param({BenchmarkFixtures.SMALL, BenchmarkFixtures.MEDIUM, BenchmarkFixtures.HUGE})
+    public String size;
+    /**
+     * The workspace
+     */
+    private HimeWorkspace workspace;
+    /**
+     * The document for the fixture
+     */
+    private Document document;
+    /**
+     * The positions of the symbol definitions in the fixture
+     */
+    private Position[] positions;
+    /**
+     * The positions of the ends of the symbol references in the fixture
+     */
+    private Position[] completions;
+    /**
+     * The index of the next position to use
+     */
+    private int next;
+    /**
+     * The index of the next completion position to use
+     */
+    private int nextCompletion;
+
+    /**
+     * Loads and analyzes the fixture
+     */
+    @Setup
+    public void setup() {
+        workspace = new HimeWorkspace();
+        document = new Document("file:///benchmarks/" + size + ".gram", HimeWorkspace.LANGUAGE, 0, BenchmarkFixtures.get(size));
+        workspace.analyze(document);
+        List<Position> result = new ArrayList<>();
+        List<Position> ends = new ArrayList<>();
+        for (SymbolInformation information : workspace.getSymbolRegistry().getDefinitionsIn(document.getUri())) {
+            result.add(information.getLocation().getRange().getStart());
+            Symbol symbol = workspace.getSymbolRegistry().getSymbolAt(document.getUri(), information.getLocation().getRange().getStart());
+            Collection<Range> references = symbol == null ? null : symbol.getReferencesIn(document.getUri());
+            if (references != null) {
+                for (Range range : references)
+                    ends.add(range.getEnd());
+            }
+        }
+        positions = result.toArray(new Position[result.size()]);
+        completions = ends.isEmpty() ? positions : ends.toArray(new Position[ends.size()]);
+    }
+
+    /**
+     * Gets the next position to use
+     *
+     * @return The position
+     */
+    private Position nextPosition() {
+        Position position = positions[next];
+        next = (next + 1) % positions.length;
+        return position;
+    }
+
+    /**
+     * Benchmarks the hover service
+     *
+     * @return The hover data
+     */
+    @Benchmark
+    public Hover hover() {
+        return workspace.getServiceHoverProvider(document).getHoverData(document, nextPosition());
+    }
+
+    /**
+     * Benchmarks the code lens service
+     *
+     * @return The code lenses
+     */
+    @Benchmark
+    public CodeLens[] lens() {
+        return workspace.getServiceLensProvider(document).getLens(document);
+    }
+
+    /**
+     * Benchmarks the resolution of the code lens with the summary of the last grammar
+     *
+     * @return The resolved code lens
+     */
+    @Benchmark
+    public CodeLens lensResolve() {
+        DocumentLensProvider provider = workspace.getServiceLensProvider(document);
+        CodeLens[] lenses = provider.getLens(document);
+        return provider.resolve(lenses[lenses.length - 1]);
+    }
+
+    /**
+     * Benchmarks the rename service
+     *
+     * @return The edits for the rename
+     */
+    @Benchmark
+    public TextEdit[] rename() {
+        Symbol symbol = workspace.getSymbolRegistry().getSymbolAt(document.getUri(), nextPosition());
+        if (symbol == null)
+            return null;
+        return workspace.getServiceSymbolHandler(document).rename(document, symbol, "renamed");
+    }
+
+    /**
+     * Benchmarks the rename service across the workspace
+     *
+     * @return The edits for the rename
+     */
+    @Benchmark
+    public WorkspaceEdit renameWorkspace() {
+        try {
+            return workspace.rename(document.getUri(), nextPosition(), "renamed");
+        } catch (IllegalArgumentException ex) {
+            // the name collides with an existing one
+            return null;
+        }
+    }
+
+    /**
+     * Benchmarks the completion service
+     *
+     * @return The completion items
+     */
+    @Benchmark
+    public CompletionList completion() {
+        Position position = completions[nextCompletion];
+        nextCompletion = (nextCompletion + 1) % completions.length;
+        return workspace.getCompletions(document, position);
+    }
+
+    /**
+     * Benchmarks the in-process compilation of the fixture into its lexer and parser automata
+     *
+     * @return The compiled grammar
+     */
+    @Benchmark
+    public HimeCompiledGrammar compile() {
+        try {
+            return new HimeCompiledGrammar(size, size, Collections.singletonList(BenchmarkFixtures.get(size)), new HimeProgress(null));
+        } catch (IllegalArgumentException ex) {
+            // the fixture cannot be compiled
+            return null;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import fr.cenotelie.commons.lsp.engine.Document;
+import fr.cenotelie.commons.lsp.structures.Hover;
+import fr.cenotelie.commons.lsp.structures.Position;
+import fr.cenotelie.commons.lsp.structures.SymbolInformation;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the scaling of the analyzer and the providers with the size of the workspace
+ * The workspaces are produced by the workload generator.
+ *
+ * @author Laurent Wouters
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ScalingBenchmark {
+    /**
+     * The total number of rules in the workspace
+     */
+    @Param({"10", "100", "1000", "10000", "100000"})
+    public int rules;
+    /**
+     * The documents of the workspace, with the parent grammars first
+     */
+    private List<Document> documents;
+    /**
+     * The workspace analyzed at setup
+     */
+    private HimeWorkspace workspace;
+    /**
+     * The positions of the symbol definitions in the first document
+     */
+    private Position[] positions;
+    /**
+     * The queries for the symbol search, made of the starts of the names of the symbols in the first document
+     */
+    private String[] queries;
+    /**
+     * The index of the next position to use
+     */
+    private int next;
+    /**
+     * The index of the next query to use
+     */
+    private int nextQuery;
+
+    /**
+     * Generates and analyzes the workspace
+     */
+    @Setup
+    public void setup() {
+        documents = new ArrayList<>();
+        for (Map.Entry<String, String> entry : HimeWorkloadGenerator.forRules(rules).generate().entrySet())
+            documents.add(new Document("file:///workload/" + entry.getKey(), HimeWorkspace.LANGUAGE, 0, entry.getValue()));
+        workspace = analyzeWorkspace();
+        List<Position> result = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        for (SymbolInformation information : workspace.getSymbolRegistry().getDefinitionsIn(documents.get(0).getUri())) {
+            result.add(information.getLocation().getRange().getStart());
+            names.add(information.getName().substring(0, Math.min(4, information.getName().length())));
+        }
+        positions = result.toArray(new Position[result.size()]);
+        queries = names.toArray(new String[names.size()]);
+    }
+
+    /**
+     * Benchmarks the analysis of the complete workspace
+     * Each invocation uses a new workspace, so that no cached result is reused.
+     *
+     * @return The workspace
+     */
+    @Benchmark
+    public HimeWorkspace analyzeWorkspace() {
+        HimeWorkspace result = new HimeWorkspace();
+        for (Document document : documents)
+            result.analyze(document);
+        return result;
+    }
+
+    /**
+     * Benchmarks the hover service in the analyzed workspace
+     *
+     * @return The hover data
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Hover hover() {
+        Document document = documents.get(0);
+        Position position = positions[next];
+        next = (next + 1) % positions.length;
+        return workspace.getServiceHoverProvider(document).getHoverData(document, position);
+    }
+
+    /**
+     * Benchmarks the search of symbols in the analyzed workspace
+     *
+     * @return The matching symbols
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public SymbolInformation[] symbolSearch() {
+        String query = queries[nextQuery];
+        nextQuery = (nextQuery + 1) % queries.length;
+        return workspace.searchSymbols(query);
+    }
+}
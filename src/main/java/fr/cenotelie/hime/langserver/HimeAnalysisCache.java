@@ -0,0 +1,311 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import fr.cenotelie.commons.lsp.structures.Diagnostic;
+import fr.cenotelie.hime.redist.ParseResult;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * A bounded cache of parse and analysis results, keyed by a hash of the analyzed content
+ * <p>
+ * The entries are evicted in least-recently-used order when the total estimated size of the cached results exceeds the capacity.
+ * The size of an entry is estimated from the length of the content for the parse result, which retains the text, the tokens and the AST,
+ * and from the numbers of occurrences, symbols and diagnostics for the analysis results.
+ * Entries that depend on grammars defined elsewhere are dropped when one of these grammars is re-analyzed.
+ *
+ * @author Laurent Wouters
+ */
+public class HimeAnalysisCache {
+    /**
+     * The default capacity, in estimated bytes
+     */
+    public static final long DEFAULT_CAPACITY = 64 * 1024 * 1024;
+    /**
+     * The estimated bytes retained by a parse result for each character of the content
+     * This is about 6.5 bytes on the grammar of the Hime language, including the content itself.
+     */
+    private static final long BYTES_PER_PARSED_CHAR = 8;
+    /**
+     * The estimated bytes retained by a grammar block, without its occurrences, symbols and diagnostics
+     */
+    private static final long BYTES_PER_BLOCK = 512;
+    /**
+     * The estimated bytes retained for an occurrence of a symbol, the symbol itself being shared with the registry
+     */
+    private static final long BYTES_PER_OCCURRENCE = 12;
+    /**
+     * The estimated bytes retained for an entry of a map or collection of a block (parent, exported symbol or source)
+     */
+    private static final long BYTES_PER_MEMBER = 64;
+    /**
+     * The estimated bytes retained by a diagnostic, with its range and message
+     */
+    private static final long BYTES_PER_DIAGNOSTIC = 256;
+
+    /**
+     * An entry in this cache
+     */
+    public static class Entry {
+        /**
+         * The parse result for the full content, or null if the content was not fully parsed
+         * (results restored from the workspace index or produced by an incremental analysis)
+         */
+        public final ParseResult result;
+        /**
+         * The top-level grammar blocks with their analysis results
+         */
+        public final List<HimeDocumentBlock> blocks;
+        /**
+         * The diagnostics that are not attached to a block
+         */
+        public final List<Diagnostic> diagnostics;
+        /**
+         * The estimated size of this entry, in bytes
+         */
+        private final long size;
+        /**
+         * The grammars that are not defined in the content but referenced as parents
+         */
+        private final Collection<String> dependencies;
+
+        /**
+         * Initializes this entry
+         *
+         * @param result      The parse result for the full content, or null if the content was not fully parsed
+         * @param blocks      The top-level grammar blocks with their analysis results
+         * @param diagnostics The diagnostics that are not attached to a block
+         * @param length      The length of the analyzed content
+         */
+        public Entry(ParseResult result, List<HimeDocumentBlock> blocks, List<Diagnostic> diagnostics, long length) {
+            this.result = result;
+            this.blocks = blocks;
+            this.diagnostics = diagnostics;
+            this.size = getSize(result, blocks, diagnostics, length);
+            this.dependencies = new HashSet<>();
+            for (HimeDocumentBlock block : blocks)
+                dependencies.addAll(block.parents);
+            for (HimeDocumentBlock block : blocks)
+                dependencies.remove(block.name);
+        }
+
+        /**
+         * Gets the estimated size of an entry
+         *
+         * @param result      The parse result for the full content, or null if the content was not fully parsed
+         * @param blocks      The top-level grammar blocks with their analysis results
+         * @param diagnostics The diagnostics that are not attached to a block
+         * @param length      The length of the analyzed content
+         * @return The estimated size, in bytes
+         */
+        private static long getSize(ParseResult result, List<HimeDocumentBlock> blocks, List<Diagnostic> diagnostics, long length) {
+            long size = result == null ? 0 : length * BYTES_PER_PARSED_CHAR;
+            for (HimeDocumentBlock block : blocks) {
+                size += BYTES_PER_BLOCK;
+                size += (block.definitions.size() + block.references.size()) * BYTES_PER_OCCURRENCE;
+                size += (block.parents.size() + block.exports.size() + block.sources.size()) * BYTES_PER_MEMBER;
+                size += block.diagnostics.size() * BYTES_PER_DIAGNOSTIC;
+            }
+            size += diagnostics.size() * BYTES_PER_DIAGNOSTIC;
+            return size;
+        }
+    }
+
+    /**
+     * The capacity of this cache, in estimated bytes
+     */
+    private final long capacity;
+    /**
+     * The entries, in access order
+     */
+    private final LinkedHashMap<String, Entry> entries;
+    /**
+     * The total estimated size of the cached entries, in bytes
+     */
+    private long size;
+    /**
+     * The number of cache hits
+     */
+    private long hits;
+    /**
+     * The number of cache misses
+     */
+    private long misses;
+
+    /**
+     * Initializes this cache
+     *
+     * @param capacity The capacity of this cache, in estimated bytes
+     */
+    public HimeAnalysisCache(long capacity) {
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Gets the cached entry for a content
+     *
+     * @param key The key for the content
+     * @return The entry, or null if there is none
+     */
+    public synchronized Entry get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null)
+            misses++;
+        else
+            hits++;
+        return entry;
+    }
+
+    /**
+     * Gets the cached entry for a content, without counting it as a hit or a miss
+     *
+     * @param key The key for the content
+     * @return The entry, or null if there is none
+     */
+    public synchronized Entry peek(String key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Puts an entry in this cache
+     *
+     * @param key   The key for the content
+     * @param entry The entry
+     */
+    public synchronized void put(String key, Entry entry) {
+        if (entry.size > capacity)
+            return;
+        Entry old = entries.put(key, entry);
+        if (old != null)
+            size -= old.size;
+        size += entry.size;
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (size > capacity && iterator.hasNext()) {
+            size -= iterator.next().size;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Drops the entries that depend on a grammar
+     *
+     * @param grammar The name of the grammar
+     */
+    public synchronized void invalidate(String grammar) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.dependencies.contains(grammar)) {
+                size -= entry.size;
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Gets the number of cache hits
+     *
+     * @return The number of cache hits
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Gets the number of cache misses
+     *
+     * @return The number of cache misses
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Gets the number of cached entries
+     *
+     * @return The number of cached entries
+     */
+    public synchronized int getCount() {
+        return entries.size();
+    }
+
+    /**
+     * Gets the total estimated size of the cached entries
+     *
+     * @return The total estimated size, in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Computes the key for a content
+     *
+     * @param content The content
+     * @return The key
+     */
+    public static String getKey(CharSequence content) {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[8192];
+        int length = 0;
+        for (int i = 0; i != content.length(); i++) {
+            char c = content.charAt(i);
+            buffer[length++] = (byte) (c >>> 8);
+            buffer[length++] = (byte) c;
+            if (length == buffer.length) {
+                digest.update(buffer, 0, length);
+                length = 0;
+            }
+        }
+        digest.update(buffer, 0, length);
+        return toHex(digest);
+    }
+
+    /**
+     * Creates a new SHA-256 digest
+     *
+     * @return The digest
+     */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            // SHA-256 is always supported
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Completes a digest and gets its value in hexadecimal
+     *
+     * @param digest The digest
+     * @return The hexadecimal value
+     */
+    static String toHex(MessageDigest digest) {
+        StringBuilder builder = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            builder.append(Character.forDigit((b >>> 4) & 0xF, 16));
+            builder.append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+}
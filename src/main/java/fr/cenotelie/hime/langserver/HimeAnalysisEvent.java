@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The Java Flight Recorder event for the analysis of a document
+ *
+ * @author Laurent Wouters
+ */
+@Name("fr.cenotelie.hime.Analysis")
+@Label("Analysis")
+@Description("Complete analysis of a grammar document")
+public class HimeAnalysisEvent extends HimeEvent {
+    /**
+     * The analysis is replayed from the cache
+     */
+    public static final String MODE_CACHED = "cached";
+    /**
+     * The analysis only re-parsed the changed grammar
+     */
+    public static final String MODE_INCREMENTAL = "incremental";
+    /**
+     * The analysis re-parsed the whole document
+     */
+    public static final String MODE_FULL = "full";
+
+    /**
+     * The size of the document, in characters
+     */
+    @Label("Size")
+    public int size;
+    /**
+     * How the analysis was performed
+     */
+    @Label("Mode")
+    public String mode;
+    /**
+     * The number of symbol definitions
+     */
+    @Label("Symbols")
+    public int symbols;
+    /**
+     * The number of diagnostics
+     */
+    @Label("Diagnostics")
+    public int diagnostics;
+}
@@ -0,0 +1,173 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import fr.cenotelie.commons.lsp.engine.Document;
+
+import java.util.concurrent.*;
+
+/**
+ * Schedules the analysis of the documents that are being edited
+ * <p>
+ * The changes to a document are coalesced until the document is left unchanged for a quiet period.
+ * A newer version of a document supersedes the analysis of the previous version, whether it is pending or running.
+ * Running analyses are cancelled by flagging them, and the analyzer only honours the flag within its own phases,
+ * never while the workspace records the results, so a cancelled analysis does not publish its diagnostics
+ * and only the diagnostics of the latest version are published.
+ * All the analyses are run one at a time on a single thread.
+ *
+ * @author Laurent Wouters
+ */
+public class HimeAnalysisScheduler {
+    /**
+     * The name of the system property for the quiet period, in milliseconds
+     */
+    public static final String PROPERTY_DELAY = "hime.analysis.delay";
+    /**
+     * The default quiet period, in milliseconds
+     */
+    public static final long DEFAULT_DELAY = 200;
+
+    /**
+     * The analysis of a version of a document
+     */
+    private class Task implements Runnable {
+        /**
+         * The document to analyze
+         */
+        private final Document document;
+        /**
+         * The version of the document to analyze
+         */
+        private final int version;
+        /**
+         * The future for this task
+         */
+        private Future<?> future;
+        /**
+         * Whether this task has been superseded by a newer version
+         */
+        private volatile boolean cancelled;
+
+        /**
+         * Initializes this task
+         *
+         * @param document The document to analyze
+         */
+        public Task(Document document) {
+            this.document = document;
+            this.version = document.getCurrentVersion().getNumber();
+        }
+
+        @Override
+        public void run() {
+            CURRENT.set(this);
+            try {
+                if (cancelled || document.getCurrentVersion().getNumber() != version)
+                    // a newer version is scheduled, or the document was deleted
+                    return;
+                workspace.analyzeWithDependents(document);
+            } catch (CancellationException ex) {
+                // superseded by a newer version
+            } finally {
+                CURRENT.remove();
+                tasks.remove(document.getUri(), this);
+            }
+        }
+    }
+
+    /**
+     * The task running on the current thread, if any
+     */
+    private static final ThreadLocal<Task> CURRENT = new ThreadLocal<>();
+
+    /**
+     * The workspace to analyze
+     */
+    private final HimeWorkspace workspace;
+    /**
+     * The quiet period, in milliseconds
+     */
+    private final long delay;
+    /**
+     * The executor for the analyses
+     */
+    private final ScheduledExecutorService executor;
+    /**
+     * The pending or running task for each document
+     */
+    private final ConcurrentMap<String, Task> tasks;
+
+    /**
+     * Initializes this scheduler
+     *
+     * @param workspace The workspace to analyze
+     */
+    public HimeAnalysisScheduler(HimeWorkspace workspace) {
+        this.workspace = workspace;
+        this.delay = Math.max(0, Long.getLong(PROPERTY_DELAY, DEFAULT_DELAY));
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "hime-analysis");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.tasks = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Schedules the analysis of the current version of a document
+     *
+     * @param document The document to analyze
+     */
+    public synchronized void schedule(Document document) {
+        Task task = new Task(document);
+        Task previous = tasks.put(document.getUri(), task);
+        if (previous != null) {
+            // never interrupt the running task, it stops at the next check of the analyzer
+            previous.cancelled = true;
+            previous.future.cancel(false);
+        }
+        task.future = executor.schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Cancels the pending or running analysis of a document, if any
+     *
+     * @param uri The URI of the document
+     */
+    public synchronized void cancel(String uri) {
+        Task task = tasks.remove(uri);
+        if (task != null) {
+            task.cancelled = true;
+            task.future.cancel(false);
+        }
+    }
+
+    /**
+     * Gets whether the analysis running on the current thread has been superseded by a newer version
+     *
+     * @return Whether the current analysis is cancelled, always false outside of this scheduler
+     */
+    public static boolean isCancelled() {
+        Task task = CURRENT.get();
+        return task != null && task.cancelled;
+    }
+}
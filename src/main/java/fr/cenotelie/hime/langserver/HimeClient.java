@@ -0,0 +1,50 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+/**
+ * Represents the client connected to this language server, to which notifications and requests can be sent
+ *
+ * @author Laurent Wouters
+ */
+public interface HimeClient {
+    /**
+     * Sends a notification to the client
+     *
+     * @param method The method of the notification
+     * @param params The parameters of the notification, serialized in JSON
+     */
+    void sendNotification(String method, String params);
+
+    /**
+     * Sends a request to the client and waits for its response
+     * This must not be called on the thread that handles the messages from the client.
+     *
+     * @param method The method of the request
+     * @param params The parameters of the request, serialized in JSON
+     * @return Whether the client answered successfully
+     */
+    boolean sendRequest(String method, String params);
+
+    /**
+     * Gets whether the client supports the progress initiated by the server, i.e. `window/workDoneProgress/create`
+     *
+     * @return Whether the client supports the progress initiated by the server
+     */
+    boolean isWorkDoneProgressSupported();
+}
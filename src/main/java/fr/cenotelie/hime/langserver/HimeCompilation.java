@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+
+package fr.cenotelie.hime.langserver;
+
+import fr.cenotelie.commons.utils.Serializable;
+import fr.cenotelie.commons.utils.TextUtils;
+
+/**
+ * The status of a request for the compilation of a grammar
+ * It is the result of the `hime.compile` command, and the parameters of the `hime/compilation` notification that is sent when a compilation ends.
+ *
+ * @author Laurent Wouters
+ */
+public class HimeCompilation implements Serializable {
+    /**
+     * The compilation is running in the background
+     */
+    public static final String STATUS_RUNNING = "running";
+    /**
+     * The compilation succeeded
+     */
+    public static final String STATUS_COMPILED = "compiled";
+    /**
+     * The compilation failed
+     */
+    public static final String STATUS_FAILED = "failed";
+    /**
+     * The compilation was cancelled
+     */
+    public static final String STATUS_CANCELLED = "cancelled";
+
+    /**
+     * The token of the progress of the compilation, or null when the result was cached
+     */
+    public final String token;
+    /**
+     * The name of the grammar
+     */
+    public final String grammar;
+    /**
+     * The status of the compilation
+     */
+    public final String status;
+    /**
+     * Whether the result was found in the cache
+     */
+    public final boolean cached;
+    /**
+     * The compiled grammar, when the compilation succeeded
+     */
+    public final HimeCompiledGrammar result;
+    /**
+     * The message explaining a failure, if any
+     */
+    public final String message;
+
+    /**
+     * Initializes this status
+     *
+     * @param token   The token of the progress of the compilation, or null when the result was cached
+     * @param grammar The name of the grammar
+     * @param status  The status of the compilation
+     * @param cached  Whether the result was found in the cache
+     * @param result  The compiled grammar, when the compilation succeeded
+     * @param message The message explaining a failure, if any
+     */
+    public HimeCompilation(String token, String grammar, String status, boolean cached, HimeCompiledGrammar result, String message) {
+        this.token = token;
+        this.grammar = grammar;
+        this.status = status;
+        this.cached = cached;
+        this.result = result;
+        this.message = message;
+    }
+
+    @Override
+    public String serializedString() {
+        return serializedJSON();
+    }
+
+    @Override
+    public String serializedJSON() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("{");
+        if (token != null)
+            builder.append("\"token\": \"").append(TextUtils.escapeStringJSON(token)).append("\", ");
+        builder.append("\"grammar\": \"").append(TextUtils.escapeStringJSON(grammar)).append("\"");
+        builder.append(", \"status\": \"").append(status).append("\"");
+        builder.append(", \"cached\": ").append(cached);
+        if (result != null)
+            builder.append(", \"result\": ").append(result.serializedJSON());
+        if (message != null)
+            builder.append(", \"message\": \"").append(TextUtils.escapeStringJSON(message)).append("\"");
+        builder.append("}");
+        return builder.toString();
+    }
+}
@@ -0,0 +1,69 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+
+package fr.cenotelie.hime.langserver;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The Java Flight Recorder event for the compilation of a grammar
+ *
+ * @author Laurent Wouters
+ */
+@Name("fr.cenotelie.hime.Compile")
+@Label("Compile")
+@Description("Compilation of the automata of a grammar")
+public class HimeCompileEvent extends HimeEvent {
+    /**
+     * The name of the grammar
+     */
+    @Label("Grammar")
+    public String grammar;
+    /**
+     * The status at the end of the compilation
+     */
+    @Label("Status")
+    public String status;
+    /**
+     * The number of terminals
+     */
+    @Label("Terminals")
+    public int terminals;
+    /**
+     * The number of productions
+     */
+    @Label("Productions")
+    public int productions;
+    /**
+     * The number of states of the lexer
+     */
+    @Label("Lexer States")
+    public int lexerStates;
+    /**
+     * The number of states of the parser
+     */
+    @Label("Parser States")
+    public int parserStates;
+    /**
+     * The number of conflicts
+     */
+    @Label("Conflicts")
+    public int conflicts;
+}
@@ -0,0 +1,135 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+
+package fr.cenotelie.hime.langserver;
+
+import fr.cenotelie.commons.utils.Serializable;
+import fr.cenotelie.commons.utils.TextUtils;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * The automata compiled for a grammar
+ * The result is immutable, so that it can be shared from the cache of the compiler.
+ *
+ * @author Laurent Wouters
+ */
+public class HimeCompiledGrammar implements Serializable {
+    /**
+     * The name of the grammar
+     */
+    public final String grammar;
+    /**
+     * The key of the texts of the grammar and its ancestors
+     */
+    public final String key;
+    /**
+     * The model of the grammar
+     */
+    public final HimeGrammarModel model;
+    /**
+     * The automaton for the terminals
+     */
+    public final HimeLexerAutomaton lexer;
+    /**
+     * The automaton for the productions
+     */
+    public final HimeLrAutomaton parser;
+    /**
+     * The time spent building the automata, in milliseconds
+     */
+    public final long time;
+
+    /**
+     * Compiles a grammar
+     *
+     * @param grammar  The name of the grammar
+     * @param key      The key of the texts of the grammar and its ancestors
+     * @param sources  The texts of the grammar and its ancestors, each ancestor before its descendants
+     * @param progress The progress of the compilation
+     * @throws IllegalArgumentException When the grammar is malformed or incomplete
+     */
+    public HimeCompiledGrammar(String grammar, String key, Collection<String> sources, HimeProgress progress) {
+        long start = System.nanoTime();
+        this.grammar = grammar;
+        this.key = key;
+        this.model = new HimeGrammarModel(grammar, sources);
+        this.lexer = new HimeLexerAutomaton(model, progress);
+        model.releaseDefinitions();
+        this.parser = new HimeLrAutomaton(model, progress);
+        this.time = (System.nanoTime() - start) / 1000000;
+    }
+
+    /**
+     * Gets a short description of this result
+     *
+     * @return The description
+     */
+    public String getSummary() {
+        int conflicts = parser.getConflicts().size();
+        return "Compiled " + grammar + ": "
+                + (model.getTerminalCount() - 1) + " terminals, "
+                + (model.getVariableCount() - 1) + " variables, "
+                + lexer.getStateCount() + " lexer states, "
+                + parser.getStateCount() + " parser states, "
+                + conflicts + (conflicts == 1 ? " conflict" : " conflicts");
+    }
+
+    @Override
+    public String serializedString() {
+        return getSummary();
+    }
+
+    @Override
+    public String serializedJSON() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("{\"grammar\": \"").append(TextUtils.escapeStringJSON(grammar)).append("\"");
+        builder.append(", \"terminals\": ").append(model.getTerminalCount() - 1);
+        builder.append(", \"variables\": ").append(model.getVariableCount() - 1);
+        builder.append(", \"productions\": ").append(model.getProductionCount() - 1);
+        builder.append(", \"lexerStates\": ").append(lexer.getStateCount());
+        builder.append(", \"parserStates\": ").append(parser.getStateCount());
+        builder.append(", \"time\": ").append(time);
+        builder.append(", \"conflicts\": [");
+        boolean first = true;
+        for (HimeLrAutomaton.Conflict conflict : parser.getConflicts()) {
+            if (!first)
+                builder.append(", ");
+            first = false;
+            builder.append("{\"kind\": \"").append(conflict.kind == HimeLrAutomaton.CONFLICT_SHIFT_REDUCE ? "shift/reduce" : "reduce/reduce").append("\"");
+            builder.append(", \"state\": ").append(conflict.state);
+            builder.append(", \"terminal\": \"").append(TextUtils.escapeStringJSON(model.getTerminalName(conflict.terminal))).append("\"");
+            builder.append(", \"rules\": [");
+            Set<String> rules = new LinkedHashSet<>();
+            for (int production : conflict.productions)
+                rules.add(model.getVariableOrigin(model.getProduction(production).head));
+            boolean firstRule = true;
+            for (String rule : rules) {
+                if (!firstRule)
+                    builder.append(", ");
+                firstRule = false;
+                builder.append("\"").append(TextUtils.escapeStringJSON(rule)).append("\"");
+            }
+            builder.append("]}");
+        }
+        builder.append("]}");
+        return builder.toString();
+    }
+}
@@ -0,0 +1,860 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+
+package fr.cenotelie.hime.langserver;
+
+import fr.cenotelie.commons.utils.Serializable;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compiles the grammars of the workspace into their lexer and parser automata, in the background
+ * <p>
+ * The compilations run on a dedicated pool of threads and report their progress to the client.
+ * The compiled automata are cached by the key of the texts of the grammar and its ancestors,
+ * so that compiling an unchanged grammar again returns immediately.
+ * A compilation is cancelled by interrupting it, either on request of the client,
+ * or when the same grammar is compiled again after a change.
+ * The compiled automata can also be tested on an input file, which is streamed through them in the background.
+ *
+ * @author Laurent Wouters
+ */
+public class HimeCompiler {
+    /**
+     * The name of the system property for the number of compilation threads
+     */
+    public static final String PROPERTY_THREADS = "hime.compiler.threads";
+    /**
+     * The name of the system property for the maximum number of compiled grammars in the cache
+     */
+    public static final String PROPERTY_CACHE = "hime.compiler.cache";
+    /**
+     * The default maximum number of compiled grammars in the cache
+     */
+    public static final int DEFAULT_CACHE = 16;
+    /**
+     * The name of the system property for the maximum number of LR automata kept for the detection of conflicts
+     */
+    public static final String PROPERTY_AUTOMATA = "hime.compiler.automata";
+    /**
+     * The default maximum number of LR automata kept for the detection of conflicts
+     */
+    public static final int DEFAULT_AUTOMATA = 16;
+    /**
+     * The command that compiles a grammar, as emitted by the code lenses
+     */
+    public static final String COMMAND_COMPILE = "hime.compile";
+    /**
+     * The method of the notification sent to the client when a compilation ends
+     */
+    public static final String NOTIFICATION_COMPILATION = "hime/compilation";
+    /**
+     * The name of the system property for the maximum number of errors recorded by a test
+     */
+    public static final String PROPERTY_TEST_ERRORS = "hime.test.errors";
+    /**
+     * The default maximum number of errors recorded by a test
+     */
+    public static final int DEFAULT_TEST_ERRORS = 100;
+    /**
+     * The name of the system property for the maximum number of nodes in the preview of the AST produced by a test
+     */
+    public static final String PROPERTY_TEST_PREVIEW = "hime.test.preview";
+    /**
+     * The default maximum number of nodes in the preview of the AST produced by a test
+     */
+    public static final int DEFAULT_TEST_PREVIEW = 1000;
+    /**
+     * The command that tests a grammar on an input, as emitted by the code lenses
+     */
+    public static final String COMMAND_TEST = "hime.test";
+    /**
+     * The method of the notifications sent to the client while a test runs and when it ends
+     */
+    public static final String NOTIFICATION_TEST = "hime/test";
+    /**
+     * The minimum period between two notifications for a running test, in milliseconds
+     */
+    private static final long NOTIFICATION_PERIOD = 1000;
+
+    /**
+     * A background task on a grammar, reporting its progress to the client
+     */
+    private abstract class Task implements Runnable {
+        /**
+         * The name of the grammar
+         */
+        protected final String grammar;
+        /**
+         * The URI of the document that defines the grammar
+         */
+        protected final String uri;
+        /**
+         * The key of the texts of the grammar and its ancestors
+         */
+        protected final String key;
+        /**
+         * The texts of the grammar and its ancestors
+         */
+        protected final List<String> sources;
+        /**
+         * The progress of this task
+         */
+        protected final HimeProgress progress;
+        /**
+         * The title of the progress of this task
+         */
+        private final String title;
+        /**
+         * The method of the notification sent to the client when this task ends
+         */
+        private final String notification;
+        /**
+         * The thread running this task, if it is running
+         */
+        private Thread thread;
+        /**
+         * Whether this task has been cancelled
+         */
+        private boolean cancelled;
+
+        /**
+         * Initializes this task
+         *
+         * @param grammar      The name of the grammar
+         * @param uri          The URI of the document that defines the grammar
+         * @param key          The key of the texts of the grammar and its ancestors
+         * @param sources      The texts of the grammar and its ancestors
+         * @param token        The token for the progress provided by the client, or null to create one
+         * @param title        The title of the progress of this task
+         * @param notification The method of the notification sent to the client when this task ends
+         */
+        protected Task(String grammar, String uri, String key, List<String> sources, Object token, String title, String notification) {
+            this.grammar = grammar;
+            this.uri = uri;
+            this.key = key;
+            this.sources = sources;
+            this.progress = new HimeProgress(client, token);
+            this.title = title;
+            this.notification = notification;
+        }
+
+        /**
+         * Cancels this task
+         */
+        public synchronized void cancel() {
+            cancelled = true;
+            if (thread != null)
+                thread.interrupt();
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                thread = Thread.currentThread();
+                if (cancelled)
+                    thread.interrupt();
+            }
+            Serializable result;
+            try {
+                // on this thread because creating the token waits for the client
+                progress.begin(title, true);
+                result = execute();
+            } finally {
+                synchronized (this) {
+                    thread = null;
+                    // clear the interruption, if any, before running the next task
+                    Thread.interrupted();
+                }
+                synchronized (HimeCompiler.this) {
+                    jobs.remove(getJobKey(uri, grammar), this);
+                    tokens.remove(progress.getToken());
+                }
+            }
+            sendNotification(notification, result);
+        }
+
+        /**
+         * Executes this task
+         *
+         * @return The final status of this task
+         */
+        protected abstract Serializable execute();
+    }
+
+    /**
+     * The compilation of a grammar
+     */
+    private class Job extends Task {
+        /**
+         * Initializes this compilation
+         *
+         * @param grammar The name of the grammar
+         * @param uri     The URI of the document that defines the grammar
+         * @param key     The key of the texts of the grammar and its ancestors
+         * @param sources The texts of the grammar and its ancestors
+         * @param token   The token for the progress provided by the client, or null to create one
+         */
+        public Job(String grammar, String uri, String key, List<String> sources, Object token) {
+            super(grammar, uri, key, sources, token, "Compiling " + grammar, NOTIFICATION_COMPILATION);
+        }
+
+        @Override
+        protected Serializable execute() {
+            long start = metrics.start();
+            HimeCompileEvent event = new HimeCompileEvent();
+            event.begin();
+            int size = 0;
+            for (String source : sources)
+                size += source.length();
+            HimeCompilation result;
+            try {
+                checkCancelled();
+                HimeCompiledGrammar compiled = new HimeCompiledGrammar(grammar, key, sources, progress);
+                synchronized (HimeCompiler.this) {
+                    cache.put(key, compiled);
+                }
+                result = new HimeCompilation(progress.getToken(), grammar, HimeCompilation.STATUS_COMPILED, false, compiled, null);
+                progress.end(compiled.getSummary());
+            } catch (CancellationException ex) {
+                result = new HimeCompilation(progress.getToken(), grammar, HimeCompilation.STATUS_CANCELLED, false, null, null);
+                progress.end("Cancelled");
+            } catch (RuntimeException ex) {
+                // an invalid definition in the grammar
+                String message = getMessage(ex);
+                result = new HimeCompilation(progress.getToken(), grammar, HimeCompilation.STATUS_FAILED, false, null, message);
+                progress.end(message);
+            }
+            event.end();
+            if (event.shouldCommit()) {
+                event.uri = uri;
+                event.grammar = grammar;
+                event.status = result.status;
+                if (result.result != null) {
+                    event.terminals = result.result.model.getTerminalCount() - 1;
+                    event.productions = result.result.model.getProductionCount() - 1;
+                    event.lexerStates = result.result.lexer.getStateCount();
+                    event.parserStates = result.result.parser.getStateCount();
+                    event.conflicts = result.result.parser.getConflicts().size();
+                }
+                event.commit();
+            }
+            metrics.record(HimeMetrics.TIMER_COMPILE, start, size);
+            return result;
+        }
+    }
+
+    /**
+     * The test of a grammar on an input
+     */
+    private class TestJob extends Task implements HimeTestRunner.Listener {
+        /**
+         * The path to the input
+         */
+        private final Path input;
+        /**
+         * The size of the input, in bytes
+         */
+        private long size;
+        /**
+         * The runner of the automata, once the grammar is compiled
+         */
+        private HimeTestRunner runner;
+        /**
+         * The start of the test, in nanoseconds
+         */
+        private long started;
+        /**
+         * The time of the last notification
+         */
+        private long notified;
+        /**
+         * The number of recorded errors already sent to the client
+         */
+        private int sent;
+
+        /**
+         * Initializes this test
+         *
+         * @param grammar The name of the grammar
+         * @param uri     The URI of the document that defines the grammar
+         * @param key     The key of the texts of the grammar and its ancestors
+         * @param sources The texts of the grammar and its ancestors
+         * @param input   The path to the input
+         * @param token   The token for the progress provided by the client, or null to create one
+         */
+        public TestJob(String grammar, String uri, String key, List<String> sources, Path input, Object token) {
+            super(grammar, uri, key, sources, token, "Testing " + grammar + " on " + input.getFileName(), NOTIFICATION_TEST);
+            this.input = input;
+        }
+
+        @Override
+        protected Serializable execute() {
+            long start = metrics.start();
+            started = System.nanoTime();
+            notified = started;
+            HimeTestEvent event = new HimeTestEvent();
+            event.begin();
+            HimeTestResult result;
+            try {
+                checkCancelled();
+                HimeCompiledGrammar compiled = getCompiled(grammar, key, sources, progress);
+                runner = new HimeTestRunner(compiled, maxErrors, maxNodes);
+                size = Files.size(input);
+                try (Reader reader = new InputStreamReader(Files.newInputStream(input), StandardCharsets.UTF_8)) {
+                    runner.run(reader, this);
+                }
+                result = getStatus(HimeTestResult.STATUS_COMPLETED, null);
+                progress.end(result.getSummary());
+            } catch (CancellationException ex) {
+                result = getStatus(HimeTestResult.STATUS_CANCELLED, null);
+                progress.end("Cancelled");
+            } catch (IOException | RuntimeException ex) {
+                // the grammar cannot be compiled or the input cannot be read
+                String message = getMessage(ex);
+                result = getStatus(HimeTestResult.STATUS_FAILED, message);
+                progress.end(message);
+            }
+            event.end();
+            if (event.shouldCommit()) {
+                event.uri = uri;
+                event.grammar = grammar;
+                event.input = input.toString();
+                event.status = result.status;
+                event.chars = result.chars;
+                event.tokens = result.tokens;
+                event.errors = result.errorCount;
+                event.commit();
+            }
+            metrics.record(HimeMetrics.TIMER_TEST, start, (int) Math.min(result.chars, Integer.MAX_VALUE));
+            return result;
+        }
+
+        @Override
+        public void onChunk(HimeTestRunner runner) {
+            progress.report(runner.getTokens() + " tokens, " + runner.getErrorCount() + " errors", (int) (Math.min(runner.getChars(), size) / 1024), (int) (size / 1024));
+            long now = System.nanoTime();
+            if (now - notified >= NOTIFICATION_PERIOD * 1000000L) {
+                notified = now;
+                sendNotification(NOTIFICATION_TEST, getStatus(HimeTestResult.STATUS_RUNNING, null));
+            }
+        }
+
+        /**
+         * Gets the current status of this test, with the errors found since the previous status
+         *
+         * @param status  The status of the test
+         * @param message The message explaining a failure, if any
+         * @return The current status
+         */
+        private HimeTestResult getStatus(String status, String message) {
+            if (runner == null)
+                return new HimeTestResult(progress.getToken(), grammar, input.toString(), status, 0, 0, 0, new ArrayList<HimeTestRunner.SyntaxError>(0), 0, null, message);
+            List<HimeTestRunner.SyntaxError> errors = new ArrayList<>(runner.getErrors().subList(sent, runner.getErrors().size()));
+            sent = runner.getErrors().size();
+            return new HimeTestResult(
+                    progress.getToken(),
+                    grammar,
+                    input.toString(),
+                    status,
+                    runner.getChars(),
+                    runner.getTokens(),
+                    runner.getErrorCount(),
+                    errors,
+                    (System.nanoTime() - started) / 1000000,
+                    runner.getPreview(),
+                    message);
+        }
+    }
+
+    /**
+     * The LR automaton of a grammar, with the model it was built from
+     */
+    public static class Automaton {
+        /**
+         * The model of the grammar
+         */
+        public final HimeGrammarModel model;
+        /**
+         * The automaton for the productions
+         */
+        public final HimeLrAutomaton parser;
+
+        /**
+         * Initializes this automaton
+         *
+         * @param model  The model of the grammar
+         * @param parser The automaton for the productions
+         */
+        public Automaton(HimeGrammarModel model, HimeLrAutomaton parser) {
+            this.model = model;
+            this.parser = parser;
+        }
+    }
+
+    /**
+     * The analyzer for the documents
+     */
+    private final HimeDocumentAnalyzer analyzer;
+    /**
+     * The graph of the grammars in the workspace
+     */
+    private final HimeImportGraph grammars;
+    /**
+     * The metrics for this server
+     */
+    private final HimeMetrics metrics;
+    /**
+     * The executor for the compilations
+     */
+    private final ExecutorService executor;
+    /**
+     * The compiled grammars, by key, the least recently used first
+     */
+    private final Map<String, HimeCompiledGrammar> cache;
+    /**
+     * The LR automata built without the lexer for the detection of conflicts, by key, the least recently used first
+     */
+    private final Map<String, Automaton> automata;
+    /**
+     * The running compilations, by document and grammar
+     */
+    private final Map<String, Job> jobs;
+    /**
+     * The running compilations and tests, by progress token
+     */
+    private final Map<String, Task> tokens;
+    /**
+     * The maximum number of errors recorded by a test
+     */
+    private final int maxErrors;
+    /**
+     * The maximum number of nodes in the preview of the AST produced by a test
+     */
+    private final int maxNodes;
+    /**
+     * The last computed FIRST and FOLLOW sets, by grammar
+     */
+    private final Map<String, HimeGrammarSets> sets;
+    /**
+     * The number of compilations answered from the cache
+     */
+    private long hits;
+    /**
+     * The client to notify, if any
+     */
+    private volatile HimeClient client;
+
+    /**
+     * Initializes this compiler
+     *
+     * @param analyzer The analyzer for the documents
+     * @param grammars The graph of the grammars in the workspace
+     * @param metrics  The metrics for this server
+     */
+    public HimeCompiler(HimeDocumentAnalyzer analyzer, HimeImportGraph grammars, HimeMetrics metrics) {
+        this.analyzer = analyzer;
+        this.grammars = grammars;
+        this.metrics = metrics;
+        final int threads = Math.max(1, Integer.getInteger(PROPERTY_THREADS, Math.max(1, Runtime.getRuntime().availableProcessors() / 2)));
+        final int capacity = Math.max(1, Integer.getInteger(PROPERTY_CACHE, DEFAULT_CACHE));
+        final int automataCapacity = Math.max(1, Integer.getInteger(PROPERTY_AUTOMATA, DEFAULT_AUTOMATA));
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            /**
+             * The counter for the threads
+             */
+            private final AtomicInteger counter = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "hime-compiler-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.cache = new LinkedHashMap<String, HimeCompiledGrammar>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, HimeCompiledGrammar> eldest) {
+                return size() > capacity;
+            }
+        };
+        this.automata = new LinkedHashMap<String, Automaton>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Automaton> eldest) {
+                return size() > automataCapacity;
+            }
+        };
+        this.jobs = new HashMap<>();
+        this.tokens = new HashMap<>();
+        this.sets = new HashMap<>();
+        this.maxErrors = Math.max(0, Integer.getInteger(PROPERTY_TEST_ERRORS, DEFAULT_TEST_ERRORS));
+        this.maxNodes = Math.max(0, Integer.getInteger(PROPERTY_TEST_PREVIEW, DEFAULT_TEST_PREVIEW));
+    }
+
+    /**
+     * Sets the client to notify
+     *
+     * @param client The client to notify
+     */
+    public void setClient(HimeClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Compiles a grammar
+     * The compiled grammar is returned immediately when it is in the cache,
+     * otherwise the compilation is started in the background and its end is notified to the client.
+     *
+     * @param grammar The name of the grammar
+     * @param uri     The URI of the document that defines the grammar, used when several documents define a grammar with this name, or null
+     * @param token   The token for the progress provided by the client (a string or a number), or null to create one
+     * @return The status of the compilation
+     * @throws IllegalArgumentException When the grammar or one of its ancestors is not defined in the workspace
+     */
+    public HimeCompilation compile(String grammar, String uri, Object token) {
+        String document = getDocument(grammar, uri);
+        List<String> sources = new ArrayList<>();
+        collectSources(grammar, document, new HashSet<String>(), sources);
+        String key = getKey(grammar, sources);
+        synchronized (this) {
+            HimeCompiledGrammar compiled = cache.get(key);
+            if (compiled != null) {
+                hits++;
+                return new HimeCompilation(null, grammar, HimeCompilation.STATUS_COMPILED, true, compiled, null);
+            }
+            Job running = jobs.get(getJobKey(document, grammar));
+            if (running != null) {
+                if (running.key.equals(key))
+                    return new HimeCompilation(running.progress.getToken(), grammar, HimeCompilation.STATUS_RUNNING, false, null, null);
+                // superseded by the new content
+                running.cancel();
+            }
+            Job job = new Job(grammar, document, key, sources, token);
+            jobs.put(getJobKey(document, grammar), job);
+            tokens.put(job.progress.getToken(), job);
+            executor.execute(job);
+            return new HimeCompilation(job.progress.getToken(), grammar, HimeCompilation.STATUS_RUNNING, false, null, null);
+        }
+    }
+
+    /**
+     * Tests a grammar on an input
+     * The test runs in the background, compiling the grammar first if it is not in the cache.
+     * Its status is notified to the client periodically and when it ends.
+     *
+     * @param grammar The name of the grammar
+     * @param uri     The URI of the document that defines the grammar, used to resolve a relative path and when several documents define a grammar with this name
+     * @param path    The path to the input, or its URI
+     * @param token   The token for the progress provided by the client (a string or a number), or null to create one
+     * @return The status of the test
+     * @throws IllegalArgumentException When the grammar or one of its ancestors is not defined in the workspace, or the input is not a file
+     */
+    public HimeTestResult test(String grammar, String uri, String path, Object token) {
+        String document = getDocument(grammar, uri);
+        List<String> sources = new ArrayList<>();
+        collectSources(grammar, document, new HashSet<String>(), sources);
+        String key = getKey(grammar, sources);
+        Path input = path.startsWith("file:") ? Paths.get(URI.create(path)) : Paths.get(path);
+        if (!input.isAbsolute() && uri != null && uri.startsWith("file:"))
+            input = Paths.get(URI.create(uri)).resolveSibling(input);
+        if (!Files.isRegularFile(input))
+            throw new IllegalArgumentException("Input '" + path + "' is not a file.");
+        TestJob job = new TestJob(grammar, document, key, sources, input, token);
+        synchronized (this) {
+            tokens.put(job.progress.getToken(), job);
+        }
+        executor.execute(job);
+        return new HimeTestResult(job.progress.getToken(), grammar, input.toString(), HimeTestResult.STATUS_RUNNING, 0, 0, 0, new ArrayList<HimeTestRunner.SyntaxError>(0), 0, null, null);
+    }
+
+    /**
+     * Cancels a running compilation or test
+     *
+     * @param token The token of the progress of the compilation or test
+     * @return Whether a running compilation or test was found
+     */
+    public synchronized boolean cancel(String token) {
+        Task task = tokens.get(token);
+        if (task == null)
+            return false;
+        task.cancel();
+        return true;
+    }
+
+    /**
+     * Gets the number of compiled grammars in the cache
+     *
+     * @return The number of compiled grammars
+     */
+    public synchronized int getCacheCount() {
+        return cache.size();
+    }
+
+    /**
+     * Gets the number of compilations answered from the cache
+     *
+     * @return The number of cache hits
+     */
+    public synchronized long getCacheHits() {
+        return hits;
+    }
+
+    /**
+     * Gets the number of running compilations and tests
+     *
+     * @return The number of running compilations and tests
+     */
+    public synchronized int getRunningCount() {
+        return tokens.size();
+    }
+
+    /**
+     * Gets the LR automaton for the current texts of a grammar and its ancestors, building it in the current thread when it is not cached
+     * The automaton of a compiled grammar is reused when there is one.
+     * Otherwise, only the LR automaton is built, without the lexer, and it is kept apart from the compiled grammars,
+     * so that the checks of the grammars being edited do not evict the compilations requested by the user.
+     *
+     * @param grammar The name of the grammar
+     * @param uri     The URI of the document that defines the grammar, used when several documents define a grammar with this name, or null
+     * @return The automaton
+     * @throws IllegalArgumentException When the grammar is not defined in the workspace, or is malformed or incomplete
+     * @throws CancellationException    When the current thread is interrupted
+     */
+    public Automaton getAutomaton(String grammar, String uri) {
+        List<String> sources = new ArrayList<>();
+        collectSources(grammar, getDocument(grammar, uri), new HashSet<String>(), sources);
+        String key = getKey(grammar, sources);
+        synchronized (this) {
+            HimeCompiledGrammar compiled = cache.get(key);
+            if (compiled != null)
+                return new Automaton(compiled.model, compiled.parser);
+            Automaton automaton = automata.get(key);
+            if (automaton != null)
+                return automaton;
+        }
+        HimeGrammarModel model = new HimeGrammarModel(grammar, sources);
+        model.releaseDefinitions();
+        Automaton automaton = new Automaton(model, new HimeLrAutomaton(model, new HimeProgress(null)));
+        synchronized (this) {
+            automata.put(key, automaton);
+        }
+        return automaton;
+    }
+
+    /**
+     * Gets the nullable variables and the FIRST and FOLLOW sets of a grammar, when they are up to date
+     * This does not compute the sets, which are computed in the background after the analysis of the grammar.
+     *
+     * @param grammar The name of the grammar
+     * @return The sets, or null if they are not computed yet for the current texts of the grammar and its ancestors
+     * @throws IllegalArgumentException When the grammar or one of its ancestors is not defined in the workspace
+     */
+    public HimeGrammarSets getSets(String grammar) {
+        HimeGrammarSets result;
+        synchronized (this) {
+            result = sets.get(grammar);
+        }
+        if (result == null)
+            return null;
+        List<String> sources = new ArrayList<>();
+        collectSources(grammar, grammars.getDocument(grammar), new HashSet<String>(), sources);
+        return result.key.equals(getKey(grammar, sources)) ? result : null;
+    }
+
+    /**
+     * Computes the nullable variables and the FIRST and FOLLOW sets of a grammar, in the current thread
+     * The sets are recomputed from the last sets of the same grammar when its texts or those of its ancestors changed.
+     * The model of the grammar is taken from the compiled grammar or the LR automaton in the caches, when there is one.
+     *
+     * @param grammar The name of the grammar
+     * @return The sets
+     * @throws IllegalArgumentException When the grammar is not defined in the workspace, or is malformed or incomplete
+     * @throws CancellationException    When the current thread is interrupted
+     */
+    public HimeGrammarSets updateSets(String grammar) {
+        List<String> sources = new ArrayList<>();
+        collectSources(grammar, grammars.getDocument(grammar), new HashSet<String>(), sources);
+        String key = getKey(grammar, sources);
+        HimeGrammarSets previous;
+        HimeGrammarModel model = null;
+        synchronized (this) {
+            previous = sets.get(grammar);
+            if (previous != null && previous.key.equals(key))
+                return previous;
+            HimeCompiledGrammar compiled = cache.get(key);
+            Automaton automaton = automata.get(key);
+            if (compiled != null)
+                model = compiled.model;
+            else if (automaton != null)
+                model = automaton.model;
+        }
+        if (model == null)
+            model = new HimeGrammarModel(grammar, sources);
+        HimeGrammarSets result = new HimeGrammarSets(model, key, previous);
+        synchronized (this) {
+            sets.put(grammar, result);
+        }
+        return result;
+    }
+
+    /**
+     * Gets the compiled grammar for the texts of a grammar and its ancestors, compiling it when it is not in the cache
+     *
+     * @param grammar  The name of the grammar
+     * @param key      The key of the texts of the grammar and its ancestors
+     * @param sources  The texts of the grammar and its ancestors
+     * @param progress The progress of the compilation
+     * @return The compiled grammar
+     * @throws IllegalArgumentException When the grammar is malformed or incomplete
+     */
+    private HimeCompiledGrammar getCompiled(String grammar, String key, List<String> sources, HimeProgress progress) {
+        synchronized (this) {
+            HimeCompiledGrammar compiled = cache.get(key);
+            if (compiled != null) {
+                hits++;
+                return compiled;
+            }
+        }
+        HimeCompiledGrammar compiled = new HimeCompiledGrammar(grammar, key, sources, progress);
+        synchronized (this) {
+            cache.put(key, compiled);
+        }
+        return compiled;
+    }
+
+    /**
+     * Sends a notification to the client, if any
+     *
+     * @param method The method of the notification
+     * @param params The parameters of the notification
+     */
+    private void sendNotification(String method, Serializable params) {
+        HimeClient current = client;
+        if (current != null)
+            current.sendNotification(method, params.serializedJSON());
+    }
+
+    /**
+     * Gets the message explaining a failure
+     *
+     * @param exception The exception
+     * @return The message
+     */
+    private static String getMessage(Exception exception) {
+        return exception.getMessage() == null ? exception.toString() : exception.getMessage();
+    }
+
+    /**
+     * Gets the key of a running compilation
+     *
+     * @param uri     The URI of the document that defines the grammar
+     * @param grammar The name of the grammar
+     * @return The key of the compilation
+     */
+    private static String getJobKey(String uri, String grammar) {
+        return uri + "#" + grammar;
+    }
+
+    /**
+     * Gets the document that defines a grammar
+     * The given document is preferred when it defines the grammar, so that grammars with the same name in two documents can be told apart.
+     *
+     * @param grammar The name of the grammar
+     * @param uri     The URI of the preferred document, or null
+     * @return The URI of the document, or null if the grammar is not defined in the workspace
+     */
+    private String getDocument(String grammar, String uri) {
+        return getBlock(grammar, uri) != null ? uri : grammars.getDocument(grammar);
+    }
+
+    /**
+     * Gets the text of a grammar in a document
+     *
+     * @param grammar The name of the grammar
+     * @param uri     The URI of the document, or null
+     * @return The text of the grammar, or null if the document does not define it
+     */
+    private String getBlock(String grammar, String uri) {
+        HimeDocumentState state = uri == null ? null : analyzer.getState(uri);
+        if (state == null)
+            return null;
+        for (HimeDocumentBlock block : state.blocks) {
+            if (block.name.equals(grammar))
+                return state.content.substring(block.start, block.getEnd());
+        }
+        return null;
+    }
+
+    /**
+     * Collects the texts of a grammar and its ancestors, each ancestor before its descendants
+     * The ancestors defined in the same document as the grammar are taken from this document.
+     *
+     * @param grammar The name of the grammar
+     * @param uri     The URI of the document that defines the grammar, or null
+     * @param visited The grammars already visited
+     * @param sources The buffer for the texts
+     * @throws IllegalArgumentException When the grammar or one of its ancestors is not defined in the workspace
+     */
+    private void collectSources(String grammar, String uri, Set<String> visited, List<String> sources) {
+        if (!visited.add(grammar))
+            return;
+        for (String parent : grammars.getParents(grammar))
+            collectSources(parent, getDocument(parent, uri), visited, sources);
+        String source = getBlock(grammar, uri);
+        if (source == null)
+            throw new IllegalArgumentException("Grammar '" + grammar + "' is not defined in the workspace.");
+        sources.add(source);
+    }
+
+    /**
+     * Computes the key of the texts of a grammar and its ancestors
+     *
+     * @param grammar The name of the grammar
+     * @param sources The texts of the grammar and its ancestors
+     * @return The key
+     */
+    private static String getKey(String grammar, List<String> sources) {
+        StringBuilder builder = new StringBuilder(grammar);
+        for (String source : sources)
+            builder.append('\0').append(source);
+        return HimeAnalysisCache.getKey(builder);
+    }
+
+    /**
+     * Aborts the current compilation when the thread running it has been interrupted
+     *
+     * @throws CancellationException When the compilation is cancelled
+     */
+    static void checkCancelled() {
+        if (Thread.currentThread().isInterrupted())
+            throw new CancellationException();
+    }
+}
@@ -0,0 +1,53 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The Java Flight Recorder event for a completion request
+ *
+ * @author Laurent Wouters
+ */
+@Name("fr.cenotelie.hime.Completion")
+@Label("Completion")
+@Description("Completion request on a grammar document")
+public class HimeCompletionEvent extends HimeEvent {
+    /**
+     * The (0-based) line of the position
+     */
+    @Label("Line")
+    public int line;
+    /**
+     * The (0-based) character of the position
+     */
+    @Label("Character")
+    public int character;
+    /**
+     * The context of the position
+     */
+    @Label("Context")
+    public String context;
+    /**
+     * The number of produced items
+     */
+    @Label("Items")
+    public int items;
+}
@@ -0,0 +1,545 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import fr.cenotelie.commons.lsp.structures.CompletionItem;
+import fr.cenotelie.commons.lsp.structures.CompletionItemKind;
+import fr.cenotelie.commons.lsp.structures.CompletionList;
+import fr.cenotelie.commons.lsp.structures.Position;
+
+import java.util.*;
+
+/**
+ * The completion provider for Hime grammars
+ * <p>
+ * The context of the cursor is found by scanning the text of the current grammar up to the cursor,
+ * which only has to track the nesting of the sections, the strings and the comments.
+ * The candidates are then served from the completion trees of the analyzed grammar blocks (see {@link HimeCompletionTrie}),
+ * so that completion never requires an analysis of the document.
+ *
+ * @author Laurent Wouters
+ */
+public class HimeCompletionProvider {
+    /**
+     * The maximum number of returned items
+     */
+    private static final int MAX_ITEMS = 200;
+    /**
+     * The names of the grammar options
+     */
+    private static final String[] OPTIONS = {"Axiom", "Separator"};
+
+    /**
+     * Outside of any grammar
+     */
+    private static final String CONTEXT_TOP = "top";
+    /**
+     * In the header of a grammar, after the name of the grammar
+     */
+    private static final String CONTEXT_HEADER = "header";
+    /**
+     * In the body of a grammar, outside of the sections
+     */
+    private static final String CONTEXT_BODY = "body";
+    /**
+     * In the options section
+     */
+    private static final String CONTEXT_OPTIONS = "options";
+    /**
+     * In the terminals section
+     */
+    private static final String CONTEXT_TERMINALS = "terminals";
+    /**
+     * In the rules section
+     */
+    private static final String CONTEXT_RULES = "rules";
+
+    /**
+     * The context of the cursor in a document
+     */
+    private static class Context {
+        /**
+         * The current section
+         */
+        private String section = CONTEXT_TOP;
+        /**
+         * The name of the current grammar, if any
+         */
+        private String grammar;
+        /**
+         * The name of the current rule, if any
+         */
+        private String rule;
+        /**
+         * The name of the current option, if any
+         */
+        private String option;
+        /**
+         * Whether the cursor is at the start of a statement, where a new symbol is defined
+         */
+        private boolean statementStart = true;
+        /**
+         * The character that prefixes the identifier at the cursor, if any
+         */
+        private char marker;
+        /**
+         * Whether the cursor is in a string
+         */
+        private boolean inString;
+        /**
+         * Whether the cursor is in a comment, a character literal or a character class
+         */
+        private boolean inLiteral;
+    }
+
+    /**
+     * The analyzer for Hime grammars
+     */
+    private final HimeDocumentAnalyzer analyzer;
+    /**
+     * The inheritance graph of the grammars
+     */
+    private final HimeImportGraph grammars;
+    /**
+     * The metrics for this server
+     */
+    private final HimeMetrics metrics;
+
+    /**
+     * Initializes this provider
+     *
+     * @param analyzer The analyzer for Hime grammars
+     * @param grammars The inheritance graph of the grammars
+     * @param metrics  The metrics for this server
+     */
+    public HimeCompletionProvider(HimeDocumentAnalyzer analyzer, HimeImportGraph grammars, HimeMetrics metrics) {
+        this.analyzer = analyzer;
+        this.grammars = grammars;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Gets the completion items at a position in a document
+     * The text only needs to cover the document from the start of a line up to the cursor.
+     * When this line is not the first one, it must be the first line of the grammar at the cursor in the last analysis,
+     * so that the context can be found by scanning only this grammar.
+     *
+     * @param uri       The URI of the document
+     * @param text      The current text of the document, from the start of a line
+     * @param lineStart The offset in the text of the start of the line
+     * @param line      The (0-based) line in the document
+     * @param position  The position in the document
+     * @return The completion items, or null if the grammar at the cursor does not start on the line
+     */
+    public CompletionList getCompletions(String uri, String text, int lineStart, int line, Position position) {
+        int offset = getOffset(text, lineStart, line, position);
+        int scanStart = getScanStart(uri, text, lineStart, line, position);
+        if (scanStart < 0)
+            return null;
+        long start = metrics.start();
+        HimeCompletionEvent event = new HimeCompletionEvent();
+        event.begin();
+        int prefixStart = offset;
+        while (prefixStart > scanStart && isNamePart(text.charAt(prefixStart - 1)))
+            prefixStart--;
+        String prefix = text.substring(prefixStart, offset);
+        Context context = getContext(text, scanStart, prefixStart);
+        List<CompletionItem> items = new ArrayList<>();
+        boolean complete = collect(context, prefix, items);
+        event.end();
+        if (event.shouldCommit()) {
+            event.uri = uri;
+            event.line = position.getLine();
+            event.character = position.getCharacter();
+            event.context = context.section;
+            event.items = items.size();
+            event.commit();
+        }
+        metrics.record(HimeMetrics.TIMER_COMPLETION, start, uri);
+        return new CompletionList(!complete, items.toArray(new CompletionItem[items.size()]));
+    }
+
+    /**
+     * Gets the offset in a text for a position
+     *
+     * @param text      The text, from the start of a line
+     * @param lineStart The offset in the text of the start of the line
+     * @param line      The (0-based) line in the document
+     * @param position  The position
+     * @return The offset
+     */
+    private static int getOffset(String text, int lineStart, int line, Position position) {
+        int offset = lineStart;
+        while (line < position.getLine() && offset < text.length()) {
+            char c = text.charAt(offset++);
+            if (c == '\r' && offset < text.length() && text.charAt(offset) == '\n')
+                offset++;
+            if (isLineEnd(c))
+                line++;
+        }
+        return Math.min(text.length(), offset + position.getCharacter());
+    }
+
+    /**
+     * Gets whether a character ends a line
+     *
+     * @param c The character
+     * @return Whether the character ends a line
+     */
+    static boolean isLineEnd(char c) {
+        return c == '\n' || c == '\r' || c == '\u000B' || c == '\u000C' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    /**
+     * Gets the offset from which the text must be scanned to find the context at the cursor
+     * This is the start of the grammar at the cursor when it is known from the last analysis and starts on the line,
+     * or the start of the document.
+     *
+     * @param uri       The URI of the document
+     * @param text      The current text of the document, from the start of a line
+     * @param lineStart The offset in the text of the start of the line
+     * @param line      The (0-based) line in the document
+     * @param position  The position in the document
+     * @return The offset of the start of the scan, or -1 if the text does not start with the document nor with the grammar at the cursor
+     */
+    private int getScanStart(String uri, String text, int lineStart, int line, Position position) {
+        HimeDocumentState state = analyzer.getState(uri);
+        HimeDocumentBlock block = state == null ? null : state.getBlockAt(position.getLine());
+        if (block != null && block.line == line && text.startsWith("grammar", lineStart + block.column))
+            return lineStart + block.column;
+        return line == 0 ? 0 : -1;
+    }
+
+    /**
+     * Gets the context of the cursor
+     *
+     * @param content The content of the document
+     * @param start   The offset where to start scanning, outside of any grammar
+     * @param end     The offset of the start of the identifier at the cursor
+     * @return The context
+     */
+    private static Context getContext(String content, int start, int end) {
+        Context context = new Context();
+        Deque<String> sections = new ArrayDeque<>();
+        // for each open brace, whether it encloses statements
+        Deque<Boolean> groups = new ArrayDeque<>();
+        String last = null;
+        String previous = null;
+        int i = start;
+        while (i < end) {
+            char c = content.charAt(i);
+            context.marker = 0;
+            if (isNamePart(c)) {
+                int begin = i;
+                while (i < end && isNamePart(content.charAt(i)))
+                    i++;
+                String name = content.substring(begin, i);
+                if (context.section == CONTEXT_TOP && "grammar".equals(last)) {
+                    context.grammar = name;
+                    context.section = CONTEXT_HEADER;
+                } else if (context.section == CONTEXT_RULES && context.statementStart) {
+                    context.rule = name;
+                } else if (context.section == CONTEXT_OPTIONS && context.statementStart) {
+                    context.option = name;
+                }
+                context.statementStart = false;
+                previous = last;
+                last = name;
+                continue;
+            }
+            i++;
+            switch (c) {
+                case '/':
+                    if (i < end && content.charAt(i) == '/') {
+                        while (i < end && content.charAt(i) != '\n' && content.charAt(i) != '\r')
+                            i++;
+                        if (i == end)
+                            context.inLiteral = true;
+                    } else if (i < end && content.charAt(i) == '*') {
+                        int close = content.indexOf("*/", i + 1);
+                        if (close < 0 || close + 2 > end) {
+                            context.inLiteral = true;
+                            i = end;
+                        } else {
+                            i = close + 2;
+                        }
+                    }
+                    break;
+                case '"':
+                case '\'':
+                case '[':
+                    char closing = c == '[' ? ']' : c;
+                    while (i < end && content.charAt(i) != closing)
+                        i += content.charAt(i) == '\\' ? 2 : 1;
+                    if (i >= end) {
+                        context.inString = c == '"';
+                        context.inLiteral = c != '"';
+                    }
+                    i++;
+                    break;
+                case '{':
+                    String outer = context.section;
+                    // closing the body of a grammar goes back to the top level
+                    sections.push(outer == CONTEXT_HEADER ? CONTEXT_TOP : outer);
+                    if (outer == CONTEXT_HEADER)
+                        context.section = CONTEXT_BODY;
+                    else if (outer == CONTEXT_BODY && "options".equals(last))
+                        context.section = CONTEXT_OPTIONS;
+                    else if (outer == CONTEXT_BODY && "terminals".equals(last))
+                        context.section = CONTEXT_TERMINALS;
+                    else if (outer == CONTEXT_BODY && "rules".equals(last))
+                        context.section = CONTEXT_RULES;
+                    // the new group encloses statements when it is a section or a lexical context
+                    context.statementStart = context.section != outer || outer == CONTEXT_TOP
+                            || (outer == CONTEXT_TERMINALS && "context".equals(previous));
+                    groups.push(context.statementStart);
+                    break;
+                case '}':
+                    context.section = sections.isEmpty() ? CONTEXT_TOP : sections.pop();
+                    context.statementStart = groups.isEmpty() || groups.pop();
+                    if (context.section == CONTEXT_TOP)
+                        context.grammar = null;
+                    break;
+                case ';':
+                    context.statementStart = true;
+                    context.option = null;
+                    break;
+                case '#':
+                case '@':
+                    context.marker = c;
+                    break;
+                default:
+                    if (!Character.isWhitespace(c))
+                        context.statementStart = false;
+                    break;
+            }
+            if (!Character.isWhitespace(c)) {
+                last = null;
+                previous = null;
+            }
+        }
+        return context;
+    }
+
+    /**
+     * Collects the completion items for a context
+     *
+     * @param context The context of the cursor
+     * @param prefix  The identifier at the cursor, up to the cursor
+     * @param items   The buffer for the items
+     * @return Whether all the candidates could be collected
+     */
+    private boolean collect(Context context, String prefix, List<CompletionItem> items) {
+        if (context.inLiteral)
+            return true;
+        if (context.inString) {
+            // option values
+            if (context.section == CONTEXT_OPTIONS && "Axiom".equals(context.option))
+                return collectSymbols(context, prefix, 1L << HimeWorkspace.SYMBOL_VARIABLE, false, items);
+            if (context.section == CONTEXT_OPTIONS && "Separator".equals(context.option))
+                return collectSymbols(context, prefix, 1L << HimeWorkspace.SYMBOL_TERMINAL, false, items);
+            // virtual symbols in rules
+            if (context.section == CONTEXT_RULES)
+                return collectSymbols(context, prefix, 1L << HimeWorkspace.SYMBOL_VIRTUAL, false, items);
+            return true;
+        }
+        switch (context.section) {
+            case CONTEXT_TOP:
+                collectKeywords(prefix, new String[]{"grammar"}, items);
+                return true;
+            case CONTEXT_HEADER:
+                for (String grammar : grammars.getDefined()) {
+                    if (!grammar.equals(context.grammar) && startsWithIgnoreCase(grammar, prefix))
+                        items.add(new CompletionItem(grammar, CompletionItemKind.CLASS, "Grammar"));
+                }
+                return true;
+            case CONTEXT_BODY:
+                collectKeywords(prefix, new String[]{"options", "terminals", "rules"}, items);
+                return true;
+            case CONTEXT_OPTIONS:
+                if (context.statementStart)
+                    collectKeywords(prefix, OPTIONS, items);
+                return true;
+            case CONTEXT_TERMINALS:
+                if (context.statementStart) {
+                    collectKeywords(prefix, new String[]{"fragment", "context"}, items);
+                    return true;
+                }
+                return collectSymbols(context, prefix, 1L << HimeWorkspace.SYMBOL_TERMINAL, true, items);
+            case CONTEXT_RULES:
+                if (context.statementStart)
+                    // a new rule is being defined
+                    return true;
+                if (context.marker == '#')
+                    return collectSymbols(context, prefix, 1L << HimeWorkspace.SYMBOL_CONTEXT, false, items);
+                if (context.marker == '@')
+                    return collectSymbols(context, prefix, 1L << HimeWorkspace.SYMBOL_ACTION, false, items);
+                return collectSymbols(context, prefix, (1L << HimeWorkspace.SYMBOL_TERMINAL) | (1L << HimeWorkspace.SYMBOL_VARIABLE) | (1L << HimeWorkspace.SYMBOL_PARAM), true, items);
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Collects the keywords that start with a prefix
+     *
+     * @param prefix   The prefix
+     * @param keywords The candidate keywords
+     * @param items    The buffer for the items
+     */
+    private static void collectKeywords(String prefix, String[] keywords, List<CompletionItem> items) {
+        for (String keyword : keywords) {
+            if (startsWithIgnoreCase(keyword, prefix))
+                items.add(new CompletionItem(keyword, CompletionItemKind.KEYWORD, null));
+        }
+    }
+
+    /**
+     * Collects the symbols of the current grammar that start with a prefix
+     *
+     * @param context   The context of the cursor
+     * @param prefix    The prefix
+     * @param kinds     The accepted kinds of symbols, as a bit mask
+     * @param inherited Whether to include the symbols inherited from the parent grammars
+     * @param items     The buffer for the items
+     * @return Whether all the candidates could be collected
+     */
+    private boolean collectSymbols(Context context, String prefix, long kinds, boolean inherited, List<CompletionItem> items) {
+        if (context.grammar == null)
+            return true;
+        HimeDocumentBlock block = analyzer.getBlock(context.grammar);
+        if (block == null)
+            return true;
+        List<HimeCompletionTrie.Entry> entries = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        boolean complete = true;
+        if ((kinds & (1L << HimeWorkspace.SYMBOL_PARAM)) != 0 && context.rule != null)
+            complete = block.getCompletions().collect(prefix, 1L << HimeWorkspace.SYMBOL_PARAM, context.grammar + "." + context.rule + ".", MAX_ITEMS, entries);
+        kinds &= ~(1L << HimeWorkspace.SYMBOL_PARAM);
+        complete &= block.getCompletions().collect(prefix, kinds, null, MAX_ITEMS, entries);
+        addItems(entries, context.grammar, null, names, items);
+        if (!inherited)
+            return complete;
+        // walk the ancestors, the first declared parent wins
+        Set<String> visited = new HashSet<>();
+        Deque<String> queue = new ArrayDeque<>(grammars.getParents(context.grammar));
+        while (complete && !queue.isEmpty()) {
+            String parent = queue.poll();
+            if (!visited.add(parent) || parent.equals(context.grammar))
+                continue;
+            HimeDocumentBlock parentBlock = analyzer.getBlock(parent);
+            if (parentBlock != null) {
+                entries.clear();
+                complete = parentBlock.getCompletions().collect(prefix, kinds & ((1L << HimeWorkspace.SYMBOL_TERMINAL) | (1L << HimeWorkspace.SYMBOL_VARIABLE)), null, MAX_ITEMS - items.size(), entries);
+                addItems(entries, parent, context.grammar, names, items);
+            }
+            queue.addAll(grammars.getParents(parent));
+        }
+        return complete;
+    }
+
+    /**
+     * Adds the completion items for entries of a completion tree
+     *
+     * @param entries The entries
+     * @param grammar The grammar that defines the entries
+     * @param heir    The grammar that inherits the entries, or null if they are not inherited
+     * @param names   The names of the already added items
+     * @param items   The buffer for the items
+     */
+    private static void addItems(List<HimeCompletionTrie.Entry> entries, String grammar, String heir, Set<String> names, List<CompletionItem> items) {
+        for (HimeCompletionTrie.Entry entry : entries) {
+            if (!names.add(entry.name))
+                // shadowed
+                continue;
+            String detail = getLabel(entry.kind) + (heir == null ? "" : ", inherited from " + grammar);
+            items.add(new CompletionItem(entry.name, getItemKind(entry.kind), detail));
+        }
+    }
+
+    /**
+     * Gets the label for a kind of symbol
+     *
+     * @param kind The kind of symbol
+     * @return The label
+     */
+    private static String getLabel(int kind) {
+        switch (kind) {
+            case HimeWorkspace.SYMBOL_CONTEXT:
+                return "Lexical context";
+            case HimeWorkspace.SYMBOL_TERMINAL:
+                return "Terminal";
+            case HimeWorkspace.SYMBOL_VARIABLE:
+                return "Variable";
+            case HimeWorkspace.SYMBOL_VIRTUAL:
+                return "Virtual";
+            case HimeWorkspace.SYMBOL_ACTION:
+                return "Action";
+            case HimeWorkspace.SYMBOL_PARAM:
+                return "Template parameter";
+            default:
+                return "Symbol";
+        }
+    }
+
+    /**
+     * Gets the kind of completion item for a kind of symbol
+     *
+     * @param kind The kind of symbol
+     * @return The kind of completion item
+     */
+    private static int getItemKind(int kind) {
+        switch (kind) {
+            case HimeWorkspace.SYMBOL_CONTEXT:
+                return CompletionItemKind.CONSTANT;
+            case HimeWorkspace.SYMBOL_TERMINAL:
+                return CompletionItemKind.FIELD;
+            case HimeWorkspace.SYMBOL_VARIABLE:
+                return CompletionItemKind.METHOD;
+            case HimeWorkspace.SYMBOL_VIRTUAL:
+                return CompletionItemKind.PROPERTY;
+            case HimeWorkspace.SYMBOL_ACTION:
+                return CompletionItemKind.FUNCTION;
+            case HimeWorkspace.SYMBOL_PARAM:
+                return CompletionItemKind.VARIABLE;
+            default:
+                return CompletionItemKind.TEXT;
+        }
+    }
+
+    /**
+     * Gets whether a character can be part of a name
+     *
+     * @param c The character
+     * @return Whether the character can be part of a name
+     */
+    private static boolean isNamePart(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    /**
+     * Gets whether a value starts with a prefix, ignoring case
+     *
+     * @param value  The value
+     * @param prefix The prefix
+     * @return Whether the value starts with the prefix
+     */
+    private static boolean startsWithIgnoreCase(String value, String prefix) {
+        return value.regionMatches(true, 0, prefix, 0, prefix.length());
+    }
+}
@@ -0,0 +1,217 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A prefix tree of the names of the symbols in a grammar, for completion
+ * <p>
+ * The tree is case-insensitive: names are indexed by their lower-case form and keep their original form in the entries.
+ * A tree is built once and then only read, so that it can be shared between threads.
+ *
+ * @author Laurent Wouters
+ */
+public class HimeCompletionTrie {
+    /**
+     * An entry in the tree
+     */
+    public static class Entry {
+        /**
+         * The name of the symbol
+         */
+        public final String name;
+        /**
+         * The kind of symbol
+         */
+        public final int kind;
+        /**
+         * The identifier of the symbol
+         */
+        public final String identifier;
+
+        /**
+         * Initializes this entry
+         *
+         * @param name       The name of the symbol
+         * @param kind       The kind of symbol
+         * @param identifier The identifier of the symbol
+         */
+        public Entry(String name, int kind, String identifier) {
+            this.name = name;
+            this.kind = kind;
+            this.identifier = identifier;
+        }
+    }
+
+    /**
+     * A node in the tree
+     */
+    private static class Node {
+        /**
+         * The characters for the children, in increasing order
+         */
+        private char[] keys;
+        /**
+         * The children
+         */
+        private Node[] children;
+        /**
+         * The number of children
+         */
+        private int count;
+        /**
+         * The entries that end at this node, if any
+         */
+        private Entry[] entries;
+
+        /**
+         * Gets the child for a character
+         *
+         * @param c The character
+         * @return The child, or null if there is none
+         */
+        private Node getChild(char c) {
+            if (count == 0)
+                return null;
+            int index = Arrays.binarySearch(keys, 0, count, c);
+            return index < 0 ? null : children[index];
+        }
+
+        /**
+         * Gets the child for a character, creating it if necessary
+         *
+         * @param c The character
+         * @return The child
+         */
+        private Node resolveChild(char c) {
+            if (count == 0) {
+                keys = new char[2];
+                children = new Node[2];
+            }
+            int index = Arrays.binarySearch(keys, 0, count, c);
+            if (index >= 0)
+                return children[index];
+            index = -index - 1;
+            if (count == keys.length) {
+                keys = Arrays.copyOf(keys, count * 2);
+                children = Arrays.copyOf(children, count * 2);
+            }
+            System.arraycopy(keys, index, keys, index + 1, count - index);
+            System.arraycopy(children, index, children, index + 1, count - index);
+            Node child = new Node();
+            keys[index] = c;
+            children[index] = child;
+            count++;
+            return child;
+        }
+    }
+
+    /**
+     * The root of the tree
+     */
+    private final Node root;
+    /**
+     * The number of entries in the tree
+     */
+    private int size;
+
+    /**
+     * Initializes an empty tree
+     */
+    public HimeCompletionTrie() {
+        this.root = new Node();
+    }
+
+    /**
+     * Gets the number of entries in this tree
+     *
+     * @return The number of entries
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Adds an entry to this tree
+     * This must not be called once the tree is shared.
+     *
+     * @param entry The entry to add
+     */
+    public void add(Entry entry) {
+        Node node = root;
+        for (int i = 0; i != entry.name.length(); i++)
+            node = node.resolveChild(Character.toLowerCase(entry.name.charAt(i)));
+        if (node.entries == null) {
+            node.entries = new Entry[]{entry};
+        } else {
+            for (Entry existing : node.entries) {
+                if (existing.identifier.equals(entry.identifier))
+                    return;
+            }
+            node.entries = Arrays.copyOf(node.entries, node.entries.length + 1);
+            node.entries[node.entries.length - 1] = entry;
+        }
+        size++;
+    }
+
+    /**
+     * Collects the entries whose name starts with a prefix, ignoring case
+     *
+     * @param prefix The prefix
+     * @param kinds  The accepted kinds of symbols, as a bit mask (bit `k` for the kind `k`)
+     * @param parent The required prefix for the identifiers of the entries, or null
+     * @param limit  The maximum number of entries in the buffer
+     * @param buffer The buffer for the entries
+     * @return Whether all the matching entries could be collected within the limit
+     */
+    public boolean collect(String prefix, long kinds, String parent, int limit, List<Entry> buffer) {
+        Node node = root;
+        for (int i = 0; i != prefix.length() && node != null; i++)
+            node = node.getChild(Character.toLowerCase(prefix.charAt(i)));
+        return node == null || collect(node, kinds, parent, limit, buffer);
+    }
+
+    /**
+     * Collects the entries under a node, in the order of their names
+     *
+     * @param node   The current node
+     * @param kinds  The accepted kinds of symbols, as a bit mask (bit `k` for the kind `k`)
+     * @param parent The required prefix for the identifiers of the entries, or null
+     * @param limit  The maximum number of entries in the buffer
+     * @param buffer The buffer for the entries
+     * @return Whether all the matching entries could be collected within the limit
+     */
+    private static boolean collect(Node node, long kinds, String parent, int limit, List<Entry> buffer) {
+        if (node.entries != null) {
+            for (Entry entry : node.entries) {
+                if ((kinds & (1L << entry.kind)) == 0 || (parent != null && !entry.identifier.startsWith(parent)))
+                    continue;
+                if (buffer.size() >= limit)
+                    return false;
+                buffer.add(entry);
+            }
+        }
+        for (int i = 0; i != node.count; i++) {
+            if (!collect(node.children[i], kinds, parent, limit, buffer))
+                return false;
+        }
+        return true;
+    }
+}
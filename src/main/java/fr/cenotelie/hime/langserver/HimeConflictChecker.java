@@ -0,0 +1,423 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+
+package fr.cenotelie.hime.langserver;
+
+import fr.cenotelie.commons.lsp.engine.Symbol;
+import fr.cenotelie.commons.lsp.structures.Diagnostic;
+import fr.cenotelie.commons.lsp.structures.DiagnosticSeverity;
+import fr.cenotelie.commons.lsp.structures.Position;
+import fr.cenotelie.commons.lsp.structures.PublishDiagnosticsParams;
+import fr.cenotelie.commons.lsp.structures.Range;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Detects the LR conflicts in the grammars of the documents being edited, in the background
+ * <p>
+ * Once a document has been analyzed, the LALR(1) automaton of each of its grammars is built on a dedicated thread,
+ * and the conflicts are published as diagnostics on the rules that are involved, together with the diagnostics of the analysis.
+ * Only the LR automata are built, without the lexers, and they are cached by the compiler, so that unchanged grammars are not built again.
+ * The nullable variables and the FIRST and FOLLOW sets of the grammars, shown when hovering variables, are also computed there,
+ * even when the conflicts are not detected.
+ * A change to the document cancels the pending or running check, and a superseded check does not publish its diagnostics.
+ * Until the check of the new version replaces them, the last published conflicts are kept with the diagnostics of the analysis,
+ * moved with the grammar they are in, so that they do not flicker while the document is edited.
+ *
+ * @author Laurent Wouters
+ */
+public class HimeConflictChecker {
+    /**
+     * The name of the system property for whether the conflicts are detected
+     */
+    public static final String PROPERTY_ENABLED = "hime.conflicts.enabled";
+    /**
+     * The maximum number of diagnostics for the conflicts of a grammar
+     */
+    private static final int MAX_DIAGNOSTICS = 100;
+    /**
+     * The source of the diagnostics
+     */
+    private static final String SOURCE = "Hime";
+
+    /**
+     * The check of a version of a document
+     */
+    private class Task implements Runnable {
+        /**
+         * The URI of the document
+         */
+        private final String uri;
+        /**
+         * The analyzed version of the document
+         */
+        private final int version;
+        /**
+         * The future for this task
+         */
+        private Future<?> future;
+
+        /**
+         * Initializes this task
+         *
+         * @param uri     The URI of the document
+         * @param version The analyzed version of the document
+         */
+        public Task(String uri, int version) {
+            this.uri = uri;
+            this.version = version;
+        }
+
+        @Override
+        public void run() {
+            try {
+                check(this);
+            } catch (CancellationException ex) {
+                // superseded by a change to the document
+            } finally {
+                // clear the interruption, if any, before running the next task
+                Thread.interrupted();
+                synchronized (HimeConflictChecker.this) {
+                    tasks.remove(uri, this);
+                }
+            }
+        }
+    }
+
+    /**
+     * The conflicts published for a grammar
+     */
+    private static class Published {
+        /**
+         * The line of the grammar when its conflicts were found
+         */
+        public final int line;
+        /**
+         * The diagnostics for the conflicts
+         */
+        public final List<Diagnostic> diagnostics;
+
+        /**
+         * Initializes this structure
+         *
+         * @param line The line of the grammar when its conflicts were found
+         */
+        public Published(int line) {
+            this.line = line;
+            this.diagnostics = new ArrayList<>();
+        }
+    }
+
+    /**
+     * The analyzer for the documents
+     */
+    private final HimeDocumentAnalyzer analyzer;
+    /**
+     * The compiler that provides the automata
+     */
+    private final HimeCompiler compiler;
+    /**
+     * The metrics for this server
+     */
+    private final HimeMetrics metrics;
+    /**
+     * Whether the conflicts are detected
+     */
+    private final boolean enabled;
+    /**
+     * The executor for the checks
+     */
+    private final ExecutorService executor;
+    /**
+     * The pending or running check for each document
+     */
+    private final Map<String, Task> tasks;
+    /**
+     * The last published conflicts for each document, by grammar
+     */
+    private final Map<String, Map<String, Published>> published;
+    /**
+     * The client to publish the diagnostics to, if any
+     */
+    private volatile HimeClient client;
+
+    /**
+     * Initializes this checker
+     *
+     * @param analyzer The analyzer for the documents
+     * @param compiler The compiler that provides the automata
+     * @param metrics  The metrics for this server
+     */
+    public HimeConflictChecker(HimeDocumentAnalyzer analyzer, HimeCompiler compiler, HimeMetrics metrics) {
+        this.analyzer = analyzer;
+        this.compiler = compiler;
+        this.metrics = metrics;
+        this.enabled = Boolean.parseBoolean(System.getProperty(PROPERTY_ENABLED, "true"));
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "hime-conflicts");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.tasks = new HashMap<>();
+        this.published = new HashMap<>();
+    }
+
+    /**
+     * Sets the client to publish the diagnostics to
+     *
+     * @param client The client
+     */
+    public void setClient(HimeClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Schedules the check of the last analyzed version of a document
+     *
+     * @param uri The URI of the document
+     */
+    public synchronized void schedule(String uri) {
+        HimeDocumentState state = analyzer.getState(uri);
+        if (state == null) {
+            cancel(uri);
+            published.remove(uri);
+            return;
+        }
+        Task task = new Task(uri, state.version);
+        Task previous = tasks.put(uri, task);
+        if (previous != null)
+            previous.future.cancel(true);
+        task.future = executor.submit(task);
+    }
+
+    /**
+     * Cancels the pending or running check of a document, if any
+     *
+     * @param uri The URI of the document
+     */
+    public synchronized void cancel(String uri) {
+        Task previous = tasks.remove(uri);
+        if (previous != null)
+            previous.future.cancel(true);
+    }
+
+    /**
+     * Forgets the last published conflicts of a document
+     *
+     * @param uri The URI of the document
+     */
+    public synchronized void forget(String uri) {
+        published.remove(uri);
+    }
+
+    /**
+     * Gets the last published conflicts of a document, for the grammars it still defines
+     * The diagnostics are moved by the number of lines the grammars moved,
+     * and those that no longer fall in their grammar are dropped.
+     *
+     * @param uri   The URI of the document
+     * @param state The new state of the document
+     * @return The diagnostics for the conflicts
+     */
+    public synchronized List<Diagnostic> getPublished(String uri, HimeDocumentState state) {
+        Map<String, Published> grammars = published.get(uri);
+        if (grammars == null)
+            return Collections.emptyList();
+        List<Diagnostic> result = new ArrayList<>();
+        for (HimeDocumentBlock block : state.blocks) {
+            Published conflicts = grammars.get(block.name);
+            if (conflicts == null)
+                continue;
+            int delta = block.line - conflicts.line;
+            for (Diagnostic diagnostic : conflicts.diagnostics) {
+                Range range = diagnostic.getRange();
+                int start = range.getStart().getLine() + delta;
+                int end = range.getEnd().getLine() + delta;
+                if (start < block.line || end > block.endLine)
+                    continue;
+                result.add(delta == 0 ? diagnostic : new Diagnostic(
+                        new Range(new Position(start, range.getStart().getCharacter()), new Position(end, range.getEnd().getCharacter())),
+                        diagnostic.getSeverity(),
+                        diagnostic.getCode(),
+                        diagnostic.getSource(),
+                        diagnostic.getMessage()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Checks the grammars of a document and publishes the conflicts
+     *
+     * @param task The current task
+     */
+    private void check(Task task) {
+        HimeDocumentState state = analyzer.getState(task.uri);
+        Collection<Diagnostic> analyzed = analyzer.getDiagnostics(task.uri);
+        if (state == null || state.version != task.version || analyzed == null)
+            // a newer version is being analyzed
+            return;
+        long start = metrics.start();
+        HimeConflictsEvent event = new HimeConflictsEvent();
+        event.begin();
+        Map<String, Published> conflicts = new HashMap<>();
+        int grammarCount = 0;
+        int conflictCount = 0;
+        for (HimeDocumentBlock block : state.blocks) {
+            if (hasErrors(block))
+                // the conflicts would be meaningless
+                continue;
+            try {
+                if (enabled) {
+                    HimeCompiler.Automaton automaton = compiler.getAutomaton(block.name, task.uri);
+                    grammarCount++;
+                    conflictCount += automaton.parser.getConflicts().size();
+                    if (!automaton.parser.getConflicts().isEmpty()) {
+                        Published found = new Published(block.line);
+                        addDiagnostics(block, automaton, found.diagnostics);
+                        conflicts.put(block.name, found);
+                    }
+                }
+                compiler.updateSets(block.name);
+            } catch (CancellationException ex) {
+                throw ex;
+            } catch (HimeIncompleteGrammarException ex) {
+                // not a complete grammar, for example a grammar that is only inherited and has no axiom
+            }
+        }
+        HimeCompiler.checkCancelled();
+        event.end();
+        if (event.shouldCommit()) {
+            event.uri = task.uri;
+            event.grammars = grammarCount;
+            event.conflicts = conflictCount;
+            event.commit();
+        }
+        metrics.record(HimeMetrics.TIMER_CONFLICTS, start, state.content.length());
+        synchronized (this) {
+            if (tasks.get(task.uri) != task)
+                return;
+            Map<String, Published> previous = conflicts.isEmpty() ? published.remove(task.uri) : published.put(task.uri, conflicts);
+            HimeClient current = client;
+            if (current == null || (conflicts.isEmpty() && previous == null))
+                // the diagnostics of the analysis are already published
+                return;
+            List<Diagnostic> all = new ArrayList<>(analyzed);
+            for (Published found : conflicts.values())
+                all.addAll(found.diagnostics);
+            current.sendNotification("textDocument/publishDiagnostics", new PublishDiagnosticsParams(task.uri, all.toArray(new Diagnostic[all.size()])).serializedJSON());
+        }
+    }
+
+    /**
+     * Gets whether the analysis of a grammar found errors
+     *
+     * @param block The block of the grammar
+     * @return Whether there are errors
+     */
+    private static boolean hasErrors(HimeDocumentBlock block) {
+        for (Diagnostic diagnostic : block.diagnostics) {
+            if (diagnostic.getSeverity() == DiagnosticSeverity.ERROR)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Builds the diagnostics for the conflicts of a grammar
+     * Each conflict is reported on the definitions of the rules it involves in this grammar,
+     * or on the name of the grammar when these rules are all inherited.
+     *
+     * @param block       The block of the grammar
+     * @param automaton   The LR automaton of the grammar
+     * @param diagnostics The buffer for the diagnostics
+     */
+    private static void addDiagnostics(HimeDocumentBlock block, HimeCompiler.Automaton automaton, List<Diagnostic> diagnostics) {
+        Map<String, Range> rules = new HashMap<>();
+        Range grammar = null;
+        for (int i = 0; i != block.definitions.size(); i++) {
+            Symbol symbol = block.definitions.getSymbol(i);
+            if (symbol.getKind() == HimeWorkspace.SYMBOL_VARIABLE && !rules.containsKey(symbol.getName()))
+                rules.put(symbol.getName(), HimeLineIndex.toRange(block.definitions.getRange(i)));
+            else if (symbol.getKind() == HimeWorkspace.SYMBOL_GRAMMAR && grammar == null)
+                grammar = HimeLineIndex.toRange(block.definitions.getRange(i));
+        }
+        HimeGrammarModel model = automaton.model;
+        int count = 0;
+        for (HimeLrAutomaton.Conflict conflict : automaton.parser.getConflicts()) {
+            Set<String> origins = new LinkedHashSet<>();
+            StringBuilder message = new StringBuilder(conflict.kind == HimeLrAutomaton.CONFLICT_SHIFT_REDUCE ? "Shift/reduce" : "Reduce/reduce");
+            message.append(" conflict on ").append(model.getTerminalName(conflict.terminal)).append(":");
+            if (conflict.kind == HimeLrAutomaton.CONFLICT_SHIFT_REDUCE) {
+                for (int item : automaton.parser.getKernel(conflict.state)) {
+                    int production = automaton.parser.getItemProduction(item);
+                    int position = automaton.parser.getItemPosition(item);
+                    int[] body = model.getProduction(production).body;
+                    if (position < body.length && body[position] == conflict.terminal) {
+                        origins.add(model.getVariableOrigin(model.getProduction(production).head));
+                        message.append(" shift ").append(getItem(model, production, position)).append(";");
+                    }
+                }
+            }
+            for (int production : conflict.productions) {
+                origins.add(model.getVariableOrigin(model.getProduction(production).head));
+                message.append(" reduce ").append(getItem(model, production, -1)).append(";");
+            }
+            message.setLength(message.length() - 1);
+            boolean reported = false;
+            for (String origin : origins) {
+                Range range = rules.get(origin);
+                if (range != null && count < MAX_DIAGNOSTICS) {
+                    diagnostics.add(new Diagnostic(range, DiagnosticSeverity.ERROR, "hime.9", SOURCE, message.toString()));
+                    count++;
+                    reported = true;
+                }
+            }
+            if (!reported && grammar != null && count < MAX_DIAGNOSTICS) {
+                diagnostics.add(new Diagnostic(grammar, DiagnosticSeverity.ERROR, "hime.9", SOURCE, message + " (in inherited rules)"));
+                count++;
+            }
+            if (count == MAX_DIAGNOSTICS)
+                break;
+        }
+    }
+
+    /**
+     * Gets the description of an item
+     *
+     * @param model      The grammar
+     * @param production The production of the item
+     * @param position   The position of the dot in the production, or -1 when there is none
+     * @return The description
+     */
+    private static String getItem(HimeGrammarModel model, int production, int position) {
+        HimeGrammarModel.Production definition = model.getProduction(production);
+        StringBuilder builder = new StringBuilder(model.getVariableName(definition.head));
+        builder.append(" ->");
+        for (int i = 0; i != definition.body.length; i++) {
+            if (i == position)
+                builder.append(" .");
+            builder.append(" ").append(model.getSymbolName(definition.body[i]));
+        }
+        return builder.toString();
+    }
+}
@@ -18,22 +18,34 @@
 package fr.cenotelie.hime.langserver;
 
 import fr.cenotelie.commons.lsp.engine.DocumentAnalysisHime;
+import fr.cenotelie.commons.lsp.engine.DocumentSymbolReference;
+import fr.cenotelie.commons.lsp.engine.Symbol;
 import fr.cenotelie.commons.lsp.engine.SymbolFactory;
-import fr.cenotelie.hime.redist.Text;
+import fr.cenotelie.commons.lsp.structures.Diagnostic;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
 
 /**
- * Represents a context for an analysis
+ * Represents a context for the analysis of a single grammar
  *
  * @author Laurent Wouters
  */
 public class HimeDocumentAnalysisContext {
     /**
-     * The text input that was parsed
+     * The URI of the analyzed document
      */
-    public final Text input;
+    public final String resourceUri;
+    /**
+     * The index of the lines of the text input that was parsed, mapped to the lines of the document
+     */
+    public final HimeLineIndex lines;
+    /**
+     * The offset in the document of the start of the text input that was parsed
+     */
+    public final int offset;
     /**
      * The factory for symbols
      */
@@ -43,36 +55,92 @@ public class HimeDocumentAnalysisContext {
      */
     public final DocumentAnalysisHime analysis;
     /**
-     * The imported grammars
+     * The block that records the results of this analysis, if any
      */
-    public final Collection<String> imported;
+    public final HimeDocumentBlock block;
     /**
-     * The known lexical contexts
+     * The imported grammars
      */
-    public final Collection<String> lexicalContexts;
+    public final Collection<String> imported;
     /**
-     * The known terminals
+     * The names defined in the current grammar
      */
-    public final Collection<String> terminals;
+    public final HimeGrammarScope scope;
     /**
-     * The known variables
+     * The symbols inherited from the parent grammars, by name
      */
-    public final Collection<String> variables;
+    public Map<String, Symbol> inherited;
 
     /**
      * Initializes this context
      *
-     * @param input    The text input that was parsed
-     * @param factory  The factory for symbols
-     * @param analysis The current analysis to fill
+     * @param resourceUri The URI of the analyzed document
+     * @param lines       The index of the lines of the text input that was parsed, mapped to the lines of the document
+     * @param offset      The offset in the document of the start of the text input that was parsed
+     * @param factory     The factory for symbols
+     * @param analysis    The current analysis to fill
+     * @param block       The block that records the results of this analysis, if any
      */
-    public HimeDocumentAnalysisContext(Text input, SymbolFactory factory, DocumentAnalysisHime analysis) {
-        this.input = input;
+    public HimeDocumentAnalysisContext(String resourceUri, HimeLineIndex lines, int offset, SymbolFactory factory, DocumentAnalysisHime analysis, HimeDocumentBlock block) {
+        this.resourceUri = resourceUri;
+        this.lines = lines;
+        this.offset = offset;
         this.factory = factory;
         this.analysis = analysis;
+        this.block = block;
         this.imported = new ArrayList<>();
-        this.lexicalContexts = new ArrayList<>();
-        this.terminals = new ArrayList<>();
-        this.variables = new ArrayList<>();
+        this.scope = new HimeGrammarScope();
+        this.inherited = Collections.emptyMap();
+    }
+
+    /**
+     * Adds the definition of a symbol
+     * When there is a block, the definition is only recorded in the block, and registered once the analysis is complete.
+     *
+     * @param symbol The defined symbol
+     * @param range  The encoded range of the definition
+     */
+    public void addDefinition(Symbol symbol, long range) {
+        if (block != null)
+            block.definitions.add(symbol, range);
+        else
+            analysis.getSymbols().addDefinition(new DocumentSymbolReference(symbol, HimeLineIndex.toRange(range)));
+    }
+
+    /**
+     * Adds a reference to a symbol
+     * When there is a block, the reference is only recorded in the block, and registered once the analysis is complete.
+     *
+     * @param symbol The referenced symbol
+     * @param range  The encoded range of the reference
+     */
+    public void addReference(Symbol symbol, long range) {
+        if (block != null)
+            block.references.add(symbol, range);
+        else
+            analysis.getSymbols().addReference(new DocumentSymbolReference(symbol, HimeLineIndex.toRange(range)));
+    }
+
+    /**
+     * Records the text of the definition of a symbol
+     *
+     * @param symbol The defined symbol
+     * @param start  The offset of the definition in the text input that was parsed
+     * @param length The length of the definition
+     */
+    public void addSource(Symbol symbol, int start, int length) {
+        if (block != null)
+            block.sources.put(symbol.getIdentifier(), ((long) (start + offset - block.start) << 32) | length);
+    }
+
+    /**
+     * Adds a diagnostic
+     *
+     * @param diagnostic The diagnostic
+     */
+    public void addDiagnostic(Diagnostic diagnostic) {
+        analysis.getDiagnostics().add(diagnostic);
+        if (block != null)
+            block.diagnostics.add(diagnostic);
     }
 }
@@ -20,48 +20,802 @@ package fr.cenotelie.hime.langserver;
 import fr.cenotelie.commons.lsp.engine.*;
 import fr.cenotelie.commons.lsp.structures.Diagnostic;
 import fr.cenotelie.commons.lsp.structures.DiagnosticSeverity;
+import fr.cenotelie.commons.lsp.structures.Position;
+import fr.cenotelie.commons.lsp.structures.Range;
 import fr.cenotelie.commons.utils.IOUtils;
 import fr.cenotelie.commons.utils.TextUtils;
 import fr.cenotelie.hime.redist.ASTNode;
+import fr.cenotelie.hime.redist.ParseError;
 import fr.cenotelie.hime.redist.ParseResult;
 import fr.cenotelie.hime.redist.Text;
+import fr.cenotelie.hime.redist.TextSpan;
+import fr.cenotelie.hime.redist.Token;
+import fr.cenotelie.hime.redist.TokenRepository;
 
 import java.io.IOException;
 import java.io.Reader;
+import java.net.URI;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The analyzer for a Hime grammar
+ * <p>
+ * When a document is re-analyzed after an edit that falls within the body of a single top-level grammar,
+ * only this grammar is re-parsed and re-analyzed.
+ * The results for the other grammars in the document are replayed from the previous analysis.
+ * In addition, the results are cached by content so that re-analyzing an identical content does not re-parse it.
  *
  * @author Laurent Wouters
  */
 public class HimeDocumentAnalyzer extends DocumentAnalyzerHime {
+    /**
+     * The identifier of the `grammar` keyword terminal in the lexer
+     */
+    private static final int TERMINAL_GRAMMAR = 0x0060;
+    /**
+     * The identifier of the `{` terminal in the lexer
+     */
+    private static final int TERMINAL_BRACE_OPEN = 0x0048;
+    /**
+     * The identifier of the `}` terminal in the lexer
+     */
+    private static final int TERMINAL_BRACE_CLOSE = 0x004A;
+
+    /**
+     * The result of parsing a piece of content, with the tokens produced by the lexer
+     */
+    private static class Parsed {
+        /**
+         * The parse result
+         */
+        public final ParseResult result;
+        /**
+         * The tokens produced by the lexer
+         */
+        public final TokenRepository tokens;
+
+        /**
+         * Initializes this structure
+         *
+         * @param result The parse result
+         * @param tokens The tokens produced by the lexer
+         */
+        public Parsed(ParseResult result, TokenRepository tokens) {
+            this.result = result;
+            this.tokens = tokens;
+        }
+    }
+
+    /**
+     * A file loaded ahead of its analysis while indexing the workspace
+     */
+    private static class Prefetched {
+        /**
+         * The key for the content of the file
+         */
+        public final String key;
+        /**
+         * The loaded content, or null if the analysis results were restored without loading the file
+         */
+        public final String content;
+        /**
+         * The result of parsing the content ahead, or null if the analysis results were restored
+         */
+        public final Parsed parsed;
+
+        /**
+         * Initializes this file
+         *
+         * @param key     The key for the content of the file
+         * @param content The loaded content, or null if the analysis results were restored without loading the file
+         * @param parsed  The result of parsing the content ahead, or null if the analysis results were restored
+         */
+        public Prefetched(String key, String content, Parsed parsed) {
+            this.key = key;
+            this.content = content;
+            this.parsed = parsed;
+        }
+    }
+
+    /**
+     * The states of the analyzed documents, by URI
+     */
+    private final Map<String, HimeDocumentState> states;
+    /**
+     * The diagnostics of the last analysis of each document, by URI
+     */
+    private final Map<String, Collection<Diagnostic>> diagnostics;
+    /**
+     * The cache of analysis results by content
+     */
+    private final HimeAnalysisCache cache;
+    /**
+     * The inheritance graph of the grammars in the workspace
+     */
+    private final HimeImportGraph grammars;
+    /**
+     * The files loaded ahead of their analysis while indexing the workspace, by normalized URI
+     */
+    private final Map<String, Prefetched> prefetched;
+    /**
+     * The metrics for this server
+     */
+    private final HimeMetrics metrics;
+    /**
+     * The checker whose last published conflicts are kept with the diagnostics of the analyses, if any
+     */
+    private volatile HimeConflictChecker conflictChecker;
+
     /**
      * Initializes this analyzer
+     *
+     * @param grammars The inheritance graph of the grammars in the workspace
+     * @param metrics  The metrics for this server
      */
-    public HimeDocumentAnalyzer() {
+    public HimeDocumentAnalyzer(HimeImportGraph grammars, HimeMetrics metrics) {
         super(HimeDocumentAnalyzer.class.getCanonicalName(), "Hime", HimeWorkspace.LANGUAGE);
+        this.grammars = grammars;
+        this.metrics = metrics;
+        this.states = new ConcurrentHashMap<>();
+        this.diagnostics = new ConcurrentHashMap<>();
+        this.cache = new HimeAnalysisCache(HimeAnalysisCache.DEFAULT_CAPACITY);
+        this.prefetched = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Sets the checker whose last published conflicts are kept with the diagnostics of the analyses
+     *
+     * @param conflictChecker The checker for the conflicts
+     */
+    public void setConflictChecker(HimeConflictChecker conflictChecker) {
+        this.conflictChecker = conflictChecker;
+    }
+
+    /**
+     * Gets the cache of analysis results
+     *
+     * @return The cache of analysis results
+     */
+    public HimeAnalysisCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Gets the number of analyzed documents for which a state is kept
+     *
+     * @return The number of analyzed documents
+     */
+    public int getDocumentCount() {
+        return states.size();
+    }
+
+    /**
+     * Gets the index of the occurrences of symbols in a document, by position
+     *
+     * @param uri The URI of the document
+     * @return The index, or null if the document has no state
+     */
+    public HimePositionIndex getPositions(String uri) {
+        HimeDocumentState state = states.get(uri);
+        return state == null ? null : state.positions;
+    }
+
+    /**
+     * Gets the states of the analyzed documents
+     *
+     * @return The states of the analyzed documents
+     */
+    public Collection<HimeDocumentState> getStates() {
+        return states.values();
+    }
+
+    /**
+     * Gets the block that defines a grammar in the analyzed documents
+     *
+     * @param grammar The name of the grammar
+     * @return The block, or null if there is none
+     */
+    public HimeDocumentBlock getBlock(String grammar) {
+        HimeDocumentState state = getState(grammars.getDocument(grammar));
+        if (state == null)
+            return null;
+        for (HimeDocumentBlock block : state.blocks) {
+            if (block.name.equals(grammar))
+                return block;
+        }
+        return null;
+    }
+
+    /**
+     * Gets the state of a document after its last successful analysis
+     *
+     * @param uri The URI of the document
+     * @return The state, or null if there is none
+     */
+    public HimeDocumentState getState(String uri) {
+        return uri == null ? null : states.get(uri);
+    }
+
+    /**
+     * Forgets a document that was deleted, and removes the grammars it defines from the inheritance graph
+     *
+     * @param uri The URI of the document
+     */
+    public void remove(String uri) {
+        states.remove(uri);
+        diagnostics.remove(uri);
+        for (String grammar : grammars.getDefinedIn(uri)) {
+            publish(grammar, null, Collections.<String, Symbol>emptyMap());
+            grammars.remove(grammar);
+        }
+    }
+
+    /**
+     * Gets the diagnostics of the last analysis of a document
+     *
+     * @param uri The URI of the document
+     * @return The diagnostics, or null if the document has not been analyzed
+     */
+    public Collection<Diagnostic> getDiagnostics(String uri) {
+        return uri == null ? null : diagnostics.get(uri);
+    }
+
+    /**
+     * Gets the number of symbol definitions in the analyzed documents for which a state is kept
+     *
+     * @return The number of symbol definitions
+     */
+    public int getDefinitionCount() {
+        int result = 0;
+        for (HimeDocumentState state : states.values()) {
+            for (HimeDocumentBlock block : state.blocks)
+                result += block.definitions.size();
+        }
+        return result;
+    }
+
+    /**
+     * Gets the number of files loaded ahead of their analysis that have not been analyzed yet
+     *
+     * @return The number of files loaded ahead
+     */
+    public int getPrefetchedCount() {
+        return prefetched.size();
+    }
+
+    /**
+     * Parses the content of a file ahead of its analysis
+     * This method can be called concurrently.
+     *
+     * @param uri     The URI of the file with the content
+     * @param key     The key for the content
+     * @param content The content to parse
+     */
+    public void prefetch(String uri, String key, String content) {
+        prefetched.put(normalize(uri), new Prefetched(key, content, parse(uri, content)));
+    }
+
+    /**
+     * Restores the analysis results for a content from the persistent index of the workspace
+     * The restored results do not include a parse result.
+     * The restored grammars are also recorded in the inheritance graph,
+     * so that replaying the results when analyzing the document does not drop the cached results of the inheriting grammars.
+     *
+     * @param uri     The URI of the file with the content
+     * @param key     The key for the content
+     * @param content The content, if it was loaded
+     * @param length  The length of the content
+     * @param blocks  The top-level grammar blocks with their analysis results
+     */
+    public void restore(String uri, String key, String content, int length, List<HimeDocumentBlock> blocks) {
+        cache.put(key, new HimeAnalysisCache.Entry(null, blocks, Collections.<Diagnostic>emptyList(), length));
+        prefetched.put(normalize(uri), new Prefetched(key, content, null));
+        for (HimeDocumentBlock block : blocks) {
+            grammars.setParents(block.name, block.parents);
+            grammars.setExports(block.name, uri, block.exports);
+        }
+    }
+
+    /**
+     * Gets the grammars defined in a document whose content has been loaded ahead of its analysis
+     * The document is found by its URI, so that its content is not read and hashed again.
+     *
+     * @param document The document
+     * @return The names of the defined grammars, with the names of their parents
+     */
+    public Map<String, List<String>> getPrefetchedGrammars(Document document) {
+        Map<String, List<String>> result = new HashMap<>();
+        Prefetched loaded = prefetched.get(normalize(document.getUri()));
+        if (loaded == null)
+            return result;
+        HimeAnalysisCache.Entry entry = cache.peek(loaded.key);
+        if (entry != null) {
+            for (HimeDocumentBlock block : entry.blocks)
+                result.put(block.name, new ArrayList<>(block.parents));
+            return result;
+        }
+        ParseResult parseResult = loaded.parsed == null ? null : loaded.parsed.result;
+        if (parseResult == null || !parseResult.isSuccess() || parseResult.getRoot() == null)
+            return result;
+        for (ASTNode grammar : parseResult.getRoot().getChildren()) {
+            List<String> parents = new ArrayList<>();
+            for (ASTNode parent : grammar.getChildren().get(1).getChildren())
+                parents.add(parent.getValue());
+            result.put(grammar.getChildren().get(0).getValue(), parents);
+        }
+        return result;
+    }
+
+    /**
+     * Drops the files loaded ahead that have not been analyzed
+     */
+    public void clearPrefetched() {
+        prefetched.clear();
+    }
+
+    /**
+     * Normalizes the URI of a file, so that the URIs built from files match those of the documents
+     *
+     * @param uri The URI
+     * @return The normalized URI
+     */
+    private static String normalize(String uri) {
+        if (!uri.startsWith("file:"))
+            return uri;
+        try {
+            return Paths.get(URI.create(uri)).toString();
+        } catch (IllegalArgumentException | FileSystemNotFoundException ex) {
+            return uri;
+        }
+    }
+
+    @Override
+    public DocumentAnalysis analyze(SymbolFactory factory, Document document) {
+        String content;
+        try {
+            content = IOUtils.read(document.getCurrentVersion().getContent().getReader());
+        } catch (IOException ex) {
+            return super.analyze(factory, document);
+        }
+        int version = document.getCurrentVersion().getNumber();
+        long start = metrics.start();
+        metrics.setSize(document.getUri(), content.length());
+        HimeAnalysisEvent event = new HimeAnalysisEvent();
+        event.begin();
+        String mode = HimeAnalysisEvent.MODE_CACHED;
+        HimeDocumentState previous = states.remove(document.getUri());
+        Prefetched loaded = prefetched.isEmpty() ? null : prefetched.remove(normalize(document.getUri()));
+        // comparing the content with the loaded one is much cheaper than hashing it again
+        String key = loaded != null && content.equals(loaded.content) ? loaded.key : HimeAnalysisCache.getKey(content);
+        DocumentAnalysis analysis = null;
+        try {
+            HimeAnalysisCache.Entry entry = cache.get(key);
+            if (entry != null) {
+                analysis = new DocumentAnalysisHime(entry.result);
+                for (HimeDocumentBlock block : entry.blocks) {
+                    block.replay(analysis);
+                    grammars.setParents(block.name, block.parents);
+                    publish(block.name, document.getUri(), block.exports);
+                }
+                analysis.getDiagnostics().addAll(entry.diagnostics);
+                if (!entry.blocks.isEmpty())
+                    states.put(document.getUri(), new HimeDocumentState(content, entry.blocks, version));
+            }
+            if (analysis == null && previous != null) {
+                mode = HimeAnalysisEvent.MODE_INCREMENTAL;
+                analysis = analyzeIncremental(document.getUri(), version, key, previous, content, factory);
+            }
+            if (analysis == null) {
+                mode = HimeAnalysisEvent.MODE_FULL;
+                analysis = analyzeFull(document.getUri(), version, key, content, loaded != null && loaded.key.equals(key) ? loaded.parsed : null, factory);
+            }
+        } catch (CancellationException ex) {
+            rollback(document.getUri(), previous);
+            throw ex;
+        }
+        HimeDocumentState current = states.get(document.getUri());
+        if (previous != null && current != null) {
+            // drop the grammars that are no longer defined in this document
+            for (HimeDocumentBlock block : previous.blocks) {
+                if (!current.defines(block.name)) {
+                    publish(block.name, null, Collections.<String, Symbol>emptyMap());
+                    grammars.remove(block.name);
+                }
+            }
+        }
+        // do not publish the diagnostics of a superseded analysis
+        checkCancelled();
+        if (current != null) {
+            // register the occurrences of the symbols only for the analyses that are not superseded
+            for (HimeDocumentBlock block : current.blocks)
+                block.register(factory, analysis);
+        }
+        diagnostics.put(document.getUri(), new ArrayList<>(analysis.getDiagnostics()));
+        HimeConflictChecker checker = conflictChecker;
+        if (current != null && checker != null)
+            // keep the conflicts found in the previous version until the check of this version replaces them
+            analysis.getDiagnostics().addAll(checker.getPublished(document.getUri(), current));
+        event.end();
+        if (event.shouldCommit()) {
+            event.uri = document.getUri();
+            event.size = content.length();
+            event.mode = mode;
+            event.symbols = analysis.getSymbols().getDefinitions().size();
+            event.diagnostics = analysis.getDiagnostics().size();
+            event.commit();
+        }
+        metrics.record(HimeMetrics.TIMER_ANALYSIS, start, content.length());
+        return analysis;
+    }
+
+    /**
+     * Restores the state of a document and its grammars in the inheritance graph after an analysis was cancelled before its results were recorded
+     *
+     * @param uri      The URI of the document
+     * @param previous The state of the document before the analysis, if any
+     */
+    private void rollback(String uri, HimeDocumentState previous) {
+        if (states.containsKey(uri))
+            // the results were recorded, the state is consistent
+            return;
+        for (String grammar : grammars.getDefinedIn(uri)) {
+            if (previous == null || !previous.defines(grammar)) {
+                // partially analyzed grammar that was not defined before
+                publish(grammar, null, Collections.<String, Symbol>emptyMap());
+                grammars.remove(grammar);
+            }
+        }
+        if (previous == null)
+            return;
+        for (HimeDocumentBlock block : previous.blocks) {
+            grammars.setParents(block.name, block.parents);
+            publish(block.name, uri, block.exports);
+        }
+        states.put(uri, previous);
+    }
+
+    /**
+     * Aborts the current analysis when it has been superseded
+     * This is only checked within the phases of this analyzer, so the workspace always records complete results.
+     *
+     * @throws CancellationException When the analysis is cancelled
+     */
+    private static void checkCancelled() {
+        if (HimeAnalysisScheduler.isCancelled())
+            throw new CancellationException();
     }
 
     @Override
     protected ParseResult parse(Reader reader) {
         try {
-            String content = IOUtils.read(reader);
-            HimeGrammarLexer lexer = new HimeGrammarLexer(content);
-            HimeGrammarParser parser = new HimeGrammarParser(lexer);
-            parser.setModeRecoverErrors(false);
-            return parser.parse();
+            return parse(null, IOUtils.read(reader)).result;
         } catch (IOException ex) {
             return null;
         }
     }
 
+    /**
+     * Parses a piece of content
+     *
+     * @param uri     The URI of the document with the content, if known
+     * @param content The content to parse
+     * @return The parse result, with the tokens
+     */
+    private Parsed parse(String uri, String content) {
+        long start = metrics.start();
+        HimeParseEvent event = new HimeParseEvent();
+        event.begin();
+        HimeGrammarLexer lexer = new HimeGrammarLexer(content);
+        HimeGrammarParser parser = new HimeGrammarParser(lexer);
+        parser.setModeRecoverErrors(false);
+        ParseResult result = parser.parse();
+        event.end();
+        if (event.shouldCommit()) {
+            event.uri = uri;
+            event.size = content.length();
+            event.tokens = lexer.getTokens().size();
+            event.errors = result.getErrors().size();
+            event.commit();
+        }
+        metrics.record(HimeMetrics.TIMER_PARSE, start, content.length());
+        return new Parsed(result, lexer.getTokens());
+    }
+
     @Override
     protected void doAnalyze(String resourceUri, ASTNode root, Text input, SymbolFactory factory, DocumentAnalysis analysis) {
-        HimeDocumentAnalysisContext context = new HimeDocumentAnalysisContext(input, factory, (DocumentAnalysisHime) analysis);
+        doAnalyze(resourceUri, root, new HimeLineIndex(input.getValue(0, input.size()), 0), factory, (DocumentAnalysisHime) analysis);
+    }
+
+    /**
+     * Analyzes the grammars of a document without recording the results in blocks
+     *
+     * @param resourceUri The URI of the document
+     * @param root        The root of the AST
+     * @param lines       The index of the lines of the document
+     * @param factory     The factory for symbols
+     * @param analysis    The analysis to fill
+     */
+    private void doAnalyze(String resourceUri, ASTNode root, HimeLineIndex lines, SymbolFactory factory, DocumentAnalysisHime analysis) {
+        long start = metrics.start();
         for (ASTNode child : root.getChildren())
-            inspectGrammar(context, child);
+            inspectGrammar(new HimeDocumentAnalysisContext(resourceUri, lines, 0, factory, analysis, null), child);
+        metrics.record(HimeMetrics.TIMER_INSPECTION, start, resourceUri);
+    }
+
+    /**
+     * Analyzes the full content of a document
+     *
+     * @param resourceUri The URI of the document
+     * @param version     The version of the document
+     * @param key         The cache key for the content
+     * @param content     The content of the document
+     * @param parsed      The result of parsing the content ahead of the analysis, if any
+     * @param factory     The factory for symbols
+     * @return The analysis
+     */
+    private DocumentAnalysis analyzeFull(String resourceUri, int version, String key, String content, Parsed parsed, SymbolFactory factory) {
+        if (parsed == null)
+            parsed = parse(resourceUri, content);
+        ParseResult result = parsed.result;
+        DocumentAnalysisHime analysis = new DocumentAnalysisHime(result);
+        for (ParseError error : result.getErrors())
+            analysis.getDiagnostics().add(getDiagnosticFor(error, 0));
+        if (!result.isSuccess() || result.getRoot() == null) {
+            cache.put(key, new HimeAnalysisCache.Entry(
+                    result,
+                    Collections.<HimeDocumentBlock>emptyList(),
+                    new ArrayList<>(analysis.getDiagnostics()),
+                    content.length()));
+            return analysis;
+        }
+        List<ASTNode> nodes = result.getRoot().getChildren();
+        List<HimeDocumentBlock> blocks = getBlocks(parsed.tokens, 0, 0);
+        HimeLineIndex lines = new HimeLineIndex(content, 0);
+        if (blocks == null || blocks.size() != nodes.size()) {
+            // cannot map the grammars to blocks of text, do not keep a state
+            doAnalyze(resourceUri, result.getRoot(), lines, factory, analysis);
+            return analysis;
+        }
+        long start = metrics.start();
+        for (int i = 0; i != nodes.size(); i++) {
+            checkCancelled();
+            inspectGrammar(new HimeDocumentAnalysisContext(resourceUri, lines, 0, factory, analysis, blocks.get(i)), nodes.get(i));
+        }
+        metrics.record(HimeMetrics.TIMER_INSPECTION, start, content.length());
+        commit(resourceUri, version, key, content, result, blocks);
+        return analysis;
+    }
+
+    /**
+     * Analyzes a document by only re-parsing the grammar that contains the changes since the previous analysis
+     *
+     * @param resourceUri The URI of the document
+     * @param version     The version of the document
+     * @param key         The cache key for the new content
+     * @param previous    The state of the document after the previous analysis
+     * @param content     The new content of the document
+     * @param factory     The factory for symbols
+     * @return The analysis, or null if the changes cannot be handled incrementally
+     */
+    private DocumentAnalysis analyzeIncremental(String resourceUri, int version, String key, HimeDocumentState previous, String content, SymbolFactory factory) {
+        // find the changed range
+        String old = previous.content;
+        int oldLength = old.length();
+        int newLength = content.length();
+        int max = Math.min(oldLength, newLength);
+        int prefix = 0;
+        while (prefix < max && old.charAt(prefix) == content.charAt(prefix))
+            prefix++;
+        if (prefix == oldLength && prefix == newLength)
+            return null;
+        int suffix = 0;
+        while (suffix < max - prefix && old.charAt(oldLength - 1 - suffix) == content.charAt(newLength - 1 - suffix))
+            suffix++;
+        int index = previous.getBlockFor(prefix, oldLength - suffix);
+        if (index < 0)
+            return null;
+        HimeDocumentBlock block = previous.blocks.get(index);
+        for (HimeDocumentBlock other : previous.blocks) {
+            if (other.parents.contains(block.name))
+                // other grammars in this document depend on this one
+                return null;
+        }
+        if (index + 1 < previous.blocks.size() && previous.blocks.get(index + 1).line == block.endLine)
+            // the next grammar starts on the same line, its columns would change
+            return null;
+
+        // re-parse the block with the same position in the text
+        int delta = newLength - oldLength;
+        StringBuilder builder = new StringBuilder(block.column + block.getEnd() + delta - block.start);
+        for (int i = 0; i != block.column; i++)
+            builder.append(' ');
+        builder.append(content, block.start, block.getEnd() + delta);
+        Parsed parsed = parse(resourceUri, builder.toString());
+        ParseResult result = parsed.result;
+        List<HimeDocumentBlock> found = getBlocks(parsed.tokens, block.start - block.column, block.line);
+        if (found == null || found.size() != 1)
+            return null;
+        HimeDocumentBlock updated = found.get(0);
+        if (updated.start != block.start || updated.getEnd() != block.getEnd() + delta || !updated.name.equals(block.name))
+            // the boundaries of the block moved
+            return null;
+
+        // build the new analysis
+        int lineDelta = updated.endLine - block.endLine;
+        DocumentAnalysisHime analysis = new DocumentAnalysisHime(result);
+        List<HimeDocumentBlock> blocks = new ArrayList<>(previous.blocks.size());
+        for (int i = 0; i != index; i++) {
+            previous.blocks.get(i).replay(analysis);
+            blocks.add(previous.blocks.get(i));
+        }
+        for (ParseError error : result.getErrors()) {
+            Diagnostic diagnostic = getDiagnosticFor(error, block.line);
+            analysis.getDiagnostics().add(diagnostic);
+            updated.diagnostics.add(diagnostic);
+        }
+        if (result.isSuccess() && result.getRoot() != null) {
+            long start = metrics.start();
+            HimeLineIndex lines = new HimeLineIndex(builder, block.line);
+            inspectGrammar(new HimeDocumentAnalysisContext(resourceUri, lines, block.start - block.column, factory, analysis, updated), result.getRoot().getChildren().get(0));
+            metrics.record(HimeMetrics.TIMER_INSPECTION, start, content.length());
+        } else {
+            updated.parents.addAll(block.parents);
+        }
+        blocks.add(updated);
+        for (int i = index + 1; i != previous.blocks.size(); i++) {
+            HimeDocumentBlock moved = previous.blocks.get(i).moveBy(delta, lineDelta);
+            moved.replay(analysis);
+            blocks.add(moved);
+        }
+        // the parse result only covers the re-parsed block, do not let a later cache hit reuse it for the full content
+        commit(resourceUri, version, key, content, null, blocks);
+        return analysis;
+    }
+
+    /**
+     * Records the results of a successful analysis
+     *
+     * @param resourceUri The URI of the document
+     * @param version     The version of the document
+     * @param key         The cache key for the content
+     * @param content     The content of the document
+     * @param result      The parse result for the full content, or null if only a part of the content was parsed
+     * @param blocks      The top-level grammar blocks with their analysis results
+     */
+    private void commit(String resourceUri, int version, String key, String content, ParseResult result, List<HimeDocumentBlock> blocks) {
+        states.put(resourceUri, new HimeDocumentState(content, blocks, version));
+        cache.put(key, new HimeAnalysisCache.Entry(
+                result,
+                blocks,
+                Collections.<Diagnostic>emptyList(),
+                content.length()));
+    }
+
+    /**
+     * Publishes the symbols defined by a grammar to the inheritance graph
+     * When these symbols changed, the cached results for the grammars that inherit from it are dropped.
+     *
+     * @param grammar  The name of the grammar
+     * @param document The URI of the document that defines the grammar, or null if it is no longer defined
+     * @param exports  The terminals and variables defined in the grammar
+     */
+    private void publish(String grammar, String document, Map<String, Symbol> exports) {
+        if (!grammars.setExports(grammar, document, exports))
+            return;
+        cache.invalidate(grammar);
+        for (String descendant : grammars.getDescendants(Collections.singletonList(grammar)))
+            cache.invalidate(descendant);
+    }
+
+    /**
+     * Gets the top-level grammar blocks from the tokens produced by the lexer
+     *
+     * @param tokens       The tokens
+     * @param offsetOffset The offset in the document of the start of the parsed input
+     * @param lineOffset   The line in the document of the first line of the parsed input
+     * @return The blocks, or null if the braces are not balanced
+     */
+    private static List<HimeDocumentBlock> getBlocks(TokenRepository tokens, int offsetOffset, int lineOffset) {
+        List<HimeDocumentBlock> blocks = new ArrayList<>();
+        Token start = null;
+        String name = null;
+        int bodyStart = -1;
+        int depth = 0;
+        for (Token token : tokens) {
+            int id = token.getSymbol().getID();
+            if (id == TERMINAL_GRAMMAR && depth == 0) {
+                start = token;
+                name = null;
+            } else if (id == HimeGrammarLexer.ID.TERMINAL_NAME && depth == 0 && start != null && name == null) {
+                name = token.getValue();
+            } else if (id == TERMINAL_BRACE_OPEN) {
+                if (depth == 0)
+                    bodyStart = token.getSpan().getIndex() + 1;
+                depth++;
+            } else if (id == TERMINAL_BRACE_CLOSE) {
+                depth--;
+                if (depth < 0)
+                    return null;
+                if (depth == 0 && start != null && name != null) {
+                    blocks.add(new HimeDocumentBlock(
+                            name,
+                            start.getSpan().getIndex() + offsetOffset,
+                            bodyStart + offsetOffset,
+                            token.getSpan().getIndex() + offsetOffset,
+                            start.getPosition().getLine() - 1 + lineOffset,
+                            start.getPosition().getColumn() - 1,
+                            token.getPosition().getLine() - 1 + lineOffset
+                    ));
+                    start = null;
+                }
+            }
+        }
+        return depth == 0 ? blocks : null;
+    }
+
+    /**
+     * Gets the diagnostic for a parse error
+     *
+     * @param error      The parse error
+     * @param lineOffset The line in the document of the first line of the parsed input
+     * @return The diagnostic
+     */
+    private Diagnostic getDiagnosticFor(ParseError error, int lineOffset) {
+        int line = error.getPosition().getLine() - 1 + lineOffset;
+        int column = error.getPosition().getColumn() - 1;
+        return new Diagnostic(
+                new Range(new Position(line, column), new Position(line, column + error.getLength())),
+                DiagnosticSeverity.ERROR,
+                "hime.0",
+                name,
+                error.getMessage()
+        );
+    }
+
+    /**
+     * Gets the range in the document for an AST node
+     *
+     * @param context The current context
+     * @param node    The AST node
+     * @return The encoded range
+     */
+    private static long getRangeFor(HimeDocumentAnalysisContext context, ASTNode node) {
+        TextSpan span = node.getSpan();
+        return context.lines.getRange(span.getIndex(), span.getLength());
+    }
+
+    /**
+     * Records the text of the definition of a symbol
+     * The definition starts with the name of the symbol, i.e. the first child of the node.
+     * The tokens on the path to the last leaf are enough to find its end because the children of a node are in order,
+     * except for promoted operator tokens that are before their last operand.
+     *
+     * @param context The current context
+     * @param symbol  The defined symbol
+     * @param node    The AST node for the definition
+     */
+    private static void addSource(HimeDocumentAnalysisContext context, Symbol symbol, ASTNode node) {
+        if (context.block == null)
+            return;
+        int start = node.getChildren().get(0).getSpan().getIndex();
+        int end = start;
+        ASTNode current = node;
+        while (current != null) {
+            TextSpan span = current.getSpan();
+            if (span != null)
+                end = Math.max(end, span.getIndex() + span.getLength());
+            current = current.getChildren().isEmpty() ? null : current.getChildren().get(current.getChildren().size() - 1);
+        }
+        context.addSource(symbol, start, end - start);
     }
 
     /**
@@ -71,23 +825,24 @@ public class HimeDocumentAnalyzer extends DocumentAnalyzerHime {
      * @param node    The AST node
      */
     private void inspectGrammar(HimeDocumentAnalysisContext context, ASTNode node) {
+        HimeInspectionEvent event = new HimeInspectionEvent();
+        event.begin();
+        int diagnostics = context.analysis.getDiagnostics().size();
         String name = node.getChildren().get(0).getValue();
         Symbol symbolGrammar = context.factory.resolve(name);
         symbolGrammar.setKind(HimeWorkspace.SYMBOL_GRAMMAR);
-        context.analysis.getSymbols().addDefinition(new DocumentSymbolReference(
-                symbolGrammar,
-                getRangeFor(context.input, node.getChildren().get(0))
-        ));
+        context.addDefinition(symbolGrammar, getRangeFor(context, node.getChildren().get(0)));
         for (ASTNode nodeParent : node.getChildren().get(1).getChildren()) {
             String parent = nodeParent.getValue();
             Symbol symbolParent = context.factory.resolve(parent);
             symbolParent.setKind(HimeWorkspace.SYMBOL_GRAMMAR);
             context.imported.add(parent);
-            context.analysis.getSymbols().addReference(new DocumentSymbolReference(
-                    symbolParent,
-                    getRangeFor(context.input, nodeParent)
-            ));
+            if (context.block != null)
+                context.block.parents.add(parent);
+            context.addReference(symbolParent, getRangeFor(context, nodeParent));
         }
+        grammars.setParents(name, context.imported);
+        context.inherited = grammars.getInherited(name);
         if (node.getChildren().size() == 5) {
             inspectTerminals(context, symbolGrammar, node.getChildren().get(3));
             inspectVariables(context, symbolGrammar, node.getChildren().get(4));
@@ -95,6 +850,17 @@ public class HimeDocumentAnalyzer extends DocumentAnalyzerHime {
             inspectVariables(context, symbolGrammar, node.getChildren().get(3));
         }
         inspectOptions(context, symbolGrammar, node.getChildren().get(2));
+        publish(name, context.resourceUri, context.scope.getExports());
+        if (context.block != null)
+            context.block.exports.putAll(context.scope.getExports());
+        event.end();
+        if (event.shouldCommit()) {
+            event.uri = context.resourceUri;
+            event.grammar = name;
+            event.symbols = context.scope.getSymbolCount();
+            event.diagnostics = context.analysis.getDiagnostics().size() - diagnostics;
+            event.commit();
+        }
     }
 
     /**
@@ -111,11 +877,9 @@ public class HimeDocumentAnalyzer extends DocumentAnalyzerHime {
                 Symbol contextSymbol = context.factory.resolve(grammar.getIdentifier() + "." + name);
                 contextSymbol.setKind(HimeWorkspace.SYMBOL_CONTEXT);
                 contextSymbol.setParent(grammar);
-                context.analysis.getSymbols().addDefinition(new DocumentSymbolReference(
-                        contextSymbol,
-                        getRangeFor(context.input, child.getChildren().get(0))
-                ));
-                context.lexicalContexts.add(name);
+                long range = getRangeFor(context, child.getChildren().get(0));
+                context.addDefinition(contextSymbol, range);
+                context.scope.defineContext(name, range);
                 for (int i = 1; i != child.getChildren().size(); i++)
                     inspectTerminal(context, grammar, child.getChildren().get(i));
             } else {
@@ -137,11 +901,19 @@ public class HimeDocumentAnalyzer extends DocumentAnalyzerHime {
         Symbol terminal = context.factory.resolve(grammar.getIdentifier() + "." + name);
         terminal.setKind(HimeWorkspace.SYMBOL_TERMINAL);
         terminal.setParent(grammar);
-        context.analysis.getSymbols().addDefinition(new DocumentSymbolReference(
-                terminal,
-                getRangeFor(context.input, node.getChildren().get(0))
-        ));
-        context.terminals.add(name);
+        long range = getRangeFor(context, node.getChildren().get(0));
+        context.addDefinition(terminal, range);
+        addSource(context, terminal, node);
+        long previous = context.scope.defineTerminal(name, terminal, range);
+        if (previous >= 0) {
+            context.addDiagnostic(new Diagnostic(
+                    HimeLineIndex.toRange(range),
+                    DiagnosticSeverity.ERROR,
+                    "hime.7",
+                    this.name,
+                    "Terminal '" + name + "' is already defined in this grammar at line " + (HimeLineIndex.getLine(previous) + 1) + "."
+            ));
+        }
     }
 
     /**
@@ -157,8 +929,8 @@ public class HimeDocumentAnalyzer extends DocumentAnalyzerHime {
             String name = node.getValue();
             if (terminal.equals(name)) {
                 // self-reference
-                context.analysis.getDiagnostics().add(new Diagnostic(
-                        getRangeFor(context.input, node),
+                context.addDiagnostic(new Diagnostic(
+                        HimeLineIndex.toRange(getRangeFor(context, node)),
                         DiagnosticSeverity.ERROR,
                         "hime.3",
                         this.name,
@@ -166,30 +938,22 @@ public class HimeDocumentAnalyzer extends DocumentAnalyzerHime {
                 ));
                 return;
             }
-            if (context.terminals.contains(name)) {
+            if (context.scope.isTerminal(name)) {
                 // reference to an existing terminal
                 Symbol referenced = context.factory.resolve(grammar.getIdentifier() + "." + name);
-                context.analysis.getSymbols().addReference(new DocumentSymbolReference(
-                        referenced,
-                        getRangeFor(context.input, node)
-                ));
+                context.addReference(referenced, getRangeFor(context, node));
                 return;
             }
-            // look for imports
-            for (String imported : context.imported) {
-                Symbol candidate = context.factory.lookup(imported + "." + name);
-                if (candidate != null && candidate.getKind() == HimeWorkspace.SYMBOL_TERMINAL) {
-                    // found it
-                    context.analysis.getSymbols().addReference(new DocumentSymbolReference(
-                            candidate,
-                            getRangeFor(context.input, node)
-                    ));
-                    return;
-                }
+            // look for inherited terminals
+            Symbol candidate = context.inherited.get(name);
+            if (candidate != null && candidate.getKind() == HimeWorkspace.SYMBOL_TERMINAL) {
+                // found it
+                context.addReference(candidate, getRangeFor(context, node));
+                return;
             }
             // not found
-            context.analysis.getDiagnostics().add(new Diagnostic(
-                    getRangeFor(context.input, node),
+            context.addDiagnostic(new Diagnostic(
+                    HimeLineIndex.toRange(getRangeFor(context, node)),
                     DiagnosticSeverity.WARNING,
                     "hime.4",
                     this.name,
@@ -215,14 +979,24 @@ public class HimeDocumentAnalyzer extends DocumentAnalyzerHime {
             Symbol symbolVariable = context.factory.resolve(grammar.getIdentifier() + "." + name);
             symbolVariable.setKind(HimeWorkspace.SYMBOL_VARIABLE);
             symbolVariable.setParent(grammar);
-            context.analysis.getSymbols().addDefinition(new DocumentSymbolReference(
-                    symbolVariable,
-                    getRangeFor(context.input, child.getChildren().get(0))
-            ));
-            context.variables.add(name);
+            long range = getRangeFor(context, child.getChildren().get(0));
+            context.addDefinition(symbolVariable, range);
+            addSource(context, symbolVariable, child);
+            long previous = context.scope.defineVariable(name, symbolVariable, range);
+            if (previous >= 0) {
+                context.addDiagnostic(new Diagnostic(
+                        HimeLineIndex.toRange(range),
+                        DiagnosticSeverity.ERROR,
+                        "hime.8",
+                        this.name,
+                        "Variable '" + name + "' is already defined in this grammar at line " + (HimeLineIndex.getLine(previous) + 1) + "."
+                ));
+            }
         }
-        for (ASTNode child : node.getChildren())
+        for (ASTNode child : node.getChildren()) {
+            checkCancelled();
             inspectVariable(context, grammar, child);
+        }
     }
 
     /**
@@ -244,10 +1018,7 @@ public class HimeDocumentAnalyzer extends DocumentAnalyzerHime {
                 Symbol symbolParameter = context.factory.resolve(symbolVariable.getIdentifier() + "." + paramName);
                 symbolParameter.setKind(HimeWorkspace.SYMBOL_PARAM);
                 symbolParameter.setParent(symbolVariable);
-                context.analysis.getSymbols().addDefinition(new DocumentSymbolReference(
-                        symbolParameter,
-                        getRangeFor(context.input, child)
-                ));
+                context.addDefinition(symbolParameter, getRangeFor(context, child));
             }
             inspectVariableDefinition(context, grammar, name, parameters, node.getChildren().get(2));
         } else {
@@ -267,9 +1038,9 @@ public class HimeDocumentAnalyzer extends DocumentAnalyzerHime {
     private void inspectVariableDefinition(HimeDocumentAnalysisContext context, Symbol grammar, String variable, Collection<String> parameters, ASTNode node) {
         if (node.getSymbol().getID() == HimeGrammarParser.ID.VARIABLE_RULE_DEF_CONTEXT) {
             String name = node.getChildren().get(0).getValue();
-            if (!context.lexicalContexts.contains(name)) {
-                context.analysis.getDiagnostics().add(new Diagnostic(
-                        getRangeFor(context.input, node.getChildren().get(0)),
+            if (!context.scope.isContext(name)) {
+                context.addDiagnostic(new Diagnostic(
+                        HimeLineIndex.toRange(getRangeFor(context, node.getChildren().get(0))),
                         DiagnosticSeverity.WARNING,
                         "hime.5",
                         this.name,
@@ -277,10 +1048,7 @@ public class HimeDocumentAnalyzer extends DocumentAnalyzerHime {
                 ));
             } else {
                 Symbol symbol = context.factory.resolve(grammar.getIdentifier() + "." + name);
-                context.analysis.getSymbols().addReference(new DocumentSymbolReference(
-                        symbol,
-                        getRangeFor(context.input, node.getChildren().get(0))
-                ));
+                context.addReference(symbol, getRangeFor(context, node.getChildren().get(0)));
             }
             inspectVariableDefinition(context, grammar, variable, parameters, node.getChildren().get(1));
         } else if (node.getSymbol().getID() == HimeGrammarParser.ID.VARIABLE_RULE_DEF_SUB) {
@@ -290,64 +1058,44 @@ public class HimeDocumentAnalyzer extends DocumentAnalyzerHime {
             Symbol symbol = context.factory.resolve(grammar.getIdentifier() + "." + name);
             symbol.setKind(HimeWorkspace.SYMBOL_ACTION);
             symbol.setParent(grammar);
-            context.analysis.getSymbols().addReference(new DocumentSymbolReference(
-                    symbol,
-                    getRangeFor(context.input, node.getChildren().get(0))
-            ));
+            context.addReference(symbol, getRangeFor(context, node.getChildren().get(0)));
         } else if (node.getSymbol().getID() == HimeGrammarParser.ID.VARIABLE_RULE_SYM_VIRTUAL) {
             String name = TextUtils.unescape(node.getChildren().get(0).getValue());
             name = name.substring(1, name.length() - 1);
             Symbol symbol = context.factory.resolve(grammar.getIdentifier() + "." + name);
             symbol.setKind(HimeWorkspace.SYMBOL_VIRTUAL);
             symbol.setParent(grammar);
-            context.analysis.getSymbols().addReference(new DocumentSymbolReference(
-                    symbol,
-                    getRangeFor(context.input, node.getChildren().get(0))
-            ));
+            context.addReference(symbol, getRangeFor(context, node.getChildren().get(0)));
         } else if (node.getSymbol().getID() == HimeGrammarLexer.ID.TERMINAL_NAME) {
             String name = node.getValue();
             // is it a parameter?
             if (parameters.contains(name)) {
                 Symbol symbol = context.factory.resolve(grammar.getIdentifier() + "." + variable + "." + name);
-                context.analysis.getSymbols().addReference(new DocumentSymbolReference(
-                        symbol,
-                        getRangeFor(context.input, node)
-                ));
+                context.addReference(symbol, getRangeFor(context, node));
                 return;
             }
             // is it a known terminal?
-            if (context.terminals.contains(name)) {
+            if (context.scope.isTerminal(name)) {
                 Symbol symbol = context.factory.resolve(grammar.getIdentifier() + "." + name);
-                context.analysis.getSymbols().addReference(new DocumentSymbolReference(
-                        symbol,
-                        getRangeFor(context.input, node)
-                ));
+                context.addReference(symbol, getRangeFor(context, node));
                 return;
             }
             // is it a known variable?
-            if (context.variables.contains(name)) {
+            if (context.scope.isVariable(name)) {
                 Symbol symbol = context.factory.resolve(grammar.getIdentifier() + "." + name);
-                context.analysis.getSymbols().addReference(new DocumentSymbolReference(
-                        symbol,
-                        getRangeFor(context.input, node)
-                ));
+                context.addReference(symbol, getRangeFor(context, node));
                 return;
             }
-            // look for imports
-            for (String imported : context.imported) {
-                Symbol candidate = context.factory.lookup(imported + "." + name);
-                if (candidate != null) {
-                    // found it
-                    context.analysis.getSymbols().addReference(new DocumentSymbolReference(
-                            candidate,
-                            getRangeFor(context.input, node)
-                    ));
-                    return;
-                }
+            // look for inherited symbols
+            Symbol candidate = context.inherited.get(name);
+            if (candidate != null) {
+                // found it
+                context.addReference(candidate, getRangeFor(context, node));
+                return;
             }
             // not found
-            context.analysis.getDiagnostics().add(new Diagnostic(
-                    getRangeFor(context.input, node),
+            context.addDiagnostic(new Diagnostic(
+                    HimeLineIndex.toRange(getRangeFor(context, node)),
                     DiagnosticSeverity.WARNING,
                     "hime.6",
                     this.name,
@@ -373,9 +1121,9 @@ public class HimeDocumentAnalyzer extends DocumentAnalyzerHime {
             String optionValue = TextUtils.unescape(couple.getChildren().get(1).getValue());
             optionValue = optionValue.substring(1, optionValue.length() - 1);
             if ("Axiom".equals(optionName)) {
-                if (!context.variables.contains(optionValue)) {
-                    context.analysis.getDiagnostics().add(new Diagnostic(
-                            getRangeFor(context.input, couple.getChildren().get(1)),
+                if (!context.scope.isVariable(optionValue)) {
+                    context.addDiagnostic(new Diagnostic(
+                            HimeLineIndex.toRange(getRangeFor(context, couple.getChildren().get(1))),
                             DiagnosticSeverity.WARNING,
                             "hime.1",
                             name,
@@ -383,15 +1131,12 @@ public class HimeDocumentAnalyzer extends DocumentAnalyzerHime {
                     ));
                 } else {
                     Symbol symbol = context.factory.resolve(grammar.getIdentifier() + "." + optionValue);
-                    context.analysis.getSymbols().addReference(new DocumentSymbolReference(
-                            symbol,
-                            getRangeFor(context.input, couple.getChildren().get(1))
-                    ));
+                    context.addReference(symbol, getRangeFor(context, couple.getChildren().get(1)));
                 }
             } else if ("Separator".equals(optionName)) {
-                if (!context.terminals.contains(optionValue)) {
-                    context.analysis.getDiagnostics().add(new Diagnostic(
-                            getRangeFor(context.input, couple.getChildren().get(1)),
+                if (!context.scope.isTerminal(optionValue)) {
+                    context.addDiagnostic(new Diagnostic(
+                            HimeLineIndex.toRange(getRangeFor(context, couple.getChildren().get(1))),
                             DiagnosticSeverity.WARNING,
                             "hime.2",
                             name,
@@ -399,10 +1144,7 @@ public class HimeDocumentAnalyzer extends DocumentAnalyzerHime {
                     ));
                 } else {
                     Symbol symbol = context.factory.resolve(grammar.getIdentifier() + "." + optionValue);
-                    context.analysis.getSymbols().addReference(new DocumentSymbolReference(
-                            symbol,
-                            getRangeFor(context.input, couple.getChildren().get(1))
-                    ));
+                    context.addReference(symbol, getRangeFor(context, couple.getChildren().get(1)));
                 }
             }
         }
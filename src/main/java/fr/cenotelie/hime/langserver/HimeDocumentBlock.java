@@ -0,0 +1,315 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import fr.cenotelie.commons.lsp.engine.DocumentAnalysis;
+import fr.cenotelie.commons.lsp.engine.DocumentSymbolReference;
+import fr.cenotelie.commons.lsp.engine.Symbol;
+import fr.cenotelie.commons.lsp.engine.SymbolFactory;
+import fr.cenotelie.commons.lsp.structures.Diagnostic;
+import fr.cenotelie.commons.lsp.structures.Position;
+import fr.cenotelie.commons.lsp.structures.Range;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Represents a top-level grammar block within a document, i.e. a complete `grammar NAME { ... }` construct,
+ * together with the results of its last analysis.
+ * The recorded results can be replayed into a new analysis when the block itself did not change.
+ * The occurrences of the symbols are only registered into the analysis once it is complete, from their packed ranges.
+ *
+ * @author Laurent Wouters
+ */
+public class HimeDocumentBlock {
+    /**
+     * The name of the grammar defined in this block
+     */
+    public final String name;
+    /**
+     * The offset of the `grammar` keyword in the document
+     */
+    public final int start;
+    /**
+     * The offset just after the opening brace of the grammar body
+     */
+    public final int bodyStart;
+    /**
+     * The offset of the closing brace of the grammar body
+     */
+    public final int bodyEnd;
+    /**
+     * The (0-based) line of the `grammar` keyword
+     */
+    public final int line;
+    /**
+     * The (0-based) column of the `grammar` keyword
+     */
+    public final int column;
+    /**
+     * The (0-based) line of the closing brace of the grammar body
+     */
+    public final int endLine;
+    /**
+     * The names of the parent grammars
+     */
+    public final Collection<String> parents;
+    /**
+     * The terminals and variables defined in this block, by name
+     */
+    public final Map<String, Symbol> exports;
+    /**
+     * The text of the definitions of the terminals and variables in this block, by symbol identifier
+     * The text is encoded as its offset relative to the start of the block (upper 32 bits) and its length (lower 32 bits).
+     */
+    public final Map<String, Long> sources;
+    /**
+     * The symbol definitions found in this block
+     */
+    public final HimeOccurrences definitions;
+    /**
+     * The symbol references found in this block
+     */
+    public final HimeOccurrences references;
+    /**
+     * The diagnostics found in this block
+     */
+    public final List<Diagnostic> diagnostics;
+    /**
+     * The completion tree for the symbols of this block, built on demand
+     */
+    private volatile HimeCompletionTrie completions;
+    /**
+     * The encoded semantic tokens of this block, relative to its first line, or null if they are not yet known
+     */
+    private volatile int[] semanticTokens;
+    /**
+     * The identity of the parsing of this block, shared with its moved copies
+     */
+    private Object origin;
+
+    /**
+     * Initializes this block
+     *
+     * @param name      The name of the grammar defined in this block
+     * @param start     The offset of the `grammar` keyword in the document
+     * @param bodyStart The offset just after the opening brace of the grammar body
+     * @param bodyEnd   The offset of the closing brace of the grammar body
+     * @param line      The (0-based) line of the `grammar` keyword
+     * @param column    The (0-based) column of the `grammar` keyword
+     * @param endLine   The (0-based) line of the closing brace of the grammar body
+     */
+    public HimeDocumentBlock(String name, int start, int bodyStart, int bodyEnd, int line, int column, int endLine) {
+        this.name = name;
+        this.start = start;
+        this.bodyStart = bodyStart;
+        this.bodyEnd = bodyEnd;
+        this.line = line;
+        this.column = column;
+        this.endLine = endLine;
+        this.parents = new ArrayList<>();
+        this.exports = new HashMap<>();
+        this.sources = new HashMap<>();
+        this.definitions = new HimeOccurrences();
+        this.references = new HimeOccurrences();
+        this.diagnostics = new ArrayList<>();
+        this.origin = new Object();
+    }
+
+    /**
+     * Gets the offset just after the closing brace of the grammar body
+     *
+     * @return The end offset of this block
+     */
+    public int getEnd() {
+        return bodyEnd + 1;
+    }
+
+    /**
+     * Gets a copy of this block moved within the document
+     *
+     * @param offsetDelta The number of characters this block is moved by
+     * @param lineDelta   The number of lines this block is moved by
+     * @return The moved block
+     */
+    public HimeDocumentBlock moveBy(int offsetDelta, int lineDelta) {
+        if (offsetDelta == 0 && lineDelta == 0)
+            return this;
+        HimeDocumentBlock result = new HimeDocumentBlock(
+                name,
+                start + offsetDelta,
+                bodyStart + offsetDelta,
+                bodyEnd + offsetDelta,
+                line + lineDelta,
+                column,
+                endLine + lineDelta);
+        result.parents.addAll(parents);
+        result.exports.putAll(exports);
+        result.sources.putAll(sources);
+        result.completions = completions;
+        result.semanticTokens = semanticTokens;
+        result.origin = origin;
+        result.definitions.addAll(definitions, lineDelta);
+        result.references.addAll(references, lineDelta);
+        for (Diagnostic diagnostic : diagnostics)
+            result.diagnostics.add(new Diagnostic(
+                    shift(diagnostic.getRange(), lineDelta),
+                    diagnostic.getSeverity(),
+                    diagnostic.getCode(),
+                    diagnostic.getSource(),
+                    diagnostic.getMessage()
+            ));
+        return result;
+    }
+
+    /**
+     * Gets the completion tree for the symbols defined in this block, and the actions and virtuals it uses
+     * The tree is built on the first call and shared with the moved copies of this block.
+     *
+     * @return The completion tree
+     */
+    public HimeCompletionTrie getCompletions() {
+        HimeCompletionTrie result = completions;
+        if (result == null) {
+            result = new HimeCompletionTrie();
+            for (int i = 0; i != definitions.size(); i++) {
+                Symbol symbol = definitions.getSymbol(i);
+                if (symbol.getKind() != HimeWorkspace.SYMBOL_GRAMMAR)
+                    result.add(new HimeCompletionTrie.Entry(symbol.getName(), symbol.getKind(), symbol.getIdentifier()));
+            }
+            String prefix = name + ".";
+            for (int i = 0; i != references.size(); i++) {
+                Symbol symbol = references.getSymbol(i);
+                if ((symbol.getKind() == HimeWorkspace.SYMBOL_ACTION || symbol.getKind() == HimeWorkspace.SYMBOL_VIRTUAL)
+                        && symbol.getIdentifier().startsWith(prefix))
+                    result.add(new HimeCompletionTrie.Entry(symbol.getName(), symbol.getKind(), symbol.getIdentifier()));
+            }
+            completions = result;
+        }
+        return result;
+    }
+
+    /**
+     * Gets the identity of the parsing of this block
+     * It is shared with the moved copies of this block, so that the results derived from the text of the block can be kept
+     * until the block is parsed again.
+     *
+     * @return The identity of the parsing of this block
+     */
+    public Object getOrigin() {
+        return origin;
+    }
+
+    /**
+     * Gets the encoded semantic tokens of this block (see {@link HimeSemanticTokensProvider})
+     * The tokens are shared with the moved copies of this block.
+     *
+     * @return The tokens, or null if they are not yet known
+     */
+    public int[] getSemanticTokens() {
+        return semanticTokens;
+    }
+
+    /**
+     * Sets the encoded semantic tokens of this block
+     *
+     * @param tokens The tokens
+     * @return The tokens
+     */
+    public int[] setSemanticTokens(int[] tokens) {
+        semanticTokens = tokens;
+        return tokens;
+    }
+
+    /**
+     * Gets the text of the definition of a symbol in this block
+     *
+     * @param content    The content of the document
+     * @param identifier The identifier of the symbol
+     * @return The text of the definition, or null if it is not in this block
+     */
+    public String getSource(String content, String identifier) {
+        Long source = sources.get(identifier);
+        if (source == null)
+            return null;
+        int offset = start + (int) (source >>> 32);
+        return content.substring(offset, offset + (int) (source & 0xFFFFFFFFL));
+    }
+
+    /**
+     * Replays the recorded diagnostics of this block into an analysis
+     *
+     * @param analysis The analysis to fill
+     */
+    public void replay(DocumentAnalysis analysis) {
+        analysis.getDiagnostics().addAll(diagnostics);
+    }
+
+    /**
+     * Registers the recorded definitions and references of this block into an analysis, for the symbol registry
+     * This is only done once the analysis is complete, because the registry keeps a range for each occurrence:
+     * a {@link Range} and a {@link DocumentSymbolReference} are allocated for each definition and reference,
+     * which the packed occurrences of this block cannot avoid.
+     *
+     * @param factory  The factory for symbols
+     * @param analysis The analysis to fill
+     */
+    public void register(SymbolFactory factory, DocumentAnalysis analysis) {
+        for (int i = 0; i != definitions.size(); i++)
+            analysis.getSymbols().addDefinition(new DocumentSymbolReference(reattach(factory, definitions.getSymbol(i)), HimeLineIndex.toRange(definitions.getRange(i))));
+        for (int i = 0; i != references.size(); i++)
+            analysis.getSymbols().addReference(new DocumentSymbolReference(reattach(factory, references.getSymbol(i)), HimeLineIndex.toRange(references.getRange(i))));
+    }
+
+    /**
+     * Gets the symbol currently registered in a factory for a recorded symbol
+     *
+     * @param factory The factory for symbols
+     * @param symbol  The recorded symbol
+     * @return The current symbol
+     */
+    private static Symbol reattach(SymbolFactory factory, Symbol symbol) {
+        Symbol result = factory.resolve(symbol.getIdentifier());
+        if (result != symbol) {
+            // the symbol was dropped in the meantime, restore its properties
+            result.setKind(symbol.getKind());
+            if (symbol.getParent() != null)
+                result.setParent(reattach(factory, symbol.getParent()));
+        }
+        return result;
+    }
+
+    /**
+     * Shifts a range by a number of lines
+     *
+     * @param range     The range to shift
+     * @param lineDelta The number of lines
+     * @return The shifted range
+     */
+    public static Range shift(Range range, int lineDelta) {
+        if (lineDelta == 0)
+            return range;
+        return new Range(
+                new Position(range.getStart().getLine() + lineDelta, range.getStart().getCharacter()),
+                new Position(range.getEnd().getLine() + lineDelta, range.getEnd().getCharacter())
+        );
+    }
+}
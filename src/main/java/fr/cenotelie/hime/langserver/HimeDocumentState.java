@@ -0,0 +1,132 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import java.util.List;
+
+/**
+ * Represents the state of a document after its last successful analysis
+ *
+ * @author Laurent Wouters
+ */
+public class HimeDocumentState {
+    /**
+     * The analyzed content of the document
+     */
+    public final String content;
+    /**
+     * The top-level grammar blocks in the document, in order
+     */
+    public final List<HimeDocumentBlock> blocks;
+    /**
+     * The version of the document that was analyzed
+     */
+    public final int version;
+    /**
+     * The index of the occurrences of symbols in the document, by position
+     */
+    public final HimePositionIndex positions;
+
+    /**
+     * Initializes this state
+     *
+     * @param content The analyzed content of the document
+     * @param blocks  The top-level grammar blocks in the document, in order
+     * @param version The version of the document that was analyzed
+     */
+    public HimeDocumentState(String content, List<HimeDocumentBlock> blocks, int version) {
+        this.content = content;
+        this.blocks = blocks;
+        this.version = version;
+        this.positions = new HimePositionIndex(blocks);
+    }
+
+    /**
+     * Gets the index of the block whose body fully contains a range of text
+     *
+     * @param start The starting offset of the range
+     * @param end   The ending offset of the range (excluded)
+     * @return The index of the block, or -1 if the range is not within a single grammar body
+     */
+    public int getBlockFor(int start, int end) {
+        int low = 0;
+        int high = blocks.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            HimeDocumentBlock block = blocks.get(middle);
+            if (start < block.bodyStart)
+                high = middle - 1;
+            else if (start > block.bodyEnd)
+                low = middle + 1;
+            else
+                return end <= block.bodyEnd ? middle : -1;
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the block that contains a line
+     *
+     * @param line The (0-based) line
+     * @return The block, or null if the line is not within a block
+     */
+    public HimeDocumentBlock getBlockAt(int line) {
+        int low = 0;
+        int high = blocks.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            HimeDocumentBlock block = blocks.get(middle);
+            if (line < block.line)
+                high = middle - 1;
+            else if (line > block.endLine)
+                low = middle + 1;
+            else
+                return block;
+        }
+        return null;
+    }
+
+    /**
+     * Gets the text of the definition of a symbol
+     *
+     * @param grammar    The name of the grammar that defines the symbol
+     * @param identifier The identifier of the symbol
+     * @return The text of the definition, or null if it is not known
+     */
+    public String getSource(String grammar, String identifier) {
+        for (HimeDocumentBlock block : blocks) {
+            if (block.name.equals(grammar))
+                return block.getSource(content, identifier);
+        }
+        return null;
+    }
+
+    /**
+     * Gets whether a grammar is defined in this document
+     *
+     * @param grammar The name of the grammar
+     * @return Whether the grammar is defined in this document
+     */
+    public boolean defines(String grammar) {
+        for (HimeDocumentBlock block : blocks) {
+            if (block.name.equals(grammar))
+                return true;
+        }
+        return false;
+    }
+}
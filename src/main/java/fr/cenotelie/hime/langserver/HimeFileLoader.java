@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Loads the content of grammar files that are not opened in an editor
+ * <p>
+ * The files are memory-mapped and decoded from UTF-8 directly into a per-thread buffer that is reused across files,
+ * so that loading a file allocates only the resulting string,
+ * instead of the intermediate buffers of a reader and a string builder.
+ * This is not a zero-copy loading: the decoded characters are copied once into the string,
+ * because the lexer only accepts strings and readers.
+ * The loaded content and its key are kept with the results of the indexing,
+ * so that the documents opened by the workspace for the same files are neither parsed nor hashed again.
+ *
+ * @author Laurent Wouters
+ */
+public class HimeFileLoader {
+    /**
+     * The per-thread decoding buffers
+     */
+    private static final ThreadLocal<HimeFileLoader> LOADERS = new ThreadLocal<HimeFileLoader>() {
+        @Override
+        protected HimeFileLoader initialValue() {
+            return new HimeFileLoader();
+        }
+    };
+
+    /**
+     * The decoder for UTF-8
+     */
+    private final CharsetDecoder decoder;
+    /**
+     * The buffer for the decoded characters
+     */
+    private CharBuffer buffer;
+
+    /**
+     * Initializes this loader
+     */
+    private HimeFileLoader() {
+        this.decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.buffer = CharBuffer.allocate(4096);
+    }
+
+    /**
+     * Loads the content of a file encoded in UTF-8
+     * This method can be called concurrently.
+     *
+     * @param file The file to load
+     * @return The content of the file
+     * @throws IOException When reading failed
+     */
+    public static String load(File file) throws IOException {
+        return LOADERS.get().doLoad(file);
+    }
+
+    /**
+     * Loads the content of a file encoded in UTF-8
+     *
+     * @param file The file to load
+     * @return The content of the file
+     * @throws IOException When reading failed
+     */
+    private String doLoad(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size == 0)
+                return "";
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("File is too large: " + file.getPath());
+            MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            // an UTF-8 file never decodes to more characters than it has bytes
+            if (buffer.capacity() < size)
+                buffer = CharBuffer.allocate((int) size);
+            buffer.clear();
+            decoder.reset();
+            CoderResult result = decoder.decode(bytes, buffer, true);
+            if (result.isError())
+                result.throwException();
+            result = decoder.flush(buffer);
+            if (result.isError())
+                result.throwException();
+            return new String(buffer.array(), 0, buffer.position());
+        } catch (CharacterCodingException ex) {
+            throw new IOException(ex);
+        }
+    }
+}
@@ -0,0 +1,940 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+
+package fr.cenotelie.hime.langserver;
+
+import fr.cenotelie.commons.utils.TextUtils;
+import fr.cenotelie.hime.redist.ASTNode;
+import fr.cenotelie.hime.redist.ParseResult;
+
+import java.util.*;
+
+/**
+ * The model of a context-free grammar, including its inherited definitions, from which the automata are built
+ * <p>
+ * Symbols are identified by integers: terminals by their non-negative index and variables by the complement of their index.
+ * The terminal 0 is the end of the input and the variable 0 is the augmented axiom, whose only production is `axiom $`.
+ * The EBNF constructs in the rules are expanded into plain productions:
+ * optional parts and unions are expanded in place, while repetitions, sub-trees and lexical contexts are produced by generated variables.
+ * Templates are instantiated once for each distinct list of arguments.
+ * Semantic actions and virtual symbols are not part of the productions.
+ *
+ * @author Laurent Wouters
+ */
+public class HimeGrammarModel {
+    /**
+     * The terminal for the end of the input
+     */
+    public static final int TERMINAL_END = 0;
+    /**
+     * The tree action that keeps a symbol in the AST
+     */
+    public static final byte TREE_NONE = 0;
+    /**
+     * The tree action that promotes a symbol as the parent of its siblings
+     */
+    public static final byte TREE_PROMOTE = 1;
+    /**
+     * The tree action that drops a symbol from the AST
+     */
+    public static final byte TREE_DROP = 2;
+    /**
+     * The maximum number of alternatives produced by a concatenation before one of its parts is moved to a generated variable
+     */
+    private static final int MAX_ALTERNATIVES = 64;
+    /**
+     * The maximum depth of nested template instantiations
+     */
+    private static final int MAX_TEMPLATE_DEPTH = 16;
+
+    /**
+     * A production of a variable
+     */
+    public static class Production {
+        /**
+         * The index of the variable that is produced
+         */
+        public final int head;
+        /**
+         * The symbols in the body of the production
+         */
+        public final int[] body;
+        /**
+         * The tree action for each symbol in the body
+         */
+        public final byte[] actions;
+
+        /**
+         * Initializes this production
+         *
+         * @param head    The index of the variable that is produced
+         * @param body    The symbols in the body of the production
+         * @param actions The tree action for each symbol in the body
+         */
+        public Production(int head, int[] body, byte[] actions) {
+            this.head = head;
+            this.body = body;
+            this.actions = actions;
+        }
+    }
+
+    /**
+     * An alternative produced by the expansion of a piece of a rule
+     */
+    private static class Alternative {
+        /**
+         * The empty alternative
+         */
+        public static final Alternative EMPTY = new Alternative(new int[0], new byte[0]);
+
+        /**
+         * The symbols of this alternative
+         */
+        public final int[] symbols;
+        /**
+         * The tree action for each symbol
+         */
+        public final byte[] actions;
+
+        /**
+         * Initializes this alternative
+         *
+         * @param symbols The symbols of this alternative
+         * @param actions The tree action for each symbol
+         */
+        public Alternative(int[] symbols, byte[] actions) {
+            this.symbols = symbols;
+            this.actions = actions;
+        }
+
+        /**
+         * Initializes this alternative with a single symbol
+         *
+         * @param symbol The symbol
+         */
+        public Alternative(int symbol) {
+            this(new int[]{symbol}, new byte[]{TREE_NONE});
+        }
+
+        /**
+         * Gets the concatenation of this alternative with another one
+         *
+         * @param next The following alternative
+         * @return The concatenation
+         */
+        public Alternative concat(Alternative next) {
+            int[] resultSymbols = Arrays.copyOf(symbols, symbols.length + next.symbols.length);
+            byte[] resultActions = Arrays.copyOf(actions, actions.length + next.actions.length);
+            System.arraycopy(next.symbols, 0, resultSymbols, symbols.length, next.symbols.length);
+            System.arraycopy(next.actions, 0, resultActions, actions.length, next.actions.length);
+            return new Alternative(resultSymbols, resultActions);
+        }
+    }
+
+    /**
+     * The definition of a variable that remains to be expanded
+     */
+    private static class Pending {
+        /**
+         * The index of the variable
+         */
+        public final int variable;
+        /**
+         * The definition to expand
+         */
+        public final ASTNode definition;
+        /**
+         * The symbols bound to the template parameters, by name
+         */
+        public final Map<String, Integer> parameters;
+        /**
+         * The depth of the template instantiation
+         */
+        public final int depth;
+
+        /**
+         * Initializes this definition
+         *
+         * @param variable   The index of the variable
+         * @param definition The definition to expand
+         * @param parameters The symbols bound to the template parameters, by name
+         * @param depth      The depth of the template instantiation
+         */
+        public Pending(int variable, ASTNode definition, Map<String, Integer> parameters, int depth) {
+            this.variable = variable;
+            this.definition = definition;
+            this.parameters = parameters;
+            this.depth = depth;
+        }
+    }
+
+    /**
+     * The name of the grammar
+     */
+    public final String name;
+    /**
+     * The names of the terminals
+     */
+    private final List<String> terminals;
+    /**
+     * The lexical context of each terminal, null for the default context
+     */
+    private final List<String> terminalContexts;
+    /**
+     * The terminals that are defined inline in the rules
+     */
+    private final BitSet inlines;
+    /**
+     * The definition of each terminal, or null once released
+     */
+    private List<ASTNode> definitions;
+    /**
+     * The definitions of the terminals and fragments, by name, or null once released
+     */
+    private Map<String, ASTNode> references;
+    /**
+     * The names of the variables
+     */
+    private final List<String> variables;
+    /**
+     * The name of the rule each variable comes from
+     */
+    private final List<String> origins;
+    /**
+     * The lexical context opened by each variable, if any
+     */
+    private final List<String> variableContexts;
+    /**
+     * The generated variables whose children are directly attached to their parent in the AST
+     */
+    private final BitSet generated;
+    /**
+     * The productions
+     */
+    private final List<Production> productions;
+    /**
+     * The indices of the productions of each variable
+     */
+    private final int[][] productionsByVariable;
+    /**
+     * Whether each variable can produce the empty string
+     */
+    private final boolean[] nullable;
+    /**
+     * The separator terminal, or -1 if there is none
+     */
+    private final int separator;
+    /**
+     * The axiom of the grammar
+     */
+    private final int axiom;
+    /**
+     * The rules, by name
+     */
+    private final Map<String, ASTNode> rules;
+    /**
+     * The symbols for the terminals and the simple rules, by name
+     */
+    private final Map<String, Integer> symbols;
+    /**
+     * The terminals for the literal texts, by literal
+     */
+    private final Map<String, Integer> literals;
+    /**
+     * The variables for the instances of templates, by template and arguments
+     */
+    private final Map<String, Integer> instances;
+    /**
+     * The variables that remain to be expanded
+     */
+    private final Deque<Pending> pending;
+
+    /**
+     * Initializes this model
+     *
+     * @param name    The name of the grammar
+     * @param sources The texts of the grammar and its ancestors, each ancestor before its descendants
+     * @throws IllegalArgumentException       When the grammar is malformed
+     * @throws HimeIncompleteGrammarException When the grammar is incomplete, for example when it has no axiom
+     */
+    public HimeGrammarModel(String name, Collection<String> sources) {
+        this.name = name;
+        this.terminals = new ArrayList<>();
+        this.terminalContexts = new ArrayList<>();
+        this.inlines = new BitSet();
+        this.definitions = new ArrayList<>();
+        this.references = new HashMap<>();
+        this.variables = new ArrayList<>();
+        this.origins = new ArrayList<>();
+        this.variableContexts = new ArrayList<>();
+        this.generated = new BitSet();
+        this.productions = new ArrayList<>();
+        this.rules = new LinkedHashMap<>();
+        this.symbols = new HashMap<>();
+        this.literals = new HashMap<>();
+        this.instances = new HashMap<>();
+        this.pending = new ArrayDeque<>();
+
+        Map<String, String> options = new HashMap<>();
+        Map<String, ASTNode> lexicals = new LinkedHashMap<>();
+        Map<String, String> contexts = new HashMap<>();
+        Set<String> fragments = new HashSet<>();
+        for (String source : sources) {
+            HimeGrammarParser parser = new HimeGrammarParser(new HimeGrammarLexer(source));
+            parser.setModeRecoverErrors(false);
+            ParseResult result = parser.parse();
+            if (!result.isSuccess() || !result.getErrors().isEmpty())
+                throw new HimeIncompleteGrammarException("Grammar '" + name + "' or one of its ancestors has syntax errors.");
+            for (ASTNode grammar : result.getRoot().getChildren())
+                collect(grammar, options, lexicals, contexts, fragments);
+        }
+
+        addTerminal("$", null, null);
+        for (Map.Entry<String, ASTNode> entry : lexicals.entrySet()) {
+            references.put(entry.getKey(), entry.getValue());
+            if (fragments.contains(entry.getKey()))
+                continue;
+            int terminal = addTerminal(entry.getKey(), entry.getValue(), contexts.get(entry.getKey()));
+            symbols.put(entry.getKey(), terminal);
+            if (entry.getValue().getSymbol().getID() == HimeGrammarLexer.ID.TERMINAL_LITERAL_TEXT)
+                literals.put(entry.getValue().getValue(), terminal);
+        }
+
+        String separatorName = options.get("Separator");
+        Integer separatorSymbol = separatorName == null ? null : symbols.get(separatorName);
+        if (separatorName != null && (separatorSymbol == null || separatorSymbol < 0))
+            throw new IllegalArgumentException("Separator terminal '" + separatorName + "' is not defined in grammar '" + name + "'.");
+        this.separator = separatorName == null ? -1 : separatorSymbol;
+
+        String axiomName = options.get("Axiom");
+        if (axiomName == null)
+            throw new HimeIncompleteGrammarException("Grammar '" + name + "' has no axiom.");
+        ASTNode axiomRule = rules.get(axiomName);
+        if (axiomRule == null || axiomRule.getSymbol().getID() != HimeGrammarParser.ID.VARIABLE_CF_RULE_SIMPLE)
+            throw new HimeIncompleteGrammarException("Axiom '" + axiomName + "' is not a rule defined in grammar '" + name + "'.");
+        addVariable("__Axiom", axiomName, false, null);
+        productions.add(null);
+        for (Map.Entry<String, ASTNode> entry : rules.entrySet()) {
+            if (entry.getValue().getSymbol().getID() == HimeGrammarParser.ID.VARIABLE_CF_RULE_SIMPLE)
+                getRule(entry.getKey());
+        }
+        this.axiom = symbols.get(axiomName);
+        productions.set(0, new Production(0, new int[]{axiom, TERMINAL_END}, new byte[]{TREE_NONE, TREE_NONE}));
+        while (!pending.isEmpty()) {
+            HimeCompiler.checkCancelled();
+            Pending next = pending.removeFirst();
+            define(next.variable, expand(next.definition, next));
+        }
+
+        int[] counts = new int[variables.size()];
+        for (Production production : productions)
+            counts[production.head]++;
+        this.productionsByVariable = new int[variables.size()][];
+        for (int i = 0; i != counts.length; i++)
+            productionsByVariable[i] = new int[counts[i]];
+        Arrays.fill(counts, 0);
+        for (int i = 0; i != productions.size(); i++) {
+            int head = productions.get(i).head;
+            productionsByVariable[head][counts[head]++] = i;
+        }
+        this.nullable = computeNullable();
+    }
+
+    /**
+     * Computes the variables that can produce the empty string
+     *
+     * @return Whether each variable can produce the empty string
+     */
+    private boolean[] computeNullable() {
+        int productionCount = productions.size();
+        int variableCount = variables.size();
+        boolean[] result = new boolean[variableCount];
+        // the number of occurrences of variables not yet known to be nullable in each production, -1 if it contains a terminal
+        int[] remaining = new int[productionCount];
+        int[] occurrenceCounts = new int[variableCount];
+        for (int p = 0; p != productionCount; p++) {
+            for (int symbol : productions.get(p).body) {
+                if (symbol >= 0) {
+                    remaining[p] = -1;
+                    break;
+                }
+                remaining[p]++;
+            }
+            if (remaining[p] > 0) {
+                for (int symbol : productions.get(p).body)
+                    occurrenceCounts[~symbol]++;
+            }
+        }
+        int[][] occurrences = new int[variableCount][];
+        for (int v = 0; v != variableCount; v++)
+            occurrences[v] = new int[occurrenceCounts[v]];
+        Arrays.fill(occurrenceCounts, 0);
+        int[] queue = new int[variableCount];
+        int head = 0;
+        int tail = 0;
+        for (int p = 0; p != productionCount; p++) {
+            if (remaining[p] > 0) {
+                for (int symbol : productions.get(p).body)
+                    occurrences[~symbol][occurrenceCounts[~symbol]++] = p;
+            } else if (remaining[p] == 0 && !result[productions.get(p).head]) {
+                result[productions.get(p).head] = true;
+                queue[tail++] = productions.get(p).head;
+            }
+        }
+        while (head != tail) {
+            int variable = queue[head++];
+            for (int p : occurrences[variable]) {
+                if (--remaining[p] == 0 && !result[productions.get(p).head]) {
+                    result[productions.get(p).head] = true;
+                    queue[tail++] = productions.get(p).head;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Collects the definitions in a grammar node
+     *
+     * @param grammar   The grammar node
+     * @param options   The buffer for the options
+     * @param lexicals  The buffer for the definitions of the terminals and fragments
+     * @param contexts  The buffer for the lexical contexts of the terminals
+     * @param fragments The buffer for the names of the fragments
+     */
+    private void collect(ASTNode grammar, Map<String, String> options, Map<String, ASTNode> lexicals, Map<String, String> contexts, Set<String> fragments) {
+        List<ASTNode> children = grammar.getChildren();
+        for (ASTNode option : children.get(2).getChildren()) {
+            String value = TextUtils.unescape(option.getChildren().get(1).getValue());
+            options.put(option.getChildren().get(0).getValue(), value.substring(1, value.length() - 1));
+        }
+        if (children.size() == 5) {
+            for (ASTNode item : children.get(3).getChildren()) {
+                if (item.getSymbol().getID() == HimeGrammarLexer.ID.TERMINAL_BLOCK_CONTEXT) {
+                    String context = item.getChildren().get(0).getValue();
+                    for (int i = 1; i != item.getChildren().size(); i++)
+                        collectTerminal(item.getChildren().get(i), context, lexicals, contexts, fragments);
+                } else {
+                    collectTerminal(item, null, lexicals, contexts, fragments);
+                }
+            }
+        }
+        for (ASTNode rule : children.get(children.size() - 1).getChildren()) {
+            // a redefinition in a descendant replaces the inherited rule
+            String ruleName = rule.getChildren().get(0).getValue();
+            rules.remove(ruleName);
+            rules.put(ruleName, rule);
+        }
+    }
+
+    /**
+     * Collects the definition of a terminal or fragment
+     *
+     * @param node      The terminal or fragment node
+     * @param context   The lexical context of the terminal, if any
+     * @param lexicals  The buffer for the definitions of the terminals and fragments
+     * @param contexts  The buffer for the lexical contexts of the terminals
+     * @param fragments The buffer for the names of the fragments
+     */
+    private static void collectTerminal(ASTNode node, String context, Map<String, ASTNode> lexicals, Map<String, String> contexts, Set<String> fragments) {
+        // a redefinition is moved last, so that it takes priority as the terminals defined later
+        String terminal = node.getChildren().get(0).getValue();
+        lexicals.remove(terminal);
+        lexicals.put(terminal, node.getChildren().get(1));
+        if (context == null)
+            contexts.remove(terminal);
+        else
+            contexts.put(terminal, context);
+        if (node.getSymbol().getID() == HimeGrammarParser.ID.VARIABLE_TERMINAL_FRAGMENT)
+            fragments.add(terminal);
+        else
+            fragments.remove(terminal);
+    }
+
+    /**
+     * Adds a terminal
+     *
+     * @param terminal   The name of the terminal
+     * @param definition The definition of the terminal
+     * @param context    The lexical context of the terminal, if any
+     * @return The index of the terminal
+     */
+    private int addTerminal(String terminal, ASTNode definition, String context) {
+        terminals.add(terminal);
+        terminalContexts.add(context);
+        definitions.add(definition);
+        return terminals.size() - 1;
+    }
+
+    /**
+     * Adds a variable
+     *
+     * @param variable  The name of the variable
+     * @param origin    The name of the rule the variable comes from
+     * @param inline    Whether the children of the variable are directly attached to its parent in the AST
+     * @param context   The lexical context opened by the variable, if any
+     * @return The index of the variable
+     */
+    private int addVariable(String variable, String origin, boolean inline, String context) {
+        variables.add(variable);
+        origins.add(origin);
+        variableContexts.add(context);
+        if (inline)
+            generated.set(variables.size() - 1);
+        return variables.size() - 1;
+    }
+
+    /**
+     * Adds a generated variable
+     *
+     * @param origin  The current definition
+     * @param inline  Whether the children of the variable are directly attached to its parent in the AST
+     * @param context The lexical context opened by the variable, if any
+     * @return The index of the variable
+     */
+    private int addGenerated(Pending origin, boolean inline, String context) {
+        return addVariable("__V" + variables.size(), origins.get(origin.variable), inline, context);
+    }
+
+    /**
+     * Adds productions to a variable, without duplicates
+     *
+     * @param variable     The index of the variable
+     * @param alternatives The bodies of the productions
+     */
+    private void define(int variable, List<Alternative> alternatives) {
+        Set<String> known = new HashSet<>();
+        for (Alternative alternative : alternatives) {
+            if (known.add(Arrays.toString(alternative.symbols) + Arrays.toString(alternative.actions)))
+                productions.add(new Production(variable, alternative.symbols, alternative.actions));
+        }
+    }
+
+    /**
+     * Gets the symbol for a simple rule, creating its variable on the first call
+     *
+     * @param rule The name of the rule
+     * @return The symbol for the rule
+     */
+    private int getRule(String rule) {
+        Integer symbol = symbols.get(rule);
+        if (symbol != null)
+            return symbol;
+        int variable = addVariable(rule, rule, false, null);
+        symbols.put(rule, ~variable);
+        pending.add(new Pending(variable, rules.get(rule).getChildren().get(1), Collections.<String, Integer>emptyMap(), 0));
+        return ~variable;
+    }
+
+    /**
+     * Gets the symbol for an instance of a template rule, creating its variable on the first call
+     *
+     * @param node    The template reference node
+     * @param current The current definition
+     * @return The symbol for the instance
+     */
+    private int getInstance(ASTNode node, Pending current) {
+        String template = node.getChildren().get(0).getValue();
+        ASTNode rule = rules.get(template);
+        if (rule == null || rule.getSymbol().getID() != HimeGrammarParser.ID.VARIABLE_CF_RULE_TEMPLATE)
+            throw new IllegalArgumentException("Missing definition for template rule '" + template + "' in grammar '" + name + "'.");
+        List<ASTNode> parameters = rule.getChildren().get(1).getChildren();
+        List<ASTNode> arguments = node.getChildren().get(1).getChildren();
+        if (parameters.size() != arguments.size())
+            throw new IllegalArgumentException("Template rule '" + template + "' expects " + parameters.size() + " argument(s) but got " + arguments.size() + ".");
+        int[] values = new int[arguments.size()];
+        StringBuilder key = new StringBuilder(template);
+        key.append('<');
+        for (int i = 0; i != values.length; i++) {
+            values[i] = toSymbol(expand(arguments.get(i), current), current);
+            if (i != 0)
+                key.append(',');
+            key.append(getSymbolName(values[i]));
+        }
+        key.append('>');
+        Integer symbol = instances.get(key.toString());
+        if (symbol != null)
+            return symbol;
+        if (current.depth >= MAX_TEMPLATE_DEPTH)
+            throw new IllegalArgumentException("Template rule '" + template + "' is instantiated recursively without bound.");
+        Map<String, Integer> bindings = new HashMap<>();
+        for (int i = 0; i != values.length; i++)
+            bindings.put(parameters.get(i).getValue(), values[i]);
+        int variable = addVariable(key.toString(), template, false, null);
+        instances.put(key.toString(), ~variable);
+        pending.add(new Pending(variable, rule.getChildren().get(2), bindings, current.depth + 1));
+        return ~variable;
+    }
+
+    /**
+     * Gets the terminal for a literal text in a rule, creating an inline terminal when no terminal has the same definition
+     *
+     * @param node The literal text node
+     * @return The terminal
+     */
+    private int getLiteral(ASTNode node) {
+        Integer terminal = literals.get(node.getValue());
+        if (terminal != null)
+            return terminal;
+        int result = addTerminal(node.getValue(), node, null);
+        inlines.set(result);
+        literals.put(node.getValue(), result);
+        return result;
+    }
+
+    /**
+     * Gets a single symbol for a list of alternatives, generating a variable when necessary
+     *
+     * @param alternatives The alternatives
+     * @param current      The current definition
+     * @return The symbol
+     */
+    private int toSymbol(List<Alternative> alternatives, Pending current) {
+        if (alternatives.size() == 1 && alternatives.get(0).symbols.length == 1 && alternatives.get(0).actions[0] == TREE_NONE)
+            return alternatives.get(0).symbols[0];
+        int variable = addGenerated(current, true, null);
+        define(variable, alternatives);
+        return ~variable;
+    }
+
+    /**
+     * Resolves a name in a rule
+     *
+     * @param symbol  The name of the symbol
+     * @param current The current definition
+     * @return The symbol
+     */
+    private int resolve(String symbol, Pending current) {
+        Integer result = current.parameters.get(symbol);
+        if (result != null)
+            return result;
+        result = symbols.get(symbol);
+        if (result != null)
+            return result;
+        ASTNode rule = rules.get(symbol);
+        if (rule != null && rule.getSymbol().getID() == HimeGrammarParser.ID.VARIABLE_CF_RULE_SIMPLE)
+            return getRule(symbol);
+        String origin = origins.get(current.variable);
+        if (rule != null)
+            throw new IllegalArgumentException("Template rule '" + symbol + "' is used without arguments in rule '" + origin + "'.");
+        if (references.containsKey(symbol))
+            throw new IllegalArgumentException("Terminal fragment '" + symbol + "' cannot be used in rule '" + origin + "'.");
+        throw new IllegalArgumentException("Missing definition for symbol '" + symbol + "' in rule '" + origin + "'.");
+    }
+
+    /**
+     * Expands a piece of the definition of a rule into alternatives
+     *
+     * @param node    The AST node
+     * @param current The current definition
+     * @return The alternatives
+     */
+    private List<Alternative> expand(ASTNode node, Pending current) {
+        List<ASTNode> children = node.getChildren();
+        switch (node.getSymbol().getID()) {
+            case HimeGrammarParser.ID.VIRTUAL_EMPTYPART:
+            case HimeGrammarParser.ID.VARIABLE_RULE_SYM_ACTION:
+            case HimeGrammarParser.ID.VARIABLE_RULE_SYM_VIRTUAL:
+                return Collections.singletonList(Alternative.EMPTY);
+            case HimeGrammarLexer.ID.TERMINAL_LITERAL_TEXT:
+                return Collections.singletonList(new Alternative(getLiteral(node)));
+            case HimeGrammarParser.ID.VARIABLE_RULE_SYM_REF_SIMPLE:
+                return Collections.singletonList(new Alternative(resolve(children.get(0).getValue(), current)));
+            case HimeGrammarLexer.ID.TERMINAL_NAME:
+                return Collections.singletonList(new Alternative(resolve(node.getValue(), current)));
+            case HimeGrammarParser.ID.VARIABLE_RULE_SYM_REF_TEMPLATE:
+                return Collections.singletonList(new Alternative(getInstance(node, current)));
+            case HimeGrammarLexer.ID.TERMINAL_OPERATOR_UNION: {
+                List<Alternative> result = new ArrayList<>();
+                for (ASTNode child : children)
+                    result.addAll(expand(child, current));
+                return result;
+            }
+            case HimeGrammarLexer.ID.TERMINAL_OPERATOR_OPTIONAL: {
+                List<Alternative> result = new ArrayList<>(expand(children.get(0), current));
+                result.add(Alternative.EMPTY);
+                return result;
+            }
+            case HimeGrammarLexer.ID.TERMINAL_OPERATOR_ZEROMORE:
+                return Arrays.asList(new Alternative(repeat(children.get(0), current)), Alternative.EMPTY);
+            case HimeGrammarLexer.ID.TERMINAL_OPERATOR_ONEMORE:
+                return Collections.singletonList(new Alternative(repeat(children.get(0), current)));
+            case HimeGrammarLexer.ID.TERMINAL_TREE_ACTION_PROMOTE:
+                return withAction(expand(children.get(0), current), TREE_PROMOTE);
+            case HimeGrammarLexer.ID.TERMINAL_TREE_ACTION_DROP:
+                return withAction(expand(children.get(0), current), TREE_DROP);
+            case HimeGrammarParser.ID.VARIABLE_RULE_DEF_SUB: {
+                int variable = addGenerated(current, false, null);
+                define(variable, expand(children.get(0), current));
+                return Collections.singletonList(new Alternative(~variable));
+            }
+            case HimeGrammarParser.ID.VARIABLE_RULE_DEF_CONTEXT: {
+                int variable = addGenerated(current, true, children.get(0).getValue());
+                define(variable, expand(children.get(1), current));
+                return Collections.singletonList(new Alternative(~variable));
+            }
+            default: {
+                // concatenation of the children
+                List<Alternative> result = Collections.singletonList(Alternative.EMPTY);
+                for (ASTNode child : children)
+                    result = concat(result, expand(child, current), current);
+                return result;
+            }
+        }
+    }
+
+    /**
+     * Generates the variable for the repetition of a piece of a rule
+     *
+     * @param node    The repeated AST node
+     * @param current The current definition
+     * @return The symbol for the repetition
+     */
+    private int repeat(ASTNode node, Pending current) {
+        int variable = addGenerated(current, true, null);
+        List<Alternative> items = expand(node, current);
+        List<Alternative> alternatives = new ArrayList<>(items);
+        Alternative self = new Alternative(~variable);
+        for (Alternative item : items)
+            alternatives.add(self.concat(item));
+        define(variable, alternatives);
+        return ~variable;
+    }
+
+    /**
+     * Gets the concatenation of two lists of alternatives
+     * When the product would be too large, the right side is moved to a generated variable.
+     *
+     * @param left    The left alternatives
+     * @param right   The right alternatives
+     * @param current The current definition
+     * @return The concatenated alternatives
+     */
+    private List<Alternative> concat(List<Alternative> left, List<Alternative> right, Pending current) {
+        if (left.size() * right.size() > MAX_ALTERNATIVES)
+            right = Collections.singletonList(new Alternative(toSymbol(right, current)));
+        List<Alternative> result = new ArrayList<>(left.size() * right.size());
+        for (Alternative first : left) {
+            for (Alternative second : right)
+                result.add(first.concat(second));
+        }
+        return result;
+    }
+
+    /**
+     * Applies a tree action to all the symbols of a list of alternatives
+     *
+     * @param alternatives The alternatives
+     * @param action       The tree action
+     * @return The alternatives with the action
+     */
+    private static List<Alternative> withAction(List<Alternative> alternatives, byte action) {
+        List<Alternative> result = new ArrayList<>(alternatives.size());
+        for (Alternative alternative : alternatives) {
+            byte[] actions = new byte[alternative.actions.length];
+            Arrays.fill(actions, action);
+            result.add(new Alternative(alternative.symbols, actions));
+        }
+        return result;
+    }
+
+    /**
+     * Gets the number of terminals, including the end of the input
+     *
+     * @return The number of terminals
+     */
+    public int getTerminalCount() {
+        return terminals.size();
+    }
+
+    /**
+     * Gets the name of a terminal
+     *
+     * @param terminal The index of the terminal
+     * @return The name of the terminal, or its literal text for an inline terminal
+     */
+    public String getTerminalName(int terminal) {
+        return terminals.get(terminal);
+    }
+
+    /**
+     * Gets the lexical context of a terminal
+     *
+     * @param terminal The index of the terminal
+     * @return The name of the context, or null for the default context
+     */
+    public String getTerminalContext(int terminal) {
+        return terminalContexts.get(terminal);
+    }
+
+    /**
+     * Gets whether a terminal is defined inline in a rule
+     * Inline terminals take priority over the terminals in the terminals section.
+     *
+     * @param terminal The index of the terminal
+     * @return Whether the terminal is defined inline
+     */
+    public boolean isInline(int terminal) {
+        return inlines.get(terminal);
+    }
+
+    /**
+     * Gets the definition of a terminal
+     *
+     * @param terminal The index of the terminal
+     * @return The AST node of the definition, or null for the end of the input
+     */
+    public ASTNode getDefinition(int terminal) {
+        return definitions.get(terminal);
+    }
+
+    /**
+     * Gets the definition of a terminal or fragment referenced by name in a terminal definition
+     *
+     * @param terminal The name of the terminal or fragment
+     * @return The AST node of the definition, or null if it is not defined
+     */
+    public ASTNode getReference(String terminal) {
+        return references.get(terminal);
+    }
+
+    /**
+     * Releases the ASTs of the terminal definitions, once the lexer has been built
+     * This avoids retaining the ASTs of the grammar with the compiled automata.
+     */
+    public void releaseDefinitions() {
+        definitions = null;
+        references = null;
+    }
+
+    /**
+     * Gets the number of variables, including the augmented axiom and the generated variables
+     *
+     * @return The number of variables
+     */
+    public int getVariableCount() {
+        return variables.size();
+    }
+
+    /**
+     * Gets the name of a variable
+     *
+     * @param variable The index of the variable
+     * @return The name of the variable
+     */
+    public String getVariableName(int variable) {
+        return variables.get(variable);
+    }
+
+    /**
+     * Gets the name of the rule a variable comes from
+     *
+     * @param variable The index of the variable
+     * @return The name of the rule
+     */
+    public String getVariableOrigin(int variable) {
+        return origins.get(variable);
+    }
+
+    /**
+     * Gets the lexical context opened by a variable
+     *
+     * @param variable The index of the variable
+     * @return The name of the context, or null if the variable does not open a context
+     */
+    public String getVariableContext(int variable) {
+        return variableContexts.get(variable);
+    }
+
+    /**
+     * Gets whether the children of a variable are directly attached to its parent in the AST
+     * This is the case of the variables generated for repetitions and lexical contexts.
+     *
+     * @param variable The index of the variable
+     * @return Whether the variable is replaced by its children in the AST
+     */
+    public boolean isGenerated(int variable) {
+        return generated.get(variable);
+    }
+
+    /**
+     * Gets the name of a symbol
+     *
+     * @param symbol The symbol
+     * @return The name of the symbol
+     */
+    public String getSymbolName(int symbol) {
+        return symbol >= 0 ? terminals.get(symbol) : variables.get(~symbol);
+    }
+
+    /**
+     * Gets the number of productions
+     *
+     * @return The number of productions
+     */
+    public int getProductionCount() {
+        return productions.size();
+    }
+
+    /**
+     * Gets a production
+     *
+     * @param production The index of the production
+     * @return The production
+     */
+    public Production getProduction(int production) {
+        return productions.get(production);
+    }
+
+    /**
+     * Gets the productions of a variable
+     *
+     * @param variable The index of the variable
+     * @return The indices of its productions
+     */
+    public int[] getProductions(int variable) {
+        return productionsByVariable[variable];
+    }
+
+    /**
+     * Gets the variables that can produce the empty string
+     *
+     * @return Whether each variable can produce the empty string
+     */
+    public boolean[] getNullable() {
+        return nullable.clone();
+    }
+
+    /**
+     * Gets the separator terminal
+     *
+     * @return The separator terminal, or -1 if there is none
+     */
+    public int getSeparator() {
+        return separator;
+    }
+
+    /**
+     * Gets the axiom of the grammar, as defined by the `Axiom` option
+     *
+     * @return The symbol of the axiom
+     */
+    public int getAxiom() {
+        return axiom;
+    }
+}
@@ -0,0 +1,167 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import fr.cenotelie.commons.lsp.engine.Symbol;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Represents the table of the names defined within a grammar
+ * <p>
+ * Lexical contexts live in their own namespace, while terminals and variables share the namespace of grammar symbols.
+ *
+ * @author Laurent Wouters
+ */
+public class HimeGrammarScope {
+    /**
+     * The known lexical contexts, with the range of their first definition
+     */
+    private final Map<String, Long> contexts;
+    /**
+     * The known terminals, with the range of their definition
+     */
+    private final Map<String, Long> terminals;
+    /**
+     * The known variables, with the range of their definition
+     */
+    private final Map<String, Long> variables;
+    /**
+     * The symbols for the known terminals and variables
+     */
+    private final Map<String, Symbol> symbols;
+
+    /**
+     * Initializes this scope
+     */
+    public HimeGrammarScope() {
+        this.contexts = new HashMap<>();
+        this.terminals = new HashMap<>();
+        this.variables = new HashMap<>();
+        this.symbols = new HashMap<>();
+    }
+
+    /**
+     * Defines a lexical context
+     * Lexical contexts may be opened multiple times, only the first definition is kept.
+     *
+     * @param name  The name of the context
+     * @param range The encoded range of the definition
+     */
+    public void defineContext(String name, long range) {
+        if (!contexts.containsKey(name))
+            contexts.put(name, range);
+    }
+
+    /**
+     * Defines a terminal
+     *
+     * @param name   The name of the terminal
+     * @param symbol The symbol for the terminal
+     * @param range  The encoded range of the definition
+     * @return The encoded range of the previous definition of a symbol with the same name, or -1 if there is none
+     */
+    public long defineTerminal(String name, Symbol symbol, long range) {
+        long previous = getSymbolDefinition(name);
+        if (previous < 0) {
+            terminals.put(name, range);
+            symbols.put(name, symbol);
+        }
+        return previous;
+    }
+
+    /**
+     * Defines a variable
+     *
+     * @param name   The name of the variable
+     * @param symbol The symbol for the variable
+     * @param range  The encoded range of the definition
+     * @return The encoded range of the previous definition of a symbol with the same name, or -1 if there is none
+     */
+    public long defineVariable(String name, Symbol symbol, long range) {
+        long previous = getSymbolDefinition(name);
+        if (previous < 0) {
+            variables.put(name, range);
+            symbols.put(name, symbol);
+        }
+        return previous;
+    }
+
+    /**
+     * Gets whether a lexical context is defined
+     *
+     * @param name The name of the context
+     * @return Whether the context is defined
+     */
+    public boolean isContext(String name) {
+        return contexts.containsKey(name);
+    }
+
+    /**
+     * Gets whether a terminal is defined
+     *
+     * @param name The name of the terminal
+     * @return Whether the terminal is defined
+     */
+    public boolean isTerminal(String name) {
+        return terminals.containsKey(name);
+    }
+
+    /**
+     * Gets whether a variable is defined
+     *
+     * @param name The name of the variable
+     * @return Whether the variable is defined
+     */
+    public boolean isVariable(String name) {
+        return variables.containsKey(name);
+    }
+
+    /**
+     * Gets the range of the definition of a terminal or variable
+     *
+     * @param name The name of the symbol
+     * @return The encoded range of the definition, or -1 if the symbol is not defined
+     */
+    public long getSymbolDefinition(String name) {
+        Long range = terminals.get(name);
+        if (range == null)
+            range = variables.get(name);
+        return range == null ? -1 : range;
+    }
+
+    /**
+     * Gets the number of terminals and variables in this scope
+     *
+     * @return The number of symbols
+     */
+    public int getSymbolCount() {
+        return terminals.size() + variables.size();
+    }
+
+    /**
+     * Gets the terminals and variables defined in this scope, that are visible from inheriting grammars
+     *
+     * @return The exported symbols, by name
+     */
+    public Map<String, Symbol> getExports() {
+        return Collections.unmodifiableMap(symbols);
+    }
+}
@@ -0,0 +1,483 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+
+package fr.cenotelie.hime.langserver;
+
+import java.util.*;
+
+/**
+ * The nullable variables, and the FIRST and FOLLOW sets of the variables of a grammar, including the inherited ones
+ * <p>
+ * The terminals and variables are the dense indices of the grammar model, and the sets are bitsets packed in words.
+ * The nullable variables are those computed by the grammar model.
+ * The FIRST and FOLLOW sets are unions propagated along a dependency graph between the variables:
+ * each strongly connected component of this graph is computed once, after the components it depends on,
+ * and all its variables share the same set.
+ * When the sets of a previous version of the grammar are given, a component whose variables have the same local terminals,
+ * the same dependencies and unchanged inputs reuses the previous set, so that an edit only recomputes the affected components.
+ *
+ * @author Laurent Wouters
+ */
+public class HimeGrammarSets {
+    /**
+     * The result of the propagation of sets along a dependency graph between the variables
+     */
+    private static class Solution {
+        /**
+         * The terminals directly contributed to the set of each variable
+         */
+        public final long[][] locals;
+        /**
+         * The variables whose sets are included in the set of each variable, sorted
+         */
+        public final int[][] dependencies;
+        /**
+         * The set of each variable, shared by the variables of a same component
+         */
+        public final long[][] sets;
+        /**
+         * The component of each variable
+         */
+        public final int[] components;
+        /**
+         * The size of each component
+         */
+        public int[] sizes;
+        /**
+         * The number of components
+         */
+        public int count;
+        /**
+         * The number of components that were recomputed
+         */
+        public int recomputed;
+
+        /**
+         * Initializes this solution
+         *
+         * @param locals       The terminals directly contributed to the set of each variable
+         * @param dependencies The variables whose sets are included in the set of each variable
+         */
+        public Solution(long[][] locals, int[][] dependencies) {
+            this.locals = locals;
+            this.dependencies = dependencies;
+            this.sets = new long[locals.length][];
+            this.components = new int[locals.length];
+            this.sizes = new int[16];
+        }
+    }
+
+    /**
+     * The key of the texts of the grammar and its ancestors
+     */
+    public final String key;
+    /**
+     * The names of the terminals
+     */
+    private final String[] terminals;
+    /**
+     * The names of the variables
+     */
+    private final String[] variables;
+    /**
+     * The index of the variables, by name
+     */
+    private final Map<String, Integer> indices;
+    /**
+     * Whether each variable can produce the empty string
+     */
+    private final boolean[] nullable;
+    /**
+     * The FIRST sets
+     */
+    private final Solution first;
+    /**
+     * The FOLLOW sets
+     */
+    private final Solution follow;
+
+    /**
+     * Computes the sets of a grammar
+     *
+     * @param model    The grammar
+     * @param key      The key of the texts of the grammar and its ancestors
+     * @param previous The sets of a previous version of the same grammar, if any
+     */
+    public HimeGrammarSets(HimeGrammarModel model, String key, HimeGrammarSets previous) {
+        this.key = key;
+        this.terminals = new String[model.getTerminalCount()];
+        for (int i = 0; i != terminals.length; i++)
+            terminals[i] = model.getTerminalName(i);
+        this.variables = new String[model.getVariableCount()];
+        this.indices = new HashMap<>();
+        for (int i = 0; i != variables.length; i++) {
+            variables[i] = model.getVariableName(i);
+            indices.put(variables[i], i);
+        }
+        this.nullable = model.getNullable();
+
+        // map the variables to the previous version, the sets can only be reused when the terminals are the same
+        int[] mapping = null;
+        if (previous != null && Arrays.equals(terminals, previous.terminals)) {
+            mapping = new int[variables.length];
+            for (int i = 0; i != variables.length; i++) {
+                Integer index = previous.indices.get(variables[i]);
+                mapping[i] = index == null ? -1 : index;
+            }
+        }
+        this.first = solve(getFirstLocals(model), mapping, mapping == null ? null : previous.first);
+        this.follow = solve(getFollowLocals(model), mapping, mapping == null ? null : previous.follow);
+    }
+
+    /**
+     * Gets whether a variable can produce the empty string
+     *
+     * @param variable The name of the variable
+     * @return Whether the variable is nullable, or null if the variable is unknown
+     */
+    public Boolean isNullable(String variable) {
+        Integer index = indices.get(variable);
+        return index == null ? null : nullable[index];
+    }
+
+    /**
+     * Gets the FIRST set of a variable
+     *
+     * @param variable The name of the variable
+     * @return The names of the terminals in the set, or null if the variable is unknown
+     */
+    public List<String> getFirst(String variable) {
+        Integer index = indices.get(variable);
+        return index == null ? null : getNames(first.sets[index]);
+    }
+
+    /**
+     * Gets the FOLLOW set of a variable
+     *
+     * @param variable The name of the variable
+     * @return The names of the terminals in the set, or null if the variable is unknown
+     */
+    public List<String> getFollow(String variable) {
+        Integer index = indices.get(variable);
+        return index == null ? null : getNames(follow.sets[index]);
+    }
+
+    /**
+     * Gets the number of strongly connected components of the dependency graphs
+     *
+     * @return The number of components for the FIRST and FOLLOW sets
+     */
+    public int getComponentCount() {
+        return first.count + follow.count;
+    }
+
+    /**
+     * Gets the number of strongly connected components whose sets were recomputed, instead of being reused from the previous version
+     *
+     * @return The number of recomputed components for the FIRST and FOLLOW sets
+     */
+    public int getRecomputedCount() {
+        return first.recomputed + follow.recomputed;
+    }
+
+    /**
+     * Gets the names of the terminals in a set
+     *
+     * @param set The set
+     * @return The names
+     */
+    private List<String> getNames(long[] set) {
+        List<String> result = new ArrayList<>();
+        for (int w = 0; w != set.length; w++) {
+            long word = set[w];
+            while (word != 0) {
+                result.add(terminals[(w << 6) + Long.numberOfTrailingZeros(word)]);
+                word &= word - 1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Builds the local terminals and the dependencies for the FIRST sets
+     * The FIRST set of a variable contains the first terminal of each of its productions,
+     * and the FIRST sets of the variables in their nullable prefixes.
+     *
+     * @param model The grammar
+     * @return The unsolved sets
+     */
+    private Solution getFirstLocals(HimeGrammarModel model) {
+        int words = (terminals.length + 63) >>> 6;
+        long[][] locals = new long[variables.length][words];
+        int[][] dependencies = new int[variables.length][];
+        int[] counts = new int[variables.length];
+        for (int v = 0; v != variables.length; v++)
+            dependencies[v] = new int[2];
+        for (int p = 0; p != model.getProductionCount(); p++) {
+            HimeGrammarModel.Production production = model.getProduction(p);
+            for (int symbol : production.body) {
+                if (symbol >= 0) {
+                    locals[production.head][symbol >>> 6] |= 1L << symbol;
+                    break;
+                }
+                add(dependencies, counts, production.head, ~symbol);
+                if (!nullable[~symbol])
+                    break;
+            }
+        }
+        return new Solution(locals, compact(dependencies, counts));
+    }
+
+    /**
+     * Builds the local terminals and the dependencies for the FOLLOW sets
+     * The FOLLOW set of a variable contains the FIRST sets of what follows it in the productions,
+     * and the FOLLOW sets of the heads of the productions in which what follows it is nullable.
+     * The end of the input follows the axiom through the augmented production.
+     *
+     * @param model The grammar
+     * @return The unsolved sets
+     */
+    private Solution getFollowLocals(HimeGrammarModel model) {
+        int words = (terminals.length + 63) >>> 6;
+        long[][] locals = new long[variables.length][words];
+        int[][] dependencies = new int[variables.length][];
+        int[] counts = new int[variables.length];
+        for (int v = 0; v != variables.length; v++)
+            dependencies[v] = new int[2];
+        long[] trailer = new long[words];
+        for (int p = 0; p != model.getProductionCount(); p++) {
+            HimeGrammarModel.Production production = model.getProduction(p);
+            // the FIRST set of the rest of the production, and whether the rest is nullable
+            Arrays.fill(trailer, 0);
+            boolean tail = true;
+            for (int i = production.body.length - 1; i >= 0; i--) {
+                int symbol = production.body[i];
+                if (symbol >= 0) {
+                    Arrays.fill(trailer, 0);
+                    trailer[symbol >>> 6] |= 1L << symbol;
+                    tail = false;
+                    continue;
+                }
+                int variable = ~symbol;
+                or(locals[variable], trailer);
+                if (tail)
+                    add(dependencies, counts, variable, production.head);
+                if (!nullable[variable]) {
+                    Arrays.fill(trailer, 0);
+                    tail = false;
+                }
+                or(trailer, first.sets[variable]);
+            }
+        }
+        return new Solution(locals, compact(dependencies, counts));
+    }
+
+    /**
+     * Solves the sets along the dependency graph, one strongly connected component at a time
+     * The components are found with an iterative version of Tarjan's algorithm,
+     * which completes a component only after all the components it depends on.
+     *
+     * @param solution The unsolved sets
+     * @param mapping  The index of each variable in the previous version, or null if the previous sets cannot be reused
+     * @param previous The solution for the previous version, or null
+     * @return The solution
+     */
+    private static Solution solve(Solution solution, int[] mapping, Solution previous) {
+        int count = solution.locals.length;
+        int[] order = new int[count];
+        int[] low = new int[count];
+        Arrays.fill(order, -1);
+        boolean[] changed = new boolean[count];
+        int[] stack = new int[count];
+        int stackSize = 0;
+        int[] calls = new int[count];
+        int[] positions = new int[count];
+        int next = 0;
+        for (int root = 0; root != count; root++) {
+            if (order[root] >= 0)
+                continue;
+            int depth = 0;
+            calls[depth++] = root;
+            order[root] = low[root] = next++;
+            stack[stackSize++] = root;
+            positions[root] = 0;
+            while (depth > 0) {
+                int node = calls[depth - 1];
+                int[] successors = solution.dependencies[node];
+                if (positions[node] < successors.length) {
+                    int successor = successors[positions[node]++];
+                    if (order[successor] < 0) {
+                        order[successor] = low[successor] = next++;
+                        stack[stackSize++] = successor;
+                        positions[successor] = 0;
+                        calls[depth++] = successor;
+                    } else if (order[successor] != Integer.MAX_VALUE) {
+                        // still on the stack
+                        low[node] = Math.min(low[node], order[successor]);
+                    }
+                    continue;
+                }
+                depth--;
+                if (depth > 0)
+                    low[calls[depth - 1]] = Math.min(low[calls[depth - 1]], low[node]);
+                if (low[node] == order[node]) {
+                    int start = stackSize;
+                    do {
+                        start--;
+                    } while (stack[start] != node);
+                    evaluate(solution, stack, start, stackSize, mapping, previous, changed);
+                    for (int i = start; i != stackSize; i++)
+                        // mark as completed
+                        order[stack[i]] = Integer.MAX_VALUE;
+                    stackSize = start;
+                }
+            }
+        }
+        return solution;
+    }
+
+    /**
+     * Computes the set of a strongly connected component, or reuses it from the previous version when nothing it depends on changed
+     *
+     * @param solution The solution being built
+     * @param members  The buffer containing the variables of the component
+     * @param start    The index of the first variable of the component in the buffer
+     * @param end      The index after the last variable of the component in the buffer
+     * @param mapping  The index of each variable in the previous version, or null if the previous sets cannot be reused
+     * @param previous The solution for the previous version, or null
+     * @param changed  Whether the set of each variable changed since the previous version
+     */
+    private static void evaluate(Solution solution, int[] members, int start, int end, int[] mapping, Solution previous, boolean[] changed) {
+        int component = solution.count++;
+        if (component == solution.sizes.length)
+            solution.sizes = Arrays.copyOf(solution.sizes, component * 2);
+        solution.sizes[component] = end - start;
+        for (int i = start; i != end; i++)
+            solution.components[members[i]] = component;
+
+        long[] set = previous == null ? null : getReusable(solution, members, start, end, mapping, previous, changed);
+        boolean recomputed = set == null;
+        if (recomputed) {
+            solution.recomputed++;
+            set = new long[solution.locals[members[start]].length];
+            for (int i = start; i != end; i++) {
+                int variable = members[i];
+                or(set, solution.locals[variable]);
+                for (int dependency : solution.dependencies[variable]) {
+                    if (solution.components[dependency] != component)
+                        or(set, solution.sets[dependency]);
+                }
+            }
+        }
+        for (int i = start; i != end; i++) {
+            int variable = members[i];
+            solution.sets[variable] = set;
+            changed[variable] = recomputed && (previous == null || mapping[variable] < 0 || !Arrays.equals(set, previous.sets[mapping[variable]]));
+        }
+    }
+
+    /**
+     * Gets the set of the previous version for a strongly connected component, if it can be reused
+     * This is the case when the component is the same, its variables have the same local terminals and dependencies,
+     * and the sets of the other components it depends on did not change.
+     *
+     * @param solution The solution being built
+     * @param members  The buffer containing the variables of the component
+     * @param start    The index of the first variable of the component in the buffer
+     * @param end      The index after the last variable of the component in the buffer
+     * @param mapping  The index of each variable in the previous version
+     * @param previous The solution for the previous version
+     * @param changed  Whether the set of each variable changed since the previous version
+     * @return The previous set, or null if it cannot be reused
+     */
+    private static long[] getReusable(Solution solution, int[] members, int start, int end, int[] mapping, Solution previous, boolean[] changed) {
+        int first = mapping[members[start]];
+        if (first < 0)
+            return null;
+        int component = previous.components[first];
+        if (previous.sizes[component] != end - start)
+            return null;
+        int own = solution.components[members[start]];
+        for (int i = start; i != end; i++) {
+            int variable = members[i];
+            int old = mapping[variable];
+            if (old < 0 || previous.components[old] != component || !Arrays.equals(solution.locals[variable], previous.locals[old]))
+                return null;
+            int[] dependencies = solution.dependencies[variable];
+            if (dependencies.length != previous.dependencies[old].length)
+                return null;
+            int[] mapped = new int[dependencies.length];
+            for (int j = 0; j != dependencies.length; j++) {
+                int dependency = dependencies[j];
+                if (mapping[dependency] < 0 || (solution.components[dependency] != own && changed[dependency]))
+                    return null;
+                mapped[j] = mapping[dependency];
+            }
+            Arrays.sort(mapped);
+            if (!Arrays.equals(mapped, previous.dependencies[old]))
+                return null;
+        }
+        return previous.sets[first];
+    }
+
+    /**
+     * Adds a dependency to a variable
+     *
+     * @param dependencies The buffers of dependencies of the variables
+     * @param counts       The number of dependencies of the variables
+     * @param variable     The variable
+     * @param dependency   The variable it depends on
+     */
+    private static void add(int[][] dependencies, int[] counts, int variable, int dependency) {
+        if (counts[variable] == dependencies[variable].length)
+            dependencies[variable] = Arrays.copyOf(dependencies[variable], counts[variable] * 2);
+        dependencies[variable][counts[variable]++] = dependency;
+    }
+
+    /**
+     * Sorts the dependencies of the variables and removes the duplicates
+     *
+     * @param dependencies The buffers of dependencies of the variables
+     * @param counts       The number of dependencies of the variables
+     * @return The compacted dependencies
+     */
+    private static int[][] compact(int[][] dependencies, int[] counts) {
+        for (int v = 0; v != dependencies.length; v++) {
+            int[] buffer = dependencies[v];
+            Arrays.sort(buffer, 0, counts[v]);
+            int size = 0;
+            for (int i = 0; i != counts[v]; i++) {
+                if (size == 0 || buffer[size - 1] != buffer[i])
+                    buffer[size++] = buffer[i];
+            }
+            dependencies[v] = Arrays.copyOf(buffer, size);
+        }
+        return dependencies;
+    }
+
+    /**
+     * Adds the terminals of a set to another
+     *
+     * @param target The set to add to
+     * @param source The set to add
+     */
+    private static void or(long[] target, long[] source) {
+        for (int i = 0; i != target.length; i++)
+            target[i] |= source[i];
+    }
+}
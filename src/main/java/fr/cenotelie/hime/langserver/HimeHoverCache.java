@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import java.util.*;
+
+/**
+ * A cache of the rendered hover contents for symbols
+ * <p>
+ * An entry is keyed by the identifier of a symbol and is valid as long as the grammar block that defines the symbol is not parsed again.
+ * When a document is analyzed again, only the entries for the symbols of its re-parsed blocks are dropped,
+ * so that the entries for the unchanged or only moved blocks are kept.
+ *
+ * @author Laurent Wouters
+ */
+public class HimeHoverCache {
+    /**
+     * An entry in this cache
+     */
+    private static class Entry {
+        /**
+         * The URI of the document that defines the symbol
+         */
+        private final String document;
+        /**
+         * The identity of the parsing of the block that was used for the rendering
+         */
+        private final Object origin;
+        /**
+         * The rendered content
+         */
+        private final String content;
+
+        /**
+         * Initializes this entry
+         *
+         * @param document The URI of the document that defines the symbol
+         * @param origin   The identity of the parsing of the block that was used for the rendering
+         * @param content  The rendered content
+         */
+        public Entry(String document, Object origin, String content) {
+            this.document = document;
+            this.origin = origin;
+            this.content = content;
+        }
+    }
+
+    /**
+     * The entries, by symbol identifier
+     */
+    private final Map<String, Entry> entries;
+    /**
+     * The identifiers of the symbols with an entry, by URI of the defining document
+     */
+    private final Map<String, Collection<String>> documents;
+
+    /**
+     * Initializes this cache
+     */
+    public HimeHoverCache() {
+        this.entries = new HashMap<>();
+        this.documents = new HashMap<>();
+    }
+
+    /**
+     * Gets the rendered content for a symbol
+     *
+     * @param identifier The identifier of the symbol
+     * @param document   The URI of the document that defines the symbol
+     * @param origin     The identity of the current parsing of the block that defines the symbol (see {@link HimeDocumentBlock#getOrigin()})
+     * @return The rendered content, or null if there is none for this parsing
+     */
+    public synchronized String get(String identifier, String document, Object origin) {
+        Entry entry = entries.get(identifier);
+        if (entry == null || entry.origin != origin || !entry.document.equals(document))
+            return null;
+        return entry.content;
+    }
+
+    /**
+     * Puts the rendered content for a symbol in this cache
+     *
+     * @param identifier The identifier of the symbol
+     * @param document   The URI of the document that defines the symbol
+     * @param origin     The identity of the parsing of the block that was used for the rendering
+     * @param content    The rendered content
+     */
+    public synchronized void put(String identifier, String document, Object origin, String content) {
+        Entry old = entries.put(identifier, new Entry(document, origin, content));
+        if (old != null && !old.document.equals(document))
+            documents.get(old.document).remove(identifier);
+        Collection<String> identifiers = documents.get(document);
+        if (identifiers == null) {
+            identifiers = new HashSet<>();
+            documents.put(document, identifiers);
+        }
+        identifiers.add(identifier);
+    }
+
+    /**
+     * Drops the entries for the symbols defined in the blocks of a document that were parsed again
+     *
+     * @param document The URI of the document
+     * @param state    The new state of the document, or null if it has none
+     */
+    public synchronized void invalidate(String document, HimeDocumentState state) {
+        Collection<String> identifiers = documents.get(document);
+        if (identifiers == null)
+            return;
+        Set<Object> origins = new HashSet<>();
+        if (state != null) {
+            for (HimeDocumentBlock block : state.blocks)
+                origins.add(block.getOrigin());
+        }
+        Iterator<String> iterator = identifiers.iterator();
+        while (iterator.hasNext()) {
+            String identifier = iterator.next();
+            if (!origins.contains(entries.get(identifier).origin)) {
+                entries.remove(identifier);
+                iterator.remove();
+            }
+        }
+        if (identifiers.isEmpty())
+            documents.remove(document);
+    }
+
+    /**
+     * Gets the number of cached entries
+     *
+     * @return The number of cached entries
+     */
+    public synchronized int getCount() {
+        return entries.size();
+    }
+}
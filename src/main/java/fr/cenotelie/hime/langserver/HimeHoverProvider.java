@@ -23,6 +23,7 @@ import fr.cenotelie.commons.lsp.engine.Symbol;
 import fr.cenotelie.commons.lsp.engine.SymbolRegistry;
 import fr.cenotelie.commons.lsp.structures.*;
 
+import java.util.List;
 import java.util.Objects;
 
 /**
@@ -31,18 +32,69 @@ import java.util.Objects;
  * @author Laurent Wouters
  */
 public class HimeHoverProvider implements DocumentHoverProvider {
+    /**
+     * The maximum number of lines in the preview of a definition
+     */
+    private static final int PREVIEW_MAX_LINES = 12;
+    /**
+     * The maximum number of characters in the preview of a definition
+     */
+    private static final int PREVIEW_MAX_LENGTH = 1024;
+    /**
+     * The maximum number of terminals listed for a FIRST or FOLLOW set
+     */
+    private static final int SET_MAX_TERMINALS = 32;
+
     /**
      * The symbol registry
      */
     private final SymbolRegistry symbols;
+    /**
+     * The analyzer for Hime grammars
+     */
+    private final HimeDocumentAnalyzer analyzer;
+    /**
+     * The inheritance graph of the grammars
+     */
+    private final HimeImportGraph grammars;
+    /**
+     * The compiler that provides the FIRST and FOLLOW sets computed in the background
+     */
+    private final HimeCompiler compiler;
+    /**
+     * The cache of the rendered contents
+     */
+    private final HimeHoverCache cache;
+    /**
+     * The metrics for this server
+     */
+    private final HimeMetrics metrics;
 
     /**
      * Initializes this provider
      *
-     * @param symbols The symbol registry
+     * @param symbols  The symbol registry
+     * @param analyzer The analyzer for Hime grammars
+     * @param grammars The inheritance graph of the grammars
+     * @param compiler The compiler that provides the FIRST and FOLLOW sets
+     * @param metrics  The metrics for this server
      */
-    public HimeHoverProvider(SymbolRegistry symbols) {
+    public HimeHoverProvider(SymbolRegistry symbols, HimeDocumentAnalyzer analyzer, HimeImportGraph grammars, HimeCompiler compiler, HimeMetrics metrics) {
         this.symbols = symbols;
+        this.analyzer = analyzer;
+        this.grammars = grammars;
+        this.compiler = compiler;
+        this.cache = new HimeHoverCache();
+        this.metrics = metrics;
+    }
+
+    /**
+     * Gets the cache of the rendered contents
+     *
+     * @return The cache of the rendered contents
+     */
+    public HimeHoverCache getCache() {
+        return cache;
     }
 
     @Override
@@ -54,25 +106,241 @@ public class HimeHoverProvider implements DocumentHoverProvider {
 
     @Override
     public Hover getHoverData(Document document, Position position) {
-        Symbol symbol = symbols.getSymbolAt(document.getUri(), position);
-        if (symbol == null)
+        long start = metrics.start();
+        HimeHoverEvent event = new HimeHoverEvent();
+        event.begin();
+        Symbol symbol = null;
+        Range range = null;
+        HimePositionIndex positions = analyzer.getPositions(document.getUri());
+        if (positions != null) {
+            int occurrence = positions.getOccurrenceAt(position);
+            if (occurrence >= 0) {
+                symbol = positions.getSymbol(occurrence, symbols);
+                range = HimeLineIndex.toRange(positions.getRange(occurrence));
+            }
+        } else {
+            // the document has no state, fall back to the registry
+            symbol = symbols.getSymbolAt(document.getUri(), position);
+            if (symbol != null)
+                range = symbol.getRangeAt(document.getUri(), position);
+        }
+        Hover result = symbol == null ? null : getHoverData(document, position.getLine(), symbol, range);
+        event.end();
+        if (event.shouldCommit()) {
+            event.uri = document.getUri();
+            event.line = position.getLine();
+            event.character = position.getCharacter();
+            event.symbol = symbol == null ? null : symbol.getIdentifier();
+            event.commit();
+        }
+        metrics.record(HimeMetrics.TIMER_HOVER, start, document.getUri());
+        return result;
+    }
+
+    /**
+     * Gets the hover data for an occurrence of a symbol
+     *
+     * @param document The document with the occurrence
+     * @param line     The line of the occurrence
+     * @param symbol   The symbol
+     * @param range    The range of the occurrence
+     * @return The hover data, or null if there is none
+     */
+    private Hover getHoverData(Document document, int line, Symbol symbol, Range range) {
+        if (getLabel(symbol.getKind()) == null)
             return null;
-        Range range = symbol.getRangeAt(document.getUri(), position);
-        switch (symbol.getKind()) {
+        Symbol grammar = symbol;
+        while (grammar != null && grammar.getKind() != HimeWorkspace.SYMBOL_GRAMMAR)
+            grammar = grammar.getParent();
+        String content = getContent(symbol, grammar);
+        String context = grammar == null ? null : grammar.getIdentifier();
+        if (grammar != null && grammar != symbol) {
+            // is the symbol used from an inheriting grammar?
+            HimeDocumentState state = analyzer.getState(document.getUri());
+            HimeDocumentBlock block = state == null ? null : state.getBlockAt(line);
+            if (block != null && !block.name.equals(grammar.getIdentifier())) {
+                content += "\n\n_Inherited by `" + block.name + "` from `" + grammar.getName() + "`_";
+                context = block.name;
+            }
+        }
+        if (symbol.getKind() == HimeWorkspace.SYMBOL_VARIABLE && context != null)
+            content += getSets(context, symbol.getName());
+        return new Hover(new MarkupContent(MarkupKind.MARKDOWN, content), range);
+    }
+
+    /**
+     * Gets the hover content for a symbol, rendering it if it is not in the cache
+     *
+     * @param symbol  The symbol
+     * @param grammar The grammar that defines the symbol, if known
+     * @return The content
+     */
+    private String getContent(Symbol symbol, Symbol grammar) {
+        String document = grammar == null ? null : grammars.getDocument(grammar.getIdentifier());
+        if (document == null)
+            return render(symbol, grammar, null);
+        HimeDocumentState state = analyzer.getState(document);
+        HimeDocumentBlock block = null;
+        if (state != null) {
+            for (HimeDocumentBlock candidate : state.blocks) {
+                if (candidate.name.equals(grammar.getIdentifier())) {
+                    block = candidate;
+                    break;
+                }
+            }
+        }
+        if (block == null)
+            return render(symbol, grammar, state);
+        String content = cache.get(symbol.getIdentifier(), document, block.getOrigin());
+        if (content == null) {
+            content = render(symbol, grammar, state);
+            cache.put(symbol.getIdentifier(), document, block.getOrigin(), content);
+        }
+        return content;
+    }
+
+    /**
+     * Renders the hover content for a symbol
+     *
+     * @param symbol  The symbol
+     * @param grammar The grammar that defines the symbol, if known
+     * @param state   The state of the document that defines the symbol, if known
+     * @return The content
+     */
+    private String render(Symbol symbol, Symbol grammar, HimeDocumentState state) {
+        StringBuilder builder = new StringBuilder();
+        builder.append(getLabel(symbol.getKind())).append(" `").append(symbol.getName()).append("`");
+        if (symbol.getKind() == HimeWorkspace.SYMBOL_GRAMMAR) {
+            List<String> parents = grammars.getParents(symbol.getIdentifier());
+            for (int i = 0; i != parents.size(); i++)
+                builder.append(i == 0 ? "\n\nInherits from `" : ", `").append(parents.get(i)).append("`");
+            return builder.toString();
+        }
+        if (symbol.getKind() == HimeWorkspace.SYMBOL_PARAM && symbol.getParent() != null)
+            builder.append(" of rule `").append(symbol.getParent().getName()).append("`");
+        if (grammar != null)
+            builder.append("\n\nDefined in grammar `").append(grammar.getName()).append("`");
+        String source = state == null || grammar == null ? null : state.getSource(grammar.getIdentifier(), symbol.getIdentifier());
+        if (source != null) {
+            String fence = getFence(source);
+            builder.append("\n\n").append(fence).append("hime\n");
+            appendPreview(builder, source);
+            builder.append("\n").append(fence);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Renders the nullability and the FIRST and FOLLOW sets of a variable
+     * The sets are not cached with the rest of the content because they also depend on the ancestors of the grammar.
+     * They are computed in the background after the analysis, and are not rendered until they are up to date.
+     *
+     * @param grammar  The grammar in which the variable is used
+     * @param variable The name of the variable
+     * @return The content, or an empty string if the sets are not available
+     */
+    private String getSets(String grammar, String variable) {
+        HimeGrammarSets sets;
+        try {
+            sets = compiler.getSets(grammar);
+        } catch (IllegalArgumentException ex) {
+            // an ancestor is not defined
+            return "";
+        }
+        if (sets == null)
+            return "";
+        Boolean nullable = sets.isNullable(variable);
+        if (nullable == null)
+            return "";
+        StringBuilder builder = new StringBuilder();
+        builder.append("\n\nNullable: ").append(nullable ? "yes" : "no");
+        appendSet(builder, "FIRST", sets.getFirst(variable));
+        appendSet(builder, "FOLLOW", sets.getFollow(variable));
+        return builder.toString();
+    }
+
+    /**
+     * Appends a set of terminals
+     * The set is truncated when it is too large.
+     *
+     * @param builder   The builder for the content
+     * @param name      The name of the set
+     * @param terminals The names of the terminals in the set
+     */
+    private static void appendSet(StringBuilder builder, String name, List<String> terminals) {
+        builder.append("\n\n").append(name).append(":");
+        if (terminals.isEmpty())
+            builder.append(" _none_");
+        for (int i = 0; i != terminals.size() && i != SET_MAX_TERMINALS; i++)
+            builder.append(i == 0 ? " `" : ", `").append(terminals.get(i)).append("`");
+        if (terminals.size() > SET_MAX_TERMINALS)
+            builder.append(" and ").append(terminals.size() - SET_MAX_TERMINALS).append(" more");
+    }
+
+    /**
+     * Gets the fence for a code block that contains a text
+     * The fence is longer than the longest run of backticks in the text, so that the text cannot close the code block.
+     *
+     * @param source The text in the code block
+     * @return The fence
+     */
+    private static String getFence(String source) {
+        int longest = 0;
+        int current = 0;
+        for (int i = 0; i != source.length(); i++) {
+            current = source.charAt(i) == '`' ? current + 1 : 0;
+            longest = Math.max(longest, current);
+        }
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < Math.max(3, longest + 1); i++)
+            builder.append('`');
+        return builder.toString();
+    }
+
+    /**
+     * Appends the preview of the text of a definition
+     * The text is truncated when it is too long.
+     *
+     * @param builder The builder for the content
+     * @param source  The text of the definition
+     */
+    private static void appendPreview(StringBuilder builder, String source) {
+        int lines = 1;
+        int length = Math.min(source.length(), PREVIEW_MAX_LENGTH);
+        for (int i = 0; i != length; i++) {
+            char c = source.charAt(i);
+            if (c == '\n' && ++lines > PREVIEW_MAX_LINES) {
+                length = i;
+                break;
+            }
+        }
+        builder.append(source, 0, length);
+        if (length < source.length())
+            builder.append("\n...");
+    }
+
+    /**
+     * Gets the label for a kind of symbol
+     *
+     * @param kind The kind of symbol
+     * @return The label, or null if the kind is not supported
+     */
+    private static String getLabel(int kind) {
+        switch (kind) {
             case HimeWorkspace.SYMBOL_GRAMMAR:
-                return new Hover(new MarkupContent(MarkupKind.MARKDOWN, "Grammar `" + symbol.getName() + "`"), range);
+                return "Grammar";
             case HimeWorkspace.SYMBOL_CONTEXT:
-                return new Hover(new MarkupContent(MarkupKind.MARKDOWN, "Lexical context `" + symbol.getName() + "`"), range);
+                return "Lexical context";
             case HimeWorkspace.SYMBOL_TERMINAL:
-                return new Hover(new MarkupContent(MarkupKind.MARKDOWN, "Terminal symbol `" + symbol.getName() + "`"), range);
+                return "Terminal symbol";
             case HimeWorkspace.SYMBOL_VARIABLE:
-                return new Hover(new MarkupContent(MarkupKind.MARKDOWN, "Variable symbol `" + symbol.getName() + "`"), range);
+                return "Variable symbol";
             case HimeWorkspace.SYMBOL_VIRTUAL:
-                return new Hover(new MarkupContent(MarkupKind.MARKDOWN, "Virtual symbol `" + symbol.getName() + "`"), range);
+                return "Virtual symbol";
             case HimeWorkspace.SYMBOL_ACTION:
-                return new Hover(new MarkupContent(MarkupKind.MARKDOWN, "Grammar action `" + symbol.getName() + "`"), range);
+                return "Grammar action";
             case HimeWorkspace.SYMBOL_PARAM:
-                return new Hover(new MarkupContent(MarkupKind.MARKDOWN, "Variable parameter `" + symbol.getName() + "`"), range);
+                return "Variable parameter";
             default:
                 return null;
         }
@@ -0,0 +1,389 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import fr.cenotelie.commons.lsp.engine.Symbol;
+
+import java.util.*;
+
+/**
+ * Represents the inheritance graph of the grammars in a workspace
+ * <p>
+ * For each grammar, this graph maintains the map of the symbols that are inherited from its parents, transitively.
+ * This map is computed on demand and dropped whenever the exported symbols of an ancestor change.
+ * The graph also records the grammars whose exported symbols changed,
+ * so that the documents defining the inheriting grammars can be re-analyzed.
+ *
+ * @author Laurent Wouters
+ */
+public class HimeImportGraph {
+    /**
+     * Represents a grammar in this graph
+     */
+    private static class Node {
+        /**
+         * The URI of the document that defines this grammar, if any
+         */
+        private String document;
+        /**
+         * The names of the parent grammars, in declaration order
+         */
+        private List<String> parents;
+        /**
+         * The names of the grammars that directly inherit from this one
+         */
+        private final Collection<String> children;
+        /**
+         * The terminals and variables defined in this grammar
+         */
+        private Map<String, Symbol> exports;
+        /**
+         * The symbols inherited from the parents, or null when it must be computed
+         */
+        private Map<String, Symbol> inherited;
+        /**
+         * Whether the inherited symbols are being computed
+         */
+        private boolean computing;
+
+        /**
+         * Initializes this node
+         */
+        public Node() {
+            this.parents = Collections.emptyList();
+            this.children = new HashSet<>();
+            this.exports = Collections.emptyMap();
+        }
+    }
+
+    /**
+     * The known grammars, by name
+     */
+    private final Map<String, Node> nodes;
+    /**
+     * The grammars whose exported symbols changed and that have not been polled yet
+     */
+    private final Collection<String> changed;
+
+    /**
+     * Initializes this graph
+     */
+    public HimeImportGraph() {
+        this.nodes = new HashMap<>();
+        this.changed = new LinkedHashSet<>();
+    }
+
+    /**
+     * Sets the parents of a grammar
+     *
+     * @param grammar The name of the grammar
+     * @param parents The names of the parent grammars, in declaration order
+     */
+    public synchronized void setParents(String grammar, Collection<String> parents) {
+        Node node = resolve(grammar);
+        if (node.parents.equals(parents))
+            return;
+        for (String parent : node.parents)
+            resolve(parent).children.remove(grammar);
+        node.parents = new ArrayList<>(parents);
+        for (String parent : node.parents)
+            resolve(parent).children.add(grammar);
+        invalidate(node);
+    }
+
+    /**
+     * Sets the terminals and variables defined in a grammar
+     *
+     * @param grammar  The name of the grammar
+     * @param document The URI of the document that defines the grammar, or null if it is no longer defined
+     * @param exports  The exported symbols, by name
+     * @return Whether the set of exported symbols changed
+     */
+    public synchronized boolean setExports(String grammar, String document, Map<String, Symbol> exports) {
+        Node node = resolve(grammar);
+        node.document = document;
+        boolean same = node.exports.keySet().equals(exports.keySet());
+        if (same) {
+            for (Map.Entry<String, Symbol> entry : exports.entrySet()) {
+                if (node.exports.get(entry.getKey()).getKind() != entry.getValue().getKind()) {
+                    same = false;
+                    break;
+                }
+            }
+        }
+        node.exports = exports;
+        for (String child : node.children)
+            invalidate(nodes.get(child));
+        if (!same)
+            changed.add(grammar);
+        return !same;
+    }
+
+    /**
+     * Gets the URI of the document that defines a grammar
+     *
+     * @param grammar The name of the grammar
+     * @return The URI of the document, or null if the grammar is not defined
+     */
+    public synchronized String getDocument(String grammar) {
+        Node node = nodes.get(grammar);
+        return node == null ? null : node.document;
+    }
+
+    /**
+     * Gets the symbols that a grammar exports to the grammars that inherit from it
+     *
+     * @param grammar The name of the grammar
+     * @return The exported symbols, by name
+     */
+    public synchronized Map<String, Symbol> getExports(String grammar) {
+        Node node = nodes.get(grammar);
+        return node == null ? Collections.<String, Symbol>emptyMap() : node.exports;
+    }
+
+    /**
+     * Gets the names of the grammars that are defined in a document
+     *
+     * @return The names of the defined grammars
+     */
+    public synchronized List<String> getDefined() {
+        List<String> result = new ArrayList<>();
+        for (Map.Entry<String, Node> entry : nodes.entrySet()) {
+            if (entry.getValue().document != null)
+                result.add(entry.getKey());
+        }
+        return result;
+    }
+
+    /**
+     * Gets the names of the grammars that are defined in a specific document
+     *
+     * @param document The URI of the document
+     * @return The names of the grammars defined in the document
+     */
+    public synchronized List<String> getDefinedIn(String document) {
+        List<String> result = new ArrayList<>();
+        for (Map.Entry<String, Node> entry : nodes.entrySet()) {
+            if (document.equals(entry.getValue().document))
+                result.add(entry.getKey());
+        }
+        return result;
+    }
+
+    /**
+     * Gets the parents of a grammar
+     *
+     * @param grammar The name of the grammar
+     * @return The names of the parent grammars, in declaration order
+     */
+    public synchronized List<String> getParents(String grammar) {
+        Node node = nodes.get(grammar);
+        return node == null ? Collections.<String>emptyList() : node.parents;
+    }
+
+    /**
+     * Gets the number of grammars in this graph
+     *
+     * @return The number of grammars
+     */
+    public synchronized int getCount() {
+        return nodes.size();
+    }
+
+    /**
+     * Removes a grammar from this graph
+     *
+     * @param grammar The name of the grammar
+     */
+    public synchronized void remove(String grammar) {
+        Node node = nodes.get(grammar);
+        if (node == null)
+            return;
+        setParents(grammar, Collections.<String>emptyList());
+        setExports(grammar, null, Collections.<String, Symbol>emptyMap());
+        if (node.children.isEmpty())
+            nodes.remove(grammar);
+    }
+
+    /**
+     * Gets and clears the grammars whose exported symbols changed since the last call
+     *
+     * @return The grammars whose exported symbols changed
+     */
+    public synchronized Collection<String> pollChanged() {
+        Collection<String> result = new ArrayList<>(changed);
+        changed.clear();
+        return result;
+    }
+
+    /**
+     * Gets the grammars that inherit, directly or not, from some grammars
+     *
+     * @param grammars The names of the grammars
+     * @return The names of the inheriting grammars
+     */
+    public synchronized Collection<String> getDescendants(Collection<String> grammars) {
+        Set<String> result = new LinkedHashSet<>();
+        Deque<String> queue = new ArrayDeque<>(grammars);
+        while (!queue.isEmpty()) {
+            Node node = nodes.get(queue.poll());
+            if (node == null)
+                continue;
+            for (String child : node.children) {
+                if (result.add(child))
+                    queue.add(child);
+            }
+        }
+        result.removeAll(grammars);
+        return result;
+    }
+
+    /**
+     * Gets the documents that define grammars inheriting, directly or not, from some grammars
+     * The documents are sorted so that a document comes after the documents defining the parents of its grammars,
+     * except for inheritance cycles.
+     *
+     * @param grammars The names of the grammars
+     * @param origin   The URI of a document to exclude from the result
+     * @return The URIs of the documents to re-analyze, in order
+     */
+    public synchronized List<String> getDependentDocuments(Collection<String> grammars, String origin) {
+        Collection<String> affected = getDescendants(grammars);
+        // build the dependencies between the affected documents
+        Map<String, Set<String>> successors = new LinkedHashMap<>();
+        Map<String, Integer> degrees = new HashMap<>();
+        for (String grammar : affected) {
+            String document = nodes.get(grammar).document;
+            if (document == null || document.equals(origin))
+                continue;
+            if (!successors.containsKey(document)) {
+                successors.put(document, new HashSet<String>());
+                degrees.put(document, 0);
+            }
+        }
+        for (String grammar : affected) {
+            String document = nodes.get(grammar).document;
+            if (!successors.containsKey(document))
+                continue;
+            for (String parent : nodes.get(grammar).parents) {
+                String parentDocument = affected.contains(parent) ? nodes.get(parent).document : null;
+                if (parentDocument != null && !parentDocument.equals(document)
+                        && successors.containsKey(parentDocument) && successors.get(parentDocument).add(document))
+                    degrees.put(document, degrees.get(document) + 1);
+            }
+        }
+        // topological sort
+        List<String> result = new ArrayList<>(successors.size());
+        Deque<String> queue = new ArrayDeque<>();
+        for (String document : successors.keySet()) {
+            if (degrees.get(document) == 0)
+                queue.add(document);
+        }
+        while (!queue.isEmpty()) {
+            String document = queue.poll();
+            result.add(document);
+            for (String successor : successors.get(document)) {
+                int degree = degrees.get(successor) - 1;
+                degrees.put(successor, degree);
+                if (degree == 0)
+                    queue.add(successor);
+            }
+        }
+        if (result.size() != successors.size()) {
+            // inheritance cycles, add the remaining documents
+            for (String document : successors.keySet()) {
+                if (degrees.get(document) > 0)
+                    result.add(document);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Gets the symbols that a grammar inherits from its parents, transitively
+     * When multiple parents provide the same name, the first declared parent wins.
+     *
+     * @param grammar The name of the grammar
+     * @return The inherited symbols, by name
+     */
+    public synchronized Map<String, Symbol> getInherited(String grammar) {
+        Node node = nodes.get(grammar);
+        if (node == null)
+            return Collections.emptyMap();
+        return getInherited(node);
+    }
+
+    /**
+     * Gets the symbols that a grammar inherits from its parents, transitively
+     *
+     * @param node The node for the grammar
+     * @return The inherited symbols, by name
+     */
+    private Map<String, Symbol> getInherited(Node node) {
+        if (node.inherited != null)
+            return node.inherited;
+        if (node.computing)
+            // inheritance cycle
+            return Collections.emptyMap();
+        node.computing = true;
+        Map<String, Symbol> result = new HashMap<>();
+        for (String name : node.parents) {
+            Node parent = nodes.get(name);
+            for (Map.Entry<String, Symbol> entry : parent.exports.entrySet()) {
+                if (!result.containsKey(entry.getKey()))
+                    result.put(entry.getKey(), entry.getValue());
+            }
+            for (Map.Entry<String, Symbol> entry : getInherited(parent).entrySet()) {
+                if (!result.containsKey(entry.getKey()))
+                    result.put(entry.getKey(), entry.getValue());
+            }
+        }
+        node.computing = false;
+        node.inherited = Collections.unmodifiableMap(result);
+        return node.inherited;
+    }
+
+    /**
+     * Gets the node for a grammar, creating it if necessary
+     *
+     * @param grammar The name of the grammar
+     * @return The node
+     */
+    private Node resolve(String grammar) {
+        Node node = nodes.get(grammar);
+        if (node == null) {
+            node = new Node();
+            nodes.put(grammar, node);
+        }
+        return node;
+    }
+
+    /**
+     * Drops the inherited symbols of a grammar and of its descendants
+     *
+     * @param node The node for the grammar
+     */
+    private void invalidate(Node node) {
+        if (node.inherited == null)
+            // descendants cannot have been computed since
+            return;
+        node.inherited = null;
+        for (String child : node.children)
+            invalidate(nodes.get(child));
+    }
+}
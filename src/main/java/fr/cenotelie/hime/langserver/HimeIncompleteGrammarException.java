@@ -0,0 +1,36 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+
+package fr.cenotelie.hime.langserver;
+
+/**
+ * Signals that a grammar cannot be built because it is incomplete,
+ * for example a grammar without an axiom that is only meant to be inherited, or a grammar whose ancestors have syntax errors
+ *
+ * @author Laurent Wouters
+ */
+public class HimeIncompleteGrammarException extends IllegalArgumentException {
+    /**
+     * Initializes this exception
+     *
+     * @param message The message for this exception
+     */
+    public HimeIncompleteGrammarException(String message) {
+        super(message);
+    }
+}
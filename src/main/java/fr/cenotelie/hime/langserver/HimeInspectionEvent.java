@@ -0,0 +1,48 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The Java Flight Recorder event for the inspection of a parsed grammar
+ *
+ * @author Laurent Wouters
+ */
+@Name("fr.cenotelie.hime.Inspection")
+@Label("Grammar Inspection")
+@Description("Inspection of the symbols of a parsed grammar")
+public class HimeInspectionEvent extends HimeEvent {
+    /**
+     * The name of the grammar
+     */
+    @Label("Grammar")
+    public String grammar;
+    /**
+     * The number of terminals and variables defined in the grammar
+     */
+    @Label("Symbols")
+    public int symbols;
+    /**
+     * The number of diagnostics
+     */
+    @Label("Diagnostics")
+    public int diagnostics;
+}
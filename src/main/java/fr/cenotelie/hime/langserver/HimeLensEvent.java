@@ -0,0 +1,43 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The Java Flight Recorder event for a code lens request
+ *
+ * @author Laurent Wouters
+ */
+@Name("fr.cenotelie.hime.Lens")
+@Label("Code Lens")
+@Description("Code lens request on a grammar document")
+public class HimeLensEvent extends HimeEvent {
+    /**
+     * The number of produced code lenses
+     */
+    @Label("Lenses")
+    public int lenses;
+    /**
+     * Whether the lenses were cached
+     */
+    @Label("Cached")
+    public boolean cached;
+}
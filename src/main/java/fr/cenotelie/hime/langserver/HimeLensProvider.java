@@ -19,33 +19,106 @@ package fr.cenotelie.hime.langserver;
 
 import fr.cenotelie.commons.lsp.engine.Document;
 import fr.cenotelie.commons.lsp.engine.DocumentLensProvider;
+import fr.cenotelie.commons.lsp.engine.Symbol;
 import fr.cenotelie.commons.lsp.engine.SymbolRegistry;
 import fr.cenotelie.commons.lsp.structures.CodeLens;
 import fr.cenotelie.commons.lsp.structures.Command;
+import fr.cenotelie.commons.lsp.structures.Range;
 import fr.cenotelie.commons.lsp.structures.SymbolInformation;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The code lens provider for Hime grammars
+ * <p>
+ * The lenses of a document are computed once per analyzed version of the document and returned unresolved,
+ * i.e. without their command.
+ * Their command is only computed when they are resolved, which clients do for the visible lenses.
+ * The data of a lens is a string with the form `kind:grammar:uri`.
  *
  * @author Laurent Wouters
  */
 public class HimeLensProvider implements DocumentLensProvider {
+    /**
+     * The kind of lens for compiling a grammar
+     */
+    private static final String LENS_COMPILE = "compile";
+    /**
+     * The kind of lens for testing a grammar
+     */
+    private static final String LENS_TEST = "test";
+    /**
+     * The kind of lens for the summary of a grammar
+     */
+    private static final String LENS_SUMMARY = "summary";
+
+    /**
+     * The cached lenses for a version of a document
+     */
+    private static class Entry {
+        /**
+         * The analyzed version of the document
+         */
+        private final int version;
+        /**
+         * The unresolved lenses
+         */
+        private final CodeLens[] lenses;
+
+        /**
+         * Initializes this entry
+         *
+         * @param version The analyzed version of the document
+         * @param lenses  The unresolved lenses
+         */
+        public Entry(int version, CodeLens[] lenses) {
+            this.version = version;
+            this.lenses = lenses;
+        }
+    }
+
     /**
      * The symbol registry
      */
     private final SymbolRegistry symbols;
+    /**
+     * The analyzer for Hime grammars
+     */
+    private final HimeDocumentAnalyzer analyzer;
+    /**
+     * The metrics for this server
+     */
+    private final HimeMetrics metrics;
+    /**
+     * The cached lenses, by document URI
+     */
+    private final Map<String, Entry> cache;
 
     /**
      * Initializes this provider
      *
-     * @param symbols The symbol registry
+     * @param symbols  The symbol registry
+     * @param analyzer The analyzer for Hime grammars
+     * @param metrics  The metrics for this server
      */
-    public HimeLensProvider(SymbolRegistry symbols) {
+    public HimeLensProvider(SymbolRegistry symbols, HimeDocumentAnalyzer analyzer, HimeMetrics metrics) {
         this.symbols = symbols;
+        this.analyzer = analyzer;
+        this.metrics = metrics;
+        this.cache = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Drops the cached lenses for a document
+     *
+     * @param uri The URI of the document
+     */
+    public void invalidate(String uri) {
+        cache.remove(uri);
     }
 
     @Override
@@ -57,30 +130,151 @@ public class HimeLensProvider implements DocumentLensProvider {
 
     @Override
     public CodeLens[] getLens(Document document) {
+        long start = metrics.start();
+        HimeLensEvent event = new HimeLensEvent();
+        event.begin();
+        HimeDocumentState state = analyzer.getState(document.getUri());
+        Entry entry = cache.get(document.getUri());
+        boolean cached = state != null && entry != null && entry.version == state.version;
+        CodeLens[] result;
+        if (cached) {
+            result = entry.lenses;
+        } else if (state != null) {
+            result = getLens(document.getUri(), state);
+            cache.put(document.getUri(), new Entry(state.version, result));
+        } else {
+            // the document has no state, fall back to the registry
+            result = getLensFromRegistry(document.getUri());
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.uri = document.getUri();
+            event.lenses = result.length;
+            event.cached = cached;
+            event.commit();
+        }
+        metrics.record(HimeMetrics.TIMER_LENS, start, document.getUri());
+        return result;
+    }
+
+    /**
+     * Gets the unresolved lenses for the grammars in an analyzed document
+     *
+     * @param uri   The URI of the document
+     * @param state The state of the document
+     * @return The lenses
+     */
+    private static CodeLens[] getLens(String uri, HimeDocumentState state) {
         Collection<CodeLens> result = new ArrayList<>();
-        for (SymbolInformation info : symbols.getDefinitionsIn(document.getUri())) {
-            if (info.getKind() == HimeWorkspace.SYMBOL_GRAMMAR) {
-                result.add(new CodeLens(info.getLocation().getRange(), new Command(
+        for (HimeDocumentBlock block : state.blocks) {
+            // the definition of the grammar is the first in its block
+            if (block.definitions.size() == 0 || block.definitions.getSymbol(0).getKind() != HimeWorkspace.SYMBOL_GRAMMAR)
+                continue;
+            addLens(result, uri, block.name, HimeLineIndex.toRange(block.definitions.getRange(0)));
+        }
+        return result.toArray(new CodeLens[result.size()]);
+    }
+
+    /**
+     * Gets the unresolved lenses for the grammars in a document from the registry
+     *
+     * @param uri The URI of the document
+     * @return The lenses
+     */
+    private CodeLens[] getLensFromRegistry(String uri) {
+        Collection<CodeLens> result = new ArrayList<>();
+        for (SymbolInformation info : symbols.getDefinitionsIn(uri)) {
+            if (info.getKind() == HimeWorkspace.SYMBOL_GRAMMAR)
+                addLens(result, uri, info.getName(), info.getLocation().getRange());
+        }
+        return result.toArray(new CodeLens[result.size()]);
+    }
+
+    /**
+     * Adds the unresolved lenses for a grammar
+     *
+     * @param result  The buffer for the lenses
+     * @param uri     The URI of the document
+     * @param grammar The name of the grammar
+     * @param range   The range of the name of the grammar
+     */
+    private static void addLens(Collection<CodeLens> result, String uri, String grammar, Range range) {
+        result.add(new CodeLens(range, null, LENS_COMPILE + ":" + grammar + ":" + uri));
+        result.add(new CodeLens(range, null, LENS_TEST + ":" + grammar + ":" + uri));
+        result.add(new CodeLens(range, null, LENS_SUMMARY + ":" + grammar + ":" + uri));
+    }
+
+    @Override
+    public CodeLens resolve(CodeLens codeLens) {
+        if (codeLens.getCommand() != null || codeLens.getData() == null)
+            return codeLens;
+        String[] data = codeLens.getData().toString().split(":", 3);
+        if (data.length != 3)
+            return codeLens;
+        switch (data[0]) {
+            case LENS_COMPILE:
+                return new CodeLens(codeLens.getRange(), new Command(
                         "Compile",
-                        "hime.compile",
+                        HimeCompiler.COMMAND_COMPILE,
                         new Object[]{
-                                document.getUri(),
-                                info.getName()
-                        })));
-                result.add(new CodeLens(info.getLocation().getRange(), new Command(
+                                data[2],
+                                data[1]
+                        }));
+            case LENS_TEST:
+                return new CodeLens(codeLens.getRange(), new Command(
                         "Test on input",
-                        "hime.test",
+                        HimeCompiler.COMMAND_TEST,
                         new Object[]{
-                                document.getUri(),
-                                info.getName()
-                        })));
-            }
+                                data[2],
+                                data[1]
+                        }));
+            case LENS_SUMMARY:
+                // only a title, there is nothing to execute
+                return new CodeLens(codeLens.getRange(), new Command(getSummary(data[2], data[1]), null, null));
+            default:
+                return codeLens;
         }
-        return result.toArray(new CodeLens[result.size()]);
     }
 
-    @Override
-    public CodeLens resolve(CodeLens codeLens) {
-        return codeLens;
+    /**
+     * Gets the summary of a grammar, i.e. the number of its terminals and rules and the number of references to them
+     *
+     * @param uri     The URI of the document that defines the grammar
+     * @param grammar The name of the grammar
+     * @return The summary
+     */
+    private String getSummary(String uri, String grammar) {
+        HimeDocumentState state = analyzer.getState(uri);
+        HimeDocumentBlock block = null;
+        if (state != null) {
+            for (HimeDocumentBlock candidate : state.blocks) {
+                if (candidate.name.equals(grammar)) {
+                    block = candidate;
+                    break;
+                }
+            }
+        }
+        if (block == null)
+            return "Grammar " + grammar;
+        int terminals = 0;
+        int rules = 0;
+        for (Symbol symbol : block.exports.values()) {
+            if (symbol.getKind() == HimeWorkspace.SYMBOL_TERMINAL)
+                terminals++;
+            else if (symbol.getKind() == HimeWorkspace.SYMBOL_VARIABLE)
+                rules++;
+        }
+        int references = 0;
+        for (HimeDocumentState other : analyzer.getStates()) {
+            for (Symbol symbol : block.exports.values()) {
+                for (int i = other.positions.getFirst(symbol.getIdentifier()); i >= 0; i = other.positions.getNext(i)) {
+                    if (!other.positions.isDefinition(i))
+                        references++;
+                }
+            }
+        }
+        return terminals + (terminals == 1 ? " terminal, " : " terminals, ")
+                + rules + (rules == 1 ? " rule, " : " rules, ")
+                + references + (references == 1 ? " reference" : " references");
     }
 }
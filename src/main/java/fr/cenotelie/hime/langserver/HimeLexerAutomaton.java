@@ -0,0 +1,952 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+
+package fr.cenotelie.hime.langserver;
+
+import fr.cenotelie.hime.redist.ASTNode;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The deterministic automaton that recognizes the terminals of a grammar
+ * <p>
+ * The definitions of the terminals are first compiled into a single non-deterministic automaton over UTF-16 code units
+ * (code points outside the BMP are matched as surrogate pairs), which is then made deterministic by subset construction.
+ * The code units are partitioned into classes that no transition distinguishes,
+ * so that the transitions are stored as a dense table of the states by the classes.
+ * When a state accepts several terminals, the inline terminals take priority,
+ * then the terminals defined last, as for the Hime compiler.
+ *
+ * @author Laurent Wouters
+ */
+public class HimeLexerAutomaton {
+    /**
+     * The greatest code point
+     */
+    private static final int MAX_CODEPOINT = 0x10FFFF;
+    /**
+     * The maximum bound of a range repetition
+     */
+    private static final int MAX_REPETITION = 1024;
+    /**
+     * The abbreviations of the Unicode general categories
+     */
+    private static final String CATEGORIES = "LuLlLtLmLoMnMcMeNdNlNoPcPdPsPePiPfPoSmScSkSoZsZlZpCcCfCsCoCn";
+    /**
+     * The Java character types for the Unicode general categories, in the same order as the abbreviations
+     */
+    private static final byte[] CATEGORY_TYPES = {
+            Character.UPPERCASE_LETTER, Character.LOWERCASE_LETTER, Character.TITLECASE_LETTER, Character.MODIFIER_LETTER, Character.OTHER_LETTER,
+            Character.NON_SPACING_MARK, Character.COMBINING_SPACING_MARK, Character.ENCLOSING_MARK,
+            Character.DECIMAL_DIGIT_NUMBER, Character.LETTER_NUMBER, Character.OTHER_NUMBER,
+            Character.CONNECTOR_PUNCTUATION, Character.DASH_PUNCTUATION, Character.START_PUNCTUATION, Character.END_PUNCTUATION,
+            Character.INITIAL_QUOTE_PUNCTUATION, Character.FINAL_QUOTE_PUNCTUATION, Character.OTHER_PUNCTUATION,
+            Character.MATH_SYMBOL, Character.CURRENCY_SYMBOL, Character.MODIFIER_SYMBOL, Character.OTHER_SYMBOL,
+            Character.SPACE_SEPARATOR, Character.LINE_SEPARATOR, Character.PARAGRAPH_SEPARATOR,
+            Character.CONTROL, Character.FORMAT, Character.SURROGATE, Character.PRIVATE_USE, Character.UNASSIGNED
+    };
+    /**
+     * The code point ranges of the Unicode blocks and categories that have been used, by their notation
+     */
+    private static final ConcurrentMap<String, int[]> UNICODE_SETS = new ConcurrentHashMap<>();
+
+    /**
+     * A set of NFA states, used as a key for the subset construction
+     */
+    private static class StateSet {
+        /**
+         * The sorted NFA states
+         */
+        public final int[] states;
+        /**
+         * The hash code of the states
+         */
+        private final int hash;
+
+        /**
+         * Initializes this set
+         *
+         * @param states The sorted NFA states
+         */
+        public StateSet(int[] states) {
+            this.states = states;
+            this.hash = Arrays.hashCode(states);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            return object instanceof StateSet && Arrays.equals(states, ((StateSet) object).states);
+        }
+    }
+
+    /**
+     * Builds the non-deterministic automaton for the terminals, and makes it deterministic
+     * A fragment of automaton is encoded as its entry state (upper 32 bits) and exit state (lower 32 bits).
+     */
+    private static class Builder {
+        /**
+         * The grammar
+         */
+        private final HimeGrammarModel model;
+        /**
+         * The number of NFA states
+         */
+        private int stateCount;
+        /**
+         * The first edge of each state, or -1
+         */
+        private int[] heads;
+        /**
+         * The terminal accepted by each state, or -1
+         */
+        private int[] finals;
+        /**
+         * The number of edges
+         */
+        private int edgeCount;
+        /**
+         * The next edge from the same state, or -1
+         */
+        private int[] edgeNext;
+        /**
+         * The lowest code unit of each edge, or -1 for an epsilon edge
+         */
+        private int[] edgeLow;
+        /**
+         * The highest code unit of each edge
+         */
+        private int[] edgeHigh;
+        /**
+         * The target state of each edge
+         */
+        private int[] edgeTarget;
+        /**
+         * The stamp of the last visit of each state, for the closures
+         */
+        private int[] marks;
+        /**
+         * The current stamp
+         */
+        private int stamp;
+        /**
+         * The names of the terminals and fragments being compiled, to detect recursive definitions
+         */
+        private final Set<String> active;
+
+        /**
+         * Initializes this builder
+         *
+         * @param model The grammar
+         */
+        public Builder(HimeGrammarModel model) {
+            this.model = model;
+            this.heads = new int[1024];
+            this.finals = new int[1024];
+            this.edgeNext = new int[1024];
+            this.edgeLow = new int[1024];
+            this.edgeHigh = new int[1024];
+            this.edgeTarget = new int[1024];
+            this.active = new HashSet<>();
+        }
+
+        /**
+         * Adds a new state
+         *
+         * @return The new state
+         */
+        public int addState() {
+            if (stateCount == heads.length) {
+                heads = Arrays.copyOf(heads, stateCount * 2);
+                finals = Arrays.copyOf(finals, stateCount * 2);
+            }
+            heads[stateCount] = -1;
+            finals[stateCount] = -1;
+            return stateCount++;
+        }
+
+        /**
+         * Adds a new edge
+         *
+         * @param from   The origin state
+         * @param low    The lowest code unit, or -1 for an epsilon edge
+         * @param high   The highest code unit
+         * @param target The target state
+         */
+        public void addEdge(int from, int low, int high, int target) {
+            if (edgeCount == edgeNext.length) {
+                edgeNext = Arrays.copyOf(edgeNext, edgeCount * 2);
+                edgeLow = Arrays.copyOf(edgeLow, edgeCount * 2);
+                edgeHigh = Arrays.copyOf(edgeHigh, edgeCount * 2);
+                edgeTarget = Arrays.copyOf(edgeTarget, edgeCount * 2);
+            }
+            edgeLow[edgeCount] = low;
+            edgeHigh[edgeCount] = high;
+            edgeTarget[edgeCount] = target;
+            edgeNext[edgeCount] = heads[from];
+            heads[from] = edgeCount++;
+        }
+
+        /**
+         * Adds an epsilon edge
+         *
+         * @param from   The origin state
+         * @param target The target state
+         */
+        public void addEpsilon(int from, int target) {
+            addEdge(from, -1, -1, target);
+        }
+
+        /**
+         * Builds the fragment for a terminal definition
+         *
+         * @param node The AST node of the definition
+         * @return The fragment
+         */
+        public long build(ASTNode node) {
+            List<ASTNode> children = node.getChildren();
+            String value = node.getValue();
+            switch (node.getSymbol().getID()) {
+                case HimeGrammarLexer.ID.TERMINAL_LITERAL_ANY:
+                    return buildSet(new int[]{0, 0xFFFF});
+                case HimeGrammarLexer.ID.TERMINAL_UNICODE_CODEPOINT: {
+                    int codepoint = getCodepoint(value);
+                    return buildSet(new int[]{codepoint, codepoint});
+                }
+                case HimeGrammarLexer.ID.TERMINAL_UNICODE_SPAN_MARKER: {
+                    int low = getCodepoint(children.get(0).getValue());
+                    int high = getCodepoint(children.get(1).getValue());
+                    if (low > high)
+                        throw new IllegalArgumentException("Invalid span of code points '" + children.get(0).getValue() + " .. " + children.get(1).getValue() + "'.");
+                    return buildSet(new int[]{low, high});
+                }
+                case HimeGrammarLexer.ID.TERMINAL_LITERAL_TEXT:
+                    return buildText(value);
+                case HimeGrammarLexer.ID.TERMINAL_LITERAL_CLASS:
+                    return buildSet(getCharacterClass(value));
+                case HimeGrammarLexer.ID.TERMINAL_UNICODE_BLOCK:
+                    return buildSet(getBlock(value.substring(3, value.length() - 1)));
+                case HimeGrammarLexer.ID.TERMINAL_UNICODE_CATEGORY:
+                    return buildSet(getCategory(value.substring(3, value.length() - 1)));
+                case HimeGrammarLexer.ID.TERMINAL_NAME: {
+                    ASTNode definition = model.getReference(value);
+                    if (definition == null)
+                        throw new IllegalArgumentException("Missing definition for referenced terminal '" + value + "'.");
+                    if (!active.add(value))
+                        throw new IllegalArgumentException("Terminal '" + value + "' is recursive in its definition.");
+                    long result = build(definition);
+                    active.remove(value);
+                    return result;
+                }
+                case HimeGrammarLexer.ID.TERMINAL_OPERATOR_OPTIONAL: {
+                    long inner = build(children.get(0));
+                    addEpsilon(entry(inner), exit(inner));
+                    return inner;
+                }
+                case HimeGrammarLexer.ID.TERMINAL_OPERATOR_ZEROMORE:
+                case HimeGrammarLexer.ID.TERMINAL_OPERATOR_ONEMORE: {
+                    long inner = build(children.get(0));
+                    int entry = addState();
+                    int exit = addState();
+                    addEpsilon(entry, entry(inner));
+                    addEpsilon(exit(inner), entry(inner));
+                    addEpsilon(exit(inner), exit);
+                    if (node.getSymbol().getID() == HimeGrammarLexer.ID.TERMINAL_OPERATOR_ZEROMORE)
+                        addEpsilon(entry, exit);
+                    return fragment(entry, exit);
+                }
+                case HimeGrammarParser.ID.VIRTUAL_RANGE:
+                    return buildRange(children.get(0),
+                            Integer.parseInt(children.get(1).getValue()),
+                            children.size() > 2 ? Integer.parseInt(children.get(2).getValue()) : Integer.parseInt(children.get(1).getValue()));
+                case HimeGrammarLexer.ID.TERMINAL_OPERATOR_UNION: {
+                    int entry = addState();
+                    int exit = addState();
+                    for (ASTNode child : children) {
+                        long inner = build(child);
+                        addEpsilon(entry, entry(inner));
+                        addEpsilon(exit(inner), exit);
+                    }
+                    return fragment(entry, exit);
+                }
+                case HimeGrammarLexer.ID.TERMINAL_OPERATOR_DIFFERENCE:
+                    return buildDifference(build(children.get(0)), build(children.get(1)));
+                default: {
+                    // concatenation of the children
+                    int entry = addState();
+                    int exit = entry;
+                    for (ASTNode child : children) {
+                        long inner = build(child);
+                        addEpsilon(exit, entry(inner));
+                        exit = exit(inner);
+                    }
+                    return fragment(entry, exit);
+                }
+            }
+        }
+
+        /**
+         * Builds the fragment that matches a single code point in a set
+         *
+         * @param ranges The sorted and disjoint code point ranges
+         * @return The fragment
+         */
+        private long buildSet(int[] ranges) {
+            int entry = addState();
+            int exit = addState();
+            for (int i = 0; i != ranges.length; i += 2) {
+                int low = ranges[i];
+                int high = ranges[i + 1];
+                if (low <= 0xFFFF)
+                    addEdge(entry, low, Math.min(high, 0xFFFF), exit);
+                // code points outside the BMP are matched as surrogate pairs
+                int current = Math.max(low, 0x10000);
+                while (current <= high) {
+                    int leading = 0xD800 + ((current - 0x10000) >> 10);
+                    int trailing = 0xDC00 + ((current - 0x10000) & 0x3FF);
+                    int blockEnd = 0x10000 + ((leading - 0xD800 + 1) << 10) - 1;
+                    int middle = addState();
+                    if (trailing == 0xDC00 && blockEnd <= high) {
+                        // a run of complete blocks of trailing surrogates
+                        int lastLeading = 0xD800 + ((high - 0x10000) >> 10);
+                        if (((high - 0x10000) & 0x3FF) != 0x3FF)
+                            lastLeading--;
+                        addEdge(entry, leading, lastLeading, middle);
+                        addEdge(middle, 0xDC00, 0xDFFF, exit);
+                        current = 0x10000 + ((lastLeading - 0xD800 + 1) << 10);
+                    } else {
+                        int last = Math.min(high, blockEnd);
+                        addEdge(entry, leading, leading, middle);
+                        addEdge(middle, trailing, 0xDC00 + ((last - 0x10000) & 0x3FF), exit);
+                        current = last + 1;
+                    }
+                }
+            }
+            return fragment(entry, exit);
+        }
+
+        /**
+         * Builds the fragment for a literal text
+         *
+         * @param value The literal text, with its quotes
+         * @return The fragment
+         */
+        private long buildText(String value) {
+            boolean insensitive = value.startsWith("~");
+            int[] codepoints = unescape(value.substring(insensitive ? 2 : 1, value.length() - 1));
+            int entry = addState();
+            int exit = entry;
+            for (int codepoint : codepoints) {
+                int[] ranges = insensitive
+                        ? normalize(new int[]{
+                        codepoint, codepoint,
+                        Character.toLowerCase(codepoint), Character.toLowerCase(codepoint),
+                        Character.toUpperCase(codepoint), Character.toUpperCase(codepoint),
+                        Character.toTitleCase(codepoint), Character.toTitleCase(codepoint)}, 8)
+                        : new int[]{codepoint, codepoint};
+                long inner = buildSet(ranges);
+                addEpsilon(exit, entry(inner));
+                exit = exit(inner);
+            }
+            return fragment(entry, exit);
+        }
+
+        /**
+         * Builds the fragment for a bounded repetition
+         *
+         * @param node    The repeated AST node
+         * @param minimum The minimum number of repetitions
+         * @param maximum The maximum number of repetitions
+         * @return The fragment
+         */
+        private long buildRange(ASTNode node, int minimum, int maximum) {
+            if (minimum > maximum || maximum > MAX_REPETITION)
+                throw new IllegalArgumentException("Invalid repetition range {" + minimum + "," + maximum + "}.");
+            int entry = addState();
+            int exit = addState();
+            int current = entry;
+            for (int i = 0; i != maximum; i++) {
+                if (i >= minimum)
+                    addEpsilon(current, exit);
+                long inner = build(node);
+                addEpsilon(current, entry(inner));
+                current = exit(inner);
+            }
+            addEpsilon(current, exit);
+            return fragment(entry, exit);
+        }
+
+        /**
+         * Builds the fragment that matches the texts matched by a fragment but not by another one
+         * The two fragments are made deterministic together: a subset of their states accepts when it contains the exit of the first fragment but not the exit of the second.
+         *
+         * @param left  The first fragment
+         * @param right The fragment to subtract
+         * @return The fragment
+         */
+        private long buildDifference(long left, long right) {
+            List<int[]> sets = new ArrayList<>();
+            List<int[]> moves = new ArrayList<>();
+            determinize(closure(new int[]{entry(left), entry(right)}), sets, moves);
+            int first = stateCount;
+            for (int i = 0; i != sets.size(); i++)
+                addState();
+            int exit = addState();
+            for (int i = 0; i != sets.size(); i++) {
+                int[] set = sets.get(i);
+                if (Arrays.binarySearch(set, exit(left)) >= 0 && Arrays.binarySearch(set, exit(right)) < 0)
+                    addEpsilon(first + i, exit);
+                int[] move = moves.get(i);
+                for (int j = 0; j != move.length; j += 3)
+                    addEdge(first + i, move[j], move[j + 1], first + move[j + 2]);
+            }
+            return fragment(first, exit);
+        }
+
+        /**
+         * Gets the epsilon closure of a set of states
+         *
+         * @param states The states
+         * @return The sorted states in the closure
+         */
+        public int[] closure(int[] states) {
+            if (marks == null || marks.length < stateCount)
+                marks = new int[heads.length];
+            stamp++;
+            int[] stack = new int[16];
+            int[] result = new int[16];
+            int depth = 0;
+            int count = 0;
+            for (int state : states) {
+                if (marks[state] != stamp) {
+                    marks[state] = stamp;
+                    if (depth == stack.length)
+                        stack = Arrays.copyOf(stack, depth * 2);
+                    stack[depth++] = state;
+                }
+            }
+            while (depth > 0) {
+                int state = stack[--depth];
+                if (count == result.length)
+                    result = Arrays.copyOf(result, count * 2);
+                result[count++] = state;
+                for (int edge = heads[state]; edge != -1; edge = edgeNext[edge]) {
+                    int target = edgeTarget[edge];
+                    if (edgeLow[edge] == -1 && marks[target] != stamp) {
+                        marks[target] = stamp;
+                        if (depth == stack.length)
+                            stack = Arrays.copyOf(stack, depth * 2);
+                        stack[depth++] = target;
+                    }
+                }
+            }
+            result = Arrays.copyOf(result, count);
+            Arrays.sort(result);
+            return result;
+        }
+
+        /**
+         * Makes a part of the automaton deterministic by subset construction
+         * The moves of each subset are encoded as triplets of the lowest code unit, the highest code unit and the index of the target subset.
+         *
+         * @param start The initial subset
+         * @param sets  The buffer for the subsets
+         * @param moves The buffer for the moves of each subset
+         */
+        public void determinize(int[] start, List<int[]> sets, List<int[]> moves) {
+            Map<StateSet, Integer> known = new HashMap<>();
+            known.put(new StateSet(start), 0);
+            sets.add(start);
+            int[] lows = new int[16];
+            int[] highs = new int[16];
+            int[] targets = new int[16];
+            int[] points = new int[32];
+            int[] next = new int[16];
+            for (int i = 0; i < sets.size(); i++) {
+                HimeCompiler.checkCancelled();
+                int edges = 0;
+                for (int state : sets.get(i)) {
+                    for (int edge = heads[state]; edge != -1; edge = edgeNext[edge]) {
+                        if (edgeLow[edge] == -1)
+                            continue;
+                        if (edges == lows.length) {
+                            lows = Arrays.copyOf(lows, edges * 2);
+                            highs = Arrays.copyOf(highs, edges * 2);
+                            targets = Arrays.copyOf(targets, edges * 2);
+                            points = Arrays.copyOf(points, edges * 4);
+                        }
+                        lows[edges] = edgeLow[edge];
+                        highs[edges] = edgeHigh[edge];
+                        targets[edges] = edgeTarget[edge];
+                        points[edges * 2] = edgeLow[edge];
+                        points[edges * 2 + 1] = edgeHigh[edge] + 1;
+                        edges++;
+                    }
+                }
+                Arrays.sort(points, 0, edges * 2);
+                int[] move = new int[16];
+                int length = 0;
+                for (int p = 0; p + 1 < edges * 2; p++) {
+                    int low = points[p];
+                    int high = points[p + 1] - 1;
+                    if (high < low)
+                        continue;
+                    int count = 0;
+                    for (int e = 0; e != edges; e++) {
+                        if (lows[e] <= low && high <= highs[e]) {
+                            if (count == next.length)
+                                next = Arrays.copyOf(next, count * 2);
+                            next[count++] = targets[e];
+                        }
+                    }
+                    if (count == 0)
+                        continue;
+                    int[] target = closure(Arrays.copyOf(next, count));
+                    StateSet key = new StateSet(target);
+                    Integer index = known.get(key);
+                    if (index == null) {
+                        index = sets.size();
+                        known.put(key, index);
+                        sets.add(target);
+                    }
+                    if (length > 0 && move[length - 1] == index && move[length - 2] == low - 1) {
+                        // extend the previous move
+                        move[length - 2] = high;
+                        continue;
+                    }
+                    if (length + 3 > move.length)
+                        move = Arrays.copyOf(move, move.length * 2);
+                    move[length++] = low;
+                    move[length++] = high;
+                    move[length++] = index;
+                }
+                moves.add(Arrays.copyOf(move, length));
+            }
+        }
+    }
+
+    /**
+     * The class of each UTF-16 code unit
+     */
+    private final char[] classes;
+    /**
+     * The number of classes
+     */
+    private final int classCount;
+    /**
+     * The number of states
+     */
+    private final int stateCount;
+    /**
+     * The transitions, by state and then class, -1 when there is none
+     */
+    private final int[] transitions;
+    /**
+     * The terminals accepted by each state, by decreasing priority
+     */
+    private final int[][] accepted;
+
+    /**
+     * Builds the automaton for the terminals of a grammar
+     *
+     * @param model    The grammar
+     * @param progress The progress of the compilation
+     * @throws IllegalArgumentException When a terminal definition is invalid
+     */
+    public HimeLexerAutomaton(final HimeGrammarModel model, HimeProgress progress) {
+        Builder builder = new Builder(model);
+        int start = builder.addState();
+        int total = model.getTerminalCount();
+        for (int terminal = 1; terminal != total; terminal++) {
+            HimeCompiler.checkCancelled();
+            long fragment = builder.build(model.getDefinition(terminal));
+            builder.addEpsilon(start, entry(fragment));
+            builder.finals[exit(fragment)] = terminal;
+            progress.report("Building the lexer", terminal, total);
+        }
+
+        List<int[]> sets = new ArrayList<>();
+        List<int[]> moves = new ArrayList<>();
+        builder.determinize(builder.closure(new int[]{start}), sets, moves);
+        this.stateCount = sets.size();
+        this.accepted = new int[stateCount][];
+        Integer[] buffer = new Integer[16];
+        for (int i = 0; i != stateCount; i++) {
+            int count = 0;
+            for (int state : sets.get(i)) {
+                if (builder.finals[state] >= 0) {
+                    if (count == buffer.length)
+                        buffer = Arrays.copyOf(buffer, count * 2);
+                    buffer[count++] = builder.finals[state];
+                }
+            }
+            Arrays.sort(buffer, 0, count, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer left, Integer right) {
+                    return Integer.compare(getRank(model, right), getRank(model, left));
+                }
+            });
+            accepted[i] = new int[count];
+            for (int j = 0; j != count; j++)
+                accepted[i][j] = buffer[j];
+        }
+
+        // partition the code units into the classes that no move distinguishes
+        boolean[] boundaries = new boolean[0x10001];
+        for (int[] move : moves) {
+            for (int j = 0; j != move.length; j += 3) {
+                boundaries[move[j]] = true;
+                boundaries[move[j + 1] + 1] = true;
+            }
+        }
+        this.classes = new char[0x10000];
+        int current = 0;
+        for (int c = 1; c != 0x10000; c++) {
+            if (boundaries[c])
+                current++;
+            classes[c] = (char) current;
+        }
+        this.classCount = current + 1;
+        this.transitions = new int[stateCount * classCount];
+        Arrays.fill(transitions, -1);
+        for (int i = 0; i != stateCount; i++) {
+            int[] move = moves.get(i);
+            for (int j = 0; j != move.length; j += 3) {
+                for (int c = classes[move[j]]; c <= classes[move[j + 1]]; c++)
+                    transitions[i * classCount + c] = move[j + 2];
+            }
+        }
+    }
+
+    /**
+     * Gets the number of states of this automaton
+     * The initial state is the state 0.
+     *
+     * @return The number of states
+     */
+    public int getStateCount() {
+        return stateCount;
+    }
+
+    /**
+     * Gets the number of classes of code units
+     *
+     * @return The number of classes
+     */
+    public int getClassCount() {
+        return classCount;
+    }
+
+    /**
+     * Gets the state reached from a state on a code unit
+     *
+     * @param state The current state
+     * @param c     The next code unit
+     * @return The next state, or -1 if there is none
+     */
+    public int getNext(int state, char c) {
+        return transitions[state * classCount + classes[c]];
+    }
+
+    /**
+     * Gets the terminals accepted by a state
+     *
+     * @param state The state
+     * @return The accepted terminals, by decreasing priority
+     */
+    public int[] getAccepted(int state) {
+        return accepted[state];
+    }
+
+    /**
+     * Gets the rank of a terminal, the greatest rank having priority
+     *
+     * @param model    The grammar
+     * @param terminal The terminal
+     * @return The rank of the terminal
+     */
+    private static int getRank(HimeGrammarModel model, int terminal) {
+        return model.isInline(terminal) ? terminal + model.getTerminalCount() : terminal;
+    }
+
+    /**
+     * Gets the fragment for an entry and an exit state
+     *
+     * @param entry The entry state
+     * @param exit  The exit state
+     * @return The fragment
+     */
+    private static long fragment(int entry, int exit) {
+        return ((long) entry << 32) | (exit & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Gets the entry state of a fragment
+     *
+     * @param fragment The fragment
+     * @return The entry state
+     */
+    private static int entry(long fragment) {
+        return (int) (fragment >>> 32);
+    }
+
+    /**
+     * Gets the exit state of a fragment
+     *
+     * @param fragment The fragment
+     * @return The exit state
+     */
+    private static int exit(long fragment) {
+        return (int) fragment;
+    }
+
+    /**
+     * Gets the value of a code point in the `U+XXXX` notation
+     *
+     * @param value The notation
+     * @return The code point
+     */
+    private static int getCodepoint(String value) {
+        int result = Integer.parseInt(value.substring(2), 16);
+        if (result > MAX_CODEPOINT)
+            throw new IllegalArgumentException("Invalid code point '" + value + "'.");
+        return result;
+    }
+
+    /**
+     * Gets the code points of an escaped text
+     *
+     * @param text The escaped text, without its quotes
+     * @return The code points
+     */
+    private static int[] unescape(String text) {
+        int[] result = new int[text.length()];
+        int count = 0;
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (c != '\\' || i + 1 == text.length()) {
+                int codepoint = text.codePointAt(i);
+                result[count++] = codepoint;
+                i += Character.charCount(codepoint);
+                continue;
+            }
+            char next = text.charAt(i + 1);
+            i += 2;
+            switch (next) {
+                case '0':
+                    result[count++] = 0;
+                    break;
+                case 'a':
+                    result[count++] = 7;
+                    break;
+                case 'b':
+                    result[count++] = 8;
+                    break;
+                case 'f':
+                    result[count++] = 12;
+                    break;
+                case 'n':
+                    result[count++] = 10;
+                    break;
+                case 'r':
+                    result[count++] = 13;
+                    break;
+                case 't':
+                    result[count++] = 9;
+                    break;
+                case 'v':
+                    result[count++] = 11;
+                    break;
+                case 'u': {
+                    int digits = 0;
+                    while (digits < 8 && i + digits < text.length() && Character.digit(text.charAt(i + digits), 16) >= 0)
+                        digits++;
+                    digits = digits == 8 ? 8 : Math.min(digits, 4);
+                    if (digits < 4) {
+                        result[count++] = 'u';
+                    } else {
+                        result[count++] = Integer.parseInt(text.substring(i, i + digits), 16);
+                        i += digits;
+                    }
+                    break;
+                }
+                default:
+                    result[count++] = next;
+                    break;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * Gets the code point ranges of a character class
+     *
+     * @param value The character class, with its brackets
+     * @return The sorted and disjoint code point ranges
+     */
+    private static int[] getCharacterClass(String value) {
+        String body = value.substring(1, value.length() - 1);
+        boolean negative = body.startsWith("^");
+        int[] codepoints = unescape(negative ? body.substring(1) : body);
+        int[] ranges = new int[codepoints.length * 2];
+        int count = 0;
+        for (int i = 0; i < codepoints.length; i++) {
+            if (i + 2 < codepoints.length && codepoints[i + 1] == '-') {
+                ranges[count++] = Math.min(codepoints[i], codepoints[i + 2]);
+                ranges[count++] = Math.max(codepoints[i], codepoints[i + 2]);
+                i += 2;
+            } else {
+                ranges[count++] = codepoints[i];
+                ranges[count++] = codepoints[i];
+            }
+        }
+        int[] result = normalize(ranges, count);
+        return negative ? complement(result) : result;
+    }
+
+    /**
+     * Gets the code point ranges of a Unicode block
+     *
+     * @param name The name of the block
+     * @return The sorted and disjoint code point ranges
+     */
+    private static int[] getBlock(String name) {
+        int[] result = UNICODE_SETS.get("ub{" + name + "}");
+        if (result != null)
+            return result;
+        Character.UnicodeBlock block;
+        try {
+            block = Character.UnicodeBlock.forName(name.startsWith("Is") ? name.substring(2) : name);
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Unknown Unicode block '" + name + "'.");
+        }
+        int[] ranges = new int[16];
+        int count = 0;
+        for (int codepoint = 0; codepoint <= MAX_CODEPOINT; codepoint++) {
+            if (Character.UnicodeBlock.of(codepoint) != block)
+                continue;
+            if (count > 0 && ranges[count - 1] == codepoint - 1) {
+                ranges[count - 1] = codepoint;
+            } else {
+                if (count == ranges.length)
+                    ranges = Arrays.copyOf(ranges, count * 2);
+                ranges[count++] = codepoint;
+                ranges[count++] = codepoint;
+            }
+        }
+        result = Arrays.copyOf(ranges, count);
+        UNICODE_SETS.put("ub{" + name + "}", result);
+        return result;
+    }
+
+    /**
+     * Gets the code point ranges of a Unicode general category
+     * A single letter denotes all the categories starting with this letter.
+     *
+     * @param name The abbreviation of the category
+     * @return The sorted and disjoint code point ranges
+     */
+    private static int[] getCategory(String name) {
+        int[] result = UNICODE_SETS.get("uc{" + name + "}");
+        if (result != null)
+            return result;
+        int types = 0;
+        for (int i = 0; i != CATEGORY_TYPES.length; i++) {
+            String category = CATEGORIES.substring(i * 2, i * 2 + 2);
+            if (category.equals(name) || (name.length() == 1 && category.charAt(0) == name.charAt(0)))
+                types |= 1 << CATEGORY_TYPES[i];
+        }
+        if (types == 0)
+            throw new IllegalArgumentException("Unknown Unicode category '" + name + "'.");
+        int[] ranges = new int[16];
+        int count = 0;
+        for (int codepoint = 0; codepoint <= MAX_CODEPOINT; codepoint++) {
+            if ((types & (1 << Character.getType(codepoint))) == 0)
+                continue;
+            if (count > 0 && ranges[count - 1] == codepoint - 1) {
+                ranges[count - 1] = codepoint;
+            } else {
+                if (count == ranges.length)
+                    ranges = Arrays.copyOf(ranges, count * 2);
+                ranges[count++] = codepoint;
+                ranges[count++] = codepoint;
+            }
+        }
+        result = Arrays.copyOf(ranges, count);
+        UNICODE_SETS.put("uc{" + name + "}", result);
+        return result;
+    }
+
+    /**
+     * Sorts and merges code point ranges
+     *
+     * @param ranges The ranges, as pairs of the lowest and highest code points
+     * @param count  The number of values in the ranges
+     * @return The sorted and disjoint ranges
+     */
+    private static int[] normalize(int[] ranges, int count) {
+        long[] packed = new long[count / 2];
+        for (int i = 0; i != packed.length; i++)
+            packed[i] = ((long) ranges[i * 2] << 32) | ranges[i * 2 + 1];
+        Arrays.sort(packed);
+        int[] result = new int[count];
+        int length = 0;
+        for (long range : packed) {
+            int low = (int) (range >>> 32);
+            int high = (int) range;
+            if (length > 0 && low <= result[length - 1] + 1) {
+                result[length - 1] = Math.max(result[length - 1], high);
+            } else {
+                result[length++] = low;
+                result[length++] = high;
+            }
+        }
+        return Arrays.copyOf(result, length);
+    }
+
+    /**
+     * Gets the complement of code point ranges
+     *
+     * @param ranges The sorted and disjoint ranges
+     * @return The complement
+     */
+    private static int[] complement(int[] ranges) {
+        int[] result = new int[ranges.length + 2];
+        int length = 0;
+        int next = 0;
+        for (int i = 0; i != ranges.length; i += 2) {
+            if (ranges[i] > next) {
+                result[length++] = next;
+                result[length++] = ranges[i] - 1;
+            }
+            next = ranges[i + 1] + 1;
+        }
+        if (next <= MAX_CODEPOINT) {
+            result[length++] = next;
+            result[length++] = MAX_CODEPOINT;
+        }
+        return Arrays.copyOf(result, length);
+    }
+}
@@ -0,0 +1,191 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import fr.cenotelie.commons.lsp.structures.Position;
+import fr.cenotelie.commons.lsp.structures.Range;
+
+/**
+ * The index of the starts of the lines in a piece of text
+ * <p>
+ * The index translates offsets in the text to single-line ranges encoded in a long:
+ * 27 bits for the (0-based) line, 20 bits for the (0-based) character and 16 bits for the length.
+ * Characters are counted in UTF-16 code units, as expected by the clients.
+ * The ranges are those of the names of the symbols, so these limits are only reached by pathological inputs:
+ * beyond them, the values are saturated, so that an occurrence after the 1048575th character of a line
+ * is reported at this character, and a name longer than 65535 characters is truncated.
+ * The recognized line endings are the same as for the Hime parser.
+ * The encoded ranges avoid the allocations within this server, but a range is still decoded, and allocated,
+ * for each occurrence registered in the symbol registry of the LSP library.
+ *
+ * @author Laurent Wouters
+ */
+public class HimeLineIndex {
+    /**
+     * The maximum encoded line
+     */
+    private static final int MAX_LINE = (1 << 27) - 1;
+    /**
+     * The maximum encoded character
+     */
+    private static final int MAX_CHARACTER = (1 << 20) - 1;
+    /**
+     * The maximum encoded length
+     */
+    private static final int MAX_LENGTH = (1 << 16) - 1;
+
+    /**
+     * The offsets of the starts of the lines
+     */
+    private final int[] starts;
+    /**
+     * The number of lines
+     */
+    private final int count;
+    /**
+     * The line in the document of the first line of the text
+     */
+    private final int lineOffset;
+
+    /**
+     * Initializes this index
+     *
+     * @param content    The text to index
+     * @param lineOffset The line in the document of the first line of the text
+     */
+    public HimeLineIndex(CharSequence content, int lineOffset) {
+        int[] buffer = new int[Math.max(16, content.length() / 32)];
+        int size = 1;
+        int length = content.length();
+        for (int i = 0; i != length; i++) {
+            char c = content.charAt(i);
+            if (c == '\r' && i + 1 != length && content.charAt(i + 1) == '\n')
+                // CR LF, the line starts after the LF
+                continue;
+            if (c == '\n' || c == '\r' || c == '\u000B' || c == '\u000C' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                if (size == buffer.length) {
+                    int[] temp = new int[buffer.length * 2];
+                    System.arraycopy(buffer, 0, temp, 0, size);
+                    buffer = temp;
+                }
+                buffer[size++] = i + 1;
+            }
+        }
+        this.starts = buffer;
+        this.count = size;
+        this.lineOffset = lineOffset;
+    }
+
+    /**
+     * Gets the (0-based) line in the text that contains an offset
+     *
+     * @param offset The offset in the text
+     * @return The line in the text
+     */
+    private int getLineAt(int offset) {
+        int low = 0;
+        int high = count - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (starts[middle] <= offset)
+                low = middle;
+            else
+                high = middle - 1;
+        }
+        return low;
+    }
+
+    /**
+     * Gets the encoded range for a span of the text
+     *
+     * @param offset The offset of the span in the text
+     * @param length The length of the span
+     * @return The encoded range
+     */
+    public long getRange(int offset, int length) {
+        int line = getLineAt(offset);
+        return encode(line + lineOffset, offset - starts[line], length);
+    }
+
+    /**
+     * Encodes a single-line range
+     * The values that exceed the limits of the encoding are saturated.
+     *
+     * @param line      The (0-based) line
+     * @param character The (0-based) character of the start
+     * @param length    The length of the range
+     * @return The encoded range
+     */
+    public static long encode(int line, int character, int length) {
+        return ((long) Math.min(line, MAX_LINE) << 36)
+                | ((long) Math.min(character, MAX_CHARACTER) << 16)
+                | Math.min(length, MAX_LENGTH);
+    }
+
+    /**
+     * Gets the (0-based) line of an encoded range
+     *
+     * @param range The encoded range
+     * @return The line
+     */
+    public static int getLine(long range) {
+        return (int) (range >>> 36);
+    }
+
+    /**
+     * Gets the (0-based) character of the start of an encoded range
+     *
+     * @param range The encoded range
+     * @return The character of the start
+     */
+    public static int getStart(long range) {
+        return (int) ((range >>> 16) & MAX_CHARACTER);
+    }
+
+    /**
+     * Gets the (0-based) character of the end of an encoded range
+     *
+     * @param range The encoded range
+     * @return The character of the end
+     */
+    public static int getEnd(long range) {
+        return getStart(range) + (int) (range & MAX_LENGTH);
+    }
+
+    /**
+     * Shifts an encoded range by a number of lines
+     *
+     * @param range     The encoded range
+     * @param lineDelta The number of lines
+     * @return The shifted range
+     */
+    public static long shift(long range, int lineDelta) {
+        return range + ((long) lineDelta << 36);
+    }
+
+    /**
+     * Decodes a range
+     *
+     * @param range The encoded range
+     * @return The range
+     */
+    public static Range toRange(long range) {
+        int line = getLine(range);
+        return new Range(new Position(line, getStart(range)), new Position(line, getEnd(range)));
+    }
+}
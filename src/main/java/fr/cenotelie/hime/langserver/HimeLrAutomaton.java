@@ -0,0 +1,687 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+
+package fr.cenotelie.hime.langserver;
+
+import java.util.*;
+
+/**
+ * The LALR(1) automaton that parses the productions of a grammar
+ * <p>
+ * The LR(0) item sets are built first, an item being identified by a dense integer for a production and a position in its body.
+ * The lookaheads of the reductions are then computed with the relations of DeRemer and Pennello (reads, includes and lookback)
+ * over the transitions on variables, the sets of terminals being stored as bitsets.
+ * The conflicts are recorded, then resolved in favor of the shift, or of the production that comes first.
+ *
+ * @author Laurent Wouters
+ */
+public class HimeLrAutomaton {
+    /**
+     * The kind of the absence of action, i.e. a syntax error
+     */
+    public static final int ACTION_NONE = 0;
+    /**
+     * The kind of the action that shifts a terminal and goes to a state
+     */
+    public static final int ACTION_SHIFT = 1;
+    /**
+     * The kind of the action that reduces a production
+     */
+    public static final int ACTION_REDUCE = 2;
+    /**
+     * The kind of the action that accepts the input
+     */
+    public static final int ACTION_ACCEPT = 3;
+    /**
+     * The kind of a conflict between a shift and a reduction
+     */
+    public static final int CONFLICT_SHIFT_REDUCE = 0;
+    /**
+     * The kind of a conflict between reductions
+     */
+    public static final int CONFLICT_REDUCE_REDUCE = 1;
+
+    /**
+     * A conflict in a state of the automaton
+     */
+    public static class Conflict {
+        /**
+         * The kind of conflict
+         */
+        public final int kind;
+        /**
+         * The state with the conflict
+         */
+        public final int state;
+        /**
+         * The terminal on which the conflict occurs
+         */
+        public final int terminal;
+        /**
+         * The productions that can be reduced on the terminal
+         */
+        public final int[] productions;
+
+        /**
+         * Initializes this conflict
+         *
+         * @param kind        The kind of conflict
+         * @param state       The state with the conflict
+         * @param terminal    The terminal on which the conflict occurs
+         * @param productions The productions that can be reduced on the terminal
+         */
+        public Conflict(int kind, int state, int terminal, int[] productions) {
+            this.kind = kind;
+            this.state = state;
+            this.terminal = terminal;
+            this.productions = productions;
+        }
+    }
+
+    /**
+     * The items in the kernel of a state, used as a key when building the states
+     */
+    private static class Kernel {
+        /**
+         * The sorted items
+         */
+        public final int[] items;
+        /**
+         * The hash code of the items
+         */
+        private final int hash;
+
+        /**
+         * Initializes this kernel
+         *
+         * @param items The sorted items
+         */
+        public Kernel(int[] items) {
+            this.items = items;
+            this.hash = Arrays.hashCode(items);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            return object instanceof Kernel && Arrays.equals(items, ((Kernel) object).items);
+        }
+    }
+
+    /**
+     * The production of each item
+     */
+    private final int[] itemProductions;
+    /**
+     * The position in the body of its production of each item
+     */
+    private final int[] itemPositions;
+    /**
+     * Whether each variable can produce the empty string
+     */
+    private final boolean[] nullable;
+    /**
+     * The kernel items of each state
+     */
+    private final int[][] kernels;
+    /**
+     * The symbols of the transitions of each state, sorted
+     */
+    private final int[][] transitionSymbols;
+    /**
+     * The targets of the transitions of each state
+     */
+    private final int[][] transitionTargets;
+    /**
+     * The terminals with an action in each state, sorted
+     */
+    private final int[][] actionTerminals;
+    /**
+     * The actions of each state, encoded as the kind (lower 2 bits) and the target state or production
+     */
+    private final int[][] actions;
+    /**
+     * The conflicts found in the automaton
+     */
+    private final List<Conflict> conflicts;
+
+    /**
+     * Builds the automaton for the productions of a grammar
+     *
+     * @param model    The grammar
+     * @param progress The progress of the compilation
+     */
+    public HimeLrAutomaton(HimeGrammarModel model, HimeProgress progress) {
+        int productionCount = model.getProductionCount();
+        int terminalCount = model.getTerminalCount();
+        int variableCount = model.getVariableCount();
+
+        // number the items
+        int[] itemBases = new int[productionCount + 1];
+        for (int p = 0; p != productionCount; p++)
+            itemBases[p + 1] = itemBases[p] + model.getProduction(p).body.length + 1;
+        int itemCount = itemBases[productionCount];
+        this.itemProductions = new int[itemCount];
+        this.itemPositions = new int[itemCount];
+        int[] itemSymbols = new int[itemCount];
+        for (int p = 0; p != productionCount; p++) {
+            int[] body = model.getProduction(p).body;
+            for (int i = 0; i <= body.length; i++) {
+                itemProductions[itemBases[p] + i] = p;
+                itemPositions[itemBases[p] + i] = i;
+                itemSymbols[itemBases[p] + i] = i == body.length ? Integer.MAX_VALUE : body[i];
+            }
+        }
+        this.nullable = model.getNullable();
+        BitSet nullableSuffixes = new BitSet(itemCount);
+        for (int p = 0; p != productionCount; p++) {
+            int[] body = model.getProduction(p).body;
+            for (int i = body.length; i >= 0; i--) {
+                if (i < body.length && (body[i] >= 0 || !nullable[~body[i]]))
+                    break;
+                nullableSuffixes.set(itemBases[p] + i);
+            }
+        }
+
+        // build the LR(0) states
+        List<int[]> kernelList = new ArrayList<>();
+        List<int[]> symbolList = new ArrayList<>();
+        List<int[]> targetList = new ArrayList<>();
+        List<int[]> reductionList = new ArrayList<>();
+        Map<Kernel, Integer> known = new HashMap<>();
+        kernelList.add(new int[]{itemBases[0]});
+        known.put(new Kernel(kernelList.get(0)), 0);
+        int[] marks = new int[variableCount];
+        int stamp = 0;
+        int[][] groups = new int[terminalCount + variableCount][];
+        int[] groupCounts = new int[terminalCount + variableCount];
+        int[] touched = new int[terminalCount + variableCount];
+        int[] closure = new int[64];
+        for (int s = 0; s < kernelList.size(); s++) {
+            HimeCompiler.checkCancelled();
+            int[] kernel = kernelList.get(s);
+            stamp++;
+            int size = kernel.length;
+            if (closure.length < size)
+                closure = new int[size * 2];
+            System.arraycopy(kernel, 0, closure, 0, size);
+            for (int i = 0; i < size; i++) {
+                int symbol = itemSymbols[closure[i]];
+                if (symbol >= 0 || marks[~symbol] == stamp)
+                    continue;
+                marks[~symbol] = stamp;
+                for (int p : model.getProductions(~symbol)) {
+                    if (size == closure.length)
+                        closure = Arrays.copyOf(closure, size * 2);
+                    closure[size++] = itemBases[p];
+                }
+            }
+            int touchedCount = 0;
+            int reductionCount = 0;
+            int[] reductions = new int[4];
+            for (int i = 0; i != size; i++) {
+                int item = closure[i];
+                int symbol = itemSymbols[item];
+                if (symbol == Integer.MAX_VALUE) {
+                    if (reductionCount == reductions.length)
+                        reductions = Arrays.copyOf(reductions, reductionCount * 2);
+                    reductions[reductionCount++] = itemProductions[item];
+                    continue;
+                }
+                int group = symbol >= 0 ? symbol : terminalCount + ~symbol;
+                if (groupCounts[group] == 0) {
+                    touched[touchedCount++] = symbol;
+                    if (groups[group] == null)
+                        groups[group] = new int[4];
+                }
+                if (groupCounts[group] == groups[group].length)
+                    groups[group] = Arrays.copyOf(groups[group], groupCounts[group] * 2);
+                groups[group][groupCounts[group]++] = item + 1;
+            }
+            Arrays.sort(touched, 0, touchedCount);
+            int[] symbols = Arrays.copyOf(touched, touchedCount);
+            int[] targets = new int[touchedCount];
+            for (int i = 0; i != touchedCount; i++) {
+                int group = symbols[i] >= 0 ? symbols[i] : terminalCount + ~symbols[i];
+                int[] items = Arrays.copyOf(groups[group], groupCounts[group]);
+                groupCounts[group] = 0;
+                Arrays.sort(items);
+                Kernel key = new Kernel(items);
+                Integer target = known.get(key);
+                if (target == null) {
+                    target = kernelList.size();
+                    known.put(key, target);
+                    kernelList.add(items);
+                }
+                targets[i] = target;
+            }
+            reductions = Arrays.copyOf(reductions, reductionCount);
+            Arrays.sort(reductions);
+            symbolList.add(symbols);
+            targetList.add(targets);
+            reductionList.add(reductions);
+            progress.report("Building the parser", s + 1, kernelList.size());
+        }
+        int stateCount = kernelList.size();
+        this.kernels = kernelList.toArray(new int[stateCount][]);
+        this.transitionSymbols = symbolList.toArray(new int[stateCount][]);
+        this.transitionTargets = targetList.toArray(new int[stateCount][]);
+        int[][] reductions = reductionList.toArray(new int[stateCount][]);
+
+        // number the transitions on variables, they come first in each state as variables are negative
+        int[] gotoBases = new int[stateCount + 1];
+        for (int s = 0; s != stateCount; s++) {
+            int count = 0;
+            while (count < transitionSymbols[s].length && transitionSymbols[s][count] < 0)
+                count++;
+            gotoBases[s + 1] = gotoBases[s] + count;
+        }
+        int gotoCount = gotoBases[stateCount];
+        int words = (terminalCount + 63) >>> 6;
+
+        // direct reads and the reads relation, which only depend on the target of a transition and are shared
+        long[][] stateReads = new long[stateCount][];
+        int[][] stateSuccessors = new int[stateCount][];
+        long[][] directReads = new long[gotoCount][];
+        int[][] reads = new int[gotoCount][];
+        for (int s = 0; s != stateCount; s++) {
+            for (int g = gotoBases[s]; g != gotoBases[s + 1]; g++) {
+                int target = transitionTargets[s][g - gotoBases[s]];
+                if (stateReads[target] == null) {
+                    long[] set = new long[words];
+                    int[] symbols = transitionSymbols[target];
+                    int count = 0;
+                    for (int symbol : symbols) {
+                        if (symbol >= 0)
+                            set[symbol >>> 6] |= 1L << symbol;
+                        else if (nullable[~symbol])
+                            count++;
+                    }
+                    stateReads[target] = set;
+                    if (count > 0) {
+                        int[] successors = new int[count];
+                        count = 0;
+                        for (int i = 0; i != symbols.length && symbols[i] < 0; i++) {
+                            if (nullable[~symbols[i]])
+                                successors[count++] = gotoBases[target] + i;
+                        }
+                        stateSuccessors[target] = successors;
+                    }
+                }
+                directReads[g] = stateReads[target];
+                reads[g] = stateSuccessors[target];
+            }
+        }
+        long[][] readSets = digraph(directReads, reads);
+
+        // the includes and lookback relations
+        int[] includeFrom = new int[64];
+        int[] includeTo = new int[64];
+        int includeCount = 0;
+        int[] lookbackState = new int[64];
+        int[] lookbackProduction = new int[64];
+        int[] lookbackGoto = new int[64];
+        int lookbackCount = 0;
+        for (int s = 0; s != stateCount; s++) {
+            HimeCompiler.checkCancelled();
+            for (int g = gotoBases[s]; g != gotoBases[s + 1]; g++) {
+                int variable = ~transitionSymbols[s][g - gotoBases[s]];
+                for (int p : model.getProductions(variable)) {
+                    int[] body = model.getProduction(p).body;
+                    int state = s;
+                    for (int i = 0; i != body.length; i++) {
+                        int index = Arrays.binarySearch(transitionSymbols[state], body[i]);
+                        if (body[i] < 0 && nullableSuffixes.get(itemBases[p] + i + 1)) {
+                            if (includeCount == includeFrom.length) {
+                                includeFrom = Arrays.copyOf(includeFrom, includeCount * 2);
+                                includeTo = Arrays.copyOf(includeTo, includeCount * 2);
+                            }
+                            includeFrom[includeCount] = gotoBases[state] + index;
+                            includeTo[includeCount++] = g;
+                        }
+                        state = transitionTargets[state][index];
+                    }
+                    if (lookbackCount == lookbackState.length) {
+                        lookbackState = Arrays.copyOf(lookbackState, lookbackCount * 2);
+                        lookbackProduction = Arrays.copyOf(lookbackProduction, lookbackCount * 2);
+                        lookbackGoto = Arrays.copyOf(lookbackGoto, lookbackCount * 2);
+                    }
+                    lookbackState[lookbackCount] = state;
+                    lookbackProduction[lookbackCount] = p;
+                    lookbackGoto[lookbackCount++] = g;
+                }
+            }
+        }
+        int[][] includes = new int[gotoCount][];
+        int[] counts = new int[gotoCount];
+        for (int i = 0; i != includeCount; i++)
+            counts[includeFrom[i]]++;
+        for (int g = 0; g != gotoCount; g++)
+            includes[g] = counts[g] == 0 ? null : new int[counts[g]];
+        Arrays.fill(counts, 0);
+        for (int i = 0; i != includeCount; i++)
+            includes[includeFrom[i]][counts[includeFrom[i]]++] = includeTo[i];
+        long[][] follows = digraph(readSets, includes);
+
+        // the lookaheads of the reductions
+        long[][][] lookaheads = new long[stateCount][][];
+        for (int s = 0; s != stateCount; s++)
+            lookaheads[s] = new long[reductions[s].length][];
+        for (int i = 0; i != lookbackCount; i++) {
+            int s = lookbackState[i];
+            int r = Arrays.binarySearch(reductions[s], lookbackProduction[i]);
+            if (lookaheads[s][r] == null)
+                lookaheads[s][r] = new long[words];
+            or(lookaheads[s][r], follows[lookbackGoto[i]]);
+        }
+
+        // the actions and the conflicts
+        this.actionTerminals = new int[stateCount][];
+        this.actions = new int[stateCount][];
+        this.conflicts = new ArrayList<>();
+        int[] buffer = new int[terminalCount];
+        boolean[] conflicting = new boolean[terminalCount];
+        for (int s = 0; s != stateCount; s++) {
+            int count = 0;
+            int conflictCount = 0;
+            for (int i = gotoBases[s + 1] - gotoBases[s]; i != transitionSymbols[s].length; i++) {
+                int terminal = transitionSymbols[s][i];
+                buffer[terminal] = terminal == HimeGrammarModel.TERMINAL_END
+                        ? ACTION_ACCEPT
+                        : (transitionTargets[s][i] << 2) | ACTION_SHIFT;
+                touched[count++] = terminal;
+            }
+            for (int r = 0; r != reductions[s].length; r++) {
+                long[] lookahead = lookaheads[s][r];
+                if (lookahead == null)
+                    continue;
+                int action = (reductions[s][r] << 2) | ACTION_REDUCE;
+                for (int w = 0; w != words; w++) {
+                    long bits = lookahead[w];
+                    while (bits != 0) {
+                        int terminal = (w << 6) + Long.numberOfTrailingZeros(bits);
+                        bits &= bits - 1;
+                        if (buffer[terminal] == ACTION_NONE) {
+                            buffer[terminal] = action;
+                            touched[count++] = terminal;
+                        } else if (!conflicting[terminal]) {
+                            // keep the shift, or the first production as the reductions are sorted
+                            conflicting[terminal] = true;
+                            conflictCount++;
+                        }
+                    }
+                }
+            }
+            Arrays.sort(touched, 0, count);
+            actionTerminals[s] = Arrays.copyOf(touched, count);
+            actions[s] = new int[count];
+            for (int i = 0; i != count; i++) {
+                int terminal = touched[i];
+                actions[s][i] = buffer[terminal];
+                buffer[terminal] = ACTION_NONE;
+                if (conflictCount > 0 && conflicting[terminal]) {
+                    conflicting[terminal] = false;
+                    conflicts.add(getConflict(s, terminal, actions[s][i], reductions[s], lookaheads[s]));
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds the description of a conflict
+     *
+     * @param state      The state with the conflict
+     * @param terminal   The terminal on which the conflict occurs
+     * @param action     The retained action
+     * @param reductions The productions reduced in the state
+     * @param lookaheads The lookaheads of the reductions
+     * @return The conflict
+     */
+    private static Conflict getConflict(int state, int terminal, int action, int[] reductions, long[][] lookaheads) {
+        int[] productions = new int[reductions.length];
+        int count = 0;
+        for (int r = 0; r != reductions.length; r++) {
+            if (lookaheads[r] != null && (lookaheads[r][terminal >>> 6] & (1L << terminal)) != 0)
+                productions[count++] = reductions[r];
+        }
+        int kind = (action & 3) == ACTION_REDUCE ? CONFLICT_REDUCE_REDUCE : CONFLICT_SHIFT_REDUCE;
+        return new Conflict(kind, state, terminal, Arrays.copyOf(productions, count));
+    }
+
+    /**
+     * Computes the least sets that satisfy F(x) = F'(x) U { F(y) | x R y } with the digraph algorithm
+     * The sets are copied on write, so that the nodes whose set is not extended share the initial set,
+     * and the nodes in a strongly connected component share the same set.
+     *
+     * @param initial  The initial sets F'
+     * @param relation The successors of each node by R, or null when there is none
+     * @return The sets F
+     */
+    private static long[][] digraph(long[][] initial, int[][] relation) {
+        int count = initial.length;
+        long[][] result = new long[count][];
+        boolean[] owned = new boolean[count];
+        int[] depths = new int[count];
+        int[] stack = new int[count];
+        int top = 0;
+        int[] callNodes = new int[count];
+        int[] callEdges = new int[count];
+        int[] callDepths = new int[count];
+        int calls = 0;
+        for (int x = 0; x != count; x++) {
+            if (depths[x] != 0)
+                continue;
+            HimeCompiler.checkCancelled();
+            stack[top++] = x;
+            depths[x] = top;
+            result[x] = initial[x];
+            callNodes[calls] = x;
+            callEdges[calls] = 0;
+            callDepths[calls++] = top;
+            while (calls > 0) {
+                int node = callNodes[calls - 1];
+                int[] successors = relation[node];
+                if (successors != null && callEdges[calls - 1] < successors.length) {
+                    int y = successors[callEdges[calls - 1]++];
+                    if (depths[y] == 0) {
+                        stack[top++] = y;
+                        depths[y] = top;
+                        result[y] = initial[y];
+                        callNodes[calls] = y;
+                        callEdges[calls] = 0;
+                        callDepths[calls++] = top;
+                    } else {
+                        depths[node] = Math.min(depths[node], depths[y]);
+                        merge(result, owned, node, result[y]);
+                    }
+                    continue;
+                }
+                calls--;
+                if (depths[node] == callDepths[calls]) {
+                    // the node is the root of a strongly connected component
+                    int member;
+                    do {
+                        member = stack[--top];
+                        depths[member] = Integer.MAX_VALUE;
+                        result[member] = result[node];
+                    } while (member != node);
+                }
+                if (calls > 0) {
+                    int parent = callNodes[calls - 1];
+                    depths[parent] = Math.min(depths[parent], depths[node]);
+                    merge(result, owned, parent, result[node]);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Adds the elements of a bitset to the set of a node, copying the set of the node on the first change
+     *
+     * @param result The sets of the nodes
+     * @param owned  Whether the set of each node is its own copy
+     * @param node   The node
+     * @param source The bitset to add
+     */
+    private static void merge(long[][] result, boolean[] owned, int node, long[] source) {
+        long[] target = result[node];
+        if (target == source)
+            return;
+        for (int i = 0; i != target.length; i++) {
+            if ((source[i] & ~target[i]) == 0)
+                continue;
+            if (!owned[node]) {
+                target = target.clone();
+                result[node] = target;
+                owned[node] = true;
+            }
+            target[i] |= source[i];
+        }
+    }
+
+    /**
+     * Adds the elements of a bitset to another one
+     *
+     * @param target The bitset to add to
+     * @param source The bitset to add
+     */
+    private static void or(long[] target, long[] source) {
+        if (target == source)
+            return;
+        for (int i = 0; i != target.length; i++)
+            target[i] |= source[i];
+    }
+
+    /**
+     * Gets the number of states of this automaton
+     * The initial state is the state 0.
+     *
+     * @return The number of states
+     */
+    public int getStateCount() {
+        return kernels.length;
+    }
+
+    /**
+     * Gets the action of a state on a terminal
+     *
+     * @param state    The state
+     * @param terminal The terminal
+     * @return The encoded action, ACTION_NONE when there is none
+     */
+    public int getAction(int state, int terminal) {
+        int index = Arrays.binarySearch(actionTerminals[state], terminal);
+        return index < 0 ? ACTION_NONE : actions[state][index];
+    }
+
+    /**
+     * Gets the kind of an encoded action
+     *
+     * @param action The encoded action
+     * @return The kind of action
+     */
+    public static int getActionKind(int action) {
+        return action & 3;
+    }
+
+    /**
+     * Gets the target state of a shift, or the production of a reduction
+     *
+     * @param action The encoded action
+     * @return The state or the production
+     */
+    public static int getActionValue(int action) {
+        return action >>> 2;
+    }
+
+    /**
+     * Gets the state reached from a state after a variable has been reduced
+     *
+     * @param state    The state
+     * @param variable The index of the variable
+     * @return The next state, or -1 if there is none
+     */
+    public int getGoto(int state, int variable) {
+        int index = Arrays.binarySearch(transitionSymbols[state], ~variable);
+        return index < 0 ? -1 : transitionTargets[state][index];
+    }
+
+    /**
+     * Gets the terminals that are expected in a state
+     *
+     * @param state The state
+     * @return The terminals with an action, sorted
+     */
+    public int[] getExpected(int state) {
+        return actionTerminals[state];
+    }
+
+    /**
+     * Gets the kernel items of a state
+     *
+     * @param state The state
+     * @return The items
+     */
+    public int[] getKernel(int state) {
+        return kernels[state];
+    }
+
+    /**
+     * Gets the production of an item
+     *
+     * @param item The item
+     * @return The index of the production
+     */
+    public int getItemProduction(int item) {
+        return itemProductions[item];
+    }
+
+    /**
+     * Gets the position in the body of its production of an item
+     *
+     * @param item The item
+     * @return The position
+     */
+    public int getItemPosition(int item) {
+        return itemPositions[item];
+    }
+
+    /**
+     * Gets whether a variable can produce the empty string
+     *
+     * @param variable The index of the variable
+     * @return Whether the variable is nullable
+     */
+    public boolean isNullable(int variable) {
+        return nullable[variable];
+    }
+
+    /**
+     * Gets the conflicts found in this automaton
+     *
+     * @return The conflicts
+     */
+    public List<Conflict> getConflicts() {
+        return Collections.unmodifiableList(conflicts);
+    }
+}
@@ -0,0 +1,417 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import fr.cenotelie.commons.utils.Serializable;
+import fr.cenotelie.commons.utils.TextUtils;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The metrics for the operations of this server
+ * <p>
+ * The latency of each timed operation is recorded in a histogram with buckets of exponentially increasing width,
+ * for each bucket of size of the concerned document.
+ * Recording only takes a couple of atomic increments.
+ * When metrics are disabled, the time is not even read and nothing is recorded.
+ * The metrics also include gauges, which are evaluated when the metrics are serialized.
+ *
+ * @author Laurent Wouters
+ */
+public class HimeMetrics implements Serializable {
+    /**
+     * The name of the system property for disabling the recording of latencies
+     */
+    public static final String PROPERTY_ENABLED = "hime.metrics.enabled";
+    /**
+     * The name of the system property for the file where the metrics are periodically dumped
+     */
+    public static final String PROPERTY_DUMP = "hime.metrics.dump";
+    /**
+     * The name of the system property for the period of the dump, in seconds
+     */
+    public static final String PROPERTY_DUMP_PERIOD = "hime.metrics.dump.period";
+    /**
+     * The default period of the dump, in seconds
+     */
+    public static final long DEFAULT_DUMP_PERIOD = 60;
+
+    /**
+     * The timer for the parsing of grammars
+     */
+    public static final int TIMER_PARSE = 0;
+    /**
+     * The timer for the complete analysis of documents
+     */
+    public static final int TIMER_ANALYSIS = 1;
+    /**
+     * The timer for the inspection of the parsed grammars
+     */
+    public static final int TIMER_INSPECTION = 2;
+    /**
+     * The timer for the hover requests
+     */
+    public static final int TIMER_HOVER = 3;
+    /**
+     * The timer for the code lens requests
+     */
+    public static final int TIMER_LENS = 4;
+    /**
+     * The timer for the rename requests
+     */
+    public static final int TIMER_RENAME = 5;
+    /**
+     * The timer for the completion requests
+     */
+    public static final int TIMER_COMPLETION = 6;
+    /**
+     * The timer for the searches of symbols in the workspace
+     */
+    public static final int TIMER_SYMBOL_SEARCH = 7;
+    /**
+     * The timer for the semantic tokens requests
+     */
+    public static final int TIMER_SEMANTIC_TOKENS = 8;
+    /**
+     * The timer for the compilations of grammars
+     */
+    public static final int TIMER_COMPILE = 9;
+    /**
+     * The timer for the tests of grammars on inputs
+     */
+    public static final int TIMER_TEST = 10;
+    /**
+     * The timer for the detection of the LR conflicts in the grammars of a document
+     */
+    public static final int TIMER_CONFLICTS = 11;
+    /**
+     * The names of the timers
+     */
+    private static final String[] TIMERS = {"parse", "analysis", "inspection", "hover", "lens", "rename", "completion", "symbolSearch", "semanticTokens", "compile", "test", "conflicts"};
+    /**
+     * The upper bounds of the buckets of document sizes, in characters
+     */
+    private static final int[] SIZES = {4 * 1024, 64 * 1024, 1024 * 1024, Integer.MAX_VALUE};
+    /**
+     * The names of the buckets of document sizes
+     */
+    private static final String[] SIZE_NAMES = {"small", "medium", "large", "huge"};
+    /**
+     * The number of buckets of latencies
+     * The bucket `i` contains the latencies up to 2^i microseconds.
+     */
+    private static final int LATENCIES = 32;
+
+    /**
+     * A gauge of a value
+     */
+    public interface Gauge {
+        /**
+         * Gets the current value
+         *
+         * @return The current value
+         */
+        long getValue();
+    }
+
+    /**
+     * The latency histograms for a timed operation
+     */
+    private static class Timer {
+        /**
+         * The counts for each bucket of size and latency
+         */
+        private final AtomicLongArray counts;
+        /**
+         * The total time, in nanoseconds
+         */
+        private final AtomicLong total;
+
+        /**
+         * Initializes this timer
+         */
+        public Timer() {
+            this.counts = new AtomicLongArray(SIZES.length * LATENCIES);
+            this.total = new AtomicLong(0);
+        }
+
+        /**
+         * Records an operation
+         *
+         * @param elapsed The elapsed time, in nanoseconds
+         * @param size    The size of the concerned document
+         */
+        public void record(long elapsed, int size) {
+            int sizeBucket = 0;
+            while (size > SIZES[sizeBucket])
+                sizeBucket++;
+            long micros = elapsed / 1000;
+            int latencyBucket = Math.min(LATENCIES - 1, 64 - Long.numberOfLeadingZeros(micros));
+            counts.incrementAndGet(sizeBucket * LATENCIES + latencyBucket);
+            total.addAndGet(elapsed);
+        }
+
+        /**
+         * Serializes this timer in JSON
+         *
+         * @param builder The buffer for the output
+         */
+        public void serialize(StringBuilder builder) {
+            long[] all = new long[LATENCIES];
+            long count = 0;
+            builder.append("{\"sizes\": {");
+            for (int i = 0; i != SIZES.length; i++) {
+                long[] values = new long[LATENCIES];
+                for (int j = 0; j != LATENCIES; j++) {
+                    values[j] = counts.get(i * LATENCIES + j);
+                    all[j] += values[j];
+                }
+                if (i != 0)
+                    builder.append(", ");
+                builder.append("\"").append(SIZE_NAMES[i]).append("\": ");
+                count += serialize(builder, values);
+            }
+            builder.append("}, \"all\": ");
+            serialize(builder, all);
+            builder.append(", \"totalMs\": ").append(total.get() / 1000000);
+            builder.append(", \"count\": ").append(count);
+            builder.append("}");
+        }
+
+        /**
+         * Serializes a histogram in JSON
+         *
+         * @param builder The buffer for the output
+         * @param values  The counts for each bucket of latencies
+         * @return The total count
+         */
+        private static long serialize(StringBuilder builder, long[] values) {
+            long count = 0;
+            for (long value : values)
+                count += value;
+            builder.append("{\"count\": ").append(count);
+            builder.append(", \"p50Us\": ").append(getPercentile(values, count, 0.50));
+            builder.append(", \"p95Us\": ").append(getPercentile(values, count, 0.95));
+            builder.append(", \"p99Us\": ").append(getPercentile(values, count, 0.99));
+            builder.append("}");
+            return count;
+        }
+
+        /**
+         * Gets an upper bound of a percentile of a histogram
+         *
+         * @param values     The counts for each bucket of latencies
+         * @param count      The total count
+         * @param percentile The percentile
+         * @return The upper bound of the percentile, in microseconds
+         */
+        private static long getPercentile(long[] values, long count, double percentile) {
+            if (count == 0)
+                return 0;
+            long threshold = (long) Math.ceil(count * percentile);
+            long accumulated = 0;
+            for (int i = 0; i != values.length; i++) {
+                accumulated += values[i];
+                if (accumulated >= threshold)
+                    return 1L << i;
+            }
+            return 1L << (values.length - 1);
+        }
+    }
+
+    /**
+     * Whether the recording of latencies is enabled
+     */
+    private final boolean enabled;
+    /**
+     * The timers
+     */
+    private final Timer[] timers;
+    /**
+     * The gauges, by name
+     */
+    private final Map<String, Gauge> gauges;
+    /**
+     * The sizes of the analyzed documents, by URI
+     */
+    private final Map<String, Integer> sizes;
+
+    /**
+     * Initializes the metrics
+     */
+    public HimeMetrics() {
+        this.enabled = !"false".equals(System.getProperty(PROPERTY_ENABLED));
+        this.timers = new Timer[TIMERS.length];
+        for (int i = 0; i != timers.length; i++)
+            timers[i] = new Timer();
+        this.gauges = new ConcurrentSkipListMap<>();
+        this.sizes = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Gets whether the recording of latencies is enabled
+     *
+     * @return Whether the recording of latencies is enabled
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Starts timing an operation
+     *
+     * @return The start time to pass to the recording
+     */
+    public long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records a timed operation
+     *
+     * @param timer The timer for the operation
+     * @param start The start time of the operation
+     * @param size  The size of the concerned document
+     */
+    public void record(int timer, long start, int size) {
+        if (enabled)
+            timers[timer].record(System.nanoTime() - start, size);
+    }
+
+    /**
+     * Records a timed operation on a document
+     *
+     * @param timer The timer for the operation
+     * @param start The start time of the operation
+     * @param uri   The URI of the concerned document
+     */
+    public void record(int timer, long start, String uri) {
+        if (!enabled)
+            return;
+        Integer size = sizes.get(uri);
+        timers[timer].record(System.nanoTime() - start, size == null ? 0 : size);
+    }
+
+    /**
+     * Sets the size of an analyzed document
+     *
+     * @param uri  The URI of the document
+     * @param size The size of the document
+     */
+    public void setSize(String uri, int size) {
+        if (enabled)
+            sizes.put(uri, size);
+    }
+
+    /**
+     * Removes the size of a document that is closed or deleted
+     *
+     * @param uri The URI of the document
+     */
+    public void removeSize(String uri) {
+        sizes.remove(uri);
+    }
+
+    /**
+     * Registers a gauge
+     *
+     * @param name  The name of the gauge
+     * @param gauge The gauge
+     */
+    public void register(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Starts the periodic dump of the metrics to a file, if it is configured
+     */
+    public void startDump() {
+        String path = System.getProperty(PROPERTY_DUMP);
+        if (path == null || path.isEmpty())
+            return;
+        final File file = new File(path);
+        long period = Math.max(1, Long.getLong(PROPERTY_DUMP_PERIOD, DEFAULT_DUMP_PERIOD));
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "hime-metrics");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                dump(file);
+            }
+        }, period, period, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Dumps the metrics to a file
+     *
+     * @param file The file
+     */
+    private void dump(File file) {
+        try {
+            File directory = file.getAbsoluteFile().getParentFile();
+            File temporary = File.createTempFile("metrics", ".tmp", directory);
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(temporary), StandardCharsets.UTF_8)) {
+                writer.write(serializedJSON());
+            }
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            // do not interrupt the periodic dump
+        }
+    }
+
+    @Override
+    public String serializedString() {
+        return serializedJSON();
+    }
+
+    @Override
+    public String serializedJSON() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("{\"enabled\": ").append(enabled);
+        builder.append(", \"timers\": {");
+        for (int i = 0; i != timers.length; i++) {
+            if (i != 0)
+                builder.append(", ");
+            builder.append("\"").append(TIMERS[i]).append("\": ");
+            timers[i].serialize(builder);
+        }
+        builder.append("}, \"gauges\": {");
+        boolean first = true;
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+            if (!first)
+                builder.append(", ");
+            first = false;
+            builder.append("\"").append(TextUtils.escapeStringJSON(entry.getKey())).append("\": ").append(entry.getValue().getValue());
+        }
+        builder.append("}}");
+        return builder.toString();
+    }
+}
@@ -0,0 +1,121 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import fr.cenotelie.commons.lsp.engine.Symbol;
+
+import java.util.Arrays;
+
+/**
+ * A compact list of occurrences of symbols (definitions or references) in a document
+ * <p>
+ * The ranges of the occurrences are kept encoded (see {@link HimeLineIndex}) and are only decoded on demand.
+ * This only covers the states kept by this server: the symbol registry of the LSP library still requires
+ * a {@link fr.cenotelie.commons.lsp.structures.Range} and a {@link fr.cenotelie.commons.lsp.engine.DocumentSymbolReference}
+ * for each occurrence, which are allocated when a block is registered (see {@link HimeDocumentBlock#register}).
+ *
+ * @author Laurent Wouters
+ */
+public class HimeOccurrences {
+    /**
+     * The symbols
+     */
+    private Symbol[] symbols;
+    /**
+     * The encoded ranges
+     */
+    private long[] ranges;
+    /**
+     * The number of occurrences
+     */
+    private int size;
+
+    /**
+     * Initializes this list
+     */
+    public HimeOccurrences() {
+        this(8);
+    }
+
+    /**
+     * Initializes this list
+     *
+     * @param capacity The initial capacity
+     */
+    public HimeOccurrences(int capacity) {
+        this.symbols = new Symbol[Math.max(1, capacity)];
+        this.ranges = new long[Math.max(1, capacity)];
+        this.size = 0;
+    }
+
+    /**
+     * Gets the number of occurrences
+     *
+     * @return The number of occurrences
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the symbol of an occurrence
+     *
+     * @param index The index of the occurrence
+     * @return The symbol
+     */
+    public Symbol getSymbol(int index) {
+        return symbols[index];
+    }
+
+    /**
+     * Gets the encoded range of an occurrence
+     *
+     * @param index The index of the occurrence
+     * @return The encoded range
+     */
+    public long getRange(int index) {
+        return ranges[index];
+    }
+
+    /**
+     * Adds an occurrence
+     *
+     * @param symbol The symbol
+     * @param range  The encoded range
+     */
+    public void add(Symbol symbol, long range) {
+        if (size == symbols.length) {
+            symbols = Arrays.copyOf(symbols, size * 2);
+            ranges = Arrays.copyOf(ranges, size * 2);
+        }
+        symbols[size] = symbol;
+        ranges[size] = range;
+        size++;
+    }
+
+    /**
+     * Adds all the occurrences of another list, shifted by a number of lines
+     *
+     * @param other     The other list
+     * @param lineDelta The number of lines
+     */
+    public void addAll(HimeOccurrences other, int lineDelta) {
+        for (int i = 0; i != other.size; i++)
+            add(other.symbols[i], HimeLineIndex.shift(other.ranges[i], lineDelta));
+    }
+}
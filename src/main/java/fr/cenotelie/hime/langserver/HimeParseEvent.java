@@ -0,0 +1,48 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The Java Flight Recorder event for the parsing of a grammar
+ *
+ * @author Laurent Wouters
+ */
+@Name("fr.cenotelie.hime.Parse")
+@Label("Parse")
+@Description("Lexing and parsing of a grammar document")
+public class HimeParseEvent extends HimeEvent {
+    /**
+     * The size of the parsed content, in characters
+     */
+    @Label("Size")
+    public int size;
+    /**
+     * The number of tokens
+     */
+    @Label("Tokens")
+    public int tokens;
+    /**
+     * The number of parse errors
+     */
+    @Label("Errors")
+    public int errors;
+}
@@ -0,0 +1,241 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import fr.cenotelie.commons.lsp.engine.Symbol;
+import fr.cenotelie.commons.lsp.engine.SymbolFactory;
+import fr.cenotelie.commons.lsp.structures.Position;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable index of the occurrences of symbols (definitions and references) in a document, by position
+ * <p>
+ * The occurrences are kept in arrays sorted by their (encoded) ranges, see {@link HimeLineIndex}.
+ * Because the occurrences in a document do not overlap, the occurrence at a position is found by binary search.
+ * The occurrences of the same symbol are chained together so that they can be enumerated without a scan.
+ *
+ * @author Laurent Wouters
+ */
+public class HimePositionIndex {
+    /**
+     * The encoded ranges of the occurrences, in increasing order
+     */
+    private final long[] ranges;
+    /**
+     * The symbols of the occurrences
+     */
+    private final Symbol[] symbols;
+    /**
+     * Whether the occurrences are definitions
+     */
+    private final boolean[] definitions;
+    /**
+     * For each occurrence, the index of the next occurrence of the same symbol, or -1
+     */
+    private final int[] next;
+    /**
+     * The index of the first occurrence of each symbol, by identifier
+     */
+    private final Map<String, Integer> firsts;
+
+    /**
+     * Initializes this index
+     *
+     * @param blocks The top-level grammar blocks of the document, with their analysis results
+     */
+    public HimePositionIndex(List<HimeDocumentBlock> blocks) {
+        int count = 0;
+        for (HimeDocumentBlock block : blocks)
+            count += block.definitions.size() + block.references.size();
+        this.ranges = new long[count];
+        this.symbols = new Symbol[count];
+        this.definitions = new boolean[count];
+        this.next = new int[count];
+        this.firsts = new HashMap<>();
+        int size = 0;
+        for (HimeDocumentBlock block : blocks) {
+            size = fill(block.definitions, true, size);
+            size = fill(block.references, false, size);
+        }
+        sort(0, count - 1);
+        for (int i = count - 1; i >= 0; i--) {
+            Integer first = firsts.put(symbols[i].getIdentifier(), i);
+            next[i] = first == null ? -1 : first;
+        }
+    }
+
+    /**
+     * Fills the arrays of this index with occurrences
+     *
+     * @param occurrences The occurrences
+     * @param definition  Whether the occurrences are definitions
+     * @param size        The current number of occurrences in this index
+     * @return The new number of occurrences in this index
+     */
+    private int fill(HimeOccurrences occurrences, boolean definition, int size) {
+        for (int i = 0; i != occurrences.size(); i++) {
+            ranges[size] = occurrences.getRange(i);
+            symbols[size] = occurrences.getSymbol(i);
+            definitions[size] = definition;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Sorts a part of the occurrences by their ranges
+     *
+     * @param low  The index of the first occurrence to sort
+     * @param high The index of the last occurrence to sort
+     */
+    private void sort(int low, int high) {
+        while (low < high) {
+            long pivot = ranges[(low + high) >>> 1];
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (ranges[i] < pivot)
+                    i++;
+                while (ranges[j] > pivot)
+                    j--;
+                if (i <= j)
+                    swap(i++, j--);
+            }
+            // recurse on the smaller part to bound the depth of the stack
+            if (j - low < high - i) {
+                sort(low, j);
+                low = i;
+            } else {
+                sort(i, high);
+                high = j;
+            }
+        }
+    }
+
+    /**
+     * Swaps two occurrences
+     *
+     * @param i The index of the first occurrence
+     * @param j The index of the second occurrence
+     */
+    private void swap(int i, int j) {
+        long range = ranges[i];
+        ranges[i] = ranges[j];
+        ranges[j] = range;
+        Symbol symbol = symbols[i];
+        symbols[i] = symbols[j];
+        symbols[j] = symbol;
+        boolean definition = definitions[i];
+        definitions[i] = definitions[j];
+        definitions[j] = definition;
+    }
+
+    /**
+     * Gets the number of occurrences in this index
+     *
+     * @return The number of occurrences
+     */
+    public int size() {
+        return ranges.length;
+    }
+
+    /**
+     * Gets the occurrence at a position
+     *
+     * @param position The position in the document
+     * @return The index of the occurrence, or -1 if there is none
+     */
+    public int getOccurrenceAt(Position position) {
+        long key = HimeLineIndex.encode(position.getLine(), position.getCharacter(), 0xFFFF);
+        // find the last occurrence that starts at or before the position
+        int low = 0;
+        int high = ranges.length - 1;
+        int result = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (ranges[middle] <= key) {
+                result = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        if (result < 0)
+            return -1;
+        long range = ranges[result];
+        if (HimeLineIndex.getLine(range) != position.getLine() || HimeLineIndex.getEnd(range) < position.getCharacter())
+            return -1;
+        return result;
+    }
+
+    /**
+     * Gets the symbol of an occurrence
+     * The symbol is resolved again in case it has been dropped since the analysis.
+     *
+     * @param index   The index of the occurrence
+     * @param factory The factory for symbols
+     * @return The symbol
+     */
+    public Symbol getSymbol(int index, SymbolFactory factory) {
+        return factory.resolve(symbols[index].getIdentifier());
+    }
+
+    /**
+     * Gets the encoded range of an occurrence
+     *
+     * @param index The index of the occurrence
+     * @return The encoded range
+     */
+    public long getRange(int index) {
+        return ranges[index];
+    }
+
+    /**
+     * Gets whether an occurrence is a definition
+     *
+     * @param index The index of the occurrence
+     * @return Whether the occurrence is a definition
+     */
+    public boolean isDefinition(int index) {
+        return definitions[index];
+    }
+
+    /**
+     * Gets the first occurrence of a symbol
+     *
+     * @param identifier The identifier of the symbol
+     * @return The index of the first occurrence, or -1 if there is none
+     */
+    public int getFirst(String identifier) {
+        Integer result = firsts.get(identifier);
+        return result == null ? -1 : result;
+    }
+
+    /**
+     * Gets the next occurrence of the same symbol
+     *
+     * @param index The index of an occurrence
+     * @return The index of the next occurrence of the same symbol, or -1 if there is none
+     */
+    public int getNext(int index) {
+        return next[index];
+    }
+}
@@ -0,0 +1,161 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import fr.cenotelie.commons.utils.TextUtils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reports the progress of a long running operation to the client through `$/progress` notifications
+ * <p>
+ * The token is either provided by the client in the request that started the operation,
+ * or created by the server with `window/workDoneProgress/create` when the operation begins.
+ * In the latter case, nothing is reported when the client does not support the progress initiated by the server,
+ * or when it refuses to create the token.
+ *
+ * @author Laurent Wouters
+ */
+public class HimeProgress {
+    /**
+     * The counter for progress tokens
+     */
+    private static final AtomicInteger COUNTER = new AtomicInteger(0);
+
+    /**
+     * The client to notify, if any
+     */
+    private final HimeClient client;
+    /**
+     * The token for this progress
+     */
+    private final String token;
+    /**
+     * The token for this progress, serialized in JSON
+     */
+    private final String serialized;
+    /**
+     * Whether the token must be created before reporting the progress
+     */
+    private final boolean mustCreate;
+    /**
+     * Whether the progress can be reported to the client
+     */
+    private volatile boolean enabled;
+    /**
+     * The last reported percentage
+     */
+    private int lastPercentage;
+
+    /**
+     * Initializes this progress with a token created by the server
+     *
+     * @param client The client to notify, if any
+     */
+    public HimeProgress(HimeClient client) {
+        this(client, null);
+    }
+
+    /**
+     * Initializes this progress
+     *
+     * @param client The client to notify, if any
+     * @param token  The token provided by the client (a string or a number), or null to create one
+     */
+    public HimeProgress(HimeClient client, Object token) {
+        this.client = client;
+        if (token instanceof Number) {
+            this.token = token.toString();
+            this.serialized = this.token;
+        } else {
+            this.token = token instanceof String ? (String) token : "hime-" + COUNTER.incrementAndGet();
+            this.serialized = "\"" + TextUtils.escapeStringJSON(this.token) + "\"";
+        }
+        this.mustCreate = token == null;
+        this.enabled = client != null && !mustCreate;
+        this.lastPercentage = -1;
+    }
+
+    /**
+     * Gets the token for this progress
+     *
+     * @return The token for this progress
+     */
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * Reports the beginning of the operation
+     *
+     * @param title The title of the operation
+     */
+    public void begin(String title) {
+        begin(title, false);
+    }
+
+    /**
+     * Reports the beginning of the operation
+     * When the token is created by the server, this waits for the client to create it,
+     * so that this must not be called on the thread that handles the messages from the client.
+     *
+     * @param title       The title of the operation
+     * @param cancellable Whether the client can cancel the operation
+     */
+    public void begin(String title, boolean cancellable) {
+        if (mustCreate && client != null && client.isWorkDoneProgressSupported())
+            enabled = client.sendRequest("window/workDoneProgress/create", "{\"token\": " + serialized + "}");
+        send("{\"kind\": \"begin\", \"title\": \"" + TextUtils.escapeStringJSON(title) + "\", \"cancellable\": " + cancellable + ", \"percentage\": 0}");
+    }
+
+    /**
+     * Reports the progress of the operation
+     * Reports are only sent when the percentage changes.
+     *
+     * @param message The message describing the current step
+     * @param done    The amount of work done
+     * @param total   The total amount of work
+     */
+    public synchronized void report(String message, int done, int total) {
+        int percentage = total == 0 ? 100 : (int) (100L * done / total);
+        if (percentage == lastPercentage)
+            return;
+        lastPercentage = percentage;
+        send("{\"kind\": \"report\", \"message\": \"" + TextUtils.escapeStringJSON(message) + " (" + done + "/" + total + ")\", \"percentage\": " + percentage + "}");
+    }
+
+    /**
+     * Reports the end of the operation
+     *
+     * @param message The final message
+     */
+    public void end(String message) {
+        send("{\"kind\": \"end\", \"message\": \"" + TextUtils.escapeStringJSON(message) + "\"}");
+    }
+
+    /**
+     * Sends a progress notification
+     *
+     * @param value The serialized value of the progress
+     */
+    private void send(String value) {
+        if (!enabled)
+            return;
+        client.sendNotification("$/progress", "{\"token\": " + serialized + ", \"value\": " + value + "}");
+    }
+}
@@ -0,0 +1,274 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import fr.cenotelie.commons.lsp.engine.Symbol;
+import fr.cenotelie.commons.lsp.engine.SymbolRegistry;
+import fr.cenotelie.commons.lsp.structures.TextEdit;
+import fr.cenotelie.commons.lsp.structures.WorkspaceEdit;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The engine for renaming symbols across all the documents of the workspace
+ * <p>
+ * The documents to edit are those that define the grammar of the symbol and the grammars that inherit from it.
+ * Before any edit is computed, the new name is checked against the names visible in each of these grammars,
+ * as found in the current states of the documents and in the inheritance graph.
+ * The edits for each document are then computed concurrently from the position indexes of the documents.
+ *
+ * @author Laurent Wouters
+ */
+public class HimeRenameEngine {
+    /**
+     * The task for computing the edits in a range of documents
+     */
+    private class EditTask extends RecursiveAction {
+        /**
+         * The URIs of the documents
+         */
+        private final List<String> documents;
+        /**
+         * The index of the first document
+         */
+        private final int start;
+        /**
+         * The index after the last document
+         */
+        private final int end;
+        /**
+         * The symbol to rename
+         */
+        private final Symbol symbol;
+        /**
+         * The new name for the symbol
+         */
+        private final String newName;
+        /**
+         * The buffer for the edits, by document URI
+         */
+        private final Map<String, TextEdit[]> changes;
+
+        /**
+         * Initializes this task
+         *
+         * @param documents The URIs of the documents
+         * @param start     The index of the first document
+         * @param end       The index after the last document
+         * @param symbol    The symbol to rename
+         * @param newName   The new name for the symbol
+         * @param changes   The buffer for the edits, by document URI
+         */
+        public EditTask(List<String> documents, int start, int end, Symbol symbol, String newName, Map<String, TextEdit[]> changes) {
+            this.documents = documents;
+            this.start = start;
+            this.end = end;
+            this.symbol = symbol;
+            this.newName = newName;
+            this.changes = changes;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start == 1) {
+                TextEdit[] edits = handler.getEdits(documents.get(start), symbol, newName);
+                if (edits.length > 0)
+                    changes.put(documents.get(start), edits);
+                return;
+            }
+            int middle = (start + end) >>> 1;
+            invokeAll(
+                    new EditTask(documents, start, middle, symbol, newName, changes),
+                    new EditTask(documents, middle, end, symbol, newName, changes));
+        }
+    }
+
+    /**
+     * The symbol registry
+     */
+    private final SymbolRegistry symbols;
+    /**
+     * The analyzer for Hime grammars
+     */
+    private final HimeDocumentAnalyzer analyzer;
+    /**
+     * The inheritance graph of the grammars
+     */
+    private final HimeImportGraph grammars;
+    /**
+     * The symbol handler that computes the edits in a document
+     */
+    private final HimeSymbolHandler handler;
+    /**
+     * The metrics for this server
+     */
+    private final HimeMetrics metrics;
+
+    /**
+     * Initializes this engine
+     *
+     * @param symbols  The symbol registry
+     * @param analyzer The analyzer for Hime grammars
+     * @param grammars The inheritance graph of the grammars
+     * @param handler  The symbol handler that computes the edits in a document
+     * @param metrics  The metrics for this server
+     */
+    public HimeRenameEngine(SymbolRegistry symbols, HimeDocumentAnalyzer analyzer, HimeImportGraph grammars, HimeSymbolHandler handler, HimeMetrics metrics) {
+        this.symbols = symbols;
+        this.analyzer = analyzer;
+        this.grammars = grammars;
+        this.handler = handler;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Renames a symbol in the workspace
+     *
+     * @param uri       The URI of the document where the rename was requested
+     * @param documents The URIs of all the documents in the workspace, used when the grammar of the symbol is not known
+     * @param symbol    The symbol to rename
+     * @param newName   The new name for the symbol
+     * @return The edits for the workspace
+     * @throws IllegalArgumentException When the new name is not legal or collides with an existing name
+     */
+    public WorkspaceEdit rename(String uri, Collection<String> documents, Symbol symbol, String newName) {
+        long start = metrics.start();
+        HimeRenameEvent event = new HimeRenameEvent();
+        event.begin();
+        if (!handler.isLegalName(null, symbols, symbol, newName))
+            throw new IllegalArgumentException("'" + newName + "' is not a legal name.");
+        Symbol grammar = getGrammar(symbol);
+        List<String> targets = new ArrayList<>();
+        if (grammar == null) {
+            targets.addAll(documents);
+        } else {
+            String collision = getCollision(symbol, grammar, newName);
+            if (collision != null)
+                throw new IllegalArgumentException(collision);
+            Set<String> affected = new LinkedHashSet<>();
+            affected.add(grammars.getDocument(grammar.getIdentifier()));
+            for (String descendant : grammars.getDescendants(Collections.singletonList(grammar.getIdentifier())))
+                affected.add(grammars.getDocument(descendant));
+            affected.remove(null);
+            targets.addAll(affected);
+        }
+        Map<String, TextEdit[]> changes = new ConcurrentHashMap<>();
+        if (targets.size() == 1)
+            new EditTask(targets, 0, 1, symbol, newName, changes).compute();
+        else if (!targets.isEmpty())
+            ForkJoinPool.commonPool().invoke(new EditTask(targets, 0, targets.size(), symbol, newName, changes));
+        event.end();
+        if (event.shouldCommit()) {
+            event.uri = uri;
+            event.symbol = symbol.getIdentifier();
+            event.documents = changes.size();
+            for (TextEdit[] edits : changes.values())
+                event.edits += edits.length;
+            event.commit();
+        }
+        metrics.record(HimeMetrics.TIMER_RENAME, start, uri);
+        return new WorkspaceEdit(changes);
+    }
+
+    /**
+     * Gets the grammar that defines a symbol
+     *
+     * @param symbol The symbol
+     * @return The grammar, or null if it is not known
+     */
+    private static Symbol getGrammar(Symbol symbol) {
+        Symbol current = symbol;
+        while (current != null && current.getKind() != HimeWorkspace.SYMBOL_GRAMMAR)
+            current = current.getParent();
+        return current;
+    }
+
+    /**
+     * Checks whether a new name for a symbol collides with an existing name
+     *
+     * @param symbol  The symbol to rename
+     * @param grammar The grammar that defines the symbol
+     * @param newName The new name for the symbol
+     * @return The description of the collision, or null if there is none
+     */
+    private String getCollision(Symbol symbol, Symbol grammar, String newName) {
+        if (newName.equals(symbol.getName()))
+            return null;
+        if (symbol.getKind() == HimeWorkspace.SYMBOL_GRAMMAR) {
+            if (grammars.getDocument(newName) != null)
+                return "A grammar named '" + newName + "' already exists.";
+            return null;
+        }
+        if (symbol.getKind() == HimeWorkspace.SYMBOL_PARAM && isDefined(grammar.getIdentifier(), symbol.getParent().getIdentifier() + "." + newName))
+            return "Rule '" + symbol.getParent().getName() + "' already has a parameter named '" + newName + "'.";
+        // the name must not be defined in, or inherited by, the grammar
+        if (isVisible(grammar.getIdentifier(), newName))
+            return "The name '" + newName + "' is already used in grammar '" + grammar.getName() + "'.";
+        if (symbol.getKind() == HimeWorkspace.SYMBOL_PARAM)
+            // parameters are not visible from other grammars
+            return null;
+        // the renamed symbol is inherited, check the inheriting grammars
+        for (String descendant : grammars.getDescendants(Collections.singletonList(grammar.getIdentifier()))) {
+            if (isVisible(descendant, newName))
+                return "The name '" + newName + "' is already used in grammar '" + descendant + "', which inherits from '" + grammar.getName() + "'.";
+        }
+        return null;
+    }
+
+    /**
+     * Gets whether a name is visible in a grammar, i.e. whether it is defined in the grammar or inherited by it
+     *
+     * @param grammar The name of the grammar
+     * @param name    The name to look for
+     * @return Whether the name is visible
+     */
+    private boolean isVisible(String grammar, String name) {
+        return isDefined(grammar, grammar + "." + name) || grammars.getInherited(grammar).containsKey(name);
+    }
+
+    /**
+     * Gets whether a symbol is defined in a grammar, according to the current state of the document that defines the grammar
+     * When the document has no state, only the symbols exported by the grammar are known.
+     *
+     * @param grammar    The name of the grammar
+     * @param identifier The identifier of the symbol
+     * @return Whether the symbol is defined
+     */
+    private boolean isDefined(String grammar, String identifier) {
+        HimeDocumentState state = analyzer.getState(grammars.getDocument(grammar));
+        if (state == null) {
+            for (Symbol symbol : grammars.getExports(grammar).values()) {
+                if (symbol.getIdentifier().equals(identifier))
+                    return true;
+            }
+            return false;
+        }
+        for (HimeDocumentBlock block : state.blocks) {
+            if (!block.name.equals(grammar))
+                continue;
+            for (int i = 0; i != block.definitions.size(); i++) {
+                if (block.definitions.getSymbol(i).getIdentifier().equals(identifier))
+                    return true;
+            }
+        }
+        return false;
+    }
+}
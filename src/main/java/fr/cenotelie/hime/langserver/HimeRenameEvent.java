@@ -0,0 +1,48 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The Java Flight Recorder event for the renaming of a symbol in a document or in the workspace
+ *
+ * @author Laurent Wouters
+ */
+@Name("fr.cenotelie.hime.Rename")
+@Label("Rename")
+@Description("Renaming of a symbol in grammar documents")
+public class HimeRenameEvent extends HimeEvent {
+    /**
+     * The identifier of the renamed symbol
+     */
+    @Label("Symbol")
+    public String symbol;
+    /**
+     * The number of documents with edits
+     */
+    @Label("Documents")
+    public int documents;
+    /**
+     * The number of produced edits
+     */
+    @Label("Edits")
+    public int edits;
+}
@@ -0,0 +1,87 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import fr.cenotelie.commons.utils.Serializable;
+import fr.cenotelie.commons.utils.TextUtils;
+
+/**
+ * The semantic tokens for a document, or a part of it
+ * <p>
+ * The tokens are encoded as specified by the protocol, with five integers for each token:
+ * the line relative to the previous token, the start character (relative to the previous token when on the same line),
+ * the length, the index of the token type and the bit set of the token modifiers in the legend.
+ *
+ * @author Laurent Wouters
+ */
+public class HimeSemanticTokens implements Serializable {
+    /**
+     * The identifier of this result, to be used for the next delta request, or null for a range
+     */
+    public final String resultId;
+    /**
+     * The encoded tokens
+     */
+    public final int[] data;
+
+    /**
+     * Initializes these tokens
+     *
+     * @param resultId The identifier of this result, or null for a range
+     * @param data     The encoded tokens
+     */
+    public HimeSemanticTokens(String resultId, int[] data) {
+        this.resultId = resultId;
+        this.data = data;
+    }
+
+    @Override
+    public String serializedString() {
+        return serializedJSON();
+    }
+
+    @Override
+    public String serializedJSON() {
+        StringBuilder builder = new StringBuilder(data.length * 3 + 32);
+        builder.append("{");
+        if (resultId != null)
+            builder.append("\"resultId\": \"").append(TextUtils.escapeStringJSON(resultId)).append("\", ");
+        builder.append("\"data\": ");
+        serialize(builder, data, 0, data.length);
+        builder.append("}");
+        return builder.toString();
+    }
+
+    /**
+     * Serializes a part of an array of integers in JSON
+     *
+     * @param builder The buffer for the output
+     * @param data    The integers
+     * @param start   The index of the first integer
+     * @param end     The index after the last integer
+     */
+    static void serialize(StringBuilder builder, int[] data, int start, int end) {
+        builder.append("[");
+        for (int i = start; i != end; i++) {
+            if (i != start)
+                builder.append(",");
+            builder.append(data[i]);
+        }
+        builder.append("]");
+    }
+}
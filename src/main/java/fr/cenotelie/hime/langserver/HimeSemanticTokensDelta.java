@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import fr.cenotelie.commons.utils.Serializable;
+import fr.cenotelie.commons.utils.TextUtils;
+
+/**
+ * The changes to the semantic tokens of a document since a previous result
+ * The changes are expressed as a single edit of the array of the encoded tokens, or none when they are identical.
+ *
+ * @author Laurent Wouters
+ */
+public class HimeSemanticTokensDelta implements Serializable {
+    /**
+     * The identifier of the new result
+     */
+    public final String resultId;
+    /**
+     * The index of the first replaced integer in the previous array
+     */
+    public final int start;
+    /**
+     * The number of replaced integers in the previous array
+     */
+    public final int deleteCount;
+    /**
+     * The new array, which contains the inserted integers
+     */
+    private final int[] data;
+    /**
+     * The index of the first inserted integer in the new array
+     */
+    private final int dataStart;
+    /**
+     * The index after the last inserted integer in the new array
+     */
+    private final int dataEnd;
+
+    /**
+     * Initializes this delta
+     *
+     * @param resultId    The identifier of the new result
+     * @param start       The index of the first replaced integer in the previous array
+     * @param deleteCount The number of replaced integers in the previous array
+     * @param data        The new array, which contains the inserted integers
+     * @param dataStart   The index of the first inserted integer in the new array
+     * @param dataEnd     The index after the last inserted integer in the new array
+     */
+    public HimeSemanticTokensDelta(String resultId, int start, int deleteCount, int[] data, int dataStart, int dataEnd) {
+        this.resultId = resultId;
+        this.start = start;
+        this.deleteCount = deleteCount;
+        this.data = data;
+        this.dataStart = dataStart;
+        this.dataEnd = dataEnd;
+    }
+
+    /**
+     * Gets whether this delta has no edit
+     *
+     * @return Whether this delta has no edit
+     */
+    public boolean isEmpty() {
+        return deleteCount == 0 && dataStart == dataEnd;
+    }
+
+    /**
+     * Gets the number of inserted integers
+     *
+     * @return The number of inserted integers
+     */
+    public int getInsertCount() {
+        return dataEnd - dataStart;
+    }
+
+    @Override
+    public String serializedString() {
+        return serializedJSON();
+    }
+
+    @Override
+    public String serializedJSON() {
+        StringBuilder builder = new StringBuilder((dataEnd - dataStart) * 3 + 64);
+        builder.append("{\"resultId\": \"").append(TextUtils.escapeStringJSON(resultId)).append("\", \"edits\": [");
+        if (!isEmpty()) {
+            builder.append("{\"start\": ").append(start);
+            builder.append(", \"deleteCount\": ").append(deleteCount);
+            builder.append(", \"data\": ");
+            HimeSemanticTokens.serialize(builder, data, dataStart, dataEnd);
+            builder.append("}");
+        }
+        builder.append("]}");
+        return builder.toString();
+    }
+}
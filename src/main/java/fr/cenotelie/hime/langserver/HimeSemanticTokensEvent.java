@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The Java Flight Recorder event for a request of semantic tokens
+ *
+ * @author Laurent Wouters
+ */
+@Name("fr.cenotelie.hime.SemanticTokens")
+@Label("Semantic Tokens")
+@Description("Request of the semantic tokens of a grammar document")
+public class HimeSemanticTokensEvent extends HimeEvent {
+    /**
+     * The request is for all the tokens of the document
+     */
+    public static final String MODE_FULL = "full";
+    /**
+     * The request is for the changes since a previous result
+     */
+    public static final String MODE_DELTA = "delta";
+    /**
+     * The request is for the tokens in a range
+     */
+    public static final String MODE_RANGE = "range";
+
+    /**
+     * The kind of request
+     */
+    @Label("Mode")
+    public String mode;
+    /**
+     * Whether the tokens for the current state of the document were already known
+     */
+    @Label("Cached")
+    public boolean cached;
+    /**
+     * The number of grammar blocks that were lexed
+     */
+    @Label("Lexed Blocks")
+    public int lexed;
+    /**
+     * The number of returned tokens
+     */
+    @Label("Tokens")
+    public int tokens;
+}
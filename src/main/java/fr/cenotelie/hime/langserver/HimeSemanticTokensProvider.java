@@ -0,0 +1,607 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import fr.cenotelie.commons.lsp.structures.Range;
+import fr.cenotelie.commons.utils.Serializable;
+import fr.cenotelie.hime.redist.Token;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The provider of semantic tokens for Hime grammars
+ * <p>
+ * The tokens of each grammar block are produced by lexing the block again.
+ * The names and virtual symbols are classified with the kinds of the symbols found by the analysis,
+ * and the other tokens with their terminal in the lexer.
+ * The tokens of a block are encoded relatively to the line of the block, so that they are shared with its moved copies
+ * and only the blocks that were analyzed again are lexed again.
+ * The tokens of a document are the concatenation of the tokens of its blocks, cached for each state of the document.
+ * A delta request is answered with a single edit of the previous result.
+ *
+ * @author Laurent Wouters
+ */
+public class HimeSemanticTokensProvider {
+    /**
+     * The token types, in the order of the legend
+     */
+    private static final String[] TOKEN_TYPES = {
+            "namespace",
+            "enum",
+            "type",
+            "function",
+            "enumMember",
+            "macro",
+            "parameter",
+            "keyword",
+            "string",
+            "number",
+            "regexp",
+            "operator",
+            "property"
+    };
+    /**
+     * The token type for grammars
+     */
+    private static final int TYPE_GRAMMAR = 0;
+    /**
+     * The token type for lexical contexts
+     */
+    private static final int TYPE_CONTEXT = 1;
+    /**
+     * The token type for terminals
+     */
+    private static final int TYPE_TERMINAL = 2;
+    /**
+     * The token type for variables
+     */
+    private static final int TYPE_VARIABLE = 3;
+    /**
+     * The token type for virtual symbols
+     */
+    private static final int TYPE_VIRTUAL = 4;
+    /**
+     * The token type for semantic actions
+     */
+    private static final int TYPE_ACTION = 5;
+    /**
+     * The token type for template parameters
+     */
+    private static final int TYPE_PARAM = 6;
+    /**
+     * The token type for keywords
+     */
+    private static final int TYPE_KEYWORD = 7;
+    /**
+     * The token type for literal strings
+     */
+    private static final int TYPE_STRING = 8;
+    /**
+     * The token type for integers
+     */
+    private static final int TYPE_NUMBER = 9;
+    /**
+     * The token type for character classes and unicode blocks, categories and code points
+     */
+    private static final int TYPE_REGEXP = 10;
+    /**
+     * The token type for operators
+     */
+    private static final int TYPE_OPERATOR = 11;
+    /**
+     * The token type for the names of options
+     */
+    private static final int TYPE_OPTION = 12;
+    /**
+     * The token modifiers, in the order of the legend
+     */
+    private static final String[] TOKEN_MODIFIERS = {"declaration"};
+    /**
+     * The token modifier for the definitions of symbols
+     */
+    private static final int MODIFIER_DECLARATION = 1;
+    /**
+     * The identifier of the `=` terminal
+     */
+    private static final int TERMINAL_EQUAL = 0x0043;
+    /**
+     * The identifier of the `fragment` terminal
+     */
+    private static final int TERMINAL_FRAGMENT = 0x0050;
+    /**
+     * The identifier of the `grammar` terminal
+     */
+    private static final int TERMINAL_GRAMMAR = 0x0060;
+
+    /**
+     * The legend of the semantic tokens, as advertised in the capabilities of the server
+     */
+    private static class Legend implements Serializable {
+        @Override
+        public String serializedString() {
+            return serializedJSON();
+        }
+
+        @Override
+        public String serializedJSON() {
+            StringBuilder builder = new StringBuilder("{\"tokenTypes\": [");
+            for (int i = 0; i != TOKEN_TYPES.length; i++)
+                builder.append(i == 0 ? "\"" : ", \"").append(TOKEN_TYPES[i]).append("\"");
+            builder.append("], \"tokenModifiers\": [");
+            for (int i = 0; i != TOKEN_MODIFIERS.length; i++)
+                builder.append(i == 0 ? "\"" : ", \"").append(TOKEN_MODIFIERS[i]).append("\"");
+            builder.append("]}");
+            return builder.toString();
+        }
+    }
+
+    /**
+     * The buffer for the encoding of tokens
+     */
+    private static class Encoder {
+        /**
+         * The encoded tokens
+         */
+        private int[] data;
+        /**
+         * The number of used integers
+         */
+        private int size;
+        /**
+         * The line of the previous token
+         */
+        private int line;
+        /**
+         * The start character of the previous token
+         */
+        private int character;
+
+        /**
+         * Initializes this buffer
+         *
+         * @param capacity  The initial capacity
+         * @param line      The initial line
+         * @param character The initial character
+         */
+        public Encoder(int capacity, int line, int character) {
+            this.data = new int[Math.max(5, capacity - capacity % 5)];
+            this.size = 0;
+            this.line = line;
+            this.character = character;
+        }
+
+        /**
+         * Adds a token
+         *
+         * @param line      The line of the token
+         * @param character The start character of the token
+         * @param length    The length of the token
+         * @param type      The token type
+         * @param modifiers The token modifiers
+         */
+        public void add(int line, int character, int length, int type, int modifiers) {
+            if (size == data.length)
+                data = Arrays.copyOf(data, size * 2);
+            data[size] = line - this.line;
+            data[size + 1] = line == this.line ? character - this.character : character;
+            data[size + 2] = length;
+            data[size + 3] = type;
+            data[size + 4] = modifiers;
+            size += 5;
+            this.line = line;
+            this.character = character;
+        }
+
+        /**
+         * Gets the encoded tokens
+         *
+         * @return The encoded tokens
+         */
+        public int[] toArray() {
+            return size == data.length ? data : Arrays.copyOf(data, size);
+        }
+    }
+
+    /**
+     * A cached result for a document
+     */
+    private static class Entry {
+        /**
+         * The state of the document for this result
+         */
+        private final HimeDocumentState state;
+        /**
+         * The identifier of the result
+         */
+        private final String resultId;
+        /**
+         * The encoded tokens
+         */
+        private final int[] data;
+
+        /**
+         * Initializes this entry
+         *
+         * @param state    The state of the document for this result
+         * @param resultId The identifier of the result
+         * @param data     The encoded tokens
+         */
+        public Entry(HimeDocumentState state, String resultId, int[] data) {
+            this.state = state;
+            this.resultId = resultId;
+            this.data = data;
+        }
+    }
+
+    /**
+     * The analyzer for Hime grammars
+     */
+    private final HimeDocumentAnalyzer analyzer;
+    /**
+     * The metrics for this server
+     */
+    private final HimeMetrics metrics;
+    /**
+     * The last result for each document, by URI
+     */
+    private final Map<String, Entry> cache;
+    /**
+     * The counter for the identifiers of the results
+     */
+    private final AtomicLong nextResultId;
+
+    /**
+     * Initializes this provider
+     *
+     * @param analyzer The analyzer for Hime grammars
+     * @param metrics  The metrics for this server
+     */
+    public HimeSemanticTokensProvider(HimeDocumentAnalyzer analyzer, HimeMetrics metrics) {
+        this.analyzer = analyzer;
+        this.metrics = metrics;
+        this.cache = new ConcurrentHashMap<>();
+        this.nextResultId = new AtomicLong();
+    }
+
+    /**
+     * Drops the last result for a document
+     *
+     * @param uri The URI of the document
+     */
+    public void invalidate(String uri) {
+        cache.remove(uri);
+    }
+
+    /**
+     * Gets the legend of the semantic tokens
+     *
+     * @return The legend
+     */
+    public Serializable getLegend() {
+        return new Legend();
+    }
+
+    /**
+     * Gets the semantic tokens for a document
+     *
+     * @param uri The URI of the document
+     * @return The tokens, or null if the document has not been analyzed
+     */
+    public HimeSemanticTokens getTokens(String uri) {
+        long start = metrics.start();
+        HimeSemanticTokensEvent event = new HimeSemanticTokensEvent();
+        event.begin();
+        Entry previous = cache.get(uri);
+        Entry entry = getEntry(uri, previous, event);
+        event.end();
+        if (entry == null)
+            return null;
+        if (event.shouldCommit()) {
+            event.uri = uri;
+            event.mode = HimeSemanticTokensEvent.MODE_FULL;
+            event.tokens = entry.data.length / 5;
+            event.commit();
+        }
+        metrics.record(HimeMetrics.TIMER_SEMANTIC_TOKENS, start, uri);
+        return new HimeSemanticTokens(entry.resultId, entry.data);
+    }
+
+    /**
+     * Gets the changes to the semantic tokens of a document since a previous result
+     *
+     * @param uri              The URI of the document
+     * @param previousResultId The identifier of the previous result
+     * @return The changes ({@link HimeSemanticTokensDelta}), all the tokens ({@link HimeSemanticTokens}) when the previous result is no longer known,
+     * or null if the document has not been analyzed
+     */
+    public Serializable getDelta(String uri, String previousResultId) {
+        long start = metrics.start();
+        HimeSemanticTokensEvent event = new HimeSemanticTokensEvent();
+        event.begin();
+        Entry previous = cache.get(uri);
+        Entry entry = getEntry(uri, previous, event);
+        Serializable result = null;
+        int count = 0;
+        if (entry != null && previous != null && previous.resultId.equals(previousResultId)) {
+            HimeSemanticTokensDelta delta = getDelta(previous.data, entry);
+            result = delta;
+            count = delta.getInsertCount() / 5;
+        } else if (entry != null) {
+            result = new HimeSemanticTokens(entry.resultId, entry.data);
+            count = entry.data.length / 5;
+        }
+        event.end();
+        if (result == null)
+            return null;
+        if (event.shouldCommit()) {
+            event.uri = uri;
+            event.mode = result instanceof HimeSemanticTokensDelta ? HimeSemanticTokensEvent.MODE_DELTA : HimeSemanticTokensEvent.MODE_FULL;
+            event.tokens = count;
+            event.commit();
+        }
+        metrics.record(HimeMetrics.TIMER_SEMANTIC_TOKENS, start, uri);
+        return result;
+    }
+
+    /**
+     * Gets the semantic tokens in a range of a document
+     *
+     * @param uri   The URI of the document
+     * @param range The range
+     * @return The tokens, or null if the document has not been analyzed
+     */
+    public HimeSemanticTokens getTokens(String uri, Range range) {
+        long start = metrics.start();
+        HimeSemanticTokensEvent event = new HimeSemanticTokensEvent();
+        event.begin();
+        Entry entry = getEntry(uri, cache.get(uri), event);
+        if (entry == null) {
+            event.end();
+            return null;
+        }
+        int startLine = range.getStart().getLine();
+        int startCharacter = range.getStart().getCharacter();
+        int endLine = range.getEnd().getLine();
+        int endCharacter = range.getEnd().getCharacter();
+        Encoder encoder = new Encoder(64, 0, 0);
+        int line = 0;
+        int character = 0;
+        for (int i = 0; i < entry.data.length; i += 5) {
+            character = entry.data[i] == 0 ? character + entry.data[i + 1] : entry.data[i + 1];
+            line += entry.data[i];
+            if (line > endLine || (line == endLine && character >= endCharacter))
+                break;
+            if (line > startLine || (line == startLine && character + entry.data[i + 2] > startCharacter))
+                encoder.add(line, character, entry.data[i + 2], entry.data[i + 3], entry.data[i + 4]);
+        }
+        HimeSemanticTokens result = new HimeSemanticTokens(null, encoder.toArray());
+        event.end();
+        if (event.shouldCommit()) {
+            event.uri = uri;
+            event.mode = HimeSemanticTokensEvent.MODE_RANGE;
+            event.tokens = result.data.length / 5;
+            event.commit();
+        }
+        metrics.record(HimeMetrics.TIMER_SEMANTIC_TOKENS, start, uri);
+        return result;
+    }
+
+    /**
+     * Gets the result for the current state of a document
+     *
+     * @param uri      The URI of the document
+     * @param previous The last result for the document, if any
+     * @param event    The current event
+     * @return The result, or null if the document has not been analyzed
+     */
+    private Entry getEntry(String uri, Entry previous, HimeSemanticTokensEvent event) {
+        HimeDocumentState state = analyzer.getState(uri);
+        if (state == null)
+            return null;
+        if (previous != null && previous.state == state) {
+            event.cached = true;
+            return previous;
+        }
+        HimeLineIndex lines = null;
+        int[][] parts = new int[state.blocks.size()][];
+        int size = 0;
+        for (int i = 0; i != parts.length; i++) {
+            HimeDocumentBlock block = state.blocks.get(i);
+            parts[i] = block.getSemanticTokens();
+            if (parts[i] == null) {
+                if (lines == null)
+                    lines = new HimeLineIndex(state.content, 0);
+                parts[i] = block.setSemanticTokens(tokenize(block, state.content, lines));
+                event.lexed++;
+            }
+            size += parts[i].length;
+        }
+        // concatenate the tokens of the blocks, only the first token of each block must be re-encoded
+        int[] data = new int[size];
+        int index = 0;
+        int line = 0;
+        int character = 0;
+        for (int i = 0; i != parts.length; i++) {
+            int[] part = parts[i];
+            if (part.length == 0)
+                continue;
+            int blockLine = state.blocks.get(i).line;
+            System.arraycopy(part, 0, data, index, part.length);
+            int first = blockLine + part[0];
+            data[index] = first - line;
+            data[index + 1] = first == line ? part[1] - character : part[1];
+            line = first;
+            character = part[1];
+            for (int j = 5; j < part.length; j += 5) {
+                character = part[j] == 0 ? character + part[j + 1] : part[j + 1];
+                line += part[j];
+            }
+            index += part.length;
+        }
+        Entry result = new Entry(state, Long.toString(nextResultId.incrementAndGet()), data);
+        cache.put(uri, result);
+        return result;
+    }
+
+    /**
+     * Gets the single edit from a previous array of tokens to a new one
+     * The edit replaces everything between the longest common prefix and the longest common suffix.
+     *
+     * @param previous The previous array of tokens
+     * @param entry    The new result
+     * @return The delta
+     */
+    private static HimeSemanticTokensDelta getDelta(int[] previous, Entry entry) {
+        int[] current = entry.data;
+        int prefix = 0;
+        int max = Math.min(previous.length, current.length);
+        while (prefix < max && previous[prefix] == current[prefix])
+            prefix++;
+        int suffix = 0;
+        max -= prefix;
+        while (suffix < max && previous[previous.length - 1 - suffix] == current[current.length - 1 - suffix])
+            suffix++;
+        return new HimeSemanticTokensDelta(
+                entry.resultId,
+                prefix,
+                previous.length - prefix - suffix,
+                current,
+                prefix,
+                current.length - suffix);
+    }
+
+    /**
+     * Produces the semantic tokens of a grammar block
+     * The first token is relative to the first line of the block.
+     *
+     * @param block   The grammar block
+     * @param content The content of the document
+     * @param lines   The index of the lines of the document
+     * @return The encoded tokens
+     */
+    private static int[] tokenize(HimeDocumentBlock block, String content, HimeLineIndex lines) {
+        // the kinds of the symbol occurrences in the block, by encoded start position
+        Map<Long, Integer> occurrences = new HashMap<>();
+        for (int i = 0; i != block.references.size(); i++)
+            occurrences.put(block.references.getRange(i) >>> 16, getType(block.references.getSymbol(i).getKind()));
+        for (int i = 0; i != block.definitions.size(); i++)
+            occurrences.put(block.definitions.getRange(i) >>> 16, getType(block.definitions.getSymbol(i).getKind()) | (MODIFIER_DECLARATION << 16));
+        HimeGrammarLexer lexer = new HimeGrammarLexer(content.substring(block.start, block.getEnd()));
+        // the lexer is lazy, the first request for a token lexes the whole input
+        lexer.getNextToken();
+        Encoder encoder = new Encoder((block.definitions.size() + block.references.size()) * 10, block.line, 0);
+        long name = -1;
+        for (Token token : lexer.getOutput()) {
+            int id = token.getSymbol().getID();
+            long range = lines.getRange(block.start + token.getSpan().getIndex(), token.getSpan().getLength());
+            if (name >= 0 && id == TERMINAL_EQUAL)
+                // the name of an option
+                add(encoder, name, TYPE_OPTION, 0);
+            name = -1;
+            Integer occurrence = occurrences.get(range >>> 16);
+            if (occurrence != null) {
+                if ((occurrence & 0xFFFF) != 0xFFFF)
+                    add(encoder, range, occurrence & 0xFFFF, occurrence >>> 16);
+                continue;
+            }
+            switch (id) {
+                case HimeGrammarLexer.ID.TERMINAL_NAME:
+                    name = range;
+                    break;
+                case HimeGrammarLexer.ID.TERMINAL_BLOCK_OPTIONS:
+                case HimeGrammarLexer.ID.TERMINAL_BLOCK_TERMINALS:
+                case HimeGrammarLexer.ID.TERMINAL_BLOCK_RULES:
+                case HimeGrammarLexer.ID.TERMINAL_BLOCK_CONTEXT:
+                case TERMINAL_FRAGMENT:
+                case TERMINAL_GRAMMAR:
+                    add(encoder, range, TYPE_KEYWORD, 0);
+                    break;
+                case HimeGrammarLexer.ID.TERMINAL_LITERAL_STRING:
+                case HimeGrammarLexer.ID.TERMINAL_LITERAL_TEXT:
+                    add(encoder, range, TYPE_STRING, 0);
+                    break;
+                case HimeGrammarLexer.ID.TERMINAL_INTEGER:
+                    add(encoder, range, TYPE_NUMBER, 0);
+                    break;
+                case HimeGrammarLexer.ID.TERMINAL_LITERAL_ANY:
+                case HimeGrammarLexer.ID.TERMINAL_LITERAL_CLASS:
+                case HimeGrammarLexer.ID.TERMINAL_UNICODE_BLOCK:
+                case HimeGrammarLexer.ID.TERMINAL_UNICODE_CATEGORY:
+                case HimeGrammarLexer.ID.TERMINAL_UNICODE_CODEPOINT:
+                    add(encoder, range, TYPE_REGEXP, 0);
+                    break;
+                case HimeGrammarLexer.ID.TERMINAL_UNICODE_SPAN_MARKER:
+                case HimeGrammarLexer.ID.TERMINAL_OPERATOR_OPTIONAL:
+                case HimeGrammarLexer.ID.TERMINAL_OPERATOR_ZEROMORE:
+                case HimeGrammarLexer.ID.TERMINAL_OPERATOR_ONEMORE:
+                case HimeGrammarLexer.ID.TERMINAL_OPERATOR_UNION:
+                case HimeGrammarLexer.ID.TERMINAL_OPERATOR_DIFFERENCE:
+                case HimeGrammarLexer.ID.TERMINAL_TREE_ACTION_PROMOTE:
+                case HimeGrammarLexer.ID.TERMINAL_TREE_ACTION_DROP:
+                    add(encoder, range, TYPE_OPERATOR, 0);
+                    break;
+                default:
+                    break;
+            }
+        }
+        return encoder.toArray();
+    }
+
+    /**
+     * Adds a token
+     *
+     * @param encoder   The buffer for the tokens
+     * @param range     The encoded range of the token
+     * @param type      The token type
+     * @param modifiers The token modifiers
+     */
+    private static void add(Encoder encoder, long range, int type, int modifiers) {
+        encoder.add(HimeLineIndex.getLine(range), HimeLineIndex.getStart(range), HimeLineIndex.getEnd(range) - HimeLineIndex.getStart(range), type, modifiers);
+    }
+
+    /**
+     * Gets the token type for a kind of symbol
+     *
+     * @param kind The kind of symbol
+     * @return The token type, or 0xFFFF if the symbol is not highlighted
+     */
+    private static int getType(int kind) {
+        switch (kind) {
+            case HimeWorkspace.SYMBOL_GRAMMAR:
+                return TYPE_GRAMMAR;
+            case HimeWorkspace.SYMBOL_CONTEXT:
+                return TYPE_CONTEXT;
+            case HimeWorkspace.SYMBOL_TERMINAL:
+                return TYPE_TERMINAL;
+            case HimeWorkspace.SYMBOL_VARIABLE:
+                return TYPE_VARIABLE;
+            case HimeWorkspace.SYMBOL_VIRTUAL:
+                return TYPE_VIRTUAL;
+            case HimeWorkspace.SYMBOL_ACTION:
+                return TYPE_ACTION;
+            case HimeWorkspace.SYMBOL_PARAM:
+                return TYPE_PARAM;
+            default:
+                return 0xFFFF;
+        }
+    }
+}
@@ -0,0 +1,329 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import fr.cenotelie.commons.jsonrpc.JsonRpcRequest;
+import fr.cenotelie.commons.jsonrpc.JsonRpcResponse;
+import fr.cenotelie.commons.jsonrpc.JsonRpcResponseError;
+import fr.cenotelie.commons.jsonrpc.JsonRpcResponseResult;
+import fr.cenotelie.commons.lsp.server.LspServerHandlerBase;
+import fr.cenotelie.commons.lsp.structures.DidChangeWatchedFilesParams;
+import fr.cenotelie.commons.lsp.structures.DidCloseTextDocumentParams;
+import fr.cenotelie.commons.lsp.structures.ExecuteCommandParams;
+import fr.cenotelie.commons.lsp.structures.FileChangeType;
+import fr.cenotelie.commons.lsp.structures.FileEvent;
+import fr.cenotelie.commons.lsp.structures.InitializeParams;
+import fr.cenotelie.commons.lsp.structures.Position;
+import fr.cenotelie.commons.lsp.structures.Range;
+import fr.cenotelie.commons.lsp.structures.RenameParams;
+import fr.cenotelie.commons.lsp.structures.TextDocumentPositionParams;
+import fr.cenotelie.commons.lsp.structures.WorkspaceSymbolParams;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * The handler of requests for the Hime language server
+ * This adds the requests that are specific to this server to the standard ones.
+ *
+ * @author Laurent Wouters
+ */
+public class HimeServerHandler extends LspServerHandlerBase {
+    /**
+     * The method for requesting the metrics of the server
+     */
+    public static final String METHOD_METRICS = "hime/metrics";
+    /**
+     * The method for requesting the definitions of the symbol at a position
+     */
+    private static final String METHOD_DEFINITION = "textDocument/definition";
+    /**
+     * The method for requesting the highlights for the symbol at a position
+     */
+    private static final String METHOD_HIGHLIGHT = "textDocument/documentHighlight";
+    /**
+     * The method for renaming the symbol at a position
+     */
+    private static final String METHOD_RENAME = "textDocument/rename";
+    /**
+     * The method for requesting the completion items at a position
+     */
+    private static final String METHOD_COMPLETION = "textDocument/completion";
+    /**
+     * The method for searching the symbols in the workspace
+     */
+    private static final String METHOD_WORKSPACE_SYMBOL = "workspace/symbol";
+    /**
+     * The method for requesting all the semantic tokens of a document
+     */
+    private static final String METHOD_SEMANTIC_TOKENS = "textDocument/semanticTokens/full";
+    /**
+     * The method for requesting the changes to the semantic tokens of a document
+     */
+    private static final String METHOD_SEMANTIC_TOKENS_DELTA = "textDocument/semanticTokens/full/delta";
+    /**
+     * The method for requesting the semantic tokens in a range of a document
+     */
+    private static final String METHOD_SEMANTIC_TOKENS_RANGE = "textDocument/semanticTokens/range";
+    /**
+     * The method for initializing the server
+     */
+    private static final String METHOD_INITIALIZE = "initialize";
+    /**
+     * The method for executing a command
+     */
+    private static final String METHOD_EXECUTE_COMMAND = "workspace/executeCommand";
+    /**
+     * The notification for cancelling a long running operation that reports its progress
+     */
+    private static final String METHOD_CANCEL_PROGRESS = "window/workDoneProgress/cancel";
+    /**
+     * The notification for an opened document
+     */
+    private static final String METHOD_DID_OPEN = "textDocument/didOpen";
+    /**
+     * The notification for a changed document
+     */
+    private static final String METHOD_DID_CHANGE = "textDocument/didChange";
+    /**
+     * The notification for a saved document
+     */
+    private static final String METHOD_DID_SAVE = "textDocument/didSave";
+    /**
+     * The notification for a closed document
+     */
+    private static final String METHOD_DID_CLOSE = "textDocument/didClose";
+    /**
+     * The notification for changes of the files watched by the client
+     */
+    private static final String METHOD_DID_CHANGE_WATCHED_FILES = "workspace/didChangeWatchedFiles";
+    /**
+     * The JSON-RPC error code for invalid parameters
+     */
+    private static final int ERROR_INVALID_PARAMETERS = -32602;
+
+    /**
+     * The workspace for this server
+     */
+    private final HimeWorkspace himeWorkspace;
+
+    /**
+     * Initializes this handler
+     *
+     * @param workspace The workspace for this server
+     */
+    public HimeServerHandler(HimeWorkspace workspace) {
+        super(workspace);
+        this.himeWorkspace = workspace;
+    }
+
+    @Override
+    public JsonRpcResponse handle(JsonRpcRequest request) {
+        if (METHOD_DID_OPEN.equals(request.getMethod())
+                || METHOD_DID_CHANGE.equals(request.getMethod())
+                || METHOD_DID_SAVE.equals(request.getMethod())
+                || METHOD_CANCEL_PROGRESS.equals(request.getMethod()))
+            // these only schedule analyses or cancel operations, they must not wait for a running analysis
+            return doHandle(request);
+        // the symbol registry is updated by the analysis thread
+        synchronized (himeWorkspace.getRegistryLock()) {
+            return doHandle(request);
+        }
+    }
+
+    /**
+     * Handles a request while holding the appropriate lock
+     *
+     * @param request The request
+     * @return The response, or null for a notification
+     */
+    private JsonRpcResponse doHandle(JsonRpcRequest request) {
+        if (METHOD_INITIALIZE.equals(request.getMethod())) {
+            // record the support for the progress reports before the workspace is indexed, then let the base handle the request
+            InitializeParams params = (InitializeParams) request.getParams();
+            himeWorkspace.setProgressSupport(
+                    params.getCapabilities() != null && params.getCapabilities().supports("window.workDoneProgress"),
+                    getToken(params.getWorkDoneToken()));
+        }
+        if (METHOD_METRICS.equals(request.getMethod()))
+            return new JsonRpcResponseResult<>(request.getIdentifier(), himeWorkspace.getMetrics());
+        if (METHOD_DEFINITION.equals(request.getMethod())) {
+            // answer from the position index of the document when there is one
+            TextDocumentPositionParams params = (TextDocumentPositionParams) request.getParams();
+            Object result = himeWorkspace.getDefinitions(params.getTextDocument().getUri(), params.getPosition());
+            if (result != null)
+                return new JsonRpcResponseResult<>(request.getIdentifier(), result);
+        }
+        if (METHOD_HIGHLIGHT.equals(request.getMethod())) {
+            TextDocumentPositionParams params = (TextDocumentPositionParams) request.getParams();
+            Object result = himeWorkspace.getHighlights(params.getTextDocument().getUri(), params.getPosition());
+            if (result != null)
+                return new JsonRpcResponseResult<>(request.getIdentifier(), result);
+        }
+        if (METHOD_RENAME.equals(request.getMethod())) {
+            // rename across the workspace, with checks for name collisions
+            RenameParams params = (RenameParams) request.getParams();
+            try {
+                return new JsonRpcResponseResult<>(request.getIdentifier(), himeWorkspace.rename(
+                        params.getTextDocument().getUri(),
+                        params.getPosition(),
+                        params.getNewName()));
+            } catch (IllegalArgumentException ex) {
+                return new JsonRpcResponseError(request.getIdentifier(), ERROR_INVALID_PARAMETERS, ex.getMessage(), null);
+            }
+        }
+        if (METHOD_COMPLETION.equals(request.getMethod())) {
+            TextDocumentPositionParams params = (TextDocumentPositionParams) request.getParams();
+            Object result = himeWorkspace.getCompletions(params.getTextDocument().getUri(), params.getPosition());
+            if (result != null)
+                return new JsonRpcResponseResult<>(request.getIdentifier(), result);
+        }
+        if (METHOD_WORKSPACE_SYMBOL.equals(request.getMethod())) {
+            // answer from the trigram index instead of scanning all the symbols
+            WorkspaceSymbolParams params = (WorkspaceSymbolParams) request.getParams();
+            return new JsonRpcResponseResult<>(request.getIdentifier(), himeWorkspace.searchSymbols(params.getQuery()));
+        }
+        if (METHOD_SEMANTIC_TOKENS.equals(request.getMethod())) {
+            // the parameters are not known to the LSP library and are received as generic JSON objects
+            String uri = (String) getMember(request.getParams(), "textDocument", "uri");
+            return new JsonRpcResponseResult<>(request.getIdentifier(), uri == null ? null : himeWorkspace.getSemanticTokens(uri));
+        }
+        if (METHOD_SEMANTIC_TOKENS_DELTA.equals(request.getMethod())) {
+            String uri = (String) getMember(request.getParams(), "textDocument", "uri");
+            String previous = (String) getMember(request.getParams(), "previousResultId");
+            return new JsonRpcResponseResult<>(request.getIdentifier(), uri == null ? null : himeWorkspace.getSemanticTokensDelta(uri, previous));
+        }
+        if (METHOD_SEMANTIC_TOKENS_RANGE.equals(request.getMethod())) {
+            String uri = (String) getMember(request.getParams(), "textDocument", "uri");
+            Range range = getRange(getMember(request.getParams(), "range"));
+            return new JsonRpcResponseResult<>(request.getIdentifier(), uri == null || range == null ? null : himeWorkspace.getSemanticTokens(uri, range));
+        }
+        if (METHOD_EXECUTE_COMMAND.equals(request.getMethod())) {
+            ExecuteCommandParams params = (ExecuteCommandParams) request.getParams();
+            Object[] arguments = params.getArguments();
+            if (HimeCompiler.COMMAND_COMPILE.equals(params.getCommand())) {
+                // the arguments are the URI of the document and the name of the grammar
+                Object uri = getArgument(arguments, 0);
+                Object grammar = getArgument(arguments, 1);
+                if (!(grammar instanceof String))
+                    return new JsonRpcResponseError(request.getIdentifier(), ERROR_INVALID_PARAMETERS, "Expected the URI of a document and the name of a grammar.", null);
+                try {
+                    return new JsonRpcResponseResult<>(request.getIdentifier(), himeWorkspace.compile((String) grammar, uri instanceof String ? (String) uri : null, getToken(params.getWorkDoneToken())));
+                } catch (IllegalArgumentException ex) {
+                    return new JsonRpcResponseError(request.getIdentifier(), ERROR_INVALID_PARAMETERS, ex.getMessage(), null);
+                }
+            }
+            if (HimeCompiler.COMMAND_TEST.equals(params.getCommand())) {
+                // the arguments are the URI of the document, the name of the grammar and the path to the input
+                Object uri = getArgument(arguments, 0);
+                Object grammar = getArgument(arguments, 1);
+                Object path = getArgument(arguments, 2);
+                if (!(grammar instanceof String))
+                    return new JsonRpcResponseError(request.getIdentifier(), ERROR_INVALID_PARAMETERS, "Expected the URI of a document, the name of a grammar and the path to an input.", null);
+                if (path == null)
+                    // the code lens does not know the input, the client is expected to ask for it and run the command again
+                    return new JsonRpcResponseResult<>(request.getIdentifier(), new HimeTestResult(null, (String) grammar, null, HimeTestResult.STATUS_INPUT_REQUIRED, 0, 0, 0, new ArrayList<HimeTestRunner.SyntaxError>(0), 0, null, "No input was given, run the command again with the path to an input as the third argument."));
+                if (!(path instanceof String))
+                    return new JsonRpcResponseError(request.getIdentifier(), ERROR_INVALID_PARAMETERS, "Expected the URI of a document, the name of a grammar and the path to an input.", null);
+                try {
+                    return new JsonRpcResponseResult<>(request.getIdentifier(), himeWorkspace.test((String) grammar, uri instanceof String ? (String) uri : null, (String) path, getToken(params.getWorkDoneToken())));
+                } catch (IllegalArgumentException ex) {
+                    return new JsonRpcResponseError(request.getIdentifier(), ERROR_INVALID_PARAMETERS, ex.getMessage(), null);
+                }
+            }
+        }
+        if (METHOD_CANCEL_PROGRESS.equals(request.getMethod())) {
+            Object token = getToken(getMember(request.getParams(), "token"));
+            if (token != null)
+                himeWorkspace.cancelCompilation(token.toString());
+            // this is a notification, there is no response
+            return null;
+        }
+        if (METHOD_DID_CLOSE.equals(request.getMethod())) {
+            // forget the document before the base handles the notification, in case it analyzes the document again
+            DidCloseTextDocumentParams params = (DidCloseTextDocumentParams) request.getParams();
+            himeWorkspace.onDocumentClosed(params.getTextDocument().getUri());
+        }
+        if (METHOD_DID_CHANGE_WATCHED_FILES.equals(request.getMethod())) {
+            DidChangeWatchedFilesParams params = (DidChangeWatchedFilesParams) request.getParams();
+            for (FileEvent event : params.getChanges()) {
+                if (event.getType() == FileChangeType.DELETED)
+                    himeWorkspace.onDocumentDeleted(event.getUri());
+            }
+        }
+        return super.handle(request);
+    }
+
+    /**
+     * Gets an argument of a command
+     *
+     * @param arguments The arguments of the command, if any
+     * @param index     The index of the argument
+     * @return The argument, or null if it is not found
+     */
+    private static Object getArgument(Object[] arguments, int index) {
+        return arguments != null && index < arguments.length ? arguments[index] : null;
+    }
+
+    /**
+     * Gets a progress token provided by the client
+     *
+     * @param token The token as received
+     * @return The token (a string or a number), or null if there is none
+     */
+    private static Object getToken(Object token) {
+        if (token instanceof Number)
+            // integer tokens may be read as floating point numbers
+            return ((Number) token).longValue();
+        return token instanceof String ? token : null;
+    }
+
+    /**
+     * Gets a member of a generic JSON object
+     *
+     * @param object The JSON object
+     * @param path   The names of the members to follow
+     * @return The value of the member, or null if it is not found
+     */
+    private static Object getMember(Object object, String... path) {
+        for (String name : path) {
+            if (!(object instanceof Map))
+                return null;
+            object = ((Map<?, ?>) object).get(name);
+        }
+        return object;
+    }
+
+    /**
+     * Gets a range from a generic JSON object
+     *
+     * @param object The JSON object
+     * @return The range, or null if it is malformed
+     */
+    private static Range getRange(Object object) {
+        Object startLine = getMember(object, "start", "line");
+        Object startCharacter = getMember(object, "start", "character");
+        Object endLine = getMember(object, "end", "line");
+        Object endCharacter = getMember(object, "end", "character");
+        if (!(startLine instanceof Number) || !(startCharacter instanceof Number) || !(endLine instanceof Number) || !(endCharacter instanceof Number))
+            return null;
+        return new Range(
+                new Position(((Number) startLine).intValue(), ((Number) startCharacter).intValue()),
+                new Position(((Number) endLine).intValue(), ((Number) endCharacter).intValue()));
+    }
+}
@@ -27,6 +27,7 @@ import fr.cenotelie.commons.lsp.structures.TextEdit;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Objects;
+import java.util.regex.Pattern;
 
 /**
  * The symbol handler for grammar symbols
@@ -34,6 +35,25 @@ import java.util.Objects;
  * @author Laurent Wouters
  */
 public class HimeSymbolHandler implements DocumentSymbolHandler {
+    /**
+     * The pattern for legal symbol names
+     */
+    private static final Pattern NAME = Pattern.compile("[_a-zA-Z][_a-zA-Z0-9]*");
+
+    /**
+     * The analyzer for Hime grammars
+     */
+    private final HimeDocumentAnalyzer analyzer;
+
+    /**
+     * Initializes this handler
+     *
+     * @param analyzer The analyzer for Hime grammars
+     */
+    public HimeSymbolHandler(HimeDocumentAnalyzer analyzer) {
+        this.analyzer = analyzer;
+    }
+
     @Override
     public int getPriorityFor(Document document) {
         if (Objects.equals(document.getLanguageId(), HimeWorkspace.LANGUAGE))
@@ -51,24 +71,45 @@ public class HimeSymbolHandler implements DocumentSymbolHandler {
             case HimeWorkspace.SYMBOL_PARAM:
             case HimeWorkspace.SYMBOL_GRAMMAR:
             case HimeWorkspace.SYMBOL_CONTEXT:
-                return newName.matches("[_a-zA-Z][_a-zA-Z0-9]*");
+                return NAME.matcher(newName).matches();
         }
         return false;
     }
 
     @Override
     public TextEdit[] rename(Document document, Symbol symbol, String newName) {
+        // the renames requested by the client go through the rename engine, which records the metrics
+        return getEdits(document.getUri(), symbol, newName);
+    }
+
+    /**
+     * Gets the edits for renaming a symbol in a document
+     * This method can be called concurrently.
+     *
+     * @param uri     The URI of the document
+     * @param symbol  The symbol to rename
+     * @param newName The new name for the symbol
+     * @return The edits
+     */
+    public TextEdit[] getEdits(String uri, Symbol symbol, String newName) {
         Collection<TextEdit> result = new ArrayList<>();
-        Collection<Range> ranges = symbol.getDefinitionsIn(document.getUri());
-        if (ranges != null) {
-            for (Range range : ranges) {
-                result.add(new TextEdit(range, newName));
+        HimePositionIndex positions = analyzer.getPositions(uri);
+        if (positions != null) {
+            for (int i = positions.getFirst(symbol.getIdentifier()); i >= 0; i = positions.getNext(i))
+                result.add(new TextEdit(HimeLineIndex.toRange(positions.getRange(i)), newName));
+        } else {
+            // the document has no state, fall back to the symbol
+            Collection<Range> ranges = symbol.getDefinitionsIn(uri);
+            if (ranges != null) {
+                for (Range range : ranges) {
+                    result.add(new TextEdit(range, newName));
+                }
             }
-        }
-        ranges = symbol.getReferencesIn(document.getUri());
-        if (ranges != null) {
-            for (Range range : ranges) {
-                result.add(new TextEdit(range, newName));
+            ranges = symbol.getReferencesIn(uri);
+            if (ranges != null) {
+                for (Range range : ranges) {
+                    result.add(new TextEdit(range, newName));
+                }
             }
         }
         return result.toArray(new TextEdit[result.size()]);
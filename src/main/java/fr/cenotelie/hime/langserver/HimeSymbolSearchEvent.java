@@ -0,0 +1,48 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The Java Flight Recorder event for a search of symbols in the workspace
+ *
+ * @author Laurent Wouters
+ */
+@Name("fr.cenotelie.hime.SymbolSearch")
+@Label("Symbol Search")
+@Description("Search of the symbols in the workspace")
+public class HimeSymbolSearchEvent extends HimeEvent {
+    /**
+     * The query
+     */
+    @Label("Query")
+    public String query;
+    /**
+     * The number of indexed symbols
+     */
+    @Label("Indexed")
+    public int indexed;
+    /**
+     * The number of produced results
+     */
+    @Label("Results")
+    public int results;
+}
@@ -0,0 +1,605 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import fr.cenotelie.commons.lsp.engine.Symbol;
+import fr.cenotelie.commons.lsp.structures.Location;
+import fr.cenotelie.commons.lsp.structures.SymbolInformation;
+
+import java.util.*;
+
+/**
+ * An index of the symbols defined in the workspace for fuzzy searches by name
+ * <p>
+ * The names are normalized by dropping the separators and the case.
+ * The index maps each trigram of the normalized names to the list of the entries that contain it (the postings).
+ * The first letters of each part of a name (separated by an underscore, a change of case or a digit) are indexed
+ * as trigrams padded with a boundary character, so that queries of one or two characters can be answered.
+ * The acronym of a name, made of the first letters of its parts, is indexed in the same way.
+ * A query only scores the entries that contain at least half of its trigrams.
+ * <p>
+ * The entries of a document are replaced when the document is analyzed again.
+ * Removed entries are only marked and the index is compacted when they become the majority.
+ *
+ * @author Laurent Wouters
+ */
+public class HimeSymbolSearchIndex {
+    /**
+     * The system property for the maximum number of results for a query
+     */
+    public static final String PROPERTY_LIMIT = "hime.symbols.limit";
+    /**
+     * The default maximum number of results for a query
+     */
+    private static final int DEFAULT_LIMIT = 100;
+    /**
+     * The minimum number of removed entries before the index is compacted
+     */
+    private static final int COMPACTION_THRESHOLD = 1024;
+    /**
+     * The character used to pad the trigrams at the start of the parts of a name
+     */
+    private static final char BOUNDARY = 0;
+    /**
+     * The score of a name that is equal to the query
+     */
+    private static final int SCORE_EXACT = 1000;
+    /**
+     * The bonus for a name that starts with the query
+     */
+    private static final int SCORE_PREFIX = 200;
+    /**
+     * The score for each matched character
+     */
+    private static final int SCORE_MATCH = 10;
+    /**
+     * The bonus for a character matched at the start of a part of the name
+     */
+    private static final int SCORE_PART_START = 15;
+    /**
+     * The bonus for a character matched just after the previous one
+     */
+    private static final int SCORE_CONSECUTIVE = 8;
+
+    /**
+     * The list of the entries that contain a trigram
+     */
+    private static class Postings {
+        /**
+         * The identifiers of the entries, in increasing order
+         */
+        private int[] entries;
+        /**
+         * The number of entries
+         */
+        private int size;
+
+        /**
+         * Initializes this list
+         */
+        public Postings() {
+            this.entries = new int[4];
+            this.size = 0;
+        }
+
+        /**
+         * Adds an entry to this list
+         *
+         * @param entry The identifier of the entry
+         */
+        public void add(int entry) {
+            if (size > 0 && entries[size - 1] == entry)
+                // the trigram occurs multiple times in the entry
+                return;
+            if (size == entries.length)
+                entries = Arrays.copyOf(entries, size * 2);
+            entries[size++] = entry;
+        }
+    }
+
+    /**
+     * A result for a query
+     */
+    private static class Result {
+        /**
+         * The identifier of the entry
+         */
+        private final int entry;
+        /**
+         * The score of the entry for the query
+         */
+        private final int score;
+
+        /**
+         * Initializes this result
+         *
+         * @param entry The identifier of the entry
+         * @param score The score of the entry for the query
+         */
+        public Result(int entry, int score) {
+            this.entry = entry;
+            this.score = score;
+        }
+    }
+
+    /**
+     * The maximum number of results for a query
+     */
+    private final int limit;
+    /**
+     * The names of the entries
+     */
+    private String[] names;
+    /**
+     * The normalized names of the entries
+     */
+    private String[] keys;
+    /**
+     * The names of the containers of the entries, if any
+     */
+    private String[] containers;
+    /**
+     * The URIs of the documents that define the entries, or null for removed entries
+     */
+    private String[] uris;
+    /**
+     * The kinds of the symbols for the entries
+     */
+    private int[] kinds;
+    /**
+     * The encoded ranges of the definitions for the entries (see {@link HimeLineIndex})
+     */
+    private long[] ranges;
+    /**
+     * The number of entries, including the removed ones
+     */
+    private int count;
+    /**
+     * The number of removed entries
+     */
+    private int removed;
+    /**
+     * The identifiers of the entries, by URI of the defining document
+     */
+    private final Map<String, int[]> documents;
+    /**
+     * The postings, by trigram
+     */
+    private final Map<Long, Postings> postings;
+    /**
+     * The buffer for the number of trigrams of a query found in each entry
+     */
+    private int[] hits;
+
+    /**
+     * Initializes this index
+     */
+    public HimeSymbolSearchIndex() {
+        this.limit = Math.max(1, Integer.getInteger(PROPERTY_LIMIT, DEFAULT_LIMIT));
+        this.names = new String[64];
+        this.keys = new String[64];
+        this.containers = new String[64];
+        this.uris = new String[64];
+        this.kinds = new int[64];
+        this.ranges = new long[64];
+        this.count = 0;
+        this.removed = 0;
+        this.documents = new HashMap<>();
+        this.postings = new HashMap<>();
+        this.hits = new int[64];
+    }
+
+    /**
+     * Gets the number of symbols in this index
+     *
+     * @return The number of symbols in this index
+     */
+    public synchronized int size() {
+        return count - removed;
+    }
+
+    /**
+     * Replaces the entries for a document with the symbols defined in its grammar blocks
+     *
+     * @param uri    The URI of the document
+     * @param blocks The grammar blocks in the document
+     */
+    public synchronized void update(String uri, List<HimeDocumentBlock> blocks) {
+        remove(uri);
+        int size = 0;
+        for (HimeDocumentBlock block : blocks)
+            size += block.definitions.size();
+        if (size == 0)
+            return;
+        int[] entries = new int[size];
+        int next = 0;
+        for (HimeDocumentBlock block : blocks) {
+            for (int i = 0; i != block.definitions.size(); i++) {
+                Symbol symbol = block.definitions.getSymbol(i);
+                String identifier = symbol.getIdentifier();
+                int index = identifier.length() - symbol.getName().length() - 1;
+                entries[next++] = add(
+                        symbol.getName(),
+                        index > 0 && identifier.charAt(index) == '.' ? identifier.substring(0, index) : null,
+                        uri,
+                        symbol.getKind(),
+                        block.definitions.getRange(i));
+            }
+        }
+        documents.put(uri, entries);
+    }
+
+    /**
+     * Removes the entries for a document
+     *
+     * @param uri The URI of the document
+     */
+    public synchronized void remove(String uri) {
+        int[] entries = documents.remove(uri);
+        if (entries == null)
+            return;
+        for (int entry : entries) {
+            uris[entry] = null;
+            names[entry] = null;
+            keys[entry] = null;
+            containers[entry] = null;
+        }
+        removed += entries.length;
+        if (removed >= COMPACTION_THRESHOLD && removed * 2 > count)
+            compact();
+    }
+
+    /**
+     * Searches for the symbols that match a query
+     * A query of the form `Container.name` only matches the symbols whose container matches the first part.
+     *
+     * @param query The query
+     * @return The matching symbols, the best matches first
+     */
+    public synchronized SymbolInformation[] search(String query) {
+        String term = query == null ? "" : query.trim();
+        String scope = null;
+        int dot = term.lastIndexOf('.');
+        if (dot >= 0) {
+            scope = normalize(term.substring(0, dot));
+            term = term.substring(dot + 1);
+        }
+        String key = normalize(term);
+        PriorityQueue<Result> results = new PriorityQueue<>(limit + 1, new Comparator<Result>() {
+            @Override
+            public int compare(Result left, Result right) {
+                // the worst result first
+                if (left.score != right.score)
+                    return Integer.compare(left.score, right.score);
+                if (keys[left.entry].length() != keys[right.entry].length())
+                    return Integer.compare(keys[right.entry].length(), keys[left.entry].length());
+                return names[right.entry].compareTo(names[left.entry]);
+            }
+        });
+        if (key.isEmpty()) {
+            // no ranking, take the first entries
+            for (int i = 0; i != count && results.size() < limit; i++) {
+                if (uris[i] != null && inScope(i, scope))
+                    results.add(new Result(i, 0));
+            }
+        } else if (key.length() < 3) {
+            Postings list = postings.get(getTrigram(BOUNDARY, key.length() == 1 ? BOUNDARY : key.charAt(0), key.charAt(key.length() - 1)));
+            if (list != null) {
+                for (int i = 0; i != list.size; i++)
+                    offer(results, list.entries[i], key, scope);
+            }
+        } else {
+            searchTrigrams(results, key, scope);
+        }
+        SymbolInformation[] result = new SymbolInformation[results.size()];
+        for (int i = result.length - 1; i >= 0; i--) {
+            int entry = results.poll().entry;
+            result[i] = new SymbolInformation(
+                    names[entry],
+                    kinds[entry],
+                    new Location(uris[entry], HimeLineIndex.toRange(ranges[entry])),
+                    containers[entry]);
+        }
+        return result;
+    }
+
+    /**
+     * Collects the results for a query of at least three characters
+     *
+     * @param results The buffer for the results
+     * @param key     The normalized query
+     * @param scope   The normalized container of the query, if any
+     */
+    private void searchTrigrams(PriorityQueue<Result> results, String key, String scope) {
+        Set<Long> trigrams = new HashSet<>();
+        for (int i = 0; i + 2 < key.length(); i++)
+            trigrams.add(getTrigram(key.charAt(i), key.charAt(i + 1), key.charAt(i + 2)));
+        int required = (trigrams.size() + 1) / 2;
+        if (hits.length < count)
+            hits = new int[names.length];
+        int[] touched = new int[16];
+        int touchedCount = 0;
+        for (Long trigram : trigrams) {
+            Postings list = postings.get(trigram);
+            if (list == null)
+                continue;
+            for (int i = 0; i != list.size; i++) {
+                int entry = list.entries[i];
+                if (hits[entry]++ == 0) {
+                    if (touchedCount == touched.length)
+                        touched = Arrays.copyOf(touched, touchedCount * 2);
+                    touched[touchedCount++] = entry;
+                }
+            }
+        }
+        for (int i = 0; i != touchedCount; i++) {
+            int entry = touched[i];
+            if (hits[entry] >= required)
+                offer(results, entry, key, scope);
+            hits[entry] = 0;
+        }
+    }
+
+    /**
+     * Scores an entry for a query and keeps it if it is one of the best results
+     *
+     * @param results The buffer for the results
+     * @param entry   The identifier of the entry
+     * @param key     The normalized query
+     * @param scope   The normalized container of the query, if any
+     */
+    private void offer(PriorityQueue<Result> results, int entry, String key, String scope) {
+        if (uris[entry] == null)
+            return;
+        if (results.size() == limit && results.peek().score > getMaximumScore(key, keys[entry]))
+            // cannot be better than the current results
+            return;
+        if (!inScope(entry, scope))
+            return;
+        int score = score(key, names[entry], keys[entry]);
+        if (score < 0)
+            return;
+        if (results.size() == limit && results.peek().score > score)
+            return;
+        results.add(new Result(entry, score));
+        if (results.size() > limit)
+            results.poll();
+    }
+
+    /**
+     * Gets whether an entry is in the container of a query
+     *
+     * @param entry The identifier of the entry
+     * @param scope The normalized container of the query, if any
+     * @return Whether the entry is in the container
+     */
+    private boolean inScope(int entry, String scope) {
+        if (scope == null || scope.isEmpty())
+            return true;
+        return containers[entry] != null && normalize(containers[entry]).contains(scope);
+    }
+
+    /**
+     * Adds an entry to this index
+     *
+     * @param name      The name of the symbol
+     * @param container The name of the container of the symbol, if any
+     * @param uri       The URI of the defining document
+     * @param kind      The kind of the symbol
+     * @param range     The encoded range of the definition
+     * @return The identifier of the new entry
+     */
+    private int add(String name, String container, String uri, int kind, long range) {
+        if (count == names.length) {
+            int capacity = count * 2;
+            names = Arrays.copyOf(names, capacity);
+            keys = Arrays.copyOf(keys, capacity);
+            containers = Arrays.copyOf(containers, capacity);
+            uris = Arrays.copyOf(uris, capacity);
+            kinds = Arrays.copyOf(kinds, capacity);
+            ranges = Arrays.copyOf(ranges, capacity);
+        }
+        int entry = count++;
+        names[entry] = name;
+        keys[entry] = normalize(name);
+        containers[entry] = container;
+        uris[entry] = uri;
+        kinds[entry] = kind;
+        ranges[entry] = range;
+        index(entry);
+        return entry;
+    }
+
+    /**
+     * Adds the trigrams of an entry to the postings
+     *
+     * @param entry The identifier of the entry
+     */
+    private void index(int entry) {
+        String name = names[entry];
+        String key = keys[entry];
+        for (int i = 0; i + 2 < key.length(); i++)
+            post(getTrigram(key.charAt(i), key.charAt(i + 1), key.charAt(i + 2)), entry);
+        StringBuilder initials = new StringBuilder();
+        int position = 0;
+        char previous = BOUNDARY;
+        for (int i = 0; i != name.length(); i++) {
+            char c = name.charAt(i);
+            if (!Character.isLetterOrDigit(c)) {
+                previous = BOUNDARY;
+                continue;
+            }
+            if (isPartStart(previous, c)) {
+                if (initials.length() > 0)
+                    post(getTrigram(BOUNDARY, initials.charAt(initials.length() - 1), key.charAt(position)), entry);
+                initials.append(key.charAt(position));
+                post(getTrigram(BOUNDARY, BOUNDARY, key.charAt(position)), entry);
+                if (position + 1 < key.length())
+                    post(getTrigram(BOUNDARY, key.charAt(position), key.charAt(position + 1)), entry);
+            }
+            previous = c;
+            position++;
+        }
+        // the trigrams of the acronym of the name, the bigrams are padded above
+        for (int i = 0; i + 2 < initials.length(); i++)
+            post(getTrigram(initials.charAt(i), initials.charAt(i + 1), initials.charAt(i + 2)), entry);
+    }
+
+    /**
+     * Adds an entry to the postings of a trigram
+     *
+     * @param trigram The trigram
+     * @param entry   The identifier of the entry
+     */
+    private void post(long trigram, int entry) {
+        Postings list = postings.get(trigram);
+        if (list == null) {
+            list = new Postings();
+            postings.put(trigram, list);
+        }
+        list.add(entry);
+    }
+
+    /**
+     * Drops the removed entries and rebuilds the postings
+     */
+    private void compact() {
+        int[] mapping = new int[count];
+        int next = 0;
+        for (int i = 0; i != count; i++) {
+            if (uris[i] == null)
+                continue;
+            mapping[i] = next;
+            names[next] = names[i];
+            keys[next] = keys[i];
+            containers[next] = containers[i];
+            uris[next] = uris[i];
+            kinds[next] = kinds[i];
+            ranges[next] = ranges[i];
+            next++;
+        }
+        Arrays.fill(names, next, count, null);
+        Arrays.fill(keys, next, count, null);
+        Arrays.fill(containers, next, count, null);
+        Arrays.fill(uris, next, count, null);
+        count = next;
+        removed = 0;
+        for (int[] entries : documents.values()) {
+            for (int i = 0; i != entries.length; i++)
+                entries[i] = mapping[entries[i]];
+        }
+        postings.clear();
+        for (int i = 0; i != count; i++)
+            index(i);
+    }
+
+    /**
+     * Computes the score of a name for a query
+     * The characters of the query must appear in order in the name.
+     * Matches at the start of the parts of the name and consecutive matches are favored,
+     * as well as names that are equal to or start with the query.
+     *
+     * @param key        The normalized query
+     * @param name       The name
+     * @param normalized The normalized name
+     * @return The score, or -1 if the name does not match
+     */
+    private static int score(String key, String name, String normalized) {
+        if (normalized.equals(key))
+            return SCORE_EXACT;
+        int score = normalized.startsWith(key) ? SCORE_PREFIX : 0;
+        int matched = 0;
+        boolean consecutive = false;
+        char previous = BOUNDARY;
+        for (int i = 0; i != name.length() && matched != key.length(); i++) {
+            char c = name.charAt(i);
+            if (!Character.isLetterOrDigit(c)) {
+                previous = BOUNDARY;
+                continue;
+            }
+            if (Character.toLowerCase(c) == key.charAt(matched)) {
+                score += SCORE_MATCH;
+                if (isPartStart(previous, c))
+                    score += SCORE_PART_START;
+                if (consecutive)
+                    score += SCORE_CONSECUTIVE;
+                matched++;
+                consecutive = true;
+            } else {
+                consecutive = false;
+            }
+            previous = c;
+        }
+        return matched == key.length() ? score : -1;
+    }
+
+    /**
+     * Gets an upper bound of the score of a name for a query
+     *
+     * @param key        The normalized query
+     * @param normalized The normalized name
+     * @return The upper bound of the score
+     */
+    private static int getMaximumScore(String key, String normalized) {
+        if (normalized.length() == key.length())
+            return SCORE_EXACT;
+        return (normalized.startsWith(key) ? SCORE_PREFIX : 0)
+                + key.length() * (SCORE_MATCH + SCORE_PART_START + SCORE_CONSECUTIVE) - SCORE_CONSECUTIVE;
+    }
+
+    /**
+     * Gets whether a character starts a part of a name
+     *
+     * @param previous The previous letter or digit in the name, or the boundary character
+     * @param c        The character
+     * @return Whether the character starts a part
+     */
+    private static boolean isPartStart(char previous, char c) {
+        return previous == BOUNDARY
+                || (Character.isUpperCase(c) && Character.isLowerCase(previous))
+                || (Character.isDigit(c) != Character.isDigit(previous));
+    }
+
+    /**
+     * Normalizes a name by keeping only the letters and digits, in lower case
+     *
+     * @param name The name
+     * @return The normalized name
+     */
+    private static String normalize(String name) {
+        StringBuilder builder = new StringBuilder(name.length());
+        for (int i = 0; i != name.length(); i++) {
+            char c = name.charAt(i);
+            if (Character.isLetterOrDigit(c))
+                builder.append(Character.toLowerCase(c));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Encodes a trigram
+     *
+     * @param a The first character
+     * @param b The second character
+     * @param c The third character
+     * @return The encoded trigram
+     */
+    private static long getTrigram(char a, char b, char c) {
+        return ((long) a << 32) | ((long) b << 16) | c;
+    }
+}
@@ -0,0 +1,64 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+
+package fr.cenotelie.hime.langserver;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The Java Flight Recorder event for the test of a grammar on an input
+ *
+ * @author Laurent Wouters
+ */
+@Name("fr.cenotelie.hime.Test")
+@Label("Test")
+@Description("Test of the automata of a grammar on an input")
+public class HimeTestEvent extends HimeEvent {
+    /**
+     * The name of the grammar
+     */
+    @Label("Grammar")
+    public String grammar;
+    /**
+     * The path to the input
+     */
+    @Label("Input")
+    public String input;
+    /**
+     * The status at the end of the test
+     */
+    @Label("Status")
+    public String status;
+    /**
+     * The number of characters read from the input
+     */
+    @Label("Characters")
+    public long chars;
+    /**
+     * The number of tokens
+     */
+    @Label("Tokens")
+    public long tokens;
+    /**
+     * The number of errors
+     */
+    @Label("Errors")
+    public long errors;
+}
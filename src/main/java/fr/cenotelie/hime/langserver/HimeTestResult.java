@@ -0,0 +1,194 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+
+package fr.cenotelie.hime.langserver;
+
+import fr.cenotelie.commons.utils.Serializable;
+import fr.cenotelie.commons.utils.TextUtils;
+
+import java.util.List;
+
+/**
+ * The status of a test of a grammar on an input
+ * It is the result of the `hime.test` command, and the parameters of the `hime/test` notifications that are sent while the test runs.
+ * Each notification only contains the errors found since the previous one.
+ *
+ * @author Laurent Wouters
+ */
+public class HimeTestResult implements Serializable {
+    /**
+     * The test is running in the background
+     */
+    public static final String STATUS_RUNNING = "running";
+    /**
+     * The whole input has been processed
+     */
+    public static final String STATUS_COMPLETED = "completed";
+    /**
+     * The test failed, either because the grammar cannot be compiled or the input cannot be read
+     */
+    public static final String STATUS_FAILED = "failed";
+    /**
+     * The test was cancelled
+     */
+    public static final String STATUS_CANCELLED = "cancelled";
+    /**
+     * The test was not started because no input was given
+     * The client is expected to ask for an input and run the command again with its path.
+     */
+    public static final String STATUS_INPUT_REQUIRED = "input-required";
+
+    /**
+     * The token of the progress of the test, or null if the test was not started
+     */
+    public final String token;
+    /**
+     * The name of the grammar
+     */
+    public final String grammar;
+    /**
+     * The path to the input, or null if no input was given
+     */
+    public final String input;
+    /**
+     * The status of the test
+     */
+    public final String status;
+    /**
+     * The number of characters (UTF-16 code units) read so far
+     */
+    public final long chars;
+    /**
+     * The number of tokens passed to the parser so far
+     */
+    public final long tokens;
+    /**
+     * The total number of errors found so far
+     */
+    public final long errorCount;
+    /**
+     * The errors found since the previous notification
+     */
+    public final List<HimeTestRunner.SyntaxError> errors;
+    /**
+     * The time spent so far, in milliseconds
+     */
+    public final long time;
+    /**
+     * The preview of the AST, once the input has been accepted
+     */
+    public final HimeTestRunner.Node preview;
+    /**
+     * The message explaining a failure, if any
+     */
+    public final String message;
+
+    /**
+     * Initializes this status
+     *
+     * @param token      The token of the progress of the test, or null if the test was not started
+     * @param grammar    The name of the grammar
+     * @param input      The path to the input, or null if no input was given
+     * @param status     The status of the test
+     * @param chars      The number of characters (UTF-16 code units) read so far
+     * @param tokens     The number of tokens passed to the parser so far
+     * @param errorCount The total number of errors found so far
+     * @param errors     The errors found since the previous notification
+     * @param time       The time spent so far, in milliseconds
+     * @param preview    The preview of the AST, once the input has been accepted
+     * @param message    The message explaining a failure, if any
+     */
+    public HimeTestResult(String token, String grammar, String input, String status, long chars, long tokens, long errorCount, List<HimeTestRunner.SyntaxError> errors, long time, HimeTestRunner.Node preview, String message) {
+        this.token = token;
+        this.grammar = grammar;
+        this.input = input;
+        this.status = status;
+        this.chars = chars;
+        this.tokens = tokens;
+        this.errorCount = errorCount;
+        this.errors = errors;
+        this.time = time;
+        this.preview = preview;
+        this.message = message;
+    }
+
+    /**
+     * Gets the throughput of the test
+     *
+     * @return The number of characters processed per second
+     */
+    public long getThroughput() {
+        return time == 0 ? chars * 1000 : chars * 1000 / time;
+    }
+
+    /**
+     * Gets a short description of this status
+     *
+     * @return The description
+     */
+    public String getSummary() {
+        return tokens + " tokens, " + errorCount + " errors, " + (getThroughput() / 1024) + " K chars/s";
+    }
+
+    @Override
+    public String serializedString() {
+        return getSummary();
+    }
+
+    @Override
+    public String serializedJSON() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("{\"token\": ");
+        appendString(builder, token);
+        builder.append(", \"grammar\": \"").append(TextUtils.escapeStringJSON(grammar)).append("\"");
+        builder.append(", \"input\": ");
+        appendString(builder, input);
+        builder.append(", \"status\": \"").append(status).append("\"");
+        builder.append(", \"chars\": ").append(chars);
+        builder.append(", \"tokens\": ").append(tokens);
+        builder.append(", \"errorCount\": ").append(errorCount);
+        builder.append(", \"errors\": [");
+        for (int i = 0; i != errors.size(); i++) {
+            if (i != 0)
+                builder.append(", ");
+            builder.append(errors.get(i).serializedJSON());
+        }
+        builder.append("]");
+        builder.append(", \"time\": ").append(time);
+        builder.append(", \"throughput\": ").append(getThroughput());
+        if (preview != null)
+            builder.append(", \"preview\": ").append(preview.serializedJSON());
+        if (message != null)
+            builder.append(", \"message\": \"").append(TextUtils.escapeStringJSON(message)).append("\"");
+        builder.append("}");
+        return builder.toString();
+    }
+
+    /**
+     * Appends a JSON string that may be null
+     *
+     * @param builder The builder to append to
+     * @param value   The value of the string
+     */
+    private static void appendString(StringBuilder builder, String value) {
+        if (value == null)
+            builder.append("null");
+        else
+            builder.append("\"").append(TextUtils.escapeStringJSON(value)).append("\"");
+    }
+}
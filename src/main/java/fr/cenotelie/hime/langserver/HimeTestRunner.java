@@ -0,0 +1,558 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+
+package fr.cenotelie.hime.langserver;
+
+import fr.cenotelie.commons.utils.Serializable;
+import fr.cenotelie.commons.utils.TextUtils;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the automata of a compiled grammar on an input, as a stream
+ * <p>
+ * The input is read by chunks, so that only the text of the current token is retained,
+ * whatever the size of the input.
+ * Lexical and syntax errors are recorded with their positions, up to a limit, and the parser recovers by dropping the offending token.
+ * The AST is built with the tree actions of the productions, but only its first nodes are retained as a preview.
+ *
+ * @author Laurent Wouters
+ */
+public class HimeTestRunner {
+    /**
+     * The size of the chunks read from the input
+     */
+    private static final int CHUNK_SIZE = 65536;
+    /**
+     * The maximum length of the text of a token in the preview of the AST
+     */
+    private static final int MAX_VALUE_LENGTH = 64;
+    /**
+     * The maximum number of expected terminals listed in the message of a syntax error
+     */
+    private static final int MAX_EXPECTED = 10;
+
+    /**
+     * Receives the notifications of the progress of a run
+     */
+    public interface Listener {
+        /**
+         * Notifies that a chunk of the input has been processed
+         *
+         * @param runner The runner
+         */
+        void onChunk(HimeTestRunner runner);
+    }
+
+    /**
+     * A lexical or syntax error found in the input
+     */
+    public static class SyntaxError implements Serializable {
+        /**
+         * The (1-based) line of the error
+         */
+        public final int line;
+        /**
+         * The (1-based) column of the error
+         */
+        public final int column;
+        /**
+         * The message for the error
+         */
+        public final String message;
+
+        /**
+         * Initializes this error
+         *
+         * @param line    The (1-based) line of the error
+         * @param column  The (1-based) column of the error
+         * @param message The message for the error
+         */
+        public SyntaxError(int line, int column, String message) {
+            this.line = line;
+            this.column = column;
+            this.message = message;
+        }
+
+        @Override
+        public String serializedString() {
+            return "(" + line + ", " + column + ") " + message;
+        }
+
+        @Override
+        public String serializedJSON() {
+            return "{\"line\": " + line + ", \"column\": " + column + ", \"message\": \"" + TextUtils.escapeStringJSON(message) + "\"}";
+        }
+    }
+
+    /**
+     * A node of the AST
+     */
+    public static class Node implements Serializable {
+        /**
+         * The name of the symbol of this node
+         */
+        private String symbol;
+        /**
+         * The text of the token of this node, if any
+         */
+        private String value;
+        /**
+         * Whether this node is replaced by its children in its parent
+         */
+        private final boolean inline;
+        /**
+         * The retained children of this node
+         */
+        private final List<Node> children;
+        /**
+         * The number of children of this node that were not retained in the preview
+         */
+        private int omitted;
+
+        /**
+         * Initializes this node
+         *
+         * @param symbol The name of the symbol of this node
+         * @param value  The text of the token of this node, if any
+         * @param inline Whether this node is replaced by its children in its parent
+         */
+        private Node(String symbol, String value, boolean inline) {
+            this.symbol = symbol;
+            this.value = value;
+            this.inline = inline;
+            this.children = new ArrayList<>(0);
+        }
+
+        @Override
+        public String serializedString() {
+            return value == null ? symbol : symbol + " = " + value;
+        }
+
+        @Override
+        public String serializedJSON() {
+            StringBuilder builder = new StringBuilder();
+            serialize(builder);
+            return builder.toString();
+        }
+
+        /**
+         * Serializes this node in JSON
+         *
+         * @param builder The buffer for the result
+         */
+        private void serialize(StringBuilder builder) {
+            builder.append("{\"symbol\": \"").append(TextUtils.escapeStringJSON(symbol)).append("\"");
+            if (value != null)
+                builder.append(", \"value\": \"").append(TextUtils.escapeStringJSON(value)).append("\"");
+            if (!children.isEmpty()) {
+                builder.append(", \"children\": [");
+                for (int i = 0; i != children.size(); i++) {
+                    if (i != 0)
+                        builder.append(", ");
+                    children.get(i).serialize(builder);
+                }
+                builder.append("]");
+            }
+            if (omitted > 0)
+                builder.append(", \"omitted\": ").append(omitted);
+            builder.append("}");
+        }
+    }
+
+    /**
+     * The compiled grammar
+     */
+    private final HimeCompiledGrammar compiled;
+    /**
+     * The maximum number of recorded errors
+     */
+    private final int maxErrors;
+    /**
+     * The maximum number of nodes retained in the preview of the AST
+     */
+    private final int maxNodes;
+    /**
+     * The recorded errors
+     */
+    private final List<SyntaxError> errors;
+    /**
+     * The buffer for the input
+     */
+    private char[] buffer;
+    /**
+     * The index of the start of the current token in the buffer
+     */
+    private int start;
+    /**
+     * The index of the end of the read input in the buffer
+     */
+    private int end;
+    /**
+     * Whether the end of the input has been reached
+     */
+    private boolean finished;
+    /**
+     * The number of characters (UTF-16 code units) read from the input
+     */
+    private long chars;
+    /**
+     * The current (1-based) line
+     */
+    private int line;
+    /**
+     * The current (1-based) column
+     */
+    private int column;
+    /**
+     * The number of tokens passed to the parser
+     */
+    private long tokens;
+    /**
+     * The total number of errors
+     */
+    private long errorCount;
+    /**
+     * The stack of parser states
+     */
+    private int[] states;
+    /**
+     * The stack of AST nodes, parallel to the stack of states
+     */
+    private Node[] nodes;
+    /**
+     * The number of elements in the stacks
+     */
+    private int depth;
+    /**
+     * The number of nodes retained in the preview of the AST
+     */
+    private int retained;
+    /**
+     * The preview of the AST, once the input has been accepted
+     */
+    private Node preview;
+
+    /**
+     * Initializes this runner
+     *
+     * @param compiled  The compiled grammar
+     * @param maxErrors The maximum number of recorded errors
+     * @param maxNodes  The maximum number of nodes retained in the preview of the AST
+     */
+    public HimeTestRunner(HimeCompiledGrammar compiled, int maxErrors, int maxNodes) {
+        this.compiled = compiled;
+        this.maxErrors = maxErrors;
+        this.maxNodes = maxNodes;
+        this.errors = new ArrayList<>();
+        this.buffer = new char[CHUNK_SIZE];
+        this.line = 1;
+        this.column = 1;
+        this.states = new int[64];
+        this.nodes = new Node[64];
+        this.depth = 1;
+    }
+
+    /**
+     * Gets the number of characters (UTF-16 code units) read so far
+     *
+     * @return The number of characters
+     */
+    public long getChars() {
+        return chars;
+    }
+
+    /**
+     * Gets the number of tokens passed to the parser so far, excluding the separators
+     *
+     * @return The number of tokens
+     */
+    public long getTokens() {
+        return tokens;
+    }
+
+    /**
+     * Gets the total number of errors found so far
+     *
+     * @return The number of errors
+     */
+    public long getErrorCount() {
+        return errorCount;
+    }
+
+    /**
+     * Gets the recorded errors, up to the maximum number of recorded errors
+     *
+     * @return The recorded errors
+     */
+    public List<SyntaxError> getErrors() {
+        return errors;
+    }
+
+    /**
+     * Gets the preview of the AST
+     *
+     * @return The root of the AST, or null if the input was not accepted
+     */
+    public Node getPreview() {
+        return preview;
+    }
+
+    /**
+     * Runs the automata on an input
+     *
+     * @param input    The input
+     * @param listener The listener to notify after each chunk of the input
+     * @throws IOException When reading the input failed
+     */
+    public void run(Reader input, Listener listener) throws IOException {
+        HimeLexerAutomaton lexer = compiled.lexer;
+        int separator = compiled.model.getSeparator();
+        while (true) {
+            // find the longest match from the start of the current token
+            int state = 0;
+            int length = 0;
+            int matchLength = -1;
+            int matchTerminal = -1;
+            while (true) {
+                if (start + length == end && (finished || !fill(input, listener)))
+                    break;
+                state = lexer.getNext(state, buffer[start + length]);
+                if (state < 0)
+                    break;
+                length++;
+                int terminal = select(lexer.getAccepted(state));
+                if (terminal >= 0) {
+                    matchLength = length;
+                    matchTerminal = terminal;
+                }
+            }
+            if (start == end) {
+                // the end of the input
+                parse(HimeGrammarModel.TERMINAL_END, null, line, column);
+                return;
+            }
+            if (matchLength < 0) {
+                length = Character.isHighSurrogate(buffer[start]) && start + 1 < end && Character.isLowSurrogate(buffer[start + 1]) ? 2 : 1;
+                addError(line, column, "Unexpected character '" + new String(buffer, start, length) + "'");
+                advance(length);
+            } else if (matchTerminal == separator) {
+                advance(matchLength);
+            } else {
+                tokens++;
+                int tokenLine = line;
+                int tokenColumn = column;
+                String value = new String(buffer, start, Math.min(matchLength, MAX_VALUE_LENGTH));
+                advance(matchLength);
+                parse(matchTerminal, value, tokenLine, tokenColumn);
+            }
+        }
+    }
+
+    /**
+     * Reads the next chunk of the input into the buffer
+     * The text before the start of the current token is discarded.
+     *
+     * @param input    The input
+     * @param listener The listener to notify
+     * @return Whether characters were read
+     * @throws IOException When reading the input failed
+     */
+    private boolean fill(Reader input, Listener listener) throws IOException {
+        HimeCompiler.checkCancelled();
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            start = 0;
+        }
+        if (buffer.length - end < CHUNK_SIZE / 2)
+            // the current token is too long for the buffer
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        int count = input.read(buffer, end, buffer.length - end);
+        if (count <= 0) {
+            finished = true;
+            return false;
+        }
+        end += count;
+        chars += count;
+        if (listener != null)
+            listener.onChunk(this);
+        return true;
+    }
+
+    /**
+     * Selects the terminal matched by an accepting state of the lexer
+     * The terminals in a lexical context are only matched when the parser expects them.
+     *
+     * @param accepted The terminals accepted by the state, by decreasing priority
+     * @return The selected terminal, or -1 if there is none
+     */
+    private int select(int[] accepted) {
+        for (int terminal : accepted) {
+            if (compiled.model.getTerminalContext(terminal) == null
+                    || compiled.parser.getAction(states[depth - 1], terminal) != HimeLrAutomaton.ACTION_NONE)
+                return terminal;
+        }
+        return -1;
+    }
+
+    /**
+     * Moves the start of the current token forward, updating the current position
+     *
+     * @param length The number of characters to skip
+     */
+    private void advance(int length) {
+        for (int i = start; i != start + length; i++) {
+            if (buffer[i] == '\n') {
+                line++;
+                column = 1;
+            } else {
+                column++;
+            }
+        }
+        start += length;
+    }
+
+    /**
+     * Passes a token to the parser
+     * When the token is not expected, an error is recorded and the token is dropped.
+     *
+     * @param terminal The terminal of the token
+     * @param value    The (truncated) text of the token
+     * @param line     The (1-based) line of the token
+     * @param column   The (1-based) column of the token
+     */
+    private void parse(int terminal, String value, int line, int column) {
+        HimeLrAutomaton parser = compiled.parser;
+        while (true) {
+            int action = parser.getAction(states[depth - 1], terminal);
+            switch (HimeLrAutomaton.getActionKind(action)) {
+                case HimeLrAutomaton.ACTION_SHIFT:
+                    push(HimeLrAutomaton.getActionValue(action), new Node(compiled.model.getTerminalName(terminal), value, false));
+                    return;
+                case HimeLrAutomaton.ACTION_REDUCE:
+                    reduce(HimeLrAutomaton.getActionValue(action));
+                    break;
+                case HimeLrAutomaton.ACTION_ACCEPT:
+                    preview = nodes[depth - 1];
+                    return;
+                default:
+                    addError(line, column, (terminal == HimeGrammarModel.TERMINAL_END
+                            ? "Unexpected end of input"
+                            : "Unexpected token '" + value + "' (" + compiled.model.getTerminalName(terminal) + ")")
+                            + getExpected(states[depth - 1]));
+                    return;
+            }
+        }
+    }
+
+    /**
+     * Reduces the top of the stacks with a production, building the AST node for its head
+     *
+     * @param production The index of the production
+     */
+    private void reduce(int production) {
+        HimeGrammarModel.Production definition = compiled.model.getProduction(production);
+        Node head = new Node(compiled.model.getVariableName(definition.head), null, compiled.model.isGenerated(definition.head));
+        int base = depth - definition.body.length;
+        for (int i = 0; i != definition.body.length; i++) {
+            Node child = nodes[base + i];
+            nodes[base + i] = null;
+            if (definition.actions[i] == HimeGrammarModel.TREE_DROP)
+                continue;
+            if (definition.actions[i] == HimeGrammarModel.TREE_PROMOTE) {
+                // the promoted node replaces the head, its children are kept in place
+                head.symbol = child.symbol;
+                head.value = child.value;
+                splice(head, child);
+            } else if (child.inline) {
+                splice(head, child);
+            } else if (retained < maxNodes) {
+                head.children.add(child);
+                retained++;
+            } else {
+                head.omitted++;
+            }
+        }
+        depth = base;
+        push(compiled.parser.getGoto(states[depth - 1], definition.head), head);
+    }
+
+    /**
+     * Moves the children of a node to another node
+     *
+     * @param target The node receiving the children
+     * @param source The node whose children are moved
+     */
+    private static void splice(Node target, Node source) {
+        target.children.addAll(source.children);
+        target.omitted += source.omitted;
+    }
+
+    /**
+     * Pushes a state and its AST node on the stacks
+     *
+     * @param state The state
+     * @param node  The AST node
+     */
+    private void push(int state, Node node) {
+        if (depth == states.length) {
+            states = Arrays.copyOf(states, depth * 2);
+            nodes = Arrays.copyOf(nodes, depth * 2);
+        }
+        states[depth] = state;
+        nodes[depth] = node;
+        depth++;
+    }
+
+    /**
+     * Gets the description of the terminals expected in a state, for an error message
+     *
+     * @param state The state
+     * @return The description
+     */
+    private String getExpected(int state) {
+        int[] expected = compiled.parser.getExpected(state);
+        StringBuilder builder = new StringBuilder("; expected ");
+        for (int i = 0; i != expected.length && i != MAX_EXPECTED; i++) {
+            if (i != 0)
+                builder.append(", ");
+            builder.append(compiled.model.getTerminalName(expected[i]));
+        }
+        if (expected.length > MAX_EXPECTED)
+            builder.append(", ...");
+        return builder.toString();
+    }
+
+    /**
+     * Records an error
+     *
+     * @param line    The (1-based) line of the error
+     * @param column  The (1-based) column of the error
+     * @param message The message for the error
+     */
+    private void addError(int line, int column, String message) {
+        errorCount++;
+        if (errors.size() < maxErrors)
+            errors.add(new SyntaxError(line, column, message));
+    }
+}
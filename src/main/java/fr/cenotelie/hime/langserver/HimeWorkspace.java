@@ -18,10 +18,14 @@
 package fr.cenotelie.hime.langserver;
 
 import fr.cenotelie.commons.lsp.engine.*;
-import fr.cenotelie.commons.lsp.structures.ServerCapabilities;
-import fr.cenotelie.commons.lsp.structures.SymbolKind;
+import fr.cenotelie.commons.lsp.structures.*;
+import fr.cenotelie.commons.utils.Serializable;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.net.URI;
+import java.util.*;
 
 /**
  * The workspace for the Hime language server
@@ -62,6 +66,14 @@ public class HimeWorkspace extends Workspace {
      */
     public static final int SYMBOL_PARAM = SymbolKind.VARIABLE;
 
+    /**
+     * The metrics for this server
+     */
+    private final HimeMetrics metrics;
+    /**
+     * The inheritance graph of the grammars in this workspace
+     */
+    private final HimeImportGraph grammars;
     /**
      * The analyzer for Hime grammars
      */
@@ -78,16 +90,631 @@ public class HimeWorkspace extends Workspace {
      * The symbol handler for Hime grammars
      */
     private final HimeSymbolHandler symbolHandler;
+    /**
+     * The engine for renaming symbols across the workspace
+     */
+    private final HimeRenameEngine renameEngine;
+    /**
+     * The provider of completion items
+     */
+    private final HimeCompletionProvider completionProvider;
+    /**
+     * The index of the defined symbols for the searches in the workspace
+     */
+    private final HimeSymbolSearchIndex searchIndex;
+    /**
+     * The provider of semantic tokens
+     */
+    private final HimeSemanticTokensProvider tokensProvider;
+    /**
+     * The compiler of grammars
+     */
+    private final HimeCompiler compiler;
+    /**
+     * The detector of the LR conflicts in the grammars of the documents being edited
+     */
+    private final HimeConflictChecker conflictChecker;
+    /**
+     * The scheduler for the analysis of the documents being edited
+     */
+    private final HimeAnalysisScheduler scheduler;
+    /**
+     * The lock for the documents whose analysis is deferred or stale
+     * The analyses are never run while holding this lock, so that the changes to the documents are never blocked.
+     */
+    private final Object lock;
+    /**
+     * The lock for the symbol registry and the states derived from the analyses
+     * It is held while an analysis records its results, and while the requests that read them are handled.
+     */
+    private final Object registryLock;
+    /**
+     * The URIs of the documents that must be re-analyzed because the grammars they inherit from changed
+     */
+    private final Collection<String> stale;
+    /**
+     * The client connected to this server, if any
+     */
+    private HimeClient client;
+    /**
+     * Whether the client supports the progress initiated by the server
+     */
+    private volatile boolean workDoneProgress;
+    /**
+     * The token for the progress of the initialization provided by the client, if any
+     */
+    private volatile Object initializationToken;
+    /**
+     * The documents whose analysis is deferred while the workspace is being indexed, or null when not indexing
+     */
+    private Collection<Document> deferred;
 
     /**
      * Initializes this workspace
      */
     public HimeWorkspace() {
         super();
-        this.analyzer = new HimeDocumentAnalyzer();
-        this.hoverProvider = new HimeHoverProvider(this.symbolRegistry);
-        this.lensProvider = new HimeLensProvider(this.symbolRegistry);
-        this.symbolHandler = new HimeSymbolHandler();
+        this.metrics = new HimeMetrics();
+        this.grammars = new HimeImportGraph();
+        this.analyzer = new HimeDocumentAnalyzer(grammars, metrics);
+        this.compiler = new HimeCompiler(analyzer, grammars, metrics);
+        this.hoverProvider = new HimeHoverProvider(this.symbolRegistry, analyzer, grammars, compiler, metrics);
+        this.lensProvider = new HimeLensProvider(this.symbolRegistry, analyzer, metrics);
+        this.symbolHandler = new HimeSymbolHandler(analyzer);
+        this.renameEngine = new HimeRenameEngine(this.symbolRegistry, analyzer, grammars, symbolHandler, metrics);
+        this.completionProvider = new HimeCompletionProvider(analyzer, grammars, metrics);
+        this.searchIndex = new HimeSymbolSearchIndex();
+        this.tokensProvider = new HimeSemanticTokensProvider(analyzer, metrics);
+        this.conflictChecker = new HimeConflictChecker(analyzer, compiler, metrics);
+        this.analyzer.setConflictChecker(conflictChecker);
+        this.scheduler = new HimeAnalysisScheduler(this);
+        this.lock = new Object();
+        this.registryLock = new Object();
+        this.stale = new LinkedHashSet<>();
+        registerGauges();
+    }
+
+    /**
+     * Registers the gauges for this workspace
+     */
+    private void registerGauges() {
+        metrics.register("documents.open", new HimeMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getDocuments().size();
+            }
+        });
+        metrics.register("documents.analyzed", new HimeMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return analyzer.getDocumentCount();
+            }
+        });
+        metrics.register("documents.prefetched", new HimeMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return analyzer.getPrefetchedCount();
+            }
+        });
+        metrics.register("grammars", new HimeMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return grammars.getCount();
+            }
+        });
+        metrics.register("symbols.defined", new HimeMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return analyzer.getDefinitionCount();
+            }
+        });
+        metrics.register("symbols.indexed", new HimeMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return searchIndex.size();
+            }
+        });
+        metrics.register("cache.entries", new HimeMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return analyzer.getCache().getCount();
+            }
+        });
+        metrics.register("cache.size", new HimeMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return analyzer.getCache().getSize();
+            }
+        });
+        metrics.register("cache.hits", new HimeMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return analyzer.getCache().getHits();
+            }
+        });
+        metrics.register("cache.misses", new HimeMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return analyzer.getCache().getMisses();
+            }
+        });
+        metrics.register("hover.entries", new HimeMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return hoverProvider.getCache().getCount();
+            }
+        });
+        metrics.register("compiler.cache.entries", new HimeMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return compiler.getCacheCount();
+            }
+        });
+        metrics.register("compiler.cache.hits", new HimeMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return compiler.getCacheHits();
+            }
+        });
+        metrics.register("compiler.running", new HimeMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return compiler.getRunningCount();
+            }
+        });
+    }
+
+    /**
+     * Gets the metrics for this server
+     *
+     * @return The metrics for this server
+     */
+    public HimeMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the client connected to this server
+     *
+     * @param client The client connected to this server
+     */
+    public void setClient(HimeClient client) {
+        this.client = client;
+        this.compiler.setClient(client);
+        this.conflictChecker.setClient(client);
+    }
+
+    /**
+     * Records the support of the connected client for the progress reports, when it initializes the server
+     *
+     * @param workDoneProgress    Whether the client supports the progress initiated by the server
+     * @param initializationToken The token for the progress of the initialization provided by the client, if any
+     */
+    public void setProgressSupport(boolean workDoneProgress, Object initializationToken) {
+        this.workDoneProgress = workDoneProgress;
+        this.initializationToken = initializationToken;
+    }
+
+    /**
+     * Gets whether the connected client supports the progress initiated by the server
+     *
+     * @return Whether the client supports the progress initiated by the server
+     */
+    public boolean isWorkDoneProgressSupported() {
+        return workDoneProgress;
+    }
+
+    @Override
+    public void onInitWorkspace(String rootUri) {
+        if (rootUri == null) {
+            super.onInitWorkspace(rootUri);
+            return;
+        }
+        HimeWorkspaceIndex index = new HimeWorkspaceIndex(rootUri);
+        // the server cannot create a token before answering the initialization, use the one of the client, if any
+        HimeProgress progress = new HimeProgress(initializationToken == null ? null : client, initializationToken);
+        HimeWorkspaceIndexer indexer = new HimeWorkspaceIndexer(this, analyzer, index, progress);
+        indexer.parseAll(new File(URI.create(rootUri)), symbolRegistry);
+        synchronized (lock) {
+            deferred = new ArrayList<>();
+        }
+        Collection<Document> documents;
+        try {
+            super.onInitWorkspace(rootUri);
+            synchronized (lock) {
+                documents = new ArrayList<>(deferred);
+                deferred.clear();
+            }
+            // keep deferring the changes while indexing so that the analyses are never run concurrently
+            indexer.analyzeAll(documents);
+            grammars.pollChanged();
+        } finally {
+            synchronized (lock) {
+                documents = deferred;
+                deferred = null;
+            }
+        }
+        // the documents that changed while indexing
+        for (Document document : documents)
+            doDocumentAnalysis(document);
+    }
+
+    @Override
+    protected void doDocumentAnalysis(Document document) {
+        synchronized (lock) {
+            if (deferred != null) {
+                deferred.add(document);
+                return;
+            }
+        }
+        conflictChecker.cancel(document.getUri());
+        scheduler.schedule(document);
+    }
+
+    /**
+     * Analyzes a document, then re-analyzes the documents that depend on it
+     * When the analysis is cancelled, the dependents that were not yet re-analyzed are kept for the next call.
+     * This method is only called from the analysis thread of the scheduler.
+     *
+     * @param document The document to analyze
+     */
+    void analyzeWithDependents(Document document) {
+        analyze(document);
+        conflictChecker.schedule(document.getUri());
+        // the symbols exported by some grammars changed, re-analyze the documents that inherit from them
+        Collection<String> dependents = new LinkedHashSet<>(grammars.getDependentDocuments(grammars.pollChanged(), document.getUri()));
+        synchronized (lock) {
+            dependents.addAll(stale);
+            stale.clear();
+        }
+        dependents.remove(document.getUri());
+        Iterator<String> iterator = dependents.iterator();
+        try {
+            while (iterator.hasNext()) {
+                Document dependent = getDocument(iterator.next());
+                if (dependent != null) {
+                    analyze(dependent);
+                    conflictChecker.schedule(dependent.getUri());
+                }
+                iterator.remove();
+            }
+        } finally {
+            if (!dependents.isEmpty()) {
+                synchronized (lock) {
+                    stale.addAll(dependents);
+                }
+            }
+        }
+    }
+
+    /**
+     * Analyzes a document, without re-analyzing its dependents
+     *
+     * @param document The document to analyze
+     */
+    void analyze(Document document) {
+        synchronized (registryLock) {
+            super.doDocumentAnalysis(document);
+            HimeDocumentState state = analyzer.getState(document.getUri());
+            hoverProvider.getCache().invalidate(document.getUri(), state);
+            lensProvider.invalidate(document.getUri());
+            if (state != null)
+                searchIndex.update(document.getUri(), state.blocks);
+            else
+                searchIndex.remove(document.getUri());
+        }
+    }
+
+    /**
+     * Gets the lock for the symbol registry and the states derived from the analyses
+     *
+     * @return The lock
+     */
+    Object getRegistryLock() {
+        return registryLock;
+    }
+
+    /**
+     * Gets the symbol registry for this workspace
+     *
+     * @return The symbol registry
+     */
+    SymbolRegistry getSymbolRegistry() {
+        return symbolRegistry;
+    }
+
+    /**
+     * Gets the locations of the definitions of the symbol at a position in a document
+     *
+     * @param uri      The URI of the document
+     * @param position The position in the document
+     * @return The locations, or null if the document has no state
+     */
+    public Location[] getDefinitions(String uri, Position position) {
+        HimePositionIndex positions = analyzer.getPositions(uri);
+        if (positions == null)
+            return null;
+        int occurrence = positions.getOccurrenceAt(position);
+        if (occurrence < 0)
+            return new Location[0];
+        Symbol symbol = positions.getSymbol(occurrence, symbolRegistry);
+        List<Location> result = new ArrayList<>();
+        for (Document document : getDocuments()) {
+            HimePositionIndex other = analyzer.getPositions(document.getUri());
+            if (other != null) {
+                for (int i = other.getFirst(symbol.getIdentifier()); i >= 0; i = other.getNext(i)) {
+                    if (other.isDefinition(i))
+                        result.add(new Location(document.getUri(), HimeLineIndex.toRange(other.getRange(i))));
+                }
+            } else {
+                Collection<Range> ranges = symbol.getDefinitionsIn(document.getUri());
+                if (ranges != null) {
+                    for (Range range : ranges)
+                        result.add(new Location(document.getUri(), range));
+                }
+            }
+        }
+        return result.toArray(new Location[result.size()]);
+    }
+
+    /**
+     * Gets the highlights for the occurrences of the symbol at a position in a document
+     *
+     * @param uri      The URI of the document
+     * @param position The position in the document
+     * @return The highlights, or null if the document has no state
+     */
+    public DocumentHighlight[] getHighlights(String uri, Position position) {
+        HimePositionIndex positions = analyzer.getPositions(uri);
+        if (positions == null)
+            return null;
+        int occurrence = positions.getOccurrenceAt(position);
+        if (occurrence < 0)
+            return new DocumentHighlight[0];
+        List<DocumentHighlight> result = new ArrayList<>();
+        for (int i = positions.getFirst(positions.getSymbol(occurrence, symbolRegistry).getIdentifier()); i >= 0; i = positions.getNext(i))
+            result.add(new DocumentHighlight(
+                    HimeLineIndex.toRange(positions.getRange(i)),
+                    positions.isDefinition(i) ? DocumentHighlightKind.WRITE : DocumentHighlightKind.READ));
+        return result.toArray(new DocumentHighlight[result.size()]);
+    }
+
+    /**
+     * Renames the symbol at a position in a document, across the workspace
+     *
+     * @param uri      The URI of the document
+     * @param position The position in the document
+     * @param newName  The new name for the symbol
+     * @return The edits for the workspace, or null if there is no symbol at the position
+     * @throws IllegalArgumentException When the new name is not legal or collides with an existing name
+     */
+    public WorkspaceEdit rename(String uri, Position position, String newName) {
+        Symbol symbol = null;
+        HimePositionIndex positions = analyzer.getPositions(uri);
+        if (positions != null) {
+            int occurrence = positions.getOccurrenceAt(position);
+            if (occurrence >= 0)
+                symbol = positions.getSymbol(occurrence, symbolRegistry);
+        } else {
+            symbol = symbolRegistry.getSymbolAt(uri, position);
+        }
+        if (symbol == null)
+            return null;
+        Collection<String> documents = new ArrayList<>();
+        for (Document document : getDocuments())
+            documents.add(document.getUri());
+        return renameEngine.rename(uri, documents, symbol, newName);
+    }
+
+    /**
+     * Searches for the symbols defined in the workspace that match a query
+     *
+     * @param query The query
+     * @return The matching symbols, the best matches first
+     */
+    public SymbolInformation[] searchSymbols(String query) {
+        long start = metrics.start();
+        HimeSymbolSearchEvent event = new HimeSymbolSearchEvent();
+        event.begin();
+        SymbolInformation[] result = searchIndex.search(query);
+        event.end();
+        if (event.shouldCommit()) {
+            event.query = query;
+            event.indexed = searchIndex.size();
+            event.results = result.length;
+            event.commit();
+        }
+        // the latency does not depend on the size of a document
+        metrics.record(HimeMetrics.TIMER_SYMBOL_SEARCH, start, 0);
+        return result;
+    }
+
+    /**
+     * Gets the semantic tokens for a document
+     *
+     * @param uri The URI of the document
+     * @return The tokens, or null if the document has not been analyzed
+     */
+    public HimeSemanticTokens getSemanticTokens(String uri) {
+        return tokensProvider.getTokens(uri);
+    }
+
+    /**
+     * Gets the changes to the semantic tokens of a document since a previous result
+     *
+     * @param uri              The URI of the document
+     * @param previousResultId The identifier of the previous result
+     * @return The changes, all the tokens when the previous result is no longer known, or null if the document has not been analyzed
+     */
+    public Serializable getSemanticTokensDelta(String uri, String previousResultId) {
+        return tokensProvider.getDelta(uri, previousResultId);
+    }
+
+    /**
+     * Gets the semantic tokens in a range of a document
+     *
+     * @param uri   The URI of the document
+     * @param range The range
+     * @return The tokens, or null if the document has not been analyzed
+     */
+    public HimeSemanticTokens getSemanticTokens(String uri, Range range) {
+        return tokensProvider.getTokens(uri, range);
+    }
+
+    /**
+     * Gets the completion items at a position in a document
+     *
+     * @param uri      The URI of the document
+     * @param position The position in the document
+     * @return The completion items, or null if the document is not available
+     */
+    public CompletionList getCompletions(String uri, Position position) {
+        Document document = getDocument(uri);
+        if (document == null)
+            return null;
+        return getCompletions(document, position);
+    }
+
+    /**
+     * Gets the completion items at a position in a document
+     *
+     * @param document The document
+     * @param position The position in the document
+     * @return The completion items, or null if the content of the document is not available
+     */
+    public CompletionList getCompletions(Document document, Position position) {
+        HimeDocumentState state = analyzer.getState(document.getUri());
+        HimeDocumentBlock block = state == null ? null : state.getBlockAt(position.getLine());
+        if (state != null && state.version == document.getCurrentVersion().getNumber()) {
+            // the analyzed content is the current one, only scan the grammar at the cursor
+            if (block != null)
+                return completionProvider.getCompletions(document.getUri(), state.content, block.start - block.column, block.line, position);
+            return completionProvider.getCompletions(document.getUri(), state.content, 0, 0, position);
+        }
+        try {
+            if (block != null) {
+                // the grammar at the cursor is likely to still start on the same line
+                CompletionList result = completionProvider.getCompletions(document.getUri(), readLines(document, block.line, position.getLine()), 0, block.line, position);
+                if (result != null)
+                    return result;
+            }
+            return completionProvider.getCompletions(document.getUri(), readLines(document, 0, position.getLine()), 0, 0, position);
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads lines of the current content of a document
+     * The content is read up to the end of the last line, and only the requested lines are kept.
+     *
+     * @param document The document
+     * @param first    The (0-based) first line to keep
+     * @param last     The (0-based) last line to keep
+     * @return The text of the lines, with their line endings
+     * @throws IOException When reading the content failed
+     */
+    private static String readLines(Document document, int first, int last) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        char[] buffer = new char[8192];
+        int line = 0;
+        boolean afterCarriageReturn = false;
+        try (Reader reader = document.getCurrentVersion().getContent().getReader()) {
+            int read = reader.read(buffer);
+            while (read > 0) {
+                for (int i = 0; i != read; i++) {
+                    char c = buffer[i];
+                    if (afterCarriageReturn && c == '\n') {
+                        // the second character of a \r\n line ending
+                        afterCarriageReturn = false;
+                        if (line - 1 >= first)
+                            builder.append(c);
+                        continue;
+                    }
+                    afterCarriageReturn = false;
+                    if (line > last)
+                        return builder.toString();
+                    if (line >= first)
+                        builder.append(c);
+                    if (HimeCompletionProvider.isLineEnd(c)) {
+                        line++;
+                        afterCarriageReturn = c == '\r';
+                    }
+                }
+                read = reader.read(buffer);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * When a document is closed by the client
+     * Its size is set again if it is analyzed afterwards.
+     *
+     * @param uri The URI of the document
+     */
+    public void onDocumentClosed(String uri) {
+        metrics.removeSize(uri);
+    }
+
+    /**
+     * When a document is deleted from the workspace
+     *
+     * @param uri The URI of the document
+     */
+    public void onDocumentDeleted(String uri) {
+        scheduler.cancel(uri);
+        conflictChecker.forget(uri);
+        // the documents that inherit from the grammars of the deleted one must be analyzed again
+        List<String> dependents = grammars.getDependentDocuments(grammars.getDefinedIn(uri), uri);
+        analyzer.remove(uri);
+        hoverProvider.getCache().invalidate(uri, null);
+        lensProvider.invalidate(uri);
+        tokensProvider.invalidate(uri);
+        searchIndex.remove(uri);
+        metrics.removeSize(uri);
+        for (String dependent : dependents) {
+            Document document = getDocument(dependent);
+            if (document != null)
+                doDocumentAnalysis(document);
+        }
+    }
+
+    /**
+     * Compiles a grammar into its lexer and parser automata
+     *
+     * @param grammar The name of the grammar
+     * @param uri     The URI of the document that defines the grammar, used when several documents define a grammar with this name, or null
+     * @param token   The token for the progress provided by the client (a string or a number), or null to create one
+     * @return The status of the compilation
+     * @throws IllegalArgumentException When the grammar or one of its ancestors is not defined in the workspace
+     */
+    public HimeCompilation compile(String grammar, String uri, Object token) {
+        return compiler.compile(grammar, uri, token);
+    }
+
+    /**
+     * Tests a grammar on an input, in the background
+     *
+     * @param grammar The name of the grammar
+     * @param uri     The URI of the document that defines the grammar, used to resolve a relative path
+     * @param path    The path to the input, or its URI
+     * @param token   The token for the progress provided by the client (a string or a number), or null to create one
+     * @return The status of the test
+     * @throws IllegalArgumentException When the grammar or one of its ancestors is not defined in the workspace, or the input is not a file
+     */
+    public HimeTestResult test(String grammar, String uri, String path, Object token) {
+        return compiler.test(grammar, uri, path, token);
+    }
+
+    /**
+     * Cancels a running compilation or test
+     *
+     * @param token The token of the progress of the compilation or test
+     * @return Whether a running compilation or test was found
+     */
+    public boolean cancelCompilation(String token) {
+        return compiler.cancel(token);
     }
 
     @Override
@@ -112,9 +739,24 @@ public class HimeWorkspace extends Workspace {
         capabilities.addCapability("definitionProvider");
         capabilities.addCapability("documentHighlightProvider");
         capabilities.addCapability("hoverProvider");
-        capabilities.addOption("codeLensProvider.resolveProvider", false);
+        capabilities.addOption("codeLensProvider.resolveProvider", true);
         capabilities.addCapability("documentLinkProvider");
         capabilities.addCapability("renameProvider");
+        capabilities.addOption("completionProvider.resolveProvider", false);
+        capabilities.addOption("semanticTokensProvider.legend", tokensProvider.getLegend());
+        capabilities.addOption("semanticTokensProvider.range", true);
+        capabilities.addOption("semanticTokensProvider.full.delta", true);
+        capabilities.addOption("executeCommandProvider.commands", new Serializable() {
+            @Override
+            public String serializedString() {
+                return serializedJSON();
+            }
+
+            @Override
+            public String serializedJSON() {
+                return "[\"" + HimeCompiler.COMMAND_COMPILE + "\", \"" + HimeCompiler.COMMAND_TEST + "\"]";
+            }
+        });
     }
 
     @Override
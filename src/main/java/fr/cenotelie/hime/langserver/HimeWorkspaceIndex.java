@@ -0,0 +1,533 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import fr.cenotelie.commons.lsp.engine.Symbol;
+import fr.cenotelie.commons.lsp.engine.SymbolFactory;
+import fr.cenotelie.commons.lsp.structures.Diagnostic;
+import fr.cenotelie.commons.lsp.structures.Position;
+import fr.cenotelie.commons.lsp.structures.Range;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * The persistent index of the analysis results for the files of a workspace, used for warm startups
+ * <p>
+ * The index maps the path of each file to its size, modification time and content key,
+ * and each content key to the analysis results for the grammar blocks in this content.
+ * The index is stored in a compact binary form with a shared table of strings,
+ * each string being written as its length followed by its UTF-8 bytes, so that strings of any length can be stored.
+ * It is versioned against the embedded lexer and parser automata,
+ * so that an index written by another version of the server is ignored.
+ *
+ * @author Laurent Wouters
+ */
+public class HimeWorkspaceIndex {
+    /**
+     * The name of the system property for the directory where indexes are stored
+     */
+    public static final String PROPERTY_DIRECTORY = "hime.index.directory";
+    /**
+     * The magic number at the start of an index file
+     */
+    private static final int MAGIC = 0x48494458;
+    /**
+     * The version of the format of the index files
+     */
+    private static final int FORMAT_VERSION = 4;
+
+    /**
+     * The record for a file in the workspace
+     */
+    public static class FileRecord {
+        /**
+         * The size of the file
+         */
+        public final long size;
+        /**
+         * The last modification time of the file
+         */
+        public final long modified;
+        /**
+         * The key for the content of the file
+         */
+        public final String key;
+        /**
+         * The length of the content of the file
+         */
+        public final int length;
+
+        /**
+         * Initializes this record
+         *
+         * @param size     The size of the file
+         * @param modified The last modification time of the file
+         * @param key      The key for the content of the file
+         * @param length   The length of the content of the file
+         */
+        public FileRecord(long size, long modified, String key, int length) {
+            this.size = size;
+            this.modified = modified;
+            this.key = key;
+            this.length = length;
+        }
+
+        /**
+         * Gets whether this record matches the current attributes of a file
+         *
+         * @param file The file
+         * @return Whether the record matches
+         */
+        public boolean matches(File file) {
+            return file.length() == size && file.lastModified() == modified;
+        }
+    }
+
+    /**
+     * The file where this index is stored
+     */
+    private final File file;
+    /**
+     * The records for the files, by path
+     */
+    private final Map<String, FileRecord> files;
+    /**
+     * The analysis results, by content key
+     */
+    private final Map<String, List<HimeDocumentBlock>> contents;
+
+    /**
+     * Initializes this index
+     *
+     * @param rootUri The URI of the root of the workspace
+     */
+    public HimeWorkspaceIndex(String rootUri) {
+        String directory = System.getProperty(PROPERTY_DIRECTORY);
+        File parent = directory != null
+                ? new File(directory)
+                : new File(new File(System.getProperty("user.home"), ".cache"), "hime-language-server");
+        this.file = new File(parent, HimeAnalysisCache.getKey(rootUri) + ".idx");
+        this.files = new HashMap<>();
+        this.contents = new HashMap<>();
+    }
+
+    /**
+     * Gets the record for a file
+     *
+     * @param path The path of the file
+     * @return The record, or null if there is none
+     */
+    public synchronized FileRecord getRecord(String path) {
+        return files.get(path);
+    }
+
+    /**
+     * Sets the record for a file
+     *
+     * @param path   The path of the file
+     * @param record The record
+     */
+    public synchronized void setRecord(String path, FileRecord record) {
+        files.put(path, record);
+    }
+
+    /**
+     * Gets the analysis results for a content
+     *
+     * @param key The key for the content
+     * @return The grammar blocks in the content, or null if there are none
+     */
+    public synchronized List<HimeDocumentBlock> getContent(String key) {
+        return contents.get(key);
+    }
+
+    /**
+     * Sets the analysis results for a content
+     *
+     * @param key    The key for the content
+     * @param blocks The grammar blocks in the content
+     */
+    public synchronized void setContent(String key, List<HimeDocumentBlock> blocks) {
+        contents.put(key, blocks);
+    }
+
+    /**
+     * Retains only the records for a set of files and the contents they refer to
+     *
+     * @param paths The paths of the files to retain
+     */
+    public synchronized void retain(Collection<String> paths) {
+        files.keySet().retainAll(paths);
+        Collection<String> keys = new HashSet<>();
+        for (FileRecord record : files.values())
+            keys.add(record.key);
+        contents.keySet().retainAll(keys);
+    }
+
+    /**
+     * Loads this index from its file
+     * If the file does not exist, or was written by another version of the server, the index is left empty.
+     * Only the records of the existing files, and the contents they refer to, are loaded,
+     * so that the symbols of the files deleted since the index was saved are not resolved.
+     *
+     * @param factory The factory for symbols
+     * @param paths   The paths of the files in the workspace
+     */
+    public synchronized void load(SymbolFactory factory, Collection<String> paths) {
+        if (!file.exists())
+            return;
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION || !readString(input).equals(getAutomataVersion()))
+                return;
+            String[] strings = new String[input.readInt()];
+            for (int i = 0; i != strings.length; i++)
+                strings[i] = readString(input);
+            int count = input.readInt();
+            Collection<String> keys = new HashSet<>();
+            for (int i = 0; i != count; i++) {
+                String path = strings[input.readInt()];
+                FileRecord record = new FileRecord(input.readLong(), input.readLong(), strings[input.readInt()], input.readInt());
+                if (paths.contains(path)) {
+                    files.put(path, record);
+                    keys.add(record.key);
+                }
+            }
+            count = input.readInt();
+            for (int i = 0; i != count; i++) {
+                String key = strings[input.readInt()];
+                int blockCount = input.readInt();
+                if (!keys.contains(key)) {
+                    for (int j = 0; j != blockCount; j++)
+                        skipBlock(input);
+                    continue;
+                }
+                List<HimeDocumentBlock> blocks = new ArrayList<>(blockCount);
+                for (int j = 0; j != blockCount; j++)
+                    blocks.add(readBlock(input, strings, factory));
+                contents.put(key, blocks);
+            }
+        } catch (IOException | RuntimeException ex) {
+            // corrupted index, start from scratch
+            files.clear();
+            contents.clear();
+        }
+    }
+
+    /**
+     * Saves this index to its file
+     */
+    public synchronized void save() {
+        try {
+            Map<String, Integer> strings = new LinkedHashMap<>();
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            DataOutputStream body = new DataOutputStream(buffer);
+            body.writeInt(files.size());
+            for (Map.Entry<String, FileRecord> entry : files.entrySet()) {
+                body.writeInt(intern(strings, entry.getKey()));
+                body.writeLong(entry.getValue().size);
+                body.writeLong(entry.getValue().modified);
+                body.writeInt(intern(strings, entry.getValue().key));
+                body.writeInt(entry.getValue().length);
+            }
+            body.writeInt(contents.size());
+            for (Map.Entry<String, List<HimeDocumentBlock>> entry : contents.entrySet()) {
+                body.writeInt(intern(strings, entry.getKey()));
+                body.writeInt(entry.getValue().size());
+                for (HimeDocumentBlock block : entry.getValue())
+                    writeBlock(body, strings, block);
+            }
+            body.flush();
+
+            File directory = file.getParentFile();
+            if (!directory.exists() && !directory.mkdirs())
+                return;
+            File temporary = File.createTempFile("index", ".tmp", directory);
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+                output.writeInt(MAGIC);
+                output.writeInt(FORMAT_VERSION);
+                writeString(output, getAutomataVersion());
+                output.writeInt(strings.size());
+                for (String value : strings.keySet())
+                    writeString(output, value);
+                buffer.writeTo(output);
+            }
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            // the index is only an optimization, fail silently
+        }
+    }
+
+    /**
+     * Writes a grammar block
+     *
+     * @param output  The output stream
+     * @param strings The table of strings
+     * @param block   The block to write
+     * @throws IOException When writing failed
+     */
+    private static void writeBlock(DataOutputStream output, Map<String, Integer> strings, HimeDocumentBlock block) throws IOException {
+        output.writeInt(intern(strings, block.name));
+        output.writeInt(block.start);
+        output.writeInt(block.bodyStart);
+        output.writeInt(block.bodyEnd);
+        output.writeInt(block.line);
+        output.writeInt(block.column);
+        output.writeInt(block.endLine);
+        output.writeInt(block.parents.size());
+        for (String parent : block.parents)
+            output.writeInt(intern(strings, parent));
+        writeReferences(output, strings, block.definitions);
+        writeReferences(output, strings, block.references);
+        output.writeInt(block.diagnostics.size());
+        for (Diagnostic diagnostic : block.diagnostics) {
+            writeRange(output, diagnostic.getRange());
+            output.writeInt(diagnostic.getSeverity());
+            output.writeInt(intern(strings, diagnostic.getCode()));
+            output.writeInt(intern(strings, diagnostic.getSource()));
+            output.writeInt(intern(strings, diagnostic.getMessage()));
+        }
+        output.writeInt(block.exports.size());
+        for (Map.Entry<String, Symbol> entry : block.exports.entrySet()) {
+            output.writeInt(intern(strings, entry.getKey()));
+            output.writeInt(intern(strings, entry.getValue().getIdentifier()));
+        }
+        output.writeInt(block.sources.size());
+        for (Map.Entry<String, Long> entry : block.sources.entrySet()) {
+            output.writeInt(intern(strings, entry.getKey()));
+            output.writeLong(entry.getValue());
+        }
+    }
+
+    /**
+     * Reads a grammar block
+     *
+     * @param input   The input stream
+     * @param strings The table of strings
+     * @param factory The factory for symbols
+     * @return The block
+     * @throws IOException When reading failed
+     */
+    private static HimeDocumentBlock readBlock(DataInputStream input, String[] strings, SymbolFactory factory) throws IOException {
+        HimeDocumentBlock block = new HimeDocumentBlock(
+                strings[input.readInt()],
+                input.readInt(),
+                input.readInt(),
+                input.readInt(),
+                input.readInt(),
+                input.readInt(),
+                input.readInt());
+        int count = input.readInt();
+        for (int i = 0; i != count; i++)
+            block.parents.add(strings[input.readInt()]);
+        readReferences(input, strings, factory, block.definitions);
+        readReferences(input, strings, factory, block.references);
+        count = input.readInt();
+        for (int i = 0; i != count; i++) {
+            block.diagnostics.add(new Diagnostic(
+                    readRange(input),
+                    input.readInt(),
+                    strings[input.readInt()],
+                    strings[input.readInt()],
+                    strings[input.readInt()]
+            ));
+        }
+        count = input.readInt();
+        for (int i = 0; i != count; i++)
+            block.exports.put(strings[input.readInt()], factory.resolve(strings[input.readInt()]));
+        count = input.readInt();
+        for (int i = 0; i != count; i++)
+            block.sources.put(strings[input.readInt()], input.readLong());
+        return block;
+    }
+
+    /**
+     * Skips a grammar block, without resolving its symbols
+     *
+     * @param input The input stream
+     * @throws IOException When reading failed
+     */
+    private static void skipBlock(DataInputStream input) throws IOException {
+        // name, start, body start, body end, line, column and end line
+        skip(input, 7 * 4);
+        // parents
+        skip(input, input.readInt() * 4L);
+        // definitions and references: symbol, kind, parent and range
+        skip(input, input.readInt() * (3 * 4L + 8));
+        skip(input, input.readInt() * (3 * 4L + 8));
+        // diagnostics: range, severity, code, source and message
+        skip(input, input.readInt() * (4 * 4L + 4 * 4));
+        // exports: name and symbol
+        skip(input, input.readInt() * 2 * 4L);
+        // sources: symbol and range
+        skip(input, input.readInt() * (4L + 8));
+    }
+
+    /**
+     * Skips a number of bytes in an input
+     *
+     * @param input The input stream
+     * @param count The number of bytes to skip
+     * @throws IOException When the input ends before
+     */
+    private static void skip(DataInputStream input, long count) throws IOException {
+        while (count > 0) {
+            int skipped = input.skipBytes((int) Math.min(count, Integer.MAX_VALUE));
+            if (skipped <= 0)
+                throw new EOFException();
+            count -= skipped;
+        }
+    }
+
+    /**
+     * Writes symbol references
+     *
+     * @param output     The output stream
+     * @param strings    The table of strings
+     * @param references The references to write
+     * @throws IOException When writing failed
+     */
+    private static void writeReferences(DataOutputStream output, Map<String, Integer> strings, HimeOccurrences references) throws IOException {
+        output.writeInt(references.size());
+        for (int i = 0; i != references.size(); i++) {
+            Symbol symbol = references.getSymbol(i);
+            output.writeInt(intern(strings, symbol.getIdentifier()));
+            output.writeInt(symbol.getKind());
+            output.writeInt(symbol.getParent() == null ? -1 : intern(strings, symbol.getParent().getIdentifier()));
+            output.writeLong(references.getRange(i));
+        }
+    }
+
+    /**
+     * Reads symbol references
+     *
+     * @param input      The input stream
+     * @param strings    The table of strings
+     * @param factory    The factory for symbols
+     * @param references The buffer for the references
+     * @throws IOException When reading failed
+     */
+    private static void readReferences(DataInputStream input, String[] strings, SymbolFactory factory, HimeOccurrences references) throws IOException {
+        int count = input.readInt();
+        for (int i = 0; i != count; i++) {
+            Symbol symbol = factory.resolve(strings[input.readInt()]);
+            symbol.setKind(input.readInt());
+            int parent = input.readInt();
+            if (parent >= 0)
+                symbol.setParent(factory.resolve(strings[parent]));
+            references.add(symbol, input.readLong());
+        }
+    }
+
+    /**
+     * Writes a range
+     *
+     * @param output The output stream
+     * @param range  The range to write
+     * @throws IOException When writing failed
+     */
+    private static void writeRange(DataOutputStream output, Range range) throws IOException {
+        output.writeInt(range.getStart().getLine());
+        output.writeInt(range.getStart().getCharacter());
+        output.writeInt(range.getEnd().getLine());
+        output.writeInt(range.getEnd().getCharacter());
+    }
+
+    /**
+     * Reads a range
+     *
+     * @param input The input stream
+     * @return The range
+     * @throws IOException When reading failed
+     */
+    private static Range readRange(DataInputStream input) throws IOException {
+        Position start = new Position(input.readInt(), input.readInt());
+        return new Range(start, new Position(input.readInt(), input.readInt()));
+    }
+
+    /**
+     * Gets the index of a string in the table of strings, adding it if necessary
+     *
+     * @param strings The table of strings
+     * @param value   The string
+     * @return The index of the string
+     */
+    private static int intern(Map<String, Integer> strings, String value) {
+        Integer index = strings.get(value);
+        if (index == null) {
+            index = strings.size();
+            strings.put(value, index);
+        }
+        return index;
+    }
+
+    /**
+     * Writes a string as its length followed by its UTF-8 bytes
+     *
+     * @param output The output stream
+     * @param value  The string
+     * @throws IOException When writing failed
+     */
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    /**
+     * Reads a string written as its length followed by its UTF-8 bytes
+     *
+     * @param input The input stream
+     * @return The string
+     * @throws IOException When reading failed
+     */
+    private static String readString(DataInputStream input) throws IOException {
+        int length = input.readInt();
+        if (length < 0)
+            throw new IOException("Invalid string length " + length);
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Gets the version of the embedded lexer and parser automata
+     *
+     * @return The version of the automata
+     */
+    private static String getAutomataVersion() throws IOException {
+        MessageDigest digest = HimeAnalysisCache.newDigest();
+        byte[] buffer = new byte[8192];
+        for (String resource : new String[]{"HimeGrammarLexer.bin", "HimeGrammarParser.bin"}) {
+            try (InputStream stream = HimeWorkspaceIndex.class.getResourceAsStream(resource)) {
+                if (stream == null)
+                    throw new IOException("Missing resource " + resource);
+                int read = stream.read(buffer);
+                while (read >= 0) {
+                    digest.update(buffer, 0, read);
+                    read = stream.read(buffer);
+                }
+            }
+        }
+        return HimeAnalysisCache.toHex(digest);
+    }
+}
@@ -0,0 +1,285 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import fr.cenotelie.commons.lsp.engine.Document;
+import fr.cenotelie.commons.lsp.engine.SymbolFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Indexes the grammars of a workspace at startup
+ * <p>
+ * The indexing is done in two phases.
+ * First, all the workspace files are read and parsed concurrently on a work-stealing pool.
+ * Then, the documents are analyzed one by one, which registers their symbols,
+ * in an order such that the grammars are analyzed after the grammars they inherit from,
+ * so that cross-file references are resolved without having to re-analyze documents.
+ * The files that did not change since the last indexing are restored from the persistent index instead of being parsed,
+ * and the persistent index is updated at the end.
+ *
+ * @author Laurent Wouters
+ */
+public class HimeWorkspaceIndexer {
+    /**
+     * The name of the system property for the degree of parallelism of the indexing
+     */
+    public static final String PROPERTY_PARALLELISM = "hime.indexing.parallelism";
+
+    /**
+     * The task for parsing a range of files
+     */
+    private class ParseTask extends RecursiveAction {
+        /**
+         * The index of the first file
+         */
+        private final int start;
+        /**
+         * The index after the last file
+         */
+        private final int end;
+
+        /**
+         * Initializes this task
+         *
+         * @param start The index of the first file
+         * @param end   The index after the last file
+         */
+        public ParseTask(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start == 1) {
+                parse(files.get(start));
+                return;
+            }
+            int middle = (start + end) >>> 1;
+            invokeAll(new ParseTask(start, middle), new ParseTask(middle, end));
+        }
+    }
+
+    /**
+     * The workspace to index
+     */
+    private final HimeWorkspace workspace;
+    /**
+     * The analyzer for Hime grammars
+     */
+    private final HimeDocumentAnalyzer analyzer;
+    /**
+     * The persistent index for the workspace
+     */
+    private final HimeWorkspaceIndex index;
+    /**
+     * The progress for the indexing
+     */
+    private final HimeProgress progress;
+    /**
+     * The degree of parallelism for parsing
+     */
+    private final int parallelism;
+    /**
+     * The files to parse
+     */
+    private final List<File> files;
+    /**
+     * The number of parsed files
+     */
+    private final AtomicInteger parsed;
+
+    /**
+     * Initializes this indexer
+     *
+     * @param workspace The workspace to index
+     * @param analyzer  The analyzer for Hime grammars
+     * @param index     The persistent index for the workspace
+     * @param progress  The progress of the indexing
+     */
+    public HimeWorkspaceIndexer(HimeWorkspace workspace, HimeDocumentAnalyzer analyzer, HimeWorkspaceIndex index, HimeProgress progress) {
+        this.workspace = workspace;
+        this.analyzer = analyzer;
+        this.index = index;
+        this.progress = progress;
+        this.parallelism = Math.max(1, Integer.getInteger(PROPERTY_PARALLELISM, Runtime.getRuntime().availableProcessors()));
+        this.files = new ArrayList<>();
+        this.parsed = new AtomicInteger(0);
+    }
+
+    /**
+     * Parses all the files included in the workspace, concurrently
+     * The persistent index is loaded first, without the records of the files that no longer exist.
+     *
+     * @param root    The root directory of the workspace
+     * @param factory The factory for the symbols in the persistent index
+     */
+    public void parseAll(File root, SymbolFactory factory) {
+        progress.begin("Indexing Hime grammars");
+        collect(root);
+        Collection<String> paths = new HashSet<>(files.size());
+        for (File file : files)
+            paths.add(file.getAbsolutePath());
+        index.load(factory, paths);
+        if (files.isEmpty())
+            return;
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new ParseTask(0, files.size()));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Analyzes documents in the order of the inheritance of their grammars
+     *
+     * @param documents The documents to analyze
+     */
+    public void analyzeAll(Collection<Document> documents) {
+        List<Document> ordered = order(documents);
+        for (int i = 0; i != ordered.size(); i++) {
+            workspace.analyze(ordered.get(i));
+            progress.report("Analyzing", i + 1, ordered.size());
+        }
+        analyzer.clearPrefetched();
+        save();
+        progress.end("Indexed " + ordered.size() + " documents");
+    }
+
+    /**
+     * Collects the files included in the workspace
+     *
+     * @param file The current file or directory
+     */
+    private void collect(File file) {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children)
+                    collect(child);
+            }
+        } else if (workspace.isWorkspaceIncluded(file)) {
+            files.add(file);
+        }
+    }
+
+    /**
+     * Reads and parses a file, or restores its analysis results from the persistent index when possible
+     *
+     * @param file The file
+     */
+    private void parse(File file) {
+        String path = file.getAbsolutePath();
+        long size = file.length();
+        long modified = file.lastModified();
+        HimeWorkspaceIndex.FileRecord record = index.getRecord(path);
+        List<HimeDocumentBlock> blocks = record != null && record.matches(file) ? index.getContent(record.key) : null;
+        if (blocks != null) {
+            // the file did not change since the last indexing
+            analyzer.restore(file.toURI().toString(), record.key, null, record.length, blocks);
+        } else {
+            try {
+                String content = HimeFileLoader.load(file);
+                String key = HimeAnalysisCache.getKey(content);
+                blocks = index.getContent(key);
+                if (blocks != null)
+                    analyzer.restore(file.toURI().toString(), key, content, content.length(), blocks);
+                else
+                    analyzer.prefetch(file.toURI().toString(), key, content);
+                index.setRecord(path, new HimeWorkspaceIndex.FileRecord(size, modified, key, content.length()));
+            } catch (IOException ex) {
+                // the file will be parsed again when analyzed
+            }
+        }
+        progress.report("Parsing", parsed.incrementAndGet(), files.size());
+    }
+
+    /**
+     * Updates the persistent index with the results of the analysis and saves it
+     */
+    private void save() {
+        Collection<String> paths = new ArrayList<>(files.size());
+        for (File file : files) {
+            String path = file.getAbsolutePath();
+            paths.add(path);
+            HimeWorkspaceIndex.FileRecord record = index.getRecord(path);
+            if (record == null)
+                continue;
+            HimeAnalysisCache.Entry entry = analyzer.getCache().peek(record.key);
+            // only keep the contents that could be fully mapped to grammar blocks
+            if (entry != null && entry.diagnostics.isEmpty() && !entry.blocks.isEmpty())
+                index.setContent(record.key, entry.blocks);
+        }
+        index.retain(paths);
+        index.save();
+    }
+
+    /**
+     * Sorts documents so that the documents defining parent grammars come first
+     *
+     * @param documents The documents to sort
+     * @return The sorted documents
+     */
+    private List<Document> order(Collection<Document> documents) {
+        // find the documents that define each grammar
+        Map<Document, Map<String, List<String>>> definitions = new LinkedHashMap<>();
+        Map<String, Document> definers = new HashMap<>();
+        for (Document document : documents) {
+            Map<String, List<String>> grammars = analyzer.getPrefetchedGrammars(document);
+            definitions.put(document, grammars);
+            for (String grammar : grammars.keySet())
+                definers.put(grammar, document);
+        }
+        // depth-first post-order traversal of the parents
+        List<Document> result = new ArrayList<>(documents.size());
+        Set<Document> visited = new HashSet<>();
+        for (Document document : definitions.keySet())
+            visit(document, definitions, definers, visited, result);
+        return result;
+    }
+
+    /**
+     * Visits a document for the topological sort
+     *
+     * @param document    The document to visit
+     * @param definitions The grammars defined by each document, with their parents
+     * @param definers    The document that defines each grammar
+     * @param visited     The already visited documents
+     * @param result      The sorted documents
+     */
+    private static void visit(Document document, Map<Document, Map<String, List<String>>> definitions, Map<String, Document> definers, Set<Document> visited, List<Document> result) {
+        if (!visited.add(document))
+            // already sorted, or an inheritance cycle
+            return;
+        for (List<String> parents : definitions.get(document).values()) {
+            for (String parent : parents) {
+                Document definer = definers.get(parent);
+                if (definer != null)
+                    visit(definer, definitions, definers, visited, result);
+            }
+        }
+        result.add(document);
+    }
+}
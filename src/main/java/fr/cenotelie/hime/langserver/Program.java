@@ -17,10 +17,14 @@
 
 package fr.cenotelie.hime.langserver;
 
+import fr.cenotelie.commons.jsonrpc.JsonRpcRequest;
+import fr.cenotelie.commons.jsonrpc.JsonRpcResponse;
 import fr.cenotelie.commons.lsp.runners.LspRunner;
 import fr.cenotelie.commons.lsp.runners.LspRunnerStdStreams;
 import fr.cenotelie.commons.lsp.server.LspServer;
-import fr.cenotelie.commons.lsp.server.LspServerHandlerBase;
+import fr.cenotelie.commons.utils.Serializable;
+
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The main program for this language server
@@ -34,7 +38,47 @@ public class Program {
      * @param args The arguments
      */
     public static void main(String[] args) {
-        LspServer server = new LspServer(new LspServerHandlerBase(new HimeWorkspace()));
+        final HimeWorkspace workspace = new HimeWorkspace();
+        final LspServer server = new LspServer(new HimeServerHandler(workspace));
+        final AtomicInteger counter = new AtomicInteger(0);
+        workspace.setClient(new HimeClient() {
+            @Override
+            public void sendNotification(String method, final String params) {
+                server.getRemote().send(new JsonRpcRequest(null, method, new Serializable() {
+                    @Override
+                    public String serializedString() {
+                        return params;
+                    }
+
+                    @Override
+                    public String serializedJSON() {
+                        return params;
+                    }
+                }));
+            }
+
+            @Override
+            public boolean sendRequest(String method, final String params) {
+                JsonRpcResponse response = server.getRemote().send(new JsonRpcRequest("hime-" + counter.incrementAndGet(), method, new Serializable() {
+                    @Override
+                    public String serializedString() {
+                        return params;
+                    }
+
+                    @Override
+                    public String serializedJSON() {
+                        return params;
+                    }
+                }));
+                return response != null && !response.isError();
+            }
+
+            @Override
+            public boolean isWorkDoneProgressSupported() {
+                return workspace.isWorkDoneProgressSupported();
+            }
+        });
+        workspace.getMetrics().startDump();
         LspRunner runner = new LspRunnerStdStreams(server);
         runner.run();
     }
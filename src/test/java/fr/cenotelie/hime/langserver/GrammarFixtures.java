@@ -0,0 +1,140 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import fr.cenotelie.commons.lsp.engine.Document;
+import fr.cenotelie.commons.lsp.engine.DocumentAnalysis;
+import fr.cenotelie.commons.lsp.engine.SymbolRegistry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Provides the grammars used as inputs for the tests
+ *
+ * @author Laurent Wouters
+ */
+public class GrammarFixtures {
+    /**
+     * The textbook grammar of arithmetic expressions, without left recursion
+     */
+    public static final String EXPRESSION = "grammar Expression {\n" +
+            "    options { Axiom = \"e\"; Separator = \"WS\"; }\n" +
+            "    terminals { WS -> ' '+; ID -> [a-z]+; }\n" +
+            "    rules {\n" +
+            "        e -> t e2;\n" +
+            "        e2 -> '+' t e2 | ;\n" +
+            "        t -> f t2;\n" +
+            "        t2 -> '*' f t2 | ;\n" +
+            "        f -> '(' e ')' | ID;\n" +
+            "    }\n" +
+            "}";
+    /**
+     * An ambiguous grammar with a shift/reduce conflict on `'+'`
+     */
+    public static final String SHIFT_REDUCE = "grammar ShiftReduce {\n" +
+            "    options { Axiom = \"e\"; }\n" +
+            "    terminals { NUM -> [0-9]+; }\n" +
+            "    rules { e -> e '+' e | NUM; }\n" +
+            "}";
+    /**
+     * An ambiguous grammar with a reduce/reduce conflict on the end of the input
+     */
+    public static final String REDUCE_REDUCE = "grammar ReduceReduce {\n" +
+            "    options { Axiom = \"s\"; }\n" +
+            "    terminals { X -> 'x'; }\n" +
+            "    rules { s -> a | b; a -> X; b -> X; }\n" +
+            "}";
+
+    /**
+     * Gets the grammar of the Hime language, as shipped with the server
+     *
+     * @return The content of the grammar
+     */
+    public static String getHimeGrammar() {
+        try (InputStream stream = HimeWorkspace.class.getResourceAsStream("HimeGrammar.gram")) {
+            if (stream == null)
+                throw new IllegalStateException("Missing resource HimeGrammar.gram");
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read = stream.read(buffer);
+            while (read > 0) {
+                output.write(buffer, 0, read);
+                read = stream.read(buffer);
+            }
+            return new String(output.toByteArray(), StandardCharsets.UTF_8);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Builds the model of a grammar
+     *
+     * @param grammar The name of the grammar
+     * @param sources The texts of the grammar and its ancestors, each ancestor before its descendants
+     * @return The model
+     */
+    public static HimeGrammarModel model(String grammar, String... sources) {
+        return new HimeGrammarModel(grammar, sources.length == 1 ? Collections.singletonList(sources[0]) : Arrays.asList(sources));
+    }
+
+    /**
+     * Compiles a grammar
+     *
+     * @param grammar The name of the grammar
+     * @param source  The text of the grammar
+     * @return The compiled grammar
+     */
+    public static HimeCompiledGrammar compile(String grammar, String source) {
+        return new HimeCompiledGrammar(grammar, grammar, Collections.singletonList(source), new HimeProgress(null));
+    }
+
+    /**
+     * Analyzes a version of a document
+     *
+     * @param analyzer The analyzer
+     * @param symbols  The symbol registry
+     * @param uri      The URI of the document
+     * @param version  The version of the document
+     * @param content  The content of this version
+     * @return The analysis
+     */
+    public static DocumentAnalysis analyze(HimeDocumentAnalyzer analyzer, SymbolRegistry symbols, String uri, int version, String content) {
+        return analyzer.analyze(symbols, new Document(uri, HimeWorkspace.LANGUAGE, version, content));
+    }
+
+    /**
+     * Gets a terminal by name
+     *
+     * @param model The grammar
+     * @param name  The name of the terminal
+     * @return The terminal, or -1 if it is not found
+     */
+    public static int getTerminal(HimeGrammarModel model, String name) {
+        for (int i = 0; i != model.getTerminalCount(); i++) {
+            if (model.getTerminalName(i).equals(name))
+                return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import fr.cenotelie.commons.lsp.engine.SymbolRegistry;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the cache of analysis results and its invalidation when a parent grammar changes
+ *
+ * @author Laurent Wouters
+ */
+public class HimeAnalysisCacheTest {
+    /**
+     * The URI of the document for the parent grammar
+     */
+    private static final String PARENT_URI = "file:///test/base.gram";
+    /**
+     * The URI of the document for the inheriting grammar
+     */
+    private static final String CHILD_URI = "file:///test/child.gram";
+    /**
+     * The parent grammar
+     */
+    private static final String PARENT = "grammar Base { options { } terminals { ID -> [a-z]+; } rules { item -> ID; } }";
+    /**
+     * The inheriting grammar
+     */
+    private static final String CHILD = "grammar Child : Base { options { Axiom = \"list\"; } terminals { } rules { list -> item+; } }";
+
+    /**
+     * The keys depend only on the content
+     */
+    @Test
+    public void testKey() {
+        Assert.assertEquals(HimeAnalysisCache.getKey(CHILD), HimeAnalysisCache.getKey(new StringBuilder(CHILD)));
+        Assert.assertNotEquals(HimeAnalysisCache.getKey(CHILD), HimeAnalysisCache.getKey(PARENT));
+        Assert.assertEquals(64, HimeAnalysisCache.getKey("").length());
+    }
+
+    /**
+     * Analyzing the same content again replays the cached results
+     */
+    @Test
+    public void testHit() {
+        HimeDocumentAnalyzer analyzer = new HimeDocumentAnalyzer(new HimeImportGraph(), new HimeMetrics());
+        SymbolRegistry symbols = new SymbolRegistry();
+        GrammarFixtures.analyze(analyzer, symbols, PARENT_URI, 0, PARENT);
+        GrammarFixtures.analyze(analyzer, symbols, CHILD_URI, 0, CHILD);
+        Object origin = analyzer.getState(CHILD_URI).blocks.get(0).getOrigin();
+        long hits = analyzer.getCache().getHits();
+
+        GrammarFixtures.analyze(analyzer, symbols, CHILD_URI, 1, CHILD);
+        Assert.assertEquals(hits + 1, analyzer.getCache().getHits());
+        Assert.assertSame(origin, analyzer.getState(CHILD_URI).blocks.get(0).getOrigin());
+    }
+
+    /**
+     * A change to the symbols exported by a parent grammar drops the cached results of the inheriting grammars
+     */
+    @Test
+    public void testParentChanged() {
+        HimeDocumentAnalyzer analyzer = new HimeDocumentAnalyzer(new HimeImportGraph(), new HimeMetrics());
+        SymbolRegistry symbols = new SymbolRegistry();
+        GrammarFixtures.analyze(analyzer, symbols, PARENT_URI, 0, PARENT);
+        GrammarFixtures.analyze(analyzer, symbols, CHILD_URI, 0, CHILD);
+        Object origin = analyzer.getState(CHILD_URI).blocks.get(0).getOrigin();
+
+        GrammarFixtures.analyze(analyzer, symbols, PARENT_URI, 1, PARENT.replace("item -> ID;", "item -> ID; other -> ID ID;"));
+        long hits = analyzer.getCache().getHits();
+        GrammarFixtures.analyze(analyzer, symbols, CHILD_URI, 1, CHILD);
+        Assert.assertEquals(hits, analyzer.getCache().getHits());
+        Assert.assertNotSame(origin, analyzer.getState(CHILD_URI).blocks.get(0).getOrigin());
+    }
+
+    /**
+     * A change to a parent grammar that does not change its exported symbols keeps the cached results of the inheriting grammars
+     */
+    @Test
+    public void testParentUnchangedExports() {
+        HimeDocumentAnalyzer analyzer = new HimeDocumentAnalyzer(new HimeImportGraph(), new HimeMetrics());
+        SymbolRegistry symbols = new SymbolRegistry();
+        GrammarFixtures.analyze(analyzer, symbols, PARENT_URI, 0, PARENT);
+        GrammarFixtures.analyze(analyzer, symbols, CHILD_URI, 0, CHILD);
+        Object origin = analyzer.getState(CHILD_URI).blocks.get(0).getOrigin();
+
+        GrammarFixtures.analyze(analyzer, symbols, PARENT_URI, 1, PARENT.replace("item -> ID;", "item -> ID ID;"));
+        GrammarFixtures.analyze(analyzer, symbols, CHILD_URI, 1, CHILD);
+        Assert.assertSame(origin, analyzer.getState(CHILD_URI).blocks.get(0).getOrigin());
+    }
+}
@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for the prefix tree of the completion candidates
+ *
+ * @author Laurent Wouters
+ */
+public class HimeCompletionTrieTest {
+    /**
+     * The mask for all the kinds of symbols
+     */
+    private static final long ALL = -1L;
+
+    /**
+     * Builds the tree for the tests
+     *
+     * @return The tree
+     */
+    private static HimeCompletionTrie build() {
+        HimeCompletionTrie trie = new HimeCompletionTrie();
+        trie.add(new HimeCompletionTrie.Entry("exprList", HimeWorkspace.SYMBOL_VARIABLE, "G.exprList"));
+        trie.add(new HimeCompletionTrie.Entry("EXPONENT", HimeWorkspace.SYMBOL_TERMINAL, "G.EXPONENT"));
+        trie.add(new HimeCompletionTrie.Entry("expr", HimeWorkspace.SYMBOL_VARIABLE, "G.expr"));
+        trie.add(new HimeCompletionTrie.Entry("item", HimeWorkspace.SYMBOL_PARAM, "G.list.item"));
+        trie.add(new HimeCompletionTrie.Entry("expr", HimeWorkspace.SYMBOL_VARIABLE, "H.expr"));
+        return trie;
+    }
+
+    /**
+     * Collects the names of the entries for a query
+     *
+     * @param trie   The tree
+     * @param prefix The prefix
+     * @param kinds  The accepted kinds
+     * @param parent The required prefix for the identifiers
+     * @return The identifiers of the collected entries
+     */
+    private static List<String> collect(HimeCompletionTrie trie, String prefix, long kinds, String parent) {
+        List<HimeCompletionTrie.Entry> buffer = new ArrayList<>();
+        Assert.assertTrue(trie.collect(prefix, kinds, parent, 100, buffer));
+        List<String> result = new ArrayList<>();
+        for (HimeCompletionTrie.Entry entry : buffer)
+            result.add(entry.identifier);
+        return result;
+    }
+
+    /**
+     * The entries are matched by prefix, ignoring case, in the order of their names
+     */
+    @Test
+    public void testPrefix() {
+        HimeCompletionTrie trie = build();
+        Assert.assertEquals(5, trie.size());
+        List<String> result = collect(trie, "EX", ALL, null);
+        Assert.assertEquals(4, result.size());
+        Assert.assertEquals("G.EXPONENT", result.get(0));
+        Assert.assertTrue(result.subList(1, 3).contains("G.expr"));
+        Assert.assertTrue(result.subList(1, 3).contains("H.expr"));
+        Assert.assertEquals("G.exprList", result.get(3));
+        Assert.assertEquals(5, collect(trie, "", ALL, null).size());
+        Assert.assertTrue(collect(trie, "exz", ALL, null).isEmpty());
+        Assert.assertTrue(collect(trie, "exprListing", ALL, null).isEmpty());
+    }
+
+    /**
+     * The entries are filtered by kind and by parent, and the same identifier is only added once
+     */
+    @Test
+    public void testFilters() {
+        HimeCompletionTrie trie = build();
+        trie.add(new HimeCompletionTrie.Entry("expr", HimeWorkspace.SYMBOL_VARIABLE, "G.expr"));
+        Assert.assertEquals(5, trie.size());
+        Assert.assertEquals(1, collect(trie, "e", 1L << HimeWorkspace.SYMBOL_TERMINAL, null).size());
+        Assert.assertEquals(2, collect(trie, "e", 1L << HimeWorkspace.SYMBOL_VARIABLE, "G.").size());
+        Assert.assertEquals(1, collect(trie, "", 1L << HimeWorkspace.SYMBOL_PARAM, "G.list.").size());
+        Assert.assertTrue(collect(trie, "", 1L << HimeWorkspace.SYMBOL_PARAM, "H.").isEmpty());
+    }
+
+    /**
+     * The collection stops at the limit and reports that it is incomplete
+     */
+    @Test
+    public void testLimit() {
+        HimeCompletionTrie trie = build();
+        List<HimeCompletionTrie.Entry> buffer = new ArrayList<>();
+        Assert.assertFalse(trie.collect("ex", ALL, null, 2, buffer));
+        Assert.assertEquals(2, buffer.size());
+        buffer.clear();
+        Assert.assertTrue(trie.collect("ex", ALL, null, 4, buffer));
+        Assert.assertEquals(4, buffer.size());
+    }
+}
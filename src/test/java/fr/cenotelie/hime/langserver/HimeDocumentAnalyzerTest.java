@@ -0,0 +1,137 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import fr.cenotelie.commons.lsp.engine.SymbolRegistry;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the incremental re-parsing of the grammars in a document
+ *
+ * @author Laurent Wouters
+ */
+public class HimeDocumentAnalyzerTest {
+    /**
+     * The URI of the analyzed document
+     */
+    private static final String URI = "file:///test/grammars.gram";
+    /**
+     * A document with two independent grammars
+     */
+    private static final String INDEPENDENT = "grammar A {\n" +
+            "    options { }\n" +
+            "    terminals { X -> 'x'; }\n" +
+            "    rules { a -> X; }\n" +
+            "}\n" +
+            "grammar B {\n" +
+            "    options { Axiom = \"b\"; }\n" +
+            "    terminals { Y -> 'y'; }\n" +
+            "    rules { b -> Y Y; }\n" +
+            "}\n";
+
+    /**
+     * An edit inside a grammar only re-parses this grammar
+     */
+    @Test
+    public void testEditInBlock() {
+        HimeDocumentAnalyzer analyzer = new HimeDocumentAnalyzer(new HimeImportGraph(), new HimeMetrics());
+        SymbolRegistry symbols = new SymbolRegistry();
+        GrammarFixtures.analyze(analyzer, symbols, URI, 0, INDEPENDENT);
+        HimeDocumentState previous = analyzer.getState(URI);
+        Assert.assertEquals(2, previous.blocks.size());
+
+        GrammarFixtures.analyze(analyzer, symbols, URI, 1, INDEPENDENT.replace("b -> Y Y;", "b -> Y Y Y;"));
+        HimeDocumentState current = analyzer.getState(URI);
+        Assert.assertEquals(1, current.version);
+        Assert.assertSame(previous.blocks.get(0), current.blocks.get(0));
+        Assert.assertNotSame(previous.blocks.get(1).getOrigin(), current.blocks.get(1).getOrigin());
+        Assert.assertEquals("B", current.blocks.get(1).name);
+        Assert.assertEquals(5, current.blocks.get(1).line);
+    }
+
+    /**
+     * The grammars after an edit that adds lines are moved, not re-parsed
+     */
+    @Test
+    public void testEditMovesNextBlocks() {
+        HimeDocumentAnalyzer analyzer = new HimeDocumentAnalyzer(new HimeImportGraph(), new HimeMetrics());
+        SymbolRegistry symbols = new SymbolRegistry();
+        GrammarFixtures.analyze(analyzer, symbols, URI, 0, INDEPENDENT);
+        HimeDocumentState previous = analyzer.getState(URI);
+
+        String added = "\n        c -> X X;";
+        GrammarFixtures.analyze(analyzer, symbols, URI, 1, INDEPENDENT.replace("a -> X;", "a -> X;" + added));
+        HimeDocumentState current = analyzer.getState(URI);
+        Assert.assertNotSame(previous.blocks.get(0).getOrigin(), current.blocks.get(0).getOrigin());
+        Assert.assertSame(previous.blocks.get(1).getOrigin(), current.blocks.get(1).getOrigin());
+        Assert.assertEquals(6, current.blocks.get(1).line);
+        Assert.assertEquals(previous.blocks.get(1).start + added.length(), current.blocks.get(1).start);
+    }
+
+    /**
+     * An edit in a grammar that another grammar of the document inherits from re-parses the whole document
+     */
+    @Test
+    public void testFallbackOnDependent() {
+        String content = INDEPENDENT.replace("grammar B {", "grammar B : A {").replace("b -> Y Y;", "b -> a Y;");
+        HimeDocumentAnalyzer analyzer = new HimeDocumentAnalyzer(new HimeImportGraph(), new HimeMetrics());
+        SymbolRegistry symbols = new SymbolRegistry();
+        GrammarFixtures.analyze(analyzer, symbols, URI, 0, content);
+        HimeDocumentState previous = analyzer.getState(URI);
+
+        GrammarFixtures.analyze(analyzer, symbols, URI, 1, content.replace("a -> X;", "a -> X X;"));
+        HimeDocumentState current = analyzer.getState(URI);
+        Assert.assertEquals(2, current.blocks.size());
+        Assert.assertNotSame(previous.blocks.get(0).getOrigin(), current.blocks.get(0).getOrigin());
+        Assert.assertNotSame(previous.blocks.get(1).getOrigin(), current.blocks.get(1).getOrigin());
+    }
+
+    /**
+     * An edit that spans two grammars re-parses the whole document
+     */
+    @Test
+    public void testFallbackOnSpanningEdit() {
+        HimeDocumentAnalyzer analyzer = new HimeDocumentAnalyzer(new HimeImportGraph(), new HimeMetrics());
+        SymbolRegistry symbols = new SymbolRegistry();
+        GrammarFixtures.analyze(analyzer, symbols, URI, 0, INDEPENDENT);
+        HimeDocumentState previous = analyzer.getState(URI);
+
+        GrammarFixtures.analyze(analyzer, symbols, URI, 1, INDEPENDENT.replace("a -> X;", "a -> X X;").replace("b -> Y Y;", "b -> Y;"));
+        HimeDocumentState current = analyzer.getState(URI);
+        Assert.assertEquals(2, current.blocks.size());
+        Assert.assertNotSame(previous.blocks.get(0).getOrigin(), current.blocks.get(0).getOrigin());
+        Assert.assertNotSame(previous.blocks.get(1).getOrigin(), current.blocks.get(1).getOrigin());
+    }
+
+    /**
+     * An edit that unbalances the braces of a grammar re-parses the whole document, for which no state can be kept
+     */
+    @Test
+    public void testFallbackOnUnbalancedBraces() {
+        HimeDocumentAnalyzer analyzer = new HimeDocumentAnalyzer(new HimeImportGraph(), new HimeMetrics());
+        SymbolRegistry symbols = new SymbolRegistry();
+        GrammarFixtures.analyze(analyzer, symbols, URI, 0, INDEPENDENT);
+        Assert.assertNotNull(analyzer.getState(URI));
+
+        // the braces of the first grammar are no longer balanced
+        GrammarFixtures.analyze(analyzer, symbols, URI, 1, INDEPENDENT.replace("rules { a -> X; }", "rules { a -> X;"));
+        Assert.assertNull(analyzer.getState(URI));
+        Assert.assertFalse(analyzer.getDiagnostics(URI).isEmpty());
+    }
+}
@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the building of the grammar models
+ *
+ * @author Laurent Wouters
+ */
+public class HimeGrammarModelTest {
+    /**
+     * The symbols, productions, separator and axiom of a simple grammar
+     */
+    @Test
+    public void testSymbols() {
+        HimeGrammarModel model = GrammarFixtures.model("Expression", GrammarFixtures.EXPRESSION);
+        Assert.assertEquals(7, model.getTerminalCount());
+        Assert.assertEquals("$", model.getTerminalName(HimeGrammarModel.TERMINAL_END));
+        Assert.assertEquals(GrammarFixtures.getTerminal(model, "WS"), model.getSeparator());
+        Assert.assertTrue(model.isInline(GrammarFixtures.getTerminal(model, "'+'")));
+        Assert.assertFalse(model.isInline(GrammarFixtures.getTerminal(model, "ID")));
+        Assert.assertEquals(6, model.getVariableCount());
+        Assert.assertEquals("e", model.getVariableName(~model.getAxiom()));
+        // the augmented axiom, plus the 8 alternatives of the rules
+        Assert.assertEquals(9, model.getProductionCount());
+        Assert.assertEquals(2, model.getProductions(~model.getAxiom() + 1).length);
+        boolean[] nullable = model.getNullable();
+        for (int i = 0; i != model.getVariableCount(); i++) {
+            String name = model.getVariableName(i);
+            Assert.assertEquals(name, name.equals("e2") || name.equals("t2"), nullable[i]);
+        }
+    }
+
+    /**
+     * The rules of a parent grammar are available to the inheriting grammar
+     */
+    @Test
+    public void testInheritance() {
+        String parent = "grammar Base { options { } terminals { ID -> [a-z]+; } rules { item -> ID; } }";
+        String child = "grammar Child : Base { options { Axiom = \"list\"; } terminals { } rules { list -> item+; } }";
+        HimeGrammarModel model = GrammarFixtures.model("Child", parent, child);
+        Assert.assertEquals(2, model.getTerminalCount());
+        Assert.assertEquals(4, model.getVariableCount());
+        Assert.assertEquals("item", model.getVariableName(1));
+        Assert.assertEquals("list", model.getVariableName(2));
+        // the repetition is expanded into a generated variable that comes from its rule
+        Assert.assertFalse(model.isGenerated(2));
+        Assert.assertTrue(model.isGenerated(3));
+        Assert.assertEquals("list", model.getVariableOrigin(3));
+        Assert.assertEquals(5, model.getProductionCount());
+    }
+
+    /**
+     * A grammar that is only meant to be inherited has no axiom and is reported as incomplete
+     */
+    @Test(expected = HimeIncompleteGrammarException.class)
+    public void testIncomplete() {
+        GrammarFixtures.model("Base", "grammar Base { options { } terminals { ID -> [a-z]+; } rules { item -> ID; } }");
+    }
+
+    /**
+     * The template rules are instantiated once for each set of arguments
+     */
+    @Test
+    public void testTemplates() {
+        String grammar = "grammar Templates { options { Axiom = \"s\"; } terminals { A -> 'a'; B -> 'b'; } " +
+                "rules { pair<x> -> x x; s -> pair<A> pair<B> pair<A>; } }";
+        HimeGrammarModel model = GrammarFixtures.model("Templates", grammar);
+        Assert.assertEquals(4, model.getVariableCount());
+        Assert.assertEquals("pair<A>", model.getVariableName(2));
+        Assert.assertEquals("pair<B>", model.getVariableName(3));
+        Assert.assertEquals(4, model.getProductionCount());
+    }
+
+    /**
+     * An axiom that is not a rule is reported
+     */
+    @Test
+    public void testUnknownAxiom() {
+        try {
+            GrammarFixtures.model("X", "grammar X { options { Axiom = \"nope\"; } terminals { } rules { s -> 'a'; } }");
+            Assert.fail("Expected the unknown axiom to be reported");
+        } catch (IllegalArgumentException ex) {
+            Assert.assertEquals("Axiom 'nope' is not a rule defined in grammar 'X'.", ex.getMessage());
+        }
+    }
+
+    /**
+     * A reference to an undefined symbol is reported
+     */
+    @Test
+    public void testUndefinedSymbol() {
+        try {
+            GrammarFixtures.model("X", "grammar X { options { Axiom = \"s\"; } terminals { } rules { s -> UNDEF; } }");
+            Assert.fail("Expected the undefined symbol to be reported");
+        } catch (IllegalArgumentException ex) {
+            Assert.assertEquals("Missing definition for symbol 'UNDEF' in rule 's'.", ex.getMessage());
+        }
+    }
+}
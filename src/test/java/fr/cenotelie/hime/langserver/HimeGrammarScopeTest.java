@@ -0,0 +1,89 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import fr.cenotelie.commons.lsp.engine.SymbolRegistry;
+import fr.cenotelie.commons.lsp.structures.Diagnostic;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for the tables of the names defined within a grammar, and the diagnostics for duplicate definitions
+ *
+ * @author Laurent Wouters
+ */
+public class HimeGrammarScopeTest {
+    /**
+     * Terminals and variables share a namespace, the first definition is kept
+     */
+    @Test
+    public void testDuplicates() {
+        SymbolRegistry symbols = new SymbolRegistry();
+        HimeGrammarScope scope = new HimeGrammarScope();
+        long first = HimeLineIndex.encode(2, 16, 1);
+        Assert.assertEquals(-1, scope.defineTerminal("X", symbols.resolve("G.X"), first));
+        Assert.assertEquals(first, scope.defineTerminal("X", symbols.resolve("G.X"), HimeLineIndex.encode(3, 16, 1)));
+        Assert.assertEquals(first, scope.defineVariable("X", symbols.resolve("G.X"), HimeLineIndex.encode(4, 8, 1)));
+        Assert.assertTrue(scope.isTerminal("X"));
+        Assert.assertFalse(scope.isVariable("X"));
+        Assert.assertEquals(first, scope.getSymbolDefinition("X"));
+        Assert.assertEquals(1, scope.getSymbolCount());
+        Assert.assertSame(symbols.lookup("G.X"), scope.getExports().get("X"));
+    }
+
+    /**
+     * Lexical contexts live in their own namespace and may be opened multiple times
+     */
+    @Test
+    public void testContexts() {
+        SymbolRegistry symbols = new SymbolRegistry();
+        HimeGrammarScope scope = new HimeGrammarScope();
+        scope.defineContext("X", HimeLineIndex.encode(1, 0, 1));
+        scope.defineContext("X", HimeLineIndex.encode(2, 0, 1));
+        Assert.assertTrue(scope.isContext("X"));
+        Assert.assertEquals(-1, scope.getSymbolDefinition("X"));
+        Assert.assertEquals(-1, scope.defineVariable("X", symbols.resolve("G.X"), HimeLineIndex.encode(3, 0, 1)));
+        Assert.assertEquals(0, scope.getExports().size() - 1);
+    }
+
+    /**
+     * The analysis reports the duplicate terminals and variables with the line of the first definition
+     */
+    @Test
+    public void testDiagnostics() {
+        String content = "grammar G {\n" +
+                "    options { Axiom = \"a\"; }\n" +
+                "    terminals { X -> 'x'; X -> 'y'; }\n" +
+                "    rules { a -> X; a -> X X; X -> a; }\n" +
+                "}\n";
+        HimeDocumentAnalyzer analyzer = new HimeDocumentAnalyzer(new HimeImportGraph(), new HimeMetrics());
+        GrammarFixtures.analyze(analyzer, new SymbolRegistry(), "file:///test/duplicates.gram", 0, content);
+        List<String> messages = new ArrayList<>();
+        for (Diagnostic diagnostic : analyzer.getDiagnostics("file:///test/duplicates.gram")) {
+            if ("hime.7".equals(diagnostic.getCode()) || "hime.8".equals(diagnostic.getCode()))
+                messages.add(diagnostic.getCode() + " " + diagnostic.getRange().getStart().getLine() + " " + diagnostic.getMessage());
+        }
+        Assert.assertEquals(3, messages.size());
+        Assert.assertEquals("hime.7 2 Terminal 'X' is already defined in this grammar at line 3.", messages.get(0));
+        Assert.assertEquals("hime.8 3 Variable 'a' is already defined in this grammar at line 4.", messages.get(1));
+        Assert.assertEquals("hime.8 3 Variable 'X' is already defined in this grammar at line 3.", messages.get(2));
+    }
+}
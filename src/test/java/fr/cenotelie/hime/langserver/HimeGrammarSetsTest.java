@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+/**
+ * Tests for the computation of the FIRST and FOLLOW sets
+ *
+ * @author Laurent Wouters
+ */
+public class HimeGrammarSetsTest {
+    /**
+     * The sets of the textbook grammar of arithmetic expressions
+     */
+    @Test
+    public void testExpression() {
+        HimeGrammarSets sets = new HimeGrammarSets(GrammarFixtures.model("Expression", GrammarFixtures.EXPRESSION), "key", null);
+        Assert.assertEquals(Boolean.FALSE, sets.isNullable("e"));
+        Assert.assertEquals(Boolean.TRUE, sets.isNullable("e2"));
+        Assert.assertEquals(Boolean.FALSE, sets.isNullable("t"));
+        Assert.assertEquals(Boolean.TRUE, sets.isNullable("t2"));
+        Assert.assertEquals(Boolean.FALSE, sets.isNullable("f"));
+
+        Assert.assertEquals(Arrays.asList("ID", "'('"), sets.getFirst("e"));
+        Assert.assertEquals(Arrays.asList("'+'"), sets.getFirst("e2"));
+        Assert.assertEquals(Arrays.asList("ID", "'('"), sets.getFirst("t"));
+        Assert.assertEquals(Arrays.asList("'*'"), sets.getFirst("t2"));
+        Assert.assertEquals(Arrays.asList("ID", "'('"), sets.getFirst("f"));
+
+        Assert.assertEquals(Arrays.asList("$", "')'"), sets.getFollow("e"));
+        Assert.assertEquals(Arrays.asList("$", "')'"), sets.getFollow("e2"));
+        Assert.assertEquals(Arrays.asList("$", "'+'", "')'"), sets.getFollow("t"));
+        Assert.assertEquals(Arrays.asList("$", "'+'", "')'"), sets.getFollow("t2"));
+        Assert.assertEquals(Arrays.asList("$", "'+'", "'*'", "')'"), sets.getFollow("f"));
+
+        Assert.assertNull(sets.isNullable("unknown"));
+        Assert.assertNull(sets.getFirst("unknown"));
+        Assert.assertNull(sets.getFollow("unknown"));
+    }
+
+    /**
+     * The sets of an unchanged grammar are reused from the previous version
+     */
+    @Test
+    public void testReuse() {
+        HimeGrammarSets previous = new HimeGrammarSets(GrammarFixtures.model("Expression", GrammarFixtures.EXPRESSION), "key", null);
+        Assert.assertEquals(previous.getComponentCount(), previous.getRecomputedCount());
+        HimeGrammarSets sets = new HimeGrammarSets(GrammarFixtures.model("Expression", GrammarFixtures.EXPRESSION), "key", previous);
+        Assert.assertEquals(previous.getComponentCount(), sets.getComponentCount());
+        Assert.assertEquals(0, sets.getRecomputedCount());
+        Assert.assertEquals(previous.getFollow("f"), sets.getFollow("f"));
+    }
+
+    /**
+     * After the edit of a rule, only the components whose inputs changed are recomputed
+     */
+    @Test
+    public void testReusePartial() {
+        HimeGrammarSets previous = new HimeGrammarSets(GrammarFixtures.model("Expression", GrammarFixtures.EXPRESSION), "key", null);
+        // add '+' to FIRST(t2), which only changes FIRST(t2) and the terminals that may follow f
+        String edited = GrammarFixtures.EXPRESSION.replace("t2 -> '*' f t2 | ;", "t2 -> '*' f t2 | '+' f t2 | ;");
+        HimeGrammarSets sets = new HimeGrammarSets(GrammarFixtures.model("Expression", edited), "key2", previous);
+        HimeGrammarSets fresh = new HimeGrammarSets(GrammarFixtures.model("Expression", edited), "key2", null);
+        Assert.assertEquals(fresh.getComponentCount(), sets.getComponentCount());
+        Assert.assertEquals(2, sets.getRecomputedCount());
+        Assert.assertEquals(Arrays.asList("'+'", "'*'"), sets.getFirst("t2"));
+        Assert.assertEquals(Arrays.asList("$", "'+'", "'*'", "')'"), sets.getFollow("f"));
+        for (String variable : new String[]{"e", "e2", "t", "t2", "f"}) {
+            Assert.assertEquals(fresh.isNullable(variable), sets.isNullable(variable));
+            Assert.assertEquals(fresh.getFirst(variable), sets.getFirst(variable));
+            Assert.assertEquals(fresh.getFollow(variable), sets.getFollow(variable));
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import fr.cenotelie.commons.lsp.engine.Symbol;
+import fr.cenotelie.commons.lsp.engine.SymbolRegistry;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.*;
+
+/**
+ * Tests for the graph of the inheritance between grammars
+ *
+ * @author Laurent Wouters
+ */
+public class HimeImportGraphTest {
+    /**
+     * The registry for the symbols of the tests
+     */
+    private final SymbolRegistry symbols = new SymbolRegistry();
+
+    /**
+     * Builds the exported symbols of a grammar
+     *
+     * @param grammar The name of the grammar
+     * @param names   The names of the exported symbols
+     * @return The exported symbols, by name
+     */
+    private Map<String, Symbol> exports(String grammar, String... names) {
+        Map<String, Symbol> result = new HashMap<>();
+        for (String name : names)
+            result.put(name, symbols.resolve(grammar + "." + name));
+        return result;
+    }
+
+    /**
+     * The first declared parent wins and the inherited symbols follow the changes of the ancestors
+     */
+    @Test
+    public void testInherited() {
+        HimeImportGraph graph = new HimeImportGraph();
+        graph.setExports("A", "file:///a.gram", exports("A", "x", "y"));
+        graph.setExports("B", "file:///b.gram", exports("B", "y", "z"));
+        graph.setExports("C", "file:///c.gram", exports("C", "w"));
+        graph.setParents("C", Arrays.asList("A", "B"));
+        graph.setParents("D", Collections.singletonList("C"));
+        Map<String, Symbol> inherited = graph.getInherited("D");
+        Assert.assertEquals(new HashSet<>(Arrays.asList("w", "x", "y", "z")), inherited.keySet());
+        Assert.assertSame(symbols.lookup("A.y"), inherited.get("y"));
+        Assert.assertSame(symbols.lookup("B.z"), inherited.get("z"));
+
+        graph.setExports("B", "file:///b.gram", exports("B", "y", "v"));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("v", "w", "x", "y")), graph.getInherited("D").keySet());
+        graph.setParents("C", Collections.singletonList("B"));
+        Assert.assertSame(symbols.lookup("B.y"), graph.getInherited("D").get("y"));
+        Assert.assertEquals(Collections.emptyMap(), graph.getInherited("unknown"));
+    }
+
+    /**
+     * An inheritance cycle terminates and each grammar still sees the others
+     */
+    @Test
+    public void testInheritedCycle() {
+        HimeImportGraph graph = new HimeImportGraph();
+        graph.setExports("A", "file:///a.gram", exports("A", "x"));
+        graph.setExports("B", "file:///b.gram", exports("B", "y"));
+        graph.setParents("A", Collections.singletonList("B"));
+        graph.setParents("B", Collections.singletonList("A"));
+        Assert.assertTrue(graph.getInherited("A").containsKey("y"));
+        Assert.assertTrue(graph.getInherited("B").containsKey("x"));
+        Assert.assertEquals(new HashSet<>(Collections.singletonList("B")), new HashSet<>(graph.getDescendants(Collections.singletonList("A"))));
+    }
+
+    /**
+     * The descendants are transitive and exclude the starting grammars
+     */
+    @Test
+    public void testDescendants() {
+        HimeImportGraph graph = new HimeImportGraph();
+        graph.setParents("B", Collections.singletonList("A"));
+        graph.setParents("C", Collections.singletonList("B"));
+        graph.setParents("D", Arrays.asList("A", "C"));
+        graph.setParents("E", Collections.singletonList("X"));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("C", "D")), new HashSet<>(graph.getDescendants(Collections.singletonList("B"))));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("B", "C", "D")), new HashSet<>(graph.getDescendants(Collections.singletonList("A"))));
+        Assert.assertEquals(new HashSet<>(Collections.singletonList("D")), new HashSet<>(graph.getDescendants(Arrays.asList("A", "B", "C"))));
+        Assert.assertTrue(graph.getDescendants(Collections.singletonList("E")).isEmpty());
+    }
+
+    /**
+     * The dependent documents come after the documents of their parents and exclude the origin
+     */
+    @Test
+    public void testDependentDocuments() {
+        HimeImportGraph graph = new HimeImportGraph();
+        // declare the children first so that the hash order is not the expected order
+        graph.setExports("D", "file:///d.gram", exports("D"));
+        graph.setExports("C", "file:///c.gram", exports("C"));
+        graph.setExports("B", "file:///b.gram", exports("B"));
+        graph.setExports("A", "file:///a.gram", exports("A"));
+        graph.setExports("A2", "file:///a.gram", exports("A2"));
+        graph.setParents("D", Arrays.asList("C", "B"));
+        graph.setParents("C", Collections.singletonList("B"));
+        graph.setParents("B", Collections.singletonList("A"));
+        graph.setParents("A2", Collections.singletonList("A"));
+        List<String> documents = graph.getDependentDocuments(Collections.singletonList("A"), "file:///a.gram");
+        Assert.assertEquals(Arrays.asList("file:///b.gram", "file:///c.gram", "file:///d.gram"), documents);
+
+        // with a cycle, every document is still returned once
+        graph.setParents("B", Arrays.asList("A", "D"));
+        documents = graph.getDependentDocuments(Collections.singletonList("A"), "file:///a.gram");
+        Assert.assertEquals(new HashSet<>(Arrays.asList("file:///b.gram", "file:///c.gram", "file:///d.gram")), new HashSet<>(documents));
+        Assert.assertEquals(3, documents.size());
+    }
+
+    /**
+     * Only the changes of the exported names and kinds are reported, once
+     */
+    @Test
+    public void testChanged() {
+        HimeImportGraph graph = new HimeImportGraph();
+        symbols.resolve("A.x").setKind(HimeWorkspace.SYMBOL_TERMINAL);
+        Assert.assertTrue(graph.setExports("A", "file:///a.gram", exports("A", "x")));
+        Assert.assertFalse(graph.setExports("A", "file:///a.gram", exports("A", "x")));
+        Assert.assertEquals(Collections.singletonList("A"), new ArrayList<>(graph.pollChanged()));
+        Assert.assertTrue(graph.pollChanged().isEmpty());
+        // the same name, now as a variable
+        Map<String, Symbol> changed = exports("A2", "x");
+        changed.get("x").setKind(HimeWorkspace.SYMBOL_VARIABLE);
+        Assert.assertTrue(graph.setExports("A", "file:///a.gram", changed));
+        Assert.assertEquals(Collections.singletonList("A"), new ArrayList<>(graph.pollChanged()));
+    }
+
+    /**
+     * Removing a grammar keeps its node while it has children, but drops its document and exports
+     */
+    @Test
+    public void testRemove() {
+        HimeImportGraph graph = new HimeImportGraph();
+        graph.setExports("A", "file:///a.gram", exports("A", "x"));
+        graph.setExports("B", "file:///b.gram", exports("B"));
+        graph.setParents("B", Collections.singletonList("A"));
+        Assert.assertEquals(Collections.singletonList("A"), graph.getDefinedIn("file:///a.gram"));
+        Assert.assertTrue(graph.getInherited("B").containsKey("x"));
+        graph.pollChanged();
+
+        graph.remove("A");
+        Assert.assertTrue(graph.getDefinedIn("file:///a.gram").isEmpty());
+        Assert.assertNull(graph.getDocument("A"));
+        Assert.assertTrue(graph.getInherited("B").isEmpty());
+        Assert.assertEquals(Collections.singletonList("A"), new ArrayList<>(graph.pollChanged()));
+        Assert.assertEquals(2, graph.getCount());
+
+        graph.remove("B");
+        Assert.assertNull(graph.getDocument("B"));
+        Assert.assertEquals(1, graph.getCount());
+    }
+}
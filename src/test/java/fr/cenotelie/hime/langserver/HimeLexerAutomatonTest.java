@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the construction of the lexer automata
+ *
+ * @author Laurent Wouters
+ */
+public class HimeLexerAutomatonTest {
+    /**
+     * A grammar with a keyword that is also matched by the identifiers
+     */
+    private static final String KEYWORDS = "grammar Keywords {\n" +
+            "    options { Axiom = \"s\"; Separator = \"WS\"; }\n" +
+            "    terminals { WS -> ' '+; ID -> [a-z]+; NUM -> [0-9]+; }\n" +
+            "    rules { s -> 'if' ID | ID NUM; }\n" +
+            "}";
+
+    /**
+     * Runs the automaton on an input
+     *
+     * @param automaton The automaton
+     * @param input     The input
+     * @return The state reached after the whole input, or -1 if the automaton stopped before
+     */
+    private static int run(HimeLexerAutomaton automaton, String input) {
+        int state = 0;
+        for (int i = 0; i != input.length() && state >= 0; i++)
+            state = automaton.getNext(state, input.charAt(i));
+        return state;
+    }
+
+    /**
+     * Gets the terminal with the highest priority that is accepted after an input
+     *
+     * @param model     The grammar
+     * @param automaton The automaton
+     * @param input     The input
+     * @return The name of the accepted terminal, or null if none is
+     */
+    private static String accept(HimeGrammarModel model, HimeLexerAutomaton automaton, String input) {
+        int state = run(automaton, input);
+        if (state < 0 || automaton.getAccepted(state).length == 0)
+            return null;
+        return model.getTerminalName(automaton.getAccepted(state)[0]);
+    }
+
+    /**
+     * The inline terminals have priority over the named ones, and the longest match wins
+     */
+    @Test
+    public void testPriorities() {
+        HimeGrammarModel model = GrammarFixtures.model("Keywords", KEYWORDS);
+        HimeLexerAutomaton automaton = new HimeLexerAutomaton(model, new HimeProgress(null));
+        Assert.assertEquals(6, automaton.getStateCount());
+        Assert.assertEquals("'if'", accept(model, automaton, "if"));
+        Assert.assertEquals(2, automaton.getAccepted(run(automaton, "if")).length);
+        Assert.assertEquals("ID", accept(model, automaton, "ifx"));
+        Assert.assertEquals("ID", accept(model, automaton, "i"));
+        Assert.assertEquals("NUM", accept(model, automaton, "42"));
+        Assert.assertEquals("WS", accept(model, automaton, "   "));
+        Assert.assertEquals(-1, run(automaton, "x1"));
+    }
+
+    /**
+     * The automaton of the grammar of the Hime language is deterministic and recognizes its keywords
+     */
+    @Test
+    public void testHimeGrammar() {
+        HimeGrammarModel model = GrammarFixtures.model("HimeGrammar", GrammarFixtures.getHimeGrammar());
+        HimeLexerAutomaton automaton = new HimeLexerAutomaton(model, new HimeProgress(null));
+        Assert.assertEquals(275, automaton.getStateCount());
+        Assert.assertEquals("'grammar'", accept(model, automaton, "grammar"));
+        Assert.assertEquals("NAME", accept(model, automaton, "grammars"));
+    }
+}
@@ -0,0 +1,85 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+/**
+ * Tests for the construction of the LALR(1) automata and the detection of their conflicts
+ *
+ * @author Laurent Wouters
+ */
+public class HimeLrAutomatonTest {
+    /**
+     * The grammar of the Hime language has as many states as the parser generated for it by Hime, and no conflict
+     */
+    @Test
+    public void testHimeGrammar() {
+        HimeGrammarModel model = GrammarFixtures.model("HimeGrammar", GrammarFixtures.getHimeGrammar());
+        HimeLrAutomaton automaton = new HimeLrAutomaton(model, new HimeProgress(null));
+        Assert.assertEquals(178, automaton.getStateCount());
+        Assert.assertTrue(automaton.getConflicts().isEmpty());
+    }
+
+    /**
+     * An unambiguous grammar has no conflict and accepts at the end of the input
+     */
+    @Test
+    public void testNoConflict() {
+        HimeGrammarModel model = GrammarFixtures.model("Expression", GrammarFixtures.EXPRESSION);
+        HimeLrAutomaton automaton = new HimeLrAutomaton(model, new HimeProgress(null));
+        Assert.assertTrue(automaton.getConflicts().isEmpty());
+        // from the initial state, the goto on the axiom leads to the state that accepts
+        int state = automaton.getGoto(0, ~model.getAxiom());
+        Assert.assertTrue(state >= 0);
+        int action = automaton.getAction(state, HimeGrammarModel.TERMINAL_END);
+        Assert.assertEquals(HimeLrAutomaton.ACTION_ACCEPT, HimeLrAutomaton.getActionKind(action));
+    }
+
+    /**
+     * A left and right recursive rule has a shift/reduce conflict on its operator
+     */
+    @Test
+    public void testShiftReduce() {
+        HimeGrammarModel model = GrammarFixtures.model("ShiftReduce", GrammarFixtures.SHIFT_REDUCE);
+        List<HimeLrAutomaton.Conflict> conflicts = new HimeLrAutomaton(model, new HimeProgress(null)).getConflicts();
+        Assert.assertEquals(1, conflicts.size());
+        HimeLrAutomaton.Conflict conflict = conflicts.get(0);
+        Assert.assertEquals(HimeLrAutomaton.CONFLICT_SHIFT_REDUCE, conflict.kind);
+        Assert.assertEquals("'+'", model.getTerminalName(conflict.terminal));
+        Assert.assertEquals(1, conflict.productions.length);
+        Assert.assertEquals("e", model.getVariableName(model.getProduction(conflict.productions[0]).head));
+    }
+
+    /**
+     * Two rules that derive the same terminal in the same context have a reduce/reduce conflict
+     */
+    @Test
+    public void testReduceReduce() {
+        HimeGrammarModel model = GrammarFixtures.model("ReduceReduce", GrammarFixtures.REDUCE_REDUCE);
+        List<HimeLrAutomaton.Conflict> conflicts = new HimeLrAutomaton(model, new HimeProgress(null)).getConflicts();
+        Assert.assertEquals(1, conflicts.size());
+        HimeLrAutomaton.Conflict conflict = conflicts.get(0);
+        Assert.assertEquals(HimeLrAutomaton.CONFLICT_REDUCE_REDUCE, conflict.kind);
+        Assert.assertEquals(HimeGrammarModel.TERMINAL_END, conflict.terminal);
+        Assert.assertEquals(2, conflict.productions.length);
+    }
+}
@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import fr.cenotelie.commons.lsp.engine.SymbolRegistry;
+import fr.cenotelie.commons.lsp.structures.Position;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the index of the occurrences of symbols by position
+ *
+ * @author Laurent Wouters
+ */
+public class HimePositionIndexTest {
+    /**
+     * The grammar for the tests
+     */
+    private static final String CONTENT = "grammar G {\n" +
+            "    options { Axiom = \"a\"; }\n" +
+            "    terminals { X -> 'x'; }\n" +
+            "    rules { a -> X a | X; }\n" +
+            "}\n";
+
+    /**
+     * Analyzes the test grammar and gets its index
+     *
+     * @param symbols The registry for the symbols
+     * @return The index of the occurrences
+     */
+    private static HimePositionIndex analyze(SymbolRegistry symbols) {
+        HimeDocumentAnalyzer analyzer = new HimeDocumentAnalyzer(new HimeImportGraph(), new HimeMetrics());
+        GrammarFixtures.analyze(analyzer, symbols, "file:///test/positions.gram", 0, CONTENT);
+        HimePositionIndex index = analyzer.getPositions("file:///test/positions.gram");
+        Assert.assertNotNull(index);
+        return index;
+    }
+
+    /**
+     * The occurrence at a position is found from its start to its end, and only there
+     */
+    @Test
+    public void testOccurrenceAt() {
+        SymbolRegistry symbols = new SymbolRegistry();
+        HimePositionIndex index = analyze(symbols);
+        int definition = index.getOccurrenceAt(new Position(2, 16));
+        Assert.assertTrue(definition >= 0);
+        Assert.assertTrue(index.isDefinition(definition));
+        Assert.assertEquals("G.X", index.getSymbol(definition, symbols).getIdentifier());
+        Assert.assertEquals(HimeLineIndex.encode(2, 16, 1), index.getRange(definition));
+        // the end of the occurrence still points to it
+        Assert.assertEquals(definition, index.getOccurrenceAt(new Position(2, 17)));
+
+        int reference = index.getOccurrenceAt(new Position(3, 17));
+        Assert.assertTrue(reference >= 0);
+        Assert.assertFalse(index.isDefinition(reference));
+        Assert.assertEquals("G.X", index.getSymbol(reference, symbols).getIdentifier());
+
+        Assert.assertEquals(-1, index.getOccurrenceAt(new Position(2, 4)));
+        Assert.assertEquals(-1, index.getOccurrenceAt(new Position(3, 15)));
+        Assert.assertEquals(-1, index.getOccurrenceAt(new Position(4, 0)));
+        Assert.assertEquals(-1, index.getOccurrenceAt(new Position(0, 0)));
+        Assert.assertEquals(-1, index.getOccurrenceAt(new Position(100, 0)));
+    }
+
+    /**
+     * The occurrences of a symbol are chained in the order of the document
+     */
+    @Test
+    public void testChain() {
+        HimePositionIndex index = analyze(new SymbolRegistry());
+        long[] expected = new long[]{
+                HimeLineIndex.encode(2, 16, 1),
+                HimeLineIndex.encode(3, 17, 1),
+                HimeLineIndex.encode(3, 23, 1)
+        };
+        int count = 0;
+        for (int i = index.getFirst("G.X"); i != -1; i = index.getNext(i)) {
+            Assert.assertTrue(count < expected.length);
+            Assert.assertEquals(expected[count], index.getRange(i));
+            Assert.assertEquals(count == 0, index.isDefinition(i));
+            count++;
+        }
+        Assert.assertEquals(expected.length, count);
+        Assert.assertEquals(-1, index.getFirst("G.unknown"));
+
+        // the ranges are sorted
+        for (int i = 1; i < index.size(); i++)
+            Assert.assertTrue(index.getRange(i - 1) < index.getRange(i));
+    }
+}
@@ -0,0 +1,135 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import fr.cenotelie.commons.lsp.engine.SymbolRegistry;
+import fr.cenotelie.commons.lsp.structures.Diagnostic;
+import fr.cenotelie.commons.lsp.structures.TextEdit;
+import fr.cenotelie.commons.lsp.structures.WorkspaceEdit;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Tests for the renaming of symbols across the workspace and the detection of name collisions
+ *
+ * @author Laurent Wouters
+ */
+public class HimeRenameEngineTest {
+    /**
+     * The URI of the document for the parent grammar
+     */
+    private static final String URI_A = "file:///test/a.gram";
+    /**
+     * The URI of the document for the inheriting grammar
+     */
+    private static final String URI_B = "file:///test/b.gram";
+    /**
+     * The URIs of all the documents
+     */
+    private static final Collection<String> DOCUMENTS = Arrays.asList(URI_A, URI_B);
+
+    /**
+     * The registry for the symbols
+     */
+    private SymbolRegistry symbols;
+    /**
+     * The engine to test
+     */
+    private HimeRenameEngine engine;
+
+    /**
+     * Analyzes the test grammars
+     */
+    @Before
+    public void setup() {
+        symbols = new SymbolRegistry();
+        HimeImportGraph graph = new HimeImportGraph();
+        HimeDocumentAnalyzer analyzer = new HimeDocumentAnalyzer(graph, new HimeMetrics());
+        GrammarFixtures.analyze(analyzer, symbols, URI_A, 0, "grammar A {\n" +
+                "    options { Axiom = \"s\"; }\n" +
+                "    terminals { X -> 'x'; Y -> 'y'; }\n" +
+                "    rules { s -> X pair<Y, X>; pair<p, q> -> p q; }\n" +
+                "}\n");
+        GrammarFixtures.analyze(analyzer, symbols, URI_B, 0, "grammar B : A {\n" +
+                "    options { Axiom = \"t\"; }\n" +
+                "    terminals { Z -> 'z'; }\n" +
+                "    rules { t -> s Z X; }\n" +
+                "}\n");
+        for (String uri : DOCUMENTS) {
+            for (Diagnostic diagnostic : analyzer.getDiagnostics(uri))
+                Assert.fail(uri + ": " + diagnostic.getMessage());
+        }
+        engine = new HimeRenameEngine(symbols, analyzer, graph, new HimeSymbolHandler(analyzer), new HimeMetrics());
+    }
+
+    /**
+     * Renames a symbol and expects a collision
+     *
+     * @param identifier The identifier of the symbol to rename
+     * @param newName    The new name
+     * @param message    The expected message
+     */
+    private void expectCollision(String identifier, String newName, String message) {
+        try {
+            engine.rename(URI_A, DOCUMENTS, symbols.lookup(identifier), newName);
+            Assert.fail("Expected a collision for " + identifier + " -> " + newName);
+        } catch (IllegalArgumentException exception) {
+            Assert.assertEquals(message, exception.getMessage());
+        }
+    }
+
+    /**
+     * A renamed symbol cannot take a name defined in its grammar, inherited by it, or visible in an inheriting grammar
+     */
+    @Test
+    public void testCollisions() {
+        expectCollision("A.X", "Y", "The name 'Y' is already used in grammar 'A'.");
+        expectCollision("A.X", "s", "The name 's' is already used in grammar 'A'.");
+        expectCollision("A.X", "Z", "The name 'Z' is already used in grammar 'B', which inherits from 'A'.");
+        expectCollision("B.Z", "X", "The name 'X' is already used in grammar 'B'.");
+        expectCollision("A.pair.p", "q", "Rule 'pair' already has a parameter named 'q'.");
+        expectCollision("A", "B", "A grammar named 'B' already exists.");
+        expectCollision("A.X", "1X", "'1X' is not a legal name.");
+    }
+
+    /**
+     * A rename without collision edits every occurrence in the grammar and in the inheriting grammars
+     */
+    @Test
+    public void testRename() {
+        WorkspaceEdit edit = engine.rename(URI_A, DOCUMENTS, symbols.lookup("A.X"), "W");
+        Assert.assertEquals(2, edit.getChanges().size());
+        Assert.assertEquals(3, edit.getChanges().get(URI_A).length);
+        Assert.assertEquals(1, edit.getChanges().get(URI_B).length);
+        for (TextEdit[] edits : edit.getChanges().values()) {
+            for (TextEdit textEdit : edits)
+                Assert.assertEquals("W", textEdit.getNewText());
+        }
+
+        // a parameter is only visible in its rule
+        edit = engine.rename(URI_A, DOCUMENTS, symbols.lookup("A.pair.p"), "Z");
+        Assert.assertEquals(1, edit.getChanges().size());
+        Assert.assertEquals(2, edit.getChanges().get(URI_A).length);
+        // keeping the same name is not a collision
+        engine.rename(URI_A, DOCUMENTS, symbols.lookup("A.X"), "X");
+    }
+}
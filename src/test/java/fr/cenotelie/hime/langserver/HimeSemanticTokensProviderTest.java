@@ -0,0 +1,201 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import fr.cenotelie.commons.lsp.engine.SymbolRegistry;
+import fr.cenotelie.commons.lsp.structures.Position;
+import fr.cenotelie.commons.lsp.structures.Range;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for the delta-encoded semantic tokens and their reuse across the grammar blocks
+ *
+ * @author Laurent Wouters
+ */
+public class HimeSemanticTokensProviderTest {
+    /**
+     * The URI of the analyzed document
+     */
+    private static final String URI = "file:///test/tokens.gram";
+    /**
+     * A document with two independent grammars
+     */
+    private static final String CONTENT = "grammar A {\n" +
+            "    options { Axiom = \"a\"; }\n" +
+            "    terminals { X -> 'x'; }\n" +
+            "    rules { a -> X; }\n" +
+            "}\n" +
+            "grammar B {\n" +
+            "    options { Axiom = \"b\"; }\n" +
+            "    terminals { Y -> 'y'; }\n" +
+            "    rules { b -> Y Y; }\n" +
+            "}\n";
+
+    /**
+     * The registry for the symbols
+     */
+    private SymbolRegistry symbols;
+    /**
+     * The analyzer for the document
+     */
+    private HimeDocumentAnalyzer analyzer;
+    /**
+     * The provider to test
+     */
+    private HimeSemanticTokensProvider provider;
+
+    /**
+     * Analyzes the initial document
+     */
+    @Before
+    public void setup() {
+        symbols = new SymbolRegistry();
+        analyzer = new HimeDocumentAnalyzer(new HimeImportGraph(), new HimeMetrics());
+        provider = new HimeSemanticTokensProvider(analyzer, new HimeMetrics());
+        GrammarFixtures.analyze(analyzer, symbols, URI, 0, CONTENT);
+    }
+
+    /**
+     * Gets the tokens of a content from a fresh analysis
+     *
+     * @param content The content
+     * @return The encoded tokens
+     */
+    private static int[] getFreshTokens(String content) {
+        HimeDocumentAnalyzer analyzer = new HimeDocumentAnalyzer(new HimeImportGraph(), new HimeMetrics());
+        GrammarFixtures.analyze(analyzer, new SymbolRegistry(), URI, 0, content);
+        return new HimeSemanticTokensProvider(analyzer, new HimeMetrics()).getTokens(URI).data;
+    }
+
+    /**
+     * Decodes the tokens to absolute positions
+     *
+     * @param data The encoded tokens
+     * @return The tokens as line:character:length:type:modifiers
+     */
+    private static List<String> decode(int[] data) {
+        List<String> result = new ArrayList<>();
+        int line = 0;
+        int character = 0;
+        for (int i = 0; i < data.length; i += 5) {
+            character = data[i] == 0 ? character + data[i + 1] : data[i + 1];
+            line += data[i];
+            result.add(line + ":" + character + ":" + data[i + 2] + ":" + data[i + 3] + ":" + data[i + 4]);
+        }
+        return result;
+    }
+
+    /**
+     * Applies the edit of a delta to the previous tokens
+     *
+     * @param previous The previous tokens
+     * @param delta    The delta
+     * @param current  The current tokens, from which the inserted integers are taken
+     * @return The edited tokens
+     */
+    private static int[] apply(int[] previous, HimeSemanticTokensDelta delta, int[] current) {
+        int[] result = new int[previous.length - delta.deleteCount + delta.getInsertCount()];
+        System.arraycopy(previous, 0, result, 0, delta.start);
+        System.arraycopy(current, delta.start, result, delta.start, delta.getInsertCount());
+        System.arraycopy(previous, delta.start + delta.deleteCount, result, delta.start + delta.getInsertCount(), previous.length - delta.start - delta.deleteCount);
+        return result;
+    }
+
+    /**
+     * The tokens are relative to the previous one and each grammar starts where expected
+     */
+    @Test
+    public void testEncoding() {
+        HimeSemanticTokens tokens = provider.getTokens(URI);
+        Assert.assertEquals(0, tokens.data.length % 5);
+        List<String> decoded = decode(tokens.data);
+        // the keyword, then the grammar declaration
+        Assert.assertEquals("0:0:7:7:0", decoded.get(0));
+        Assert.assertEquals("0:8:1:0:1", decoded.get(1));
+        Assert.assertTrue(decoded.contains("5:0:7:7:0"));
+        Assert.assertTrue(decoded.contains("5:8:1:0:1"));
+        Assert.assertTrue(decoded.contains("7:16:1:2:1"));
+        // the same state gives the same result
+        Assert.assertSame(tokens.resultId, provider.getTokens(URI).resultId);
+        Assert.assertNull(provider.getTokens("file:///test/unknown.gram"));
+    }
+
+    /**
+     * The tokens reused for a grammar that is not re-parsed, or only moved, are the same as for a fresh analysis
+     */
+    @Test
+    public void testReuse() {
+        int[] initial = provider.getTokens(URI).data;
+        String edited = CONTENT.replace("b -> Y Y;", "b -> Y Y Y;");
+        GrammarFixtures.analyze(analyzer, symbols, URI, 1, edited);
+        Assert.assertArrayEquals(getFreshTokens(edited), provider.getTokens(URI).data);
+        Assert.assertArrayEquals(Arrays.copyOf(initial, 50), Arrays.copyOf(provider.getTokens(URI).data, 50));
+
+        edited = edited.replace("a -> X;", "a -> X;\n        c -> X X;");
+        GrammarFixtures.analyze(analyzer, symbols, URI, 2, edited);
+        Assert.assertArrayEquals(getFreshTokens(edited), provider.getTokens(URI).data);
+    }
+
+    /**
+     * A delta from the previous result rebuilds the current tokens, an unknown result gives all the tokens
+     */
+    @Test
+    public void testDelta() {
+        HimeSemanticTokens initial = provider.getTokens(URI);
+        HimeSemanticTokensDelta empty = (HimeSemanticTokensDelta) provider.getDelta(URI, initial.resultId);
+        Assert.assertTrue(empty.isEmpty());
+
+        GrammarFixtures.analyze(analyzer, symbols, URI, 1, CONTENT.replace("b -> Y Y;", "b -> Y Y Y;"));
+        Object result = provider.getDelta(URI, initial.resultId);
+        Assert.assertTrue(result instanceof HimeSemanticTokensDelta);
+        HimeSemanticTokensDelta delta = (HimeSemanticTokensDelta) result;
+        Assert.assertNotEquals(initial.resultId, delta.resultId);
+        HimeSemanticTokens current = provider.getTokens(URI);
+        Assert.assertEquals(delta.resultId, current.resultId);
+        Assert.assertEquals(5, delta.getInsertCount() - delta.deleteCount);
+        Assert.assertArrayEquals(current.data, apply(initial.data, delta, current.data));
+
+        Assert.assertTrue(provider.getDelta(URI, "unknown") instanceof HimeSemanticTokens);
+        provider.invalidate(URI);
+        Assert.assertTrue(provider.getDelta(URI, current.resultId) instanceof HimeSemanticTokens);
+    }
+
+    /**
+     * The tokens in a range are re-encoded from the start of the document
+     */
+    @Test
+    public void testRange() {
+        List<String> all = decode(provider.getTokens(URI).data);
+        List<String> expected = new ArrayList<>();
+        for (String token : all) {
+            int line = Integer.parseInt(token.substring(0, token.indexOf(':')));
+            if (line >= 5 && line < 8)
+                expected.add(token);
+        }
+        HimeSemanticTokens range = provider.getTokens(URI, new Range(new Position(5, 0), new Position(8, 0)));
+        Assert.assertNull(range.resultId);
+        Assert.assertEquals(expected, decode(range.data));
+        Assert.assertEquals("5:0:7:7:0", decode(range.data).get(0));
+    }
+}
@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import fr.cenotelie.commons.lsp.engine.SymbolRegistry;
+import fr.cenotelie.commons.lsp.structures.SymbolInformation;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for the trigram index of the workspace symbols
+ *
+ * @author Laurent Wouters
+ */
+public class HimeSymbolSearchIndexTest {
+    /**
+     * The URI of the test document
+     */
+    private static final String URI = "file:///test/calc.gram";
+
+    /**
+     * Analyzes a grammar and indexes its symbols
+     *
+     * @param index   The index to update
+     * @param uri     The URI of the document
+     * @param grammar The name of the grammar
+     */
+    private static void index(HimeSymbolSearchIndex index, String uri, String grammar) {
+        HimeDocumentAnalyzer analyzer = new HimeDocumentAnalyzer(new HimeImportGraph(), new HimeMetrics());
+        GrammarFixtures.analyze(analyzer, new SymbolRegistry(), uri, 0, "grammar " + grammar + " {\n" +
+                "    options { Axiom = \"expression\"; }\n" +
+                "    terminals { NUMBER -> [0-9]+; EXPR_TOKEN -> 'e'; }\n" +
+                "    rules { expression -> exprList; exprList -> term | term exprList; term -> NUMBER EXPR_TOKEN; }\n" +
+                "}\n");
+        index.update(uri, analyzer.getState(uri).blocks);
+    }
+
+    /**
+     * Gets the names of the results of a query
+     *
+     * @param index The index
+     * @param query The query
+     * @return The names of the results, the best first
+     */
+    private static List<String> search(HimeSymbolSearchIndex index, String query) {
+        List<String> result = new ArrayList<>();
+        for (SymbolInformation information : index.search(query))
+            result.add(information.getName());
+        return result;
+    }
+
+    /**
+     * The exact matches come first, then the prefixes, the shorter names first
+     */
+    @Test
+    public void testRanking() {
+        HimeSymbolSearchIndex index = new HimeSymbolSearchIndex();
+        index(index, URI, "Calc");
+        Assert.assertEquals(6, index.size());
+        Assert.assertEquals("expression", search(index, "expression").get(0));
+        Assert.assertEquals("Calc", index.search("expression")[0].getContainerName());
+        Assert.assertEquals(Arrays.asList("exprList", "EXPR_TOKEN", "expression"), search(index, "expr"));
+        Assert.assertEquals(Arrays.asList("exprList"), search(index, "exprlst"));
+        Assert.assertTrue(search(index, "zzz").isEmpty());
+    }
+
+    /**
+     * The short queries match the starts and the initials of the parts of the names
+     */
+    @Test
+    public void testShortQueries() {
+        HimeSymbolSearchIndex index = new HimeSymbolSearchIndex();
+        index(index, URI, "Calc");
+        Assert.assertEquals(Arrays.asList("exprList"), search(index, "el"));
+        Assert.assertEquals(Arrays.asList("EXPR_TOKEN"), search(index, "et"));
+        Assert.assertTrue(search(index, "n").contains("NUMBER"));
+        Assert.assertEquals(6, search(index, "").size());
+    }
+
+    /**
+     * A query with a container only matches the symbols of that container
+     */
+    @Test
+    public void testScope() {
+        HimeSymbolSearchIndex index = new HimeSymbolSearchIndex();
+        index(index, URI, "Calc");
+        index(index, "file:///test/other.gram", "Other");
+        Assert.assertEquals(2, search(index, "term").size());
+        SymbolInformation[] results = index.search("calc.term");
+        Assert.assertEquals(1, results.length);
+        Assert.assertEquals("Calc", results[0].getContainerName());
+        Assert.assertTrue(search(index, "Unknown.term").isEmpty());
+    }
+
+    /**
+     * Updating or removing a document replaces its entries, including after a compaction
+     */
+    @Test
+    public void testUpdates() {
+        HimeSymbolSearchIndex index = new HimeSymbolSearchIndex();
+        index(index, "file:///test/other.gram", "Other");
+        for (int i = 0; i != 400; i++)
+            index(index, URI, "Calc");
+        Assert.assertEquals(12, index.size());
+        Assert.assertEquals(2, search(index, "exprList").size());
+        index.remove(URI);
+        Assert.assertEquals(6, index.size());
+        SymbolInformation[] results = index.search("exprList");
+        Assert.assertEquals(1, results.length);
+        Assert.assertEquals("Other", results[0].getContainerName());
+        index.remove(URI);
+        Assert.assertEquals(6, index.size());
+    }
+}
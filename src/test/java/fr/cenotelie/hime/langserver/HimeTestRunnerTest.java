@@ -0,0 +1,64 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+/**
+ * Tests for the running of compiled grammars on test inputs
+ *
+ * @author Laurent Wouters
+ */
+public class HimeTestRunnerTest {
+    /**
+     * An input in the language is accepted
+     *
+     * @throws IOException When reading the input failed
+     */
+    @Test
+    public void testAccepted() throws IOException {
+        HimeTestRunner runner = new HimeTestRunner(GrammarFixtures.compile("Expression", GrammarFixtures.EXPRESSION), 10, 100);
+        runner.run(new StringReader("a + b * (c + d)"), null);
+        Assert.assertEquals(15, runner.getChars());
+        Assert.assertEquals(9, runner.getTokens());
+        Assert.assertEquals(0, runner.getErrorCount());
+        Assert.assertTrue(runner.getErrors().isEmpty());
+        Assert.assertNotNull(runner.getPreview());
+        Assert.assertEquals("e", runner.getPreview().serializedString());
+    }
+
+    /**
+     * An input not in the language is rejected at the first unexpected token
+     *
+     * @throws IOException When reading the input failed
+     */
+    @Test
+    public void testRejected() throws IOException {
+        HimeTestRunner runner = new HimeTestRunner(GrammarFixtures.compile("Expression", GrammarFixtures.EXPRESSION), 10, 100);
+        runner.run(new StringReader("a + * b"), null);
+        Assert.assertEquals(1, runner.getErrorCount());
+        HimeTestRunner.SyntaxError error = runner.getErrors().get(0);
+        Assert.assertEquals(1, error.line);
+        Assert.assertEquals(5, error.column);
+        Assert.assertEquals("Unexpected token '*' ('*'); expected ID, '('", error.message);
+    }
+}
@@ -0,0 +1,329 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package fr.cenotelie.hime.langserver;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Generates synthetic workspaces of Hime grammars for scale testing
+ * <p>
+ * The generated grammars are organized in chains of inheritance of a configurable depth,
+ * where each grammar inherits from the previous grammar in the chain, possibly defined in another file.
+ * Each grammar defines terminals, some of them in lexical contexts, terminal fragments, rules and template rules.
+ * The rules refer to the local terminals and rules, to the rules inherited from the parent grammar,
+ * to the template rules, and a configurable proportion of them refer to undefined symbols.
+ * The generation is deterministic for a given seed.
+ *
+ * @author Laurent Wouters
+ */
+public class HimeWorkloadGenerator {
+    /**
+     * The seed for the random generator
+     */
+    private long seed;
+    /**
+     * The number of files
+     */
+    private int files;
+    /**
+     * The number of grammars in each file
+     */
+    private int grammarsPerFile;
+    /**
+     * The number of rules in each grammar
+     */
+    private int rulesPerGrammar;
+    /**
+     * The number of terminals in each grammar
+     */
+    private int terminalsPerGrammar;
+    /**
+     * The number of grammars in a chain of inheritance
+     */
+    private int inheritanceDepth;
+    /**
+     * The number of lexical contexts in each grammar
+     */
+    private int contextsPerGrammar;
+    /**
+     * The number of terminal fragments in each grammar
+     */
+    private int fragmentsPerGrammar;
+    /**
+     * The number of template rules in each grammar
+     */
+    private int templatesPerGrammar;
+    /**
+     * The proportion of the rules that refer to an undefined symbol
+     */
+    private double unresolvedRatio;
+
+    /**
+     * Initializes this generator with a single file containing a single small grammar
+     */
+    public HimeWorkloadGenerator() {
+        this.seed = 0;
+        this.files = 1;
+        this.grammarsPerFile = 1;
+        this.rulesPerGrammar = 10;
+        this.terminalsPerGrammar = 10;
+        this.inheritanceDepth = 1;
+        this.contextsPerGrammar = 0;
+        this.fragmentsPerGrammar = 0;
+        this.templatesPerGrammar = 0;
+        this.unresolvedRatio = 0;
+    }
+
+    /**
+     * Gets a generator for a workspace with a total number of rules,
+     * spread over files of up to 5 grammars of up to 500 rules, with all the features of the language
+     *
+     * @param rules The total number of rules
+     * @return The generator
+     */
+    public static HimeWorkloadGenerator forRules(int rules) {
+        HimeWorkloadGenerator generator = new HimeWorkloadGenerator();
+        int perGrammar = Math.max(1, Math.min(rules, 500));
+        int grammars = Math.max(1, rules / perGrammar);
+        generator.setRulesPerGrammar(perGrammar);
+        generator.setGrammarsPerFile(Math.min(grammars, 5));
+        generator.setFiles(Math.max(1, grammars / 5));
+        generator.setTerminalsPerGrammar(Math.max(1, perGrammar / 5));
+        generator.setInheritanceDepth(4);
+        generator.setContextsPerGrammar(2);
+        generator.setFragmentsPerGrammar(3);
+        generator.setTemplatesPerGrammar(Math.max(1, perGrammar / 50));
+        generator.setUnresolvedRatio(0.01);
+        return generator;
+    }
+
+    /**
+     * Sets the seed for the random generator
+     *
+     * @param seed The seed for the random generator
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Sets the number of files
+     *
+     * @param files The number of files
+     */
+    public void setFiles(int files) {
+        this.files = Math.max(1, files);
+    }
+
+    /**
+     * Sets the number of grammars in each file
+     *
+     * @param grammarsPerFile The number of grammars in each file
+     */
+    public void setGrammarsPerFile(int grammarsPerFile) {
+        this.grammarsPerFile = Math.max(1, grammarsPerFile);
+    }
+
+    /**
+     * Sets the number of rules in each grammar
+     *
+     * @param rulesPerGrammar The number of rules in each grammar
+     */
+    public void setRulesPerGrammar(int rulesPerGrammar) {
+        this.rulesPerGrammar = Math.max(1, rulesPerGrammar);
+    }
+
+    /**
+     * Sets the number of terminals in each grammar
+     *
+     * @param terminalsPerGrammar The number of terminals in each grammar
+     */
+    public void setTerminalsPerGrammar(int terminalsPerGrammar) {
+        this.terminalsPerGrammar = Math.max(1, terminalsPerGrammar);
+    }
+
+    /**
+     * Sets the number of grammars in a chain of inheritance
+     * A depth of 1 means that the grammars do not inherit from each other.
+     *
+     * @param inheritanceDepth The number of grammars in a chain of inheritance
+     */
+    public void setInheritanceDepth(int inheritanceDepth) {
+        this.inheritanceDepth = Math.max(1, inheritanceDepth);
+    }
+
+    /**
+     * Sets the number of lexical contexts in each grammar
+     *
+     * @param contextsPerGrammar The number of lexical contexts in each grammar
+     */
+    public void setContextsPerGrammar(int contextsPerGrammar) {
+        this.contextsPerGrammar = Math.max(0, contextsPerGrammar);
+    }
+
+    /**
+     * Sets the number of terminal fragments in each grammar
+     *
+     * @param fragmentsPerGrammar The number of terminal fragments in each grammar
+     */
+    public void setFragmentsPerGrammar(int fragmentsPerGrammar) {
+        this.fragmentsPerGrammar = Math.max(0, fragmentsPerGrammar);
+    }
+
+    /**
+     * Sets the number of template rules in each grammar
+     *
+     * @param templatesPerGrammar The number of template rules in each grammar
+     */
+    public void setTemplatesPerGrammar(int templatesPerGrammar) {
+        this.templatesPerGrammar = Math.max(0, templatesPerGrammar);
+    }
+
+    /**
+     * Sets the proportion of the rules that refer to an undefined symbol
+     *
+     * @param unresolvedRatio The proportion of the rules that refer to an undefined symbol, between 0 and 1
+     */
+    public void setUnresolvedRatio(double unresolvedRatio) {
+        this.unresolvedRatio = Math.max(0, Math.min(1, unresolvedRatio));
+    }
+
+    /**
+     * Gets the total number of rules in the generated workspace
+     *
+     * @return The total number of rules
+     */
+    public int getTotalRules() {
+        return files * grammarsPerFile * rulesPerGrammar;
+    }
+
+    /**
+     * Generates the workspace
+     * The files are given in an order such that the parent grammars are defined before the grammars that inherit from them.
+     *
+     * @return The contents of the generated files, by file name
+     */
+    public Map<String, String> generate() {
+        Random random = new Random(seed);
+        Map<String, String> result = new LinkedHashMap<>();
+        for (int i = 0; i != files; i++) {
+            StringBuilder builder = new StringBuilder(grammarsPerFile * rulesPerGrammar * 48);
+            for (int j = 0; j != grammarsPerFile; j++)
+                generateGrammar(builder, random, i * grammarsPerFile + j);
+            result.put(String.format("workload%05d.gram", i), builder.toString());
+        }
+        return result;
+    }
+
+    /**
+     * Generates the workspace into a directory
+     *
+     * @param directory The directory for the generated files
+     * @throws IOException When writing failed
+     */
+    public void write(File directory) throws IOException {
+        if (!directory.exists() && !directory.mkdirs())
+            throw new IOException("Failed to create directory " + directory.getPath());
+        for (Map.Entry<String, String> entry : generate().entrySet()) {
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(new File(directory, entry.getKey())), StandardCharsets.UTF_8)) {
+                writer.write(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Generates a grammar
+     *
+     * @param builder The buffer for the output
+     * @param random  The random generator
+     * @param index   The global index of the grammar
+     */
+    private void generateGrammar(StringBuilder builder, Random random, int index) {
+        boolean inherits = index % inheritanceDepth != 0;
+        builder.append("grammar G").append(index);
+        if (inherits)
+            builder.append(" : G").append(index - 1);
+        builder.append("\n{\n");
+        builder.append("    options\n    {\n");
+        builder.append("        Axiom = \"r").append(index).append("_0\";\n");
+        builder.append("        Separator = \"SEPARATOR").append(index).append("\";\n");
+        builder.append("    }\n");
+
+        // terminals
+        builder.append("    terminals\n    {\n");
+        for (int i = 0; i != fragmentsPerGrammar; i++)
+            builder.append("        fragment F").append(index).append('_').append(i).append(" -> [a-z] [a-z0-9]* ;\n");
+        builder.append("        SEPARATOR").append(index).append(" -> (U+0020 | U+0009 | U+000A | U+000D)+ ;\n");
+        int contextual = contextsPerGrammar == 0 ? 0 : Math.min(terminalsPerGrammar / 2, contextsPerGrammar * 2);
+        for (int i = 0; i != terminalsPerGrammar - contextual; i++)
+            generateTerminal(builder, "        ", index, i);
+        for (int i = 0; i != contextsPerGrammar && contextual > 0; i++) {
+            builder.append("        context C").append(index).append('_').append(i).append("\n        {\n");
+            for (int j = terminalsPerGrammar - contextual + i; j < terminalsPerGrammar; j += contextsPerGrammar)
+                generateTerminal(builder, "            ", index, j);
+            builder.append("        }\n");
+        }
+        builder.append("    }\n");
+
+        // rules
+        builder.append("    rules\n    {\n");
+        for (int i = 0; i != templatesPerGrammar; i++) {
+            String name = "tpl" + index + "_" + i;
+            builder.append("        ").append(name).append("<item> -> item | item ',' ").append(name).append("<item> ;\n");
+        }
+        for (int i = 0; i != rulesPerGrammar; i++) {
+            builder.append("        r").append(index).append('_').append(i).append(" -> ");
+            builder.append('T').append(index).append('_').append(random.nextInt(terminalsPerGrammar));
+            if (i + 1 < rulesPerGrammar)
+                builder.append(" r").append(index).append('_').append(i + 1);
+            builder.append(" | r").append(index).append('_').append(random.nextInt(rulesPerGrammar));
+            builder.append(" T").append(index).append('_').append(random.nextInt(terminalsPerGrammar));
+            if (inherits && random.nextInt(4) == 0)
+                builder.append(" r").append(index - 1).append('_').append(random.nextInt(rulesPerGrammar));
+            if (templatesPerGrammar > 0 && random.nextInt(8) == 0) {
+                builder.append(" tpl").append(index).append('_').append(random.nextInt(templatesPerGrammar));
+                builder.append("<T").append(index).append('_').append(random.nextInt(terminalsPerGrammar)).append('>');
+            }
+            if (random.nextDouble() < unresolvedRatio)
+                builder.append(" undefined").append(index).append('_').append(i);
+            builder.append(" ;\n");
+        }
+        builder.append("    }\n}\n\n");
+    }
+
+    /**
+     * Generates a terminal
+     *
+     * @param builder The buffer for the output
+     * @param indent  The indentation
+     * @param grammar The global index of the grammar
+     * @param index   The index of the terminal within the grammar
+     */
+    private void generateTerminal(StringBuilder builder, String indent, int grammar, int index) {
+        builder.append(indent).append('T').append(grammar).append('_').append(index).append(" -> ");
+        if (fragmentsPerGrammar > 0 && index % 2 == 1)
+            builder.append("'g").append(grammar).append('t').append(index).append("_' F").append(grammar).append('_').append(index % fragmentsPerGrammar);
+        else
+            builder.append("'g").append(grammar).append('t').append(index).append('\'');
+        builder.append(" ;\n");
+    }
+}